@@ -92,6 +92,7 @@ import org.thema.fracgis.estimation.EstimationFactory;
 import org.thema.fracgis.estimation.EstimationFrame;
 import org.thema.fracgis.method.*;
 import org.thema.fracgis.method.raster.multi.MultiFracBoxCountingRasterMethod;
+import org.thema.fracgis.method.raster.multi.MultiFracGlidingBoxRasterMethod;
 import org.thema.fracgis.method.vector.multi.MultiFracBoxCountingVectorMethod;
 import org.thema.fracgis.estimation.MultiFracEstimationFrame;
 import org.thema.fracgis.method.network.mono.CorrelationNetworkDialog;
@@ -167,6 +168,7 @@ public class MainFrame extends javax.swing.JFrame {
         multiRadialRasterMenuItem = new javax.swing.JMenuItem();
         jMenu2 = new javax.swing.JMenu();
         multiFracBoxRasterMenuItem = new javax.swing.JMenuItem();
+        multiFracGlidingBoxRasterMenuItem = new javax.swing.JMenuItem();
         waveletMenuItem = new javax.swing.JMenuItem();
         networkMenu = new javax.swing.JMenu();
         correlationNetMenuItem = new javax.swing.JMenuItem();
@@ -346,6 +348,14 @@ public class MainFrame extends javax.swing.JFrame {
         });
         jMenu2.add(multiFracBoxRasterMenuItem);
 
+        multiFracGlidingBoxRasterMenuItem.setText("Gliding box");
+        multiFracGlidingBoxRasterMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                multiFracGlidingBoxRasterMenuItemActionPerformed(evt);
+            }
+        });
+        jMenu2.add(multiFracGlidingBoxRasterMenuItem);
+
         waveletMenuItem.setText("Wavelet");
         waveletMenuItem.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
@@ -838,6 +848,24 @@ public class MainFrame extends javax.swing.JFrame {
         }).start();
     }//GEN-LAST:event_multiFracBoxRasterMenuItemActionPerformed
 
+    private void multiFracGlidingBoxRasterMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_multiFracGlidingBoxRasterMenuItemActionPerformed
+        final RasterMethodDialog dlg = new RasterMethodDialog(this, "Multi-fractal gliding box", 
+                new LayerModel(mapViewer.getLayers(), RasterLayer.class), new MultiFracSampling());
+        dlg.setVisible(true);
+        if(!dlg.isOk) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {       
+                MultiFracGlidingBoxRasterMethod method = new MultiFracGlidingBoxRasterMethod(dlg.layer.getName(), 
+                        new RasterBoxSampling(dlg.sampling), 
+                        dlg.layer.getImageShape().getImage(), JTS.rectToEnv(dlg.layer.getBounds()));
+                launchMethod(method);
+            }
+        }).start();
+    }//GEN-LAST:event_multiFracGlidingBoxRasterMenuItemActionPerformed
+
     private void multiFracBocCountingVectorMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_multiFracBocCountingVectorMenuItemActionPerformed
         final BoxCountingDialog dlg = new BoxCountingDialog(this, new LayerModel(mapViewer.getLayers(), FeatureLayer.class),
             new MultiFracSampling());
@@ -1076,6 +1104,7 @@ public class MainFrame extends javax.swing.JFrame {
     private javax.swing.JMenuItem multiFracBocCountingVectorMenuItem;
     private javax.swing.JMenuItem multiFracBoxRasterMenuItem;
     private javax.swing.JMenuItem multiFracCorrelationVectorMenuItem;
+    private javax.swing.JMenuItem multiFracGlidingBoxRasterMenuItem;
     private javax.swing.JMenu multiFracVectorMenu;
     private javax.swing.JMenuItem multiRadialRasterMenuItem;
     private javax.swing.JMenu networkMenu;
@@ -83,11 +83,12 @@ public class CLITools {
                     + "\t--rasterize [neg] res=val file_1.shp [... file_n.shp]\n"
                     + "\t--binarize min=val max=val file_1.tif [... file_n.tif]\n"
                     + "\t--boxcounting [gliding=val] SAMPLING [estim=log|direct] file_1.shp [... file_n.shp]\n"
-                    + "\t--rboxcounting SAMPLING [estim=log|direct] file_1.tif [... file_n.tif]\n"
+                    + "\t--rboxcounting [gliding=val [mean]] SAMPLING [estim=log|direct] file_1.tif [... file_n.tif]\n"
                     + "\t--dilation SAMPLING [estim=log|direct] file_1.shp [... file_n.shp]\n"
                     + "\t--rdilation SAMPLING [estim=log|direct] file_1.tif [... file_n.tif]\n"
                     + "\t--correlation SAMPLING [estim=log|direct] file_1.shp [... file_n.shp]\n"
                     + "\t--rcorrelation SAMPLING [estim=log|direct] file_1.tif [... file_n.tif]\n"
+                    + "\t--multiradial maxsize=val [auto=min] [conf] file_1.tif [... file_n.tif]\n"
                     + "SAMPLING:\n"
                     + "\t[coef=val] [min=val] [max=val] [seq=arith|geom]");
             return;
@@ -155,11 +156,23 @@ public class CLITools {
         } else if(arg0.equals("--correlation")) {
             executeMonoMethod(new CorrelationMethod(), "cor", args);
         } else if(arg0.equals("--rboxcounting")) {
-            executeMonoMethod(new BoxCountingRasterMethod(), "rbox", args);
+            int d = 1;
+            boolean mean = false;
+            if(args.get(0).startsWith("gliding=")) {
+                d = Integer.parseInt(args.remove(0).split("=")[1]);
+                if(args.get(0).equals("mean")) {
+                    mean = true;
+                    args.remove(0);
+                }
+            }
+            String name = d == 1 ? "rbox" : String.format(Locale.US, "rbox_glid%d", d) + (mean ? "_mean" : "");
+            executeMonoMethod(new BoxCountingRasterMethod(d, mean), name, args);
         } else if(arg0.equals("--rcorrelation")) {
             executeMonoMethod(new CorrelationRasterMethod(), "rcor", args);
         } else if(arg0.equals("--rdilation")) {
             executeMonoMethod(new DilationRasterMethod(), "rdil", args);
+        } else if(arg0.equals("--multiradial")) {
+            executeMultiRadial(args);
         } else {
             throw new IllegalArgumentException("Unknown command " + arg0 + "\nTry --help" );
         }
@@ -198,6 +211,37 @@ public class CLITools {
         }
     }
     
+    /**
+     * Executes {@link MultiRadialRaster} for each file and writes the results in a directory by file.
+     * An interrupted execution is resumed when the same command is launched again.
+     */
+    private static void executeMultiRadial(List<String> args) throws IOException {
+        double maxSize = Double.parseDouble(args.remove(0).split("=")[1]);
+        boolean auto = false;
+        double min = 0;
+        if(args.get(0).startsWith("auto=")) {
+            auto = true;
+            min = Double.parseDouble(args.remove(0).split("=")[1]);
+        }
+        boolean conf = false;
+        if(args.get(0).equals("conf")) {
+            conf = true;
+            args.remove(0);
+        }
+        String suffix = String.format(Locale.US, "_multirad_maxsize%g", maxSize) + (auto ? String.format(Locale.US, "_auto%g", min) : "") 
+                + (conf ? "_conf" : "");
+        for(String arg : args) {
+            File f = new File(arg);
+            System.out.println(arg);
+            GridCoverage2D cov = IOImage.loadTiff(f);
+            MultiRadialRaster multiRadial = new MultiRadialRaster(cov.getRenderedImage(), JTS.rectToEnv(cov.getEnvelope2D()), 
+                    maxSize, auto, min, conf);
+            multiRadial.execute(new TaskMonitor.EmptyMonitor(), 
+                    new File(f.getParentFile(), f.getName().substring(0, f.getName().length()-4) + suffix), 
+                    cov.getCoordinateReferenceSystem());
+        }
+    }
+    
     static DefaultSampling getSampling(List<String> args) {
         double coef = 2;
         double min = 0;
@@ -21,20 +21,27 @@ package org.thema.fracgis.batch;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
+import java.awt.Point;
 import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.SortedSet;
 import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.thema.common.parallel.ParallelFExecutor;
 import org.thema.common.ProgressBar;
 import org.thema.common.parallel.SimpleParallelTask;
 import org.thema.common.swing.TaskMonitor;
-import org.thema.fracgis.estimation.Estimation;
-import org.thema.fracgis.estimation.EstimationFactory;
-import org.thema.fracgis.estimation.LogEstimation;
+import org.thema.fracgis.estimation.BatchLogRegression;
+import org.thema.fracgis.estimation.InflexPointDetector;
+import org.thema.fracgis.method.raster.BinaryRaster;
+import org.thema.fracgis.method.raster.IntegralImage;
 import org.thema.fracgis.method.raster.mono.RadialRasterMethod;
 import org.thema.fracgis.sampling.DefaultSampling;
 import org.thema.fracgis.sampling.RadialSampling;
@@ -47,12 +54,27 @@ import org.thema.fracgis.sampling.Sampling;
  * @author Gilles Vuidel
  */
 public class MultiRadialRaster {
+    /** number of rows processed by one task */
+    private static final int TILE_HEIGHT = 16;
+    /** number of rows written at once in the file output mode, multiple of TILE_HEIGHT */
+    private static final int BLOCK_HEIGHT = 256;
+    
     private RenderedImage img;
     private Envelope envelope;
     private double maxSize;
     private boolean autoThreshold;
     private double minThreshold;
     private boolean confidenceInterval;
+    
+    /** scales in pixel, their size and their resolution, shared by all pixels */
+    private int[] scales;
+    private double[] scaleX;
+    private double scaleRes;
+    private BatchLogRegression regression;
+    /** abscissas of the scaling behaviour, first index greater than minThreshold and inflexion point detector for autoThreshold */
+    private double[] scalingX;
+    private int indMin;
+    private InflexPointDetector inflexDetector;
 
     /** results rasters */
     private WritableRaster rasterDim, rasterR2, rasterDistMax, rasterDmin, rasterDmax, rasterDinter;
@@ -83,68 +105,69 @@ public class MultiRadialRaster {
      * @throws CancellationException if user cancel the task
      */
     public void execute(ProgressBar progress) {
-        rasterDim = Raster.createWritableRaster(new ComponentSampleModel(DataBuffer.TYPE_FLOAT, img.getWidth(), img.getHeight(), 1, img.getWidth(), new int[1]), null);
-        rasterR2 = Raster.createWritableRaster(new ComponentSampleModel(DataBuffer.TYPE_FLOAT, img.getWidth(), img.getHeight(), 1, img.getWidth(), new int[1]), null);
-        if(confidenceInterval) {
-            rasterDinter = Raster.createWritableRaster(new ComponentSampleModel(DataBuffer.TYPE_FLOAT, img.getWidth(), img.getHeight(), 1, img.getWidth(), new int[1]), null);
-            rasterDmin = Raster.createWritableRaster(new ComponentSampleModel(DataBuffer.TYPE_FLOAT, img.getWidth(), img.getHeight(), 1, img.getWidth(), new int[1]), null);
-            rasterDmax = Raster.createWritableRaster(new ComponentSampleModel(DataBuffer.TYPE_FLOAT, img.getWidth(), img.getHeight(), 1, img.getWidth(), new int[1]), null);
-        }
-        if(autoThreshold) {
-            rasterDistMax = Raster.createWritableRaster(new ComponentSampleModel(DataBuffer.TYPE_FLOAT, img.getWidth(), img.getHeight(), 1, img.getWidth(), new int[1]), null);
+        createRasters(0, img.getHeight());
+        final BinaryRaster binRaster = BinaryRaster.create(img);
+        final IntegralImage integral = createIntegralImage(binRaster);
+        initScales();
+        executeRows(0, img.getHeight(), binRaster, integral, progress);
+    }
+    
+    /**
+     * Perform the calculation and writes the results in GeoTIFF files, without keeping the result rasters in memory.
+     * The image is processed by blocks of rows. Each finished block is written on disk with a checkpoint,
+     * so an interrupted execution restarts from the last written block when it is executed again on the same directory
+     * with the same parameters.
+     * The files are written at the end in the directory : dim.tif, r2.tif, and distmax.tif, dinter.tif, dmin.tif, dmax.tif
+     * depending on the parameters.
+     * The getRaster methods return null after this execution.
+     * The execution is parallelized by thread. Does not work with MPI.
+     * @param progress the progression monitor
+     * @param dir the output directory
+     * @param crs the coordinate reference system of the raster source, may be null
+     * @throws IOException
+     * @throws CancellationException if user cancel the task, the written blocks are kept
+     */
+    public void execute(ProgressBar progress, File dir, CoordinateReferenceSystem crs) throws IOException {
+        final BinaryRaster binRaster = BinaryRaster.create(img);
+        final IntegralImage integral = createIntegralImage(binRaster);
+        initScales();
+        String params = String.format(Locale.US, "maxsize%g_auto%b_min%g_conf%b_env%s", maxSize, autoThreshold, 
+                minThreshold, confidenceInterval, envelope);
+        try (TiledRasterWriter writer = new TiledRasterWriter(dir, getBandNames(), img.getWidth(), img.getHeight(), BLOCK_HEIGHT, params)) {
+            progress.setMaximum(writer.getNbBlocks()*100);
+            progress.incProgress(writer.getNbDone()*100);
+            for(int block = 0; block < writer.getNbBlocks(); block++) {
+                if(writer.isDone(block)) {
+                    continue;
+                }
+                final int y1 = block*BLOCK_HEIGHT;
+                final int y2 = Math.min(img.getHeight(), y1+BLOCK_HEIGHT);
+                createRasters(y1, y2-y1);
+                executeRows(y1, y2, binRaster, integral, progress.getSubProgress(100));
+                writer.writeBlock(block, getBandRasters());
+            }
+            writer.writeGeoTiffs(envelope, crs);
+        } finally {
+            rasterDim = rasterR2 = rasterDistMax = rasterDmin = rasterDmax = rasterDinter = null;
         }
-        SimpleParallelTask task = new SimpleParallelTask.IterParallelTask(img.getHeight(), progress) {
+    }
+    
+    /**
+     * Estimates the dimension for the rows [y1, y2[ in parallel
+     * @throws CancellationException if user cancel the task
+     */
+    private void executeRows(final int y1, final int y2, final BinaryRaster binRaster, final IntegralImage integral, ProgressBar progress) {
+        final int nbTiles = (y2-y1+TILE_HEIGHT-1) / TILE_HEIGHT;
+        SimpleParallelTask task = new SimpleParallelTask.IterParallelTask(nbTiles, progress) {
             @Override
-            protected void executeOne(Integer y) {
-                RandomIter r = RandomIterFactory.create(img, null);
-                for(int x = 0; x < img.getWidth(); x++) {
-                    if(r.getSample(x, y, 0) == 1) {
-                        Coordinate c = new Coordinate(x, y);
-                        RadialRasterMethod method = new RadialRasterMethod("", new RadialSampling(
-                                new DefaultSampling(1, maxSize/getResolution(), 1.1, Sampling.Sequence.GEOM), c), img, null);
-                        method.execute(new TaskMonitor.EmptyMonitor(), false);
-                        try {
-                            LogEstimation estim = (LogEstimation) new EstimationFactory(method).getDefaultEstimation();
-                            if(autoThreshold) {
-                                double max = getThreshold(estim);
-                                estim.setRange(0, max);
-                                rasterDistMax.setSample(x, y, 0, max*getResolution());
-                            }
-                            rasterDim.setSample(x, y, 0, estim.getDimension());
-                            rasterR2.setSample(x, y, 0, estim.getR2());
-                            if(confidenceInterval) {
-                                double dInter = estim.getConfidenceInterval();
-                                rasterDinter.setSample(x, y, 0, dInter);
-                                rasterDmin.setSample(x, y, 0, estim.getDimension()-dInter);
-                                rasterDmax.setSample(x, y, 0, estim.getDimension()+dInter);
-                            }
-                        } catch(Exception ex) {
-                            Logger.getLogger(MultiRadialRaster.class.getName()).log(Level.WARNING, null, ex);
-                            rasterDim.setSample(x, y, 0, Float.NaN);
-                            rasterR2.setSample(x, y, 0, Float.NaN);
-                            if(confidenceInterval) {
-                                rasterDinter.setSample(x, y, 0, Float.NaN);
-                                rasterDmin.setSample(x, y, 0, Float.NaN);
-                                rasterDmax.setSample(x, y, 0, Float.NaN);
-                            }
-                            if(autoThreshold) {
-                                rasterDistMax.setSample(x, y, 0, Float.NaN);
-                            }
-                        }
-                    } else {
-                        rasterDim.setSample(x, y, 0, Float.NaN);
-                        rasterR2.setSample(x, y, 0, Float.NaN);
-                        if(confidenceInterval) {
-                            rasterDinter.setSample(x, y, 0, Float.NaN);
-                            rasterDmin.setSample(x, y, 0, Float.NaN);
-                            rasterDmax.setSample(x, y, 0, Float.NaN);
-                        }
-                        if(autoThreshold) {
-                            rasterDistMax.setSample(x, y, 0, Float.NaN);
-                        }
-                    }
+            protected void executeOne(Integer tile) {
+                double[] counts = new double[scales.length];
+                double[] result = new double[BatchLogRegression.RESULT_SIZE];
+                double[] scaling = new double[scales.length];
+                int[] indices = new int[scales.length];
+                for(int y = y1+tile*TILE_HEIGHT; y < Math.min(y2, y1+(tile+1)*TILE_HEIGHT); y++) {
+                    executeRow(y, binRaster, integral, counts, result, scaling, indices);
                 }
-                r.done();
             }
         };
         
@@ -155,6 +178,194 @@ public class MultiRadialRaster {
         }
     }
     
+    /**
+     * Creates the result rasters for the rows [y, y+height[
+     */
+    private void createRasters(int y, int height) {
+        rasterDim = createRaster(y, height);
+        rasterR2 = createRaster(y, height);
+        if(confidenceInterval) {
+            rasterDinter = createRaster(y, height);
+            rasterDmin = createRaster(y, height);
+            rasterDmax = createRaster(y, height);
+        }
+        if(autoThreshold) {
+            rasterDistMax = createRaster(y, height);
+        }
+    }
+    
+    private WritableRaster createRaster(int y, int height) {
+        return Raster.createWritableRaster(new ComponentSampleModel(DataBuffer.TYPE_FLOAT, img.getWidth(), height, 1, img.getWidth(), new int[1]), 
+                new Point(0, y));
+    }
+    
+    /**
+     * @return the names of the result bands depending on the parameters
+     */
+    private String[] getBandNames() {
+        List<String> names = new ArrayList<>(Arrays.asList("dim", "r2"));
+        if(autoThreshold) {
+            names.add("distmax");
+        }
+        if(confidenceInterval) {
+            names.addAll(Arrays.asList("dinter", "dmin", "dmax"));
+        }
+        return names.toArray(new String[names.size()]);
+    }
+    
+    /**
+     * @return the result rasters in the same order as {@link #getBandNames() }
+     */
+    private Raster[] getBandRasters() {
+        List<Raster> rasters = new ArrayList<>(Arrays.asList((Raster)rasterDim, rasterR2));
+        if(autoThreshold) {
+            rasters.add(rasterDistMax);
+        }
+        if(confidenceInterval) {
+            rasters.addAll(Arrays.asList((Raster)rasterDinter, rasterDmin, rasterDmax));
+        }
+        return rasters.toArray(new Raster[rasters.size()]);
+    }
+    
+    /**
+     * Creates the integral image of the binary raster, in parallel
+     * @param binRaster the binary raster
+     * @return the integral image
+     */
+    private IntegralImage createIntegralImage(final BinaryRaster binRaster) {
+        final IntegralImage integral = new IntegralImage(binRaster);
+        final int nbTiles = (binRaster.getHeight()+TILE_HEIGHT-1) / TILE_HEIGHT;
+        SimpleParallelTask task = new SimpleParallelTask.IterParallelTask(nbTiles, new TaskMonitor.EmptyMonitor()) {
+            @Override
+            protected void executeOne(Integer tile) {
+                integral.buildRows(tile*TILE_HEIGHT, Math.min(binRaster.getHeight(), (tile+1)*TILE_HEIGHT));
+            }
+        };
+        new ParallelFExecutor(task).executeAndWait();
+        final int nbCol = Math.min(binRaster.getWidth(), 64);
+        task = new SimpleParallelTask.IterParallelTask(nbCol, new TaskMonitor.EmptyMonitor()) {
+            @Override
+            protected void executeOne(Integer i) {
+                integral.buildColumns(i*binRaster.getWidth()/nbCol, (i+1)*binRaster.getWidth()/nbCol);
+            }
+        };
+        new ParallelFExecutor(task).executeAndWait();
+        return integral;
+    }
+    
+    /**
+     * Estimates the dimension for all pixels of the row y
+     * @param counts buffer for the curve of one pixel
+     * @param result buffer for the regression results
+     * @param scaling buffer for the scaling behaviour of one pixel
+     * @param indices buffer for the inflexion points
+     */
+    private void executeRow(int y, BinaryRaster binRaster, IntegralImage integral, double[] counts, double[] result,
+            double[] scaling, int[] indices) {
+        for(int x = 0; x < img.getWidth(); x++) {
+            if(!binRaster.get(x, y)) {
+                setNaN(x, y);
+                continue;
+            }
+            for(int i = 0; i < scales.length; i++) {
+                counts[i] = integral.getSquareSum(x, y, scales[i]) * scaleRes*scaleRes;
+            }
+            int end = scales.length;
+            if(autoThreshold) {
+                double max;
+                try {
+                    max = getThreshold(counts, scaling, indices);
+                } catch(IllegalStateException ex) {
+                    Logger.getLogger(MultiRadialRaster.class.getName()).log(Level.WARNING, null, ex);
+                    setNaN(x, y);
+                    continue;
+                }
+                rasterDistMax.setSample(x, y, 0, max*getResolution());
+                // first scale greater or equal to max, or the last one
+                end = 0;
+                while(end < scaleX.length-1 && !(scaleX[end] >= max)) {
+                    end++;
+                }
+                end++;
+            }
+            regression.estimate(counts, 0, end, result);
+            final double dim = result[BatchLogRegression.SLOPE];
+            rasterDim.setSample(x, y, 0, dim);
+            rasterR2.setSample(x, y, 0, result[BatchLogRegression.R2]);
+            if(confidenceInterval) {
+                double dInter = result[BatchLogRegression.CONF_INTERVAL];
+                rasterDinter.setSample(x, y, 0, dInter);
+                rasterDmin.setSample(x, y, 0, dim-dInter);
+                rasterDmax.setSample(x, y, 0, dim+dInter);
+            }
+        }
+    }
+    
+    /**
+     * Sets NaN in all result rasters for the pixel (x, y)
+     */
+    private void setNaN(int x, int y) {
+        rasterDim.setSample(x, y, 0, Float.NaN);
+        rasterR2.setSample(x, y, 0, Float.NaN);
+        if(confidenceInterval) {
+            rasterDinter.setSample(x, y, 0, Float.NaN);
+            rasterDmin.setSample(x, y, 0, Float.NaN);
+            rasterDmax.setSample(x, y, 0, Float.NaN);
+        }
+        if(autoThreshold) {
+            rasterDistMax.setSample(x, y, 0, Float.NaN);
+        }
+    }
+    
+    /**
+     * Initializes the scales of the radial analysis and the regression.
+     * The scales are the same for all pixels, they are taken from a radial method in pixel unit.
+     */
+    private void initScales() {
+        RadialRasterMethod method = new RadialRasterMethod("", new RadialSampling(
+                new DefaultSampling(1, maxSize/getResolution(), 1.1, Sampling.Sequence.GEOM), new Coordinate(0, 0)), img, null);
+        SortedSet<Integer> values = method.getSampling().getDiscreteValues();
+        scaleRes = method.getResolution();
+        scales = new int[values.size()];
+        scaleX = new double[values.size()];
+        int i = 0;
+        for(int scale : values) {
+            scales[i] = scale;
+            scaleX[i] = (2*scale+1) * scaleRes;
+            i++;
+        }
+        regression = new BatchLogRegression(scaleX);
+        
+        if(autoThreshold) {
+            scalingX = new double[Math.max(0, scaleX.length-1)];
+            for(i = 1; i < scaleX.length; i++) {
+                scalingX[i-1] = (scaleX[i]+scaleX[i-1])/2;
+            }
+            indMin = 0;
+            while(indMin < scalingX.length && scalingX[indMin] < (minThreshold / getResolution())) {
+                indMin++;
+            }
+            List<Double> bandwidths = new ArrayList<>();
+            double bandwidth = 0.05;
+            final double inc = 0.05;
+            bandwidths.add(bandwidth);
+            while(bandwidth < 1) {
+                bandwidth += inc;
+                bandwidths.add(bandwidth);
+            }
+            double[] bands = new double[bandwidths.size()];
+            for(i = 0; i < bands.length; i++) {
+                bands[i] = bandwidths.get(i);
+            }
+            try {
+                inflexDetector = new InflexPointDetector(scalingX, bands, true);
+            } catch(RuntimeException ex) {
+                // less than 2 points in the scaling behaviour, the threshold cannot be calculated for any pixel
+                inflexDetector = null;
+            }
+        }
+    }
+    
     private double getResolution() {
         return envelope.getWidth() / img.getWidth();
     }
@@ -218,36 +429,43 @@ public class MultiRadialRaster {
     }
 
     /**
-     * Calculates the max size from an estimation based on the main inflexion point of the scaling behaviour.
+     * Calculates the max size of a pixel curve based on the main inflexion point of the scaling behaviour.
+     * The smoothing bandwidth is increased until only one inflexion point remains.
      * 
-     * @param estim the radial estimation
+     * @param counts the radial curve of the pixel
+     * @param scaling buffer for the scaling behaviour
+     * @param indices buffer for the inflexion points
      * @return the main inflexion point of the scaling behaviour or the max distance if no inflexion point is found
+     * @throws IllegalStateException if the threshold cannot be found
      */
-    private double getThreshold(Estimation estim) {
-        double bandwitdh = 0.05;
-        final double inc = 0.05;
-        int indMin = 0;
-        double[] scx = estim.getScalingBehaviour()[0];
-        while(indMin < scx.length && scx[indMin] < (minThreshold / getResolution())) {
-            indMin++;
+    private double getThreshold(double[] counts, double[] scaling, int[] indices) {
+        if(inflexDetector == null) {
+            throw new IllegalStateException("Not enough scales for threshold detection");
         }
-        
-        List<Integer> precPtInflex = null, ptInflex = estim.getInflexPointIndices(bandwitdh, indMin);
-        while(ptInflex.size() > 1 && bandwitdh < 1) {
-            bandwitdh += inc;
-            precPtInflex = ptInflex;
-            ptInflex = estim.getInflexPointIndices(bandwitdh, indMin);
+        for(int i = 1; i < counts.length; i++) {
+            scaling[i-1] = (Math.log(counts[i]) - Math.log(counts[i-1])) / (Math.log(scaleX[i]) - Math.log(scaleX[i-1]));
+        }
+        int band = 0;
+        int precFirst = -1;
+        int nb = inflexDetector.getInflexPoints(scaling, band, indMin, indices);
+        while(nb > 1 && inflexDetector.getBandwidth(band) < 1) {
+            band++;
+            precFirst = indices[0];
+            nb = inflexDetector.getInflexPoints(scaling, band, indMin, indices);
         }
         
-        if(ptInflex.isEmpty()) {
-            if(precPtInflex != null) {
-                return scx[precPtInflex.get(0)];
+        if(nb == 0) {
+            if(precFirst != -1) {
+                return scalingX[precFirst];
             } else {
-                return scx[scx.length-1]+1;
+                return scalingX[scalingX.length-1]+1;
             }
         } else {
-            if(ptInflex.size() == 1) {
-                return scx[precPtInflex.get(0)];
+            if(nb == 1) {
+                if(precFirst == -1) {
+                    throw new IllegalStateException("Only one inflexion point for the first bandwidth");
+                }
+                return scalingX[precFirst];
             } else {
                 return Double.NaN;
             }
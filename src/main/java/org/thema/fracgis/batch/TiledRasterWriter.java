@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.batch;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.awt.Point;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PlanarImage;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Writes float rasters block of rows by block of rows, with a checkpoint to resume an interrupted calculation.
+ *
+ * Each band is stored in a raw file (float, row after row) in the output directory.
+ * When a block is written for all bands, the data are flushed on disk and the block is added to the checkpoint file.
+ * If the writer is created again on the same directory with the same parameters, the blocks
+ * already written are kept and {@link #isDone } returns true for them.
+ * When all blocks are written, {@link #writeGeoTiffs } creates one tiled and LZW compressed GeoTIFF by band
+ * (BigTIFF if the band is larger than 2GB) by reading the raw files tile by tile,
+ * then removes the raw files and the checkpoint.
+ *
+ * @author Gilles Vuidel
+ */
+public class TiledRasterWriter implements Closeable {
+
+    /** Tile size of the GeoTIFF files */
+    public static final int TILE_SIZE = 256;
+
+    private static final String CHECKPOINT_FILE = "checkpoint.txt";
+
+    private final File dir;
+    private final String [] bands;
+    private final int width, height, blockHeight;
+    private final RandomAccessFile [] files;
+    private final BitSet done;
+    private final FileOutputStream checkpoint;
+
+    /**
+     * Creates the writer or resumes the previous one if the directory contains a checkpoint with the same parameters.
+     * @param dir the output directory, created if needed
+     * @param bands the names of the bands, used for file names
+     * @param width the width of the rasters
+     * @param height the height of the rasters
+     * @param blockHeight the number of rows of a block
+     * @param params the parameters of the calculation, a previous checkpoint is used only if they are the same
+     * @throws IOException
+     */
+    public TiledRasterWriter(File dir, String [] bands, int width, int height, int blockHeight, String params) throws IOException {
+        this.dir = dir;
+        this.bands = bands;
+        this.width = width;
+        this.height = height;
+        this.blockHeight = blockHeight;
+        dir.mkdirs();
+
+        StringBuilder header = new StringBuilder(String.format("%d %d %d", width, height, blockHeight));
+        for(String band : bands) {
+            header.append(' ').append(band);
+        }
+        header.append(' ').append(params);
+        done = new BitSet(getNbBlocks());
+        File checkFile = new File(dir, CHECKPOINT_FILE);
+        boolean resume = false;
+        if(checkFile.exists()) {
+            try (BufferedReader r = new BufferedReader(new FileReader(checkFile))) {
+                String line = r.readLine();
+                if(header.toString().equals(line)) {
+                    resume = true;
+                    while((line = r.readLine()) != null) {
+                        // an incomplete last line is ignored
+                        if(line.endsWith(";")) {
+                            done.set(Integer.parseInt(line.substring(0, line.length()-1)));
+                        }
+                    }
+                }
+            }
+        }
+        files = new RandomAccessFile[bands.length];
+        for(int i = 0; i < bands.length; i++) {
+            File f = getRawFile(i);
+            if(!resume) {
+                f.delete();
+            }
+            files[i] = new RandomAccessFile(f, "rw");
+            files[i].setLength((long)width * height * 4);
+        }
+        checkpoint = new FileOutputStream(checkFile, resume);
+        if(!resume) {
+            writeCheckpoint(header.toString());
+        }
+    }
+
+    /**
+     * @return the number of blocks
+     */
+    public final int getNbBlocks() {
+        return (height + blockHeight - 1) / blockHeight;
+    }
+
+    /**
+     * @param block the block index
+     * @return true if the block has already been written
+     */
+    public boolean isDone(int block) {
+        return done.get(block);
+    }
+
+    /**
+     * @return the number of blocks already written
+     */
+    public int getNbDone() {
+        return done.cardinality();
+    }
+
+    /**
+     * Writes the block for all bands and adds it to the checkpoint.
+     * The rasters cover the rows of the block, their minY must be the first row of the block.
+     * @param block the block index
+     * @param rasters one raster by band
+     * @throws IOException
+     */
+    public synchronized void writeBlock(int block, Raster [] rasters) throws IOException {
+        final int y1 = block * blockHeight;
+        final int y2 = Math.min(height, y1 + blockHeight);
+        final float [] row = new float[width];
+        final ByteBuffer buf = ByteBuffer.allocate(width*4);
+        for(int i = 0; i < bands.length; i++) {
+            FileChannel channel = files[i].getChannel();
+            for(int y = y1; y < y2; y++) {
+                rasters[i].getSamples(0, y, width, 1, 0, row);
+                buf.clear();
+                buf.asFloatBuffer().put(row);
+                long pos = (long)y * width * 4;
+                while(buf.hasRemaining()) {
+                    pos += channel.write(buf, pos);
+                }
+            }
+            channel.force(false);
+        }
+        writeCheckpoint(block + ";");
+        done.set(block);
+    }
+
+    /**
+     * Writes one GeoTIFF by band, named band.tif, then deletes the raw files and the checkpoint.
+     * All blocks must have been written.
+     * @param envelope the envelope of the rasters in world coordinate
+     * @param crs the coordinate reference system, may be null
+     * @throws IOException
+     * @throws IllegalStateException if some blocks are missing
+     */
+    public void writeGeoTiffs(Envelope envelope, CoordinateReferenceSystem crs) throws IOException {
+        if(getNbDone() < getNbBlocks()) {
+            throw new IllegalStateException("Some blocks are missing : " + (getNbBlocks() - getNbDone()));
+        }
+        GeoTiffWriteParams wp = new GeoTiffWriteParams();
+        wp.setCompressionMode(GeoTiffWriteParams.MODE_EXPLICIT);
+        wp.setCompressionType("LZW");
+        wp.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
+        wp.setTiling(TILE_SIZE, TILE_SIZE);
+        wp.setForceToBigTIFF((long)width * height * 4 > Integer.MAX_VALUE);
+        ParameterValue<GeoToolsWriteParams> value = GeoTiffFormat.GEOTOOLS_WRITE_PARAMS.createValue();
+        value.setValue(wp);
+        Envelope2D env = new Envelope2D(crs, envelope.getMinX(), envelope.getMinY(), envelope.getWidth(), envelope.getHeight());
+        for(int i = 0; i < bands.length; i++) {
+            GridCoverage2D cov = new GridCoverageFactory().create(bands[i],
+                    new RawBandImage(files[i].getChannel(), width, height), env);
+            GeoTiffWriter writer = new GeoTiffWriter(new File(dir, bands[i] + ".tif"));
+            try {
+                writer.write(cov, new GeneralParameterValue[] {value});
+            } finally {
+                writer.dispose();
+            }
+        }
+        close();
+        for(int i = 0; i < bands.length; i++) {
+            getRawFile(i).delete();
+        }
+        new File(dir, CHECKPOINT_FILE).delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(RandomAccessFile f : files) {
+            f.close();
+        }
+        checkpoint.close();
+    }
+
+    private File getRawFile(int band) {
+        return new File(dir, bands[band] + ".raw");
+    }
+
+    private void writeCheckpoint(String line) throws IOException {
+        checkpoint.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        checkpoint.flush();
+        checkpoint.getFD().sync();
+    }
+
+    /**
+     * Float image read from a raw file tile by tile.
+     */
+    private static final class RawBandImage extends PlanarImage {
+        private final FileChannel channel;
+
+        private RawBandImage(FileChannel channel, int width, int height) {
+            this.channel = channel;
+            SampleModel sm = new ComponentSampleModel(DataBuffer.TYPE_FLOAT, TILE_SIZE, TILE_SIZE, 1, TILE_SIZE, new int[1]);
+            setImageLayout(new ImageLayout(0, 0, width, height, 0, 0, TILE_SIZE, TILE_SIZE, sm, createColorModel(sm)));
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            final int x1 = tileXToX(tileX);
+            final int y1 = tileYToY(tileY);
+            WritableRaster tile = Raster.createWritableRaster(sampleModel, new Point(x1, y1));
+            final float [] data = ((DataBufferFloat)tile.getDataBuffer()).getData();
+            final int w = Math.min(TILE_SIZE, getWidth() - x1);
+            final int h = Math.min(TILE_SIZE, getHeight() - y1);
+            final ByteBuffer buf = ByteBuffer.allocate(w*4);
+            try {
+                for(int y = 0; y < h; y++) {
+                    buf.clear();
+                    long pos = ((long)(y1+y) * getWidth() + x1) * 4;
+                    while(buf.hasRemaining()) {
+                        int n = channel.read(buf, pos);
+                        if(n < 0) {
+                            throw new IOException("Unexpected end of file");
+                        }
+                        pos += n;
+                    }
+                    buf.flip();
+                    buf.asFloatBuffer().get(data, y*TILE_SIZE, w);
+                }
+            } catch(IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            return tile;
+        }
+    }
+}
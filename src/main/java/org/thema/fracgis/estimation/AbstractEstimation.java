@@ -21,12 +21,10 @@ package org.thema.fracgis.estimation;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NavigableMap;
 import java.util.TreeMap;
-import org.apache.commons.math3.analysis.differentiation.DerivativeStructure;
 import org.apache.commons.math3.analysis.function.Gaussian;
 import org.jfree.chart.axis.NumberAxis;
 import org.jfree.chart.plot.XYPlot;
@@ -201,38 +199,7 @@ public abstract class AbstractEstimation implements Estimation {
     }
     
     private List<Integer> getPointInflex(double [][] curve, double bandwidth, int minInd, boolean log) {
-        int n = curve[0].length;
-        double min = curve[0][0];
-        double max = curve[0][n-1];
-        double [][] smooth = new double[2][n];
-        
-        double sigma = (max-min) * bandwidth;
-        if(log) {
-            sigma = (Math.log(max)-Math.log(min)) * bandwidth;
-        }
-        Gaussian gaussian = new Gaussian(0, sigma);
-        
-        for(int i = 0; i < n; i++) {
-            double x = curve[0][i];
-            double sum = 0, sumCoef = 0;
-            for(int j = 0; j < n; j++) {
-                double xc = log ? (Math.log(curve[0][j]) - Math.log(x)) : (curve[0][j] - x);
-                DerivativeStructure xd = new DerivativeStructure(1, 2, 0, xc);
-                double coef = gaussian.value(xd).getPartialDerivative(2);
-                sum += coef * curve[1][j];
-                sumCoef += coef;
-            }
-            smooth[0][i] = x;
-            smooth[1][i] = sum / sumCoef;
-        }
-        
-        List<Integer> ptInflex = new ArrayList<>();
-        for(int i = minInd; i < n-1; i++) {
-            if(smooth[1][i]*smooth[1][i+1] <= 0 && (smooth[1][i] != 0 || smooth[1][i+1] != 0)) {
-                ptInflex.add(i);
-            }
-        }
-        return ptInflex;
+        return new InflexPointDetector(curve[0], new double[] {bandwidth}, log).getInflexPoints(curve[1], 0, minInd);
     }
 
 }
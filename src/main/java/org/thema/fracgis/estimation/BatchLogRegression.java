@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.estimation;
+
+import org.apache.commons.math3.distribution.TDistribution;
+
+/**
+ * Log linear regression log(y) = a*log(x)+b for many curves sharing the same abscissas.
+ * Gives the same results as {@link LogEstimation} (same computation as commons-math SimpleRegression),
+ * but the terms depending only on x and the Student quantiles are precomputed once,
+ * and the estimation of a curve does not allocate any object.
+ * As in {@link LogEstimation}, the points with y <= 0 are ignored.
+ *
+ * An instance is immutable and can be shared between threads.
+ *
+ * @author Gilles Vuidel
+ */
+public final class BatchLogRegression {
+    /** Index of the slope in the result array */
+    public static final int SLOPE = 0;
+    /** Index of the intercept in the result array */
+    public static final int INTERCEPT = 1;
+    /** Index of the R2 in the result array */
+    public static final int R2 = 2;
+    /** Index of the half width of the 95% confidence interval of the slope in the result array */
+    public static final int CONF_INTERVAL = 3;
+    /** Size of the result array */
+    public static final int RESULT_SIZE = 4;
+
+    private final double [] logX;
+    /** x mean, sum of x and sum of squared deviations of x for the n first points */
+    private final double [] xbar, sumX, sumXX;
+    /** x deviation from the mean of the previous points, for each point */
+    private final double [] dx;
+    /** updating factors of the mean and of the sums for each point */
+    private final double [] fact1, fact2;
+    /** Student quantile (97.5%) for n points */
+    private final double [] tQuantile;
+
+    /**
+     * Precomputes the regression terms for the abscissas x.
+     * @param x the abscissas, in increasing order
+     */
+    public BatchLogRegression(double [] x) {
+        final int n = x.length;
+        logX = new double[n];
+        xbar = new double[n+1];
+        sumX = new double[n+1];
+        sumXX = new double[n+1];
+        dx = new double[n];
+        fact1 = new double[n];
+        fact2 = new double[n];
+        for(int i = 0; i < n; i++) {
+            logX[i] = Math.log(x[i]);
+            if(i == 0) {
+                xbar[1] = logX[0];
+            } else {
+                fact1[i] = 1.0 + i;
+                fact2[i] = i / (1.0 + i);
+                dx[i] = logX[i] - xbar[i];
+                sumXX[i+1] = sumXX[i] + dx[i] * dx[i] * fact2[i];
+                xbar[i+1] = xbar[i] + dx[i] / fact1[i];
+            }
+            sumX[i+1] = sumX[i] + logX[i];
+        }
+        tQuantile = new double[n+1];
+        for(int i = 3; i <= n; i++) {
+            tQuantile[i] = new TDistribution(i - 2).inverseCumulativeProbability(1 - 0.05/2);
+        }
+    }
+
+    /**
+     * @return the number of abscissas
+     */
+    public int getSize() {
+        return logX.length;
+    }
+
+    /**
+     * Estimates the regression for the points [start, end[ of the curve y.
+     * When the regression cannot be calculated (less than 2 or 3 points, constant x), the results are NaN
+     * as for SimpleRegression.
+     * @param y the ordinates for each abscissa
+     * @param start the first point
+     * @param end the last point (exclusive)
+     * @param result the array of size {@link #RESULT_SIZE} filled with slope, intercept, R2 and confidence interval
+     */
+    public void estimate(double [] y, int start, int end, double [] result) {
+        // same updating formulas as SimpleRegression.addData
+        double xb = 0, yb = 0, sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+        // precomputed x terms are valid while the points are taken from the first one without skipping
+        boolean precomp = start == 0;
+        int n = 0;
+        for(int i = start; i < end; i++) {
+            if(y[i] <= 0) {
+                if(precomp) {
+                    precomp = false;
+                    xb = xbar[n];
+                    sx = sumX[n];
+                    sxx = sumXX[n];
+                }
+                continue;
+            }
+            final double ly = Math.log(y[i]);
+            if(n == 0) {
+                xb = logX[i];
+                yb = ly;
+            } else if(precomp) {
+                final double dy = ly - yb;
+                syy += dy * dy * fact2[n];
+                sxy += dx[n] * dy * fact2[n];
+                yb += dy / fact1[n];
+            } else {
+                final double f1 = 1.0 + n;
+                final double f2 = n / (1.0 + n);
+                final double ddx = logX[i] - xb;
+                final double dy = ly - yb;
+                sxx += ddx * ddx * f2;
+                syy += dy * dy * f2;
+                sxy += ddx * dy * f2;
+                xb += ddx / f1;
+                yb += dy / f1;
+            }
+            if(!precomp) {
+                sx += logX[i];
+            }
+            sy += ly;
+            n++;
+        }
+        if(precomp) {
+            sx = sumX[n];
+            sxx = sumXX[n];
+        }
+
+        final double slope = n < 2 || Math.abs(sxx) < 10 * Double.MIN_VALUE ? Double.NaN : sxy / sxx;
+        final double sse = Math.max(0, syy - sxy * sxy / sxx);
+        final double ssto = n < 2 ? Double.NaN : syy;
+        result[SLOPE] = slope;
+        result[INTERCEPT] = (sy - slope * sx) / n;
+        result[R2] = (ssto - sse) / ssto;
+        result[CONF_INTERVAL] = n < 3 ? Double.NaN : Math.sqrt(sse / (n - 2) / sxx) * tQuantile[n];
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.estimation;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.math3.analysis.differentiation.DerivativeStructure;
+import org.apache.commons.math3.analysis.function.Gaussian;
+
+/**
+ * Detects the inflexion points of curves sharing the same abscissas.
+ * The curve is convolved with the second derivative of a gaussian kernel,
+ * the inflexion points are the sign changes of the result.
+ * The kernel coefficients depend only on the abscissas and the bandwidth,
+ * they are precomputed for each bandwidth, so the detection for one curve is a small matrix-vector product.
+ *
+ * An instance is immutable and can be shared between threads.
+ *
+ * @author Gilles Vuidel
+ */
+public final class InflexPointDetector {
+
+    private final int n;
+    private final double [] bandwidths;
+    /** kernel coefficients n x n for each bandwidth */
+    private final double [][] kernels;
+    /** sum of each kernel row for each bandwidth */
+    private final double [][] sumCoefs;
+
+    /**
+     * Precomputes the kernels for the abscissas x and the given bandwidths.
+     * @param x the abscissas in increasing order
+     * @param bandwidths the bandwidths relative to the abscissa range
+     * @param log if true, the distances between abscissas are calculated in log
+     */
+    public InflexPointDetector(double [] x, double [] bandwidths, boolean log) {
+        this.n = x.length;
+        this.bandwidths = bandwidths.clone();
+        kernels = new double[bandwidths.length][n*n];
+        sumCoefs = new double[bandwidths.length][n];
+        final double min = x[0];
+        final double max = x[n-1];
+        for(int b = 0; b < bandwidths.length; b++) {
+            double sigma = (max-min) * bandwidths[b];
+            if(log) {
+                sigma = (Math.log(max)-Math.log(min)) * bandwidths[b];
+            }
+            Gaussian gaussian = new Gaussian(0, sigma);
+            for(int i = 0; i < n; i++) {
+                double sumCoef = 0;
+                for(int j = 0; j < n; j++) {
+                    double xc = log ? (Math.log(x[j]) - Math.log(x[i])) : (x[j] - x[i]);
+                    DerivativeStructure xd = new DerivativeStructure(1, 2, 0, xc);
+                    double coef = gaussian.value(xd).getPartialDerivative(2);
+                    kernels[b][i*n+j] = coef;
+                    sumCoef += coef;
+                }
+                sumCoefs[b][i] = sumCoef;
+            }
+        }
+    }
+
+    /**
+     * @return the number of bandwidths
+     */
+    public int getNbBandwidths() {
+        return bandwidths.length;
+    }
+
+    /**
+     * @param band the bandwidth index
+     * @return the bandwidth
+     */
+    public double getBandwidth(int band) {
+        return bandwidths[band];
+    }
+
+    /**
+     * Finds the inflexion points of the curve y for the bandwidth of index band.
+     * Does not allocate any object.
+     * @param y the ordinates of the curve
+     * @param band the bandwidth index
+     * @param minInd the first index to search for
+     * @param indices array of size n filled with the indices of the inflexion points
+     * @return the number of inflexion points
+     */
+    public int getInflexPoints(double [] y, int band, int minInd, int [] indices) {
+        int nb = 0;
+        double prec = minInd < n ? smooth(y, band, minInd) : 0;
+        for(int i = minInd; i < n-1; i++) {
+            final double next = smooth(y, band, i+1);
+            if(prec*next <= 0 && (prec != 0 || next != 0)) {
+                indices[nb++] = i;
+            }
+            prec = next;
+        }
+        return nb;
+    }
+
+    /**
+     * Finds the inflexion points of the curve y for the bandwidth of index band.
+     * @param y the ordinates of the curve
+     * @param band the bandwidth index
+     * @param minInd the first index to search for
+     * @return the indices of the inflexion points
+     */
+    public List<Integer> getInflexPoints(double [] y, int band, int minInd) {
+        int [] indices = new int[n];
+        int nb = getInflexPoints(y, band, minInd, indices);
+        List<Integer> list = new ArrayList<>(nb);
+        for(int i = 0; i < nb; i++) {
+            list.add(indices[i]);
+        }
+        return list;
+    }
+
+    /**
+     * @return the convolution of y with the kernel at index i
+     */
+    private double smooth(double [] y, int band, int i) {
+        final double [] kernel = kernels[band];
+        final int off = i*n;
+        double sum = 0;
+        for(int j = 0; j < n; j++) {
+            sum += kernel[off+j] * y[j];
+        }
+        return sum / sumCoefs[band][i];
+    }
+}
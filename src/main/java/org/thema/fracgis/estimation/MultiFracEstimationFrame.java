@@ -20,12 +20,14 @@
 package org.thema.fracgis.estimation;
 
 import org.thema.fracgis.method.MultiFracMethod;
+import org.thema.fracgis.method.MultiFracSpectrumMethod;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.io.*;
 import java.util.Collections;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -41,6 +43,7 @@ import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.IterableUtils;
 import org.apache.commons.collections4.MapUtils;
 import org.apache.commons.collections4.functors.StringValueTransformer;
+import org.apache.commons.math3.stat.regression.SimpleRegression;
 import org.jfree.chart.ChartMouseEvent;
 import org.jfree.chart.ChartMouseListener;
 import org.jfree.chart.ChartPanel;
@@ -127,12 +130,21 @@ public class MultiFracEstimationFrame extends javax.swing.JFrame implements Char
                 Dq.put(q, -Tq.get(q));
                 Tq.put(q, 0.0);
             }
-            if(qSet.first() != q) {
+            if(qSet.first() != q && !isSpectrumMethod()) {
                 double q1 = qSet.lower(q);
                 alpha.put(q, -(Tq.get(q)-Tq.get(q1))/(q-q1));
                 f.put(q, Tq.get(q) + q*alpha.get(q));
             }
         }
+        if(isSpectrumMethod()) {
+            // direct estimation of the spectrum, the curves have already been calculated with M
+            TreeMap<Double, TreeMap<Double, Double>> alphaCurves = ((MultiFracSpectrumMethod)method).getAlphaCurves(qSet);
+            TreeMap<Double, TreeMap<Double, Double>> fCurves = ((MultiFracSpectrumMethod)method).getFCurves(qSet);
+            for(Double q : qSet) {
+                alpha.put(q, getLogSlope(alphaCurves.get(q)));
+                f.put(q, getLogSlope(fCurves.get(q)));
+            }
+        }
         
         updatePlot();
         if(!isLWTMethod()) {
@@ -146,6 +158,21 @@ public class MultiFracEstimationFrame extends javax.swing.JFrame implements Char
 //        ((AbstractMethod)method).getGroupLayer().setRange((Double)leftSpinner.getValue(), (Double)rightSpinner.getValue());
     }
 
+    /**
+     * @return the slope of the curve in function of log(x) in the range of the spinners
+     */
+    private double getLogSlope(TreeMap<Double, Double> curve) {
+        SimpleRegression reg = new SimpleRegression();
+        for(Map.Entry<Double, Double> entry : curve.subMap((Double)leftSpinner.getValue(), true, (Double)rightSpinner.getValue(), true).entrySet()) {
+            reg.addData(Math.log(entry.getKey()), entry.getValue());
+        }
+        return reg.getSlope();
+    }
+    
+    private boolean isSpectrumMethod() {
+        return method instanceof MultiFracSpectrumMethod;
+    }
+    
     private boolean isLWTMethod() {
         return method instanceof MultiFracWaveletMethod;
     }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method;
+
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Interface for multifractal methods which calculate the singularity spectrum directly (Chhabra and Jensen, 1989).
+ * alpha(q) and f(alpha(q)) are the slopes of the curves in function of log(x).
+ * The curves are calculated in the same pass as {@link #getCurves(java.util.TreeSet) }.
+ * 
+ * @author Gilles Vuidel
+ */
+public interface MultiFracSpectrumMethod extends MultiFracMethod {
+    
+    /**
+     * Calculates the curves sum(mu_q*log(mu)) for each q moment, with mu_q = mu^q / sum(mu^q).
+     * {@link Method#execute()} must be called before.
+     * @param qs set of q moment
+     * @return a map (q moment, curve)
+     */
+    TreeMap<Double, TreeMap<Double, Double>> getAlphaCurves(TreeSet<Double> qs);
+    
+    /**
+     * Calculates the curves sum(mu_q*log(mu_q)) for each q moment, with mu_q = mu^q / sum(mu^q).
+     * {@link Method#execute()} must be called before.
+     * @param qs set of q moment
+     * @return a map (q moment, curve)
+     */
+    TreeMap<Double, TreeMap<Double, Double>> getFCurves(TreeSet<Double> qs);
+}
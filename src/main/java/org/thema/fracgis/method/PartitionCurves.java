@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Curves of a {@link PartitionFunction} with a cache by q moment,
+ * shared by the methods implementing {@link MultiFracSpectrumMethod}.
+ *
+ * The curves and the Chhabra-Jensen curves of the q not already in cache are calculated in the same pass.
+ * The cache is not saved with the partition function, it is recreated at the first call.
+ *
+ * @author Gilles Vuidel
+ */
+public final class PartitionCurves {
+
+    private final PartitionFunction partition;
+
+    private transient TreeMap<Double, TreeMap<Double, Double>> cacheCurves;
+    private transient TreeMap<Double, TreeMap<Double, Double>> cacheAlphaCurves;
+    private transient TreeMap<Double, TreeMap<Double, Double>> cacheFCurves;
+
+    /**
+     * Creates the curves of the partition function with an empty cache
+     * @param partition the partition function
+     */
+    public PartitionCurves(PartitionFunction partition) {
+        this.partition = partition;
+    }
+
+    /**
+     * @return the partition function
+     */
+    public PartitionFunction getPartition() {
+        return partition;
+    }
+
+    /**
+     * @param q the q moment
+     * @return the curve sum(mu^q) in function of the scale
+     * @see PartitionFunction#getCurves(java.util.Collection)
+     */
+    public synchronized TreeMap<Double, Double> getCurve(double q) {
+        calcCurves(Collections.singleton(q));
+        return cacheCurves.get(q);
+    }
+
+    /**
+     * @param qs the q moments
+     * @return the curve sum(mu^q) in function of the scale for each q
+     */
+    public synchronized TreeMap<Double, TreeMap<Double, Double>> getCurves(Collection<Double> qs) {
+        calcCurves(qs);
+        return getCached(cacheCurves, qs);
+    }
+
+    /**
+     * @param qs the q moments
+     * @return the curve sum(mu_q*log(mu)) in function of the scale for each q
+     */
+    public synchronized TreeMap<Double, TreeMap<Double, Double>> getAlphaCurves(Collection<Double> qs) {
+        calcCurves(qs);
+        return getCached(cacheAlphaCurves, qs);
+    }
+
+    /**
+     * @param qs the q moments
+     * @return the curve sum(mu_q*log(mu_q)) in function of the scale for each q
+     */
+    public synchronized TreeMap<Double, TreeMap<Double, Double>> getFCurves(Collection<Double> qs) {
+        calcCurves(qs);
+        return getCached(cacheFCurves, qs);
+    }
+
+    private static TreeMap<Double, TreeMap<Double, Double>> getCached(TreeMap<Double, TreeMap<Double, Double>> cache, Collection<Double> qs) {
+        TreeMap<Double, TreeMap<Double, Double>> curves = new TreeMap<>();
+        for(Double q : qs) {
+            curves.put(q, cache.get(q));
+        }
+        return curves;
+    }
+
+    /**
+     * Calculates the curves and the Chhabra-Jensen curves in the same pass for the q not already in cache
+     */
+    private void calcCurves(Collection<Double> qs) {
+        if(cacheCurves == null) {
+            cacheCurves = new TreeMap<>();
+            cacheAlphaCurves = new TreeMap<>();
+            cacheFCurves = new TreeMap<>();
+        }
+        List<Double> qList = new ArrayList<>();
+        for(Double q : qs) {
+            if(!cacheCurves.containsKey(q)) {
+                qList.add(q);
+            }
+        }
+        if(!qList.isEmpty()) {
+            cacheCurves.putAll(partition.getCurves(qList, cacheAlphaCurves, cacheFCurves));
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import org.thema.common.parallel.ParallelFExecutor;
+import org.thema.common.parallel.SimpleParallelTask;
+import org.thema.common.swing.TaskMonitor;
+
+/**
+ * Partition function of a multifractal measure : sum of mu^q over the cells of each scale.
+ *
+ * For each scale, the masses of the cells are reduced once to the histogram of the distinct non zero masses,
+ * with log(mu) precalculated, where mu = mass / total.
+ * The histogram can also be filled cell by cell with a {@link Histogram}, without storing the mass of each cell.
+ * Then the sums for any set of q are calculated in parallel (by q and scale) with exp(q*log(mu)).
+ * For integer q, Math.pow is used instead, so that exact moments stay exact.
+ *
+ * @author Gilles Vuidel
+ */
+public final class PartitionFunction {
+
+    private final double total;
+    private final List<Double> scales;
+    /** distinct masses, in increasing order, for each scale */
+    private final List<double[]> masses;
+    /** log(mass/total) for each distinct mass */
+    private final List<double[]> logMus;
+    /** number of cells for each distinct mass */
+    private final List<long[]> weights;
+    /** weight of one cell for each scale */
+    private final List<Double> factors;
+
+    /**
+     * Creates an empty partition function
+     * @param total the total mass used for normalization
+     */
+    public PartitionFunction(double total) {
+        this.total = total;
+        scales = new ArrayList<>();
+        masses = new ArrayList<>();
+        logMus = new ArrayList<>();
+        weights = new ArrayList<>();
+        factors = new ArrayList<>();
+    }
+
+    /**
+     * Adds a scale.
+     * The masses lower or equal to zero and NaN are ignored.
+     * @param scale the scale
+     * @param cellMasses the mass of each cell, the array is sorted in place
+     */
+    public void addScale(double scale, double [] cellMasses) {
+        addScale(scale, cellMasses, 1);
+    }
+
+    /**
+     * Adds a scale where each cell is weighted by factor, the sums of this scale are multiplied by factor.
+     * It is used when the cells overlap (gliding box) to get the equivalent sums of a partition.
+     * The masses lower or equal to zero and NaN are ignored.
+     * @param scale the scale
+     * @param cellMasses the mass of each cell, the array is sorted in place
+     * @param factor the weight of each cell
+     */
+    public void addScale(double scale, double [] cellMasses, double factor) {
+        Arrays.sort(cellMasses);
+        int start = 0;
+        while(start < cellMasses.length && !(cellMasses[start] > 0)) {
+            start++;
+        }
+        int end = cellMasses.length;
+        while(end > start && Double.isNaN(cellMasses[end-1])) {
+            end--;
+        }
+        int nb = 0;
+        for(int i = start; i < end; i++) {
+            if(i == start || cellMasses[i] != cellMasses[i-1]) {
+                nb++;
+            }
+        }
+        double [] mass = new double[nb];
+        long [] weight = new long[nb];
+        int j = -1;
+        for(int i = start; i < end; i++) {
+            if(i == start || cellMasses[i] != cellMasses[i-1]) {
+                mass[++j] = cellMasses[i];
+            }
+            weight[j]++;
+        }
+        addHistogram(scale, mass, weight, factor);
+    }
+
+    /**
+     * Adds a scale from the histogram of its masses.
+     * @param scale the scale
+     * @param histogram the histogram of the masses of the cells
+     */
+    public void addScale(double scale, Histogram histogram) {
+        addScale(scale, histogram, 1);
+    }
+
+    /**
+     * Adds a scale from the histogram of its masses, where each cell is weighted by factor.
+     * @param scale the scale
+     * @param histogram the histogram of the masses of the cells
+     * @param factor the weight of each cell
+     * @see #addScale(double, double[], double) 
+     */
+    public void addScale(double scale, Histogram histogram, double factor) {
+        double [] mass = new double[histogram.size];
+        int j = 0;
+        for(double m : histogram.masses) {
+            if(m != 0) {
+                mass[j++] = m;
+            }
+        }
+        Arrays.sort(mass);
+        long [] weight = new long[mass.length];
+        for(int i = 0; i < mass.length; i++) {
+            weight[i] = histogram.counts[histogram.getSlot(mass[i])];
+        }
+        addHistogram(scale, mass, weight, factor);
+    }
+
+    private void addHistogram(double scale, double [] mass, long [] weight, double factor) {
+        double [] logMu = new double[mass.length];
+        for(int i = 0; i < mass.length; i++) {
+            logMu[i] = Math.log(mass[i] / total);
+        }
+        scales.add(scale);
+        masses.add(mass);
+        logMus.add(logMu);
+        weights.add(weight);
+        factors.add(factor);
+    }
+
+    /**
+     * @return the number of scales
+     */
+    public int getNbScales() {
+        return scales.size();
+    }
+
+    /**
+     * @param i the scale index
+     * @return the scale
+     */
+    public double getScale(int i) {
+        return scales.get(i);
+    }
+
+    /**
+     * @return the total mass
+     */
+    public double getTotal() {
+        return total;
+    }
+
+    /**
+     * Calculates sum(mu^q) for each q and each scale, in parallel.
+     * @param qs the q moments
+     * @return an array [q][scale] of sums
+     * @throws CancellationException if the calculation has been cancelled
+     */
+    public double[][] getSums(final double [] qs) {
+        return getSums(qs, null);
+    }
+
+    /**
+     * Calculates sum(mu^q) and optionally sum(mu^q*log(mu)) for each q and each scale in the same pass, in parallel.
+     * @param qs the q moments
+     * @param logSums an array [q][scale] filled with sum(mu^q*log(mu)), may be null
+     * @return an array [q][scale] of sums
+     * @throws CancellationException if the calculation has been cancelled
+     */
+    public double[][] getSums(final double [] qs, final double [][] logSums) {
+        final int nbScales = scales.size();
+        final double [][] sums = new double[qs.length][nbScales];
+        SimpleParallelTask task = new SimpleParallelTask.IterParallelTask(qs.length*nbScales, new TaskMonitor.EmptyMonitor()) {
+            @Override
+            protected void executeOne(Integer ind) {
+                final int k = ind / nbScales;
+                final int i = ind % nbScales;
+                double [] res = getSum(i, qs[k], logSums != null);
+                sums[k][i] = res[0];
+                if(logSums != null) {
+                    logSums[k][i] = res[1];
+                }
+            }
+        };
+        new ParallelFExecutor(task).executeAndWait();
+        if(task.isCanceled()) {
+            throw new CancellationException();
+        }
+        return sums;
+    }
+
+    /**
+     * Calculates the curves sum(mu^q) in function of the scale for each q.
+     * For q = 1, the curve is exp(sum(mu*log(mu))) for the information dimension D1.
+     * @param qs the q moments
+     * @return the curve for each q
+     */
+    public TreeMap<Double, TreeMap<Double, Double>> getCurves(Collection<Double> qs) {
+        return getCurves(qs, null, null);
+    }
+
+    /**
+     * Calculates the curves sum(mu^q) in function of the scale for each q, 
+     * and optionally the curves of Chhabra and Jensen (1989) in the same pass.
+     * With mu_q = mu^q / sum(mu^q), the alpha curves are sum(mu_q*log(mu)) and the f curves are sum(mu_q*log(mu_q)) ;
+     * alpha(q) and f(alpha(q)) are the slopes of these curves in function of log(scale).
+     * For q = 1, the curve is exp(sum(mu*log(mu))) for the information dimension D1.
+     * @param qs the q moments
+     * @param alphaCurves the map filled with the alpha curve for each q, may be null
+     * @param fCurves the map filled with the f curve for each q, may be null
+     * @return the curve for each q
+     */
+    public TreeMap<Double, TreeMap<Double, Double>> getCurves(Collection<Double> qs, 
+            TreeMap<Double, TreeMap<Double, Double>> alphaCurves, TreeMap<Double, TreeMap<Double, Double>> fCurves) {
+        final boolean spectrum = alphaCurves != null || fCurves != null;
+        List<Double> qList = new ArrayList<>(qs);
+        double [] q = new double[qList.size()];
+        boolean info = false;
+        for(int k = 0; k < q.length; k++) {
+            q[k] = qList.get(k);
+            if(q[k] == 1 && !spectrum) {
+                info = true;
+                q[k] = 0; // calculated apart
+            }
+        }
+        double [][] logSums = spectrum ? new double[q.length][scales.size()] : null;
+        double [][] sums = getSums(q, logSums);
+        double [] infoSums = info ? getInfoSums() : null;
+        TreeMap<Double, TreeMap<Double, Double>> curves = new TreeMap<>();
+        for(int k = 0; k < q.length; k++) {
+            boolean d1 = qList.get(k) == 1;
+            TreeMap<Double, Double> curve = new TreeMap<>();
+            TreeMap<Double, Double> alphaCurve = new TreeMap<>();
+            TreeMap<Double, Double> fCurve = new TreeMap<>();
+            for(int i = 0; i < scales.size(); i++) {
+                if(d1) {
+                    curve.put(scales.get(i), Math.exp(spectrum ? logSums[k][i] : infoSums[i]));
+                } else {
+                    curve.put(scales.get(i), sums[k][i]);
+                }
+                if(spectrum) {
+                    double a = logSums[k][i] / sums[k][i];
+                    alphaCurve.put(scales.get(i), a);
+                    fCurve.put(scales.get(i), q[k]*a - Math.log(sums[k][i]));
+                }
+            }
+            curves.put(qList.get(k), curve);
+            if(alphaCurves != null) {
+                alphaCurves.put(qList.get(k), alphaCurve);
+            }
+            if(fCurves != null) {
+                fCurves.put(qList.get(k), fCurve);
+            }
+        }
+        return curves;
+    }
+
+    /**
+     * Calculates sum(mu*log(mu)) for each scale, used for the information dimension
+     * @return the sum for each scale
+     */
+    public double[] getInfoSums() {
+        double [] sums = new double[scales.size()];
+        for(int i = 0; i < sums.length; i++) {
+            final double [] mass = masses.get(i);
+            final double [] logMu = logMus.get(i);
+            final long [] weight = weights.get(i);
+            double sum = 0;
+            for(int j = 0; j < mass.length; j++) {
+                sum += weight[j] * (mass[j] / total * logMu[j]);
+            }
+            sums[i] = factors.get(i) * sum;
+        }
+        return sums;
+    }
+
+    /**
+     * @return sum(mu^q) and sum(mu^q*log(mu)) if log is true
+     */
+    private double[] getSum(int i, double q, boolean log) {
+        final double [] mass = masses.get(i);
+        final double [] logMu = logMus.get(i);
+        final long [] weight = weights.get(i);
+        final boolean integer = q == Math.rint(q);
+        double sum = 0, logSum = 0;
+        for(int j = 0; j < mass.length; j++) {
+            final double term;
+            if(q == 0) {
+                term = 1;
+            } else if(integer) {
+                term = Math.pow(mass[j] / total, q);
+            } else {
+                term = Math.exp(q * logMu[j]);
+            }
+            sum += weight[j] * term;
+            if(log) {
+                logSum += weight[j] * (term * logMu[j]);
+            }
+        }
+        final double factor = factors.get(i);
+        return new double[] {factor * sum, factor * logSum};
+    }
+
+    /**
+     * Histogram of the distinct masses of the cells of one scale, filled cell by cell.
+     * The masses lower or equal to zero and NaN are ignored.
+     * The masses are stored in an open addressing hash table, 
+     * so the memory depends on the number of distinct masses, not on the number of cells.
+     * This class is not thread safe : each thread fills its own histogram, then they are merged with {@link #addAll }.
+     */
+    public static final class Histogram {
+        /** the distinct masses, 0 for an empty slot */
+        private double [] masses;
+        private long [] counts;
+        private int size;
+
+        /**
+         * Creates an empty histogram
+         */
+        public Histogram() {
+            masses = new double[64];
+            counts = new long[64];
+            size = 0;
+        }
+
+        /**
+         * Adds a cell
+         * @param mass the mass of the cell
+         */
+        public void add(double mass) {
+            add(mass, 1);
+        }
+
+        /**
+         * Adds nb cells of the same mass
+         * @param mass the mass of the cells
+         * @param nb the number of cells
+         */
+        public void add(double mass, long nb) {
+            if(!(mass > 0)) {
+                return;
+            }
+            final int i = getSlot(mass);
+            if(masses[i] == 0) {
+                masses[i] = mass;
+                counts[i] = nb;
+                size++;
+                if(2*size > masses.length) {
+                    rehash();
+                }
+            } else {
+                counts[i] += nb;
+            }
+        }
+
+        /**
+         * Adds all the cells of the other histogram
+         * @param other the histogram to merge in this one
+         */
+        public void addAll(Histogram other) {
+            for(int i = 0; i < other.masses.length; i++) {
+                if(other.masses[i] != 0) {
+                    add(other.masses[i], other.counts[i]);
+                }
+            }
+        }
+
+        /**
+         * @return the number of distinct masses
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return the slot of the mass or the empty slot where it must be inserted
+         */
+        private int getSlot(double mass) {
+            final int mask = masses.length - 1;
+            final long h = Double.doubleToLongBits(mass) * 0x9E3779B97F4A7C15L;
+            int i = (int)(h ^ (h >>> 32)) & mask;
+            while(masses[i] != 0 && masses[i] != mass) {
+                i = (i+1) & mask;
+            }
+            return i;
+        }
+
+        private void rehash() {
+            final double [] oldMasses = masses;
+            final long [] oldCounts = counts;
+            masses = new double[2*oldMasses.length];
+            counts = new long[2*oldMasses.length];
+            for(int i = 0; i < oldMasses.length; i++) {
+                if(oldMasses[i] != 0) {
+                    final int j = getSlot(oldMasses[i]);
+                    masses[j] = oldMasses[i];
+                    counts[j] = oldCounts[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method.raster;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Bit-packed binary raster.
+ * Each pixel is stored on one bit, 64 pixels per long. Each row starts on a new word,
+ * so rows can be processed independently (ie. in parallel) and scanned word by word.
+ * The pixel x of the row y is the bit (x % 64) of the word y*rowWords + x/64.
+ *
+ * @author Gilles Vuidel
+ */
+public final class BinaryRaster implements Serializable {
+
+    private final int width, height;
+    private final int rowWords;
+    private final long[] words;
+
+    /**
+     * Creates an empty (all white) binary raster.
+     * @param width the width in pixel
+     * @param height the height in pixel
+     */
+    public BinaryRaster(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.rowWords = (width + 63) >>> 6;
+        this.words = new long[rowWords * height];
+    }
+
+    /**
+     * Creates a binary raster from the first band of an image.
+     * Pixels equal to 1 are black (set), all other values are white.
+     * The image is read tile by tile, it is never copied entirely.
+     * @param img the binary image
+     * @return a new bit-packed raster of the image
+     */
+    public static BinaryRaster create(RenderedImage img) {
+        BinaryRaster raster = new BinaryRaster(img.getWidth(), img.getHeight());
+        Rectangle bounds = new Rectangle(img.getMinX(), img.getMinY(), img.getWidth(), img.getHeight());
+        int [] samples = new int[img.getTileWidth()];
+        for(int ty = img.getMinTileY(); ty < img.getMinTileY()+img.getNumYTiles(); ty++) {
+            for(int tx = img.getMinTileX(); tx < img.getMinTileX()+img.getNumXTiles(); tx++) {
+                Raster tile = img.getTile(tx, ty);
+                Rectangle r = tile.getBounds().intersection(bounds);
+                for(int y = r.y; y < r.y+r.height; y++) {
+                    tile.getSamples(r.x, y, r.width, 1, 0, samples);
+                    final int ind = (y-bounds.y) * raster.rowWords;
+                    final int x0 = r.x-bounds.x;
+                    for(int i = 0; i < r.width; i++) {
+                        if(samples[i] == 1) {
+                            final int x = x0 + i;
+                            raster.words[ind + (x >>> 6)] |= 1L << x;
+                        }
+                    }
+                }
+            }
+        }
+        return raster;
+    }
+
+    /**
+     * @return the width in pixel
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height in pixel
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the number of words (long) for one row
+     */
+    public int getRowWords() {
+        return rowWords;
+    }
+
+    /**
+     * Returns the underlying array, row after row, without copy.
+     * The unused bits at the end of each row are always zero.
+     * @return the words of this raster
+     */
+    public long[] getWords() {
+        return words;
+    }
+
+    /**
+     * @param x column
+     * @param y row
+     * @return true if the pixel is black (set)
+     */
+    public boolean get(int x, int y) {
+        return (words[y*rowWords + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * Sets the pixel to black.
+     * This method is not thread safe for pixels lying in the same word.
+     * @param x column
+     * @param y row
+     */
+    public void set(int x, int y) {
+        words[y*rowWords + (x >>> 6)] |= 1L << x;
+    }
+
+    /**
+     * @return the number of black pixels
+     */
+    public long count() {
+        long nb = 0;
+        for(long w : words) {
+            nb += Long.bitCount(w);
+        }
+        return nb;
+    }
+
+    /**
+     * @param y the row
+     * @return the number of black pixels in the row y
+     */
+    public int countRow(int y) {
+        int nb = 0;
+        final int end = (y+1)*rowWords;
+        for(int i = y*rowWords; i < end; i++) {
+            nb += Long.bitCount(words[i]);
+        }
+        return nb;
+    }
+
+    /**
+     * Counts the black pixels of the row y between x1 and x2 inclusive.
+     * x1 and x2 must be inside the raster.
+     * @param y the row
+     * @param x1 the first column
+     * @param x2 the last column (inclusive)
+     * @return the number of black pixels in [x1, x2], 0 if x1 > x2
+     */
+    public int countRange(int y, int x1, int x2) {
+        if(x1 > x2) {
+            return 0;
+        }
+        final int ind = y*rowWords;
+        final int w1 = x1 >>> 6;
+        final int w2 = x2 >>> 6;
+        final long mask1 = -1L << x1;
+        final long mask2 = -1L >>> (63 - (x2 & 63));
+        if(w1 == w2) {
+            return Long.bitCount(words[ind+w1] & mask1 & mask2);
+        }
+        int nb = Long.bitCount(words[ind+w1] & mask1);
+        for(int i = w1+1; i < w2; i++) {
+            nb += Long.bitCount(words[ind+i]);
+        }
+        return nb + Long.bitCount(words[ind+w2] & mask2);
+    }
+
+    /**
+     * Returns the first black pixel of the row y in [from, to[
+     * @param y the row
+     * @param from the first column (inclusive)
+     * @param to the last column (exclusive)
+     * @return the column of the first black pixel or -1 if there is none
+     */
+    public int nextSetBit(int y, int from, int to) {
+        if(from < 0) {
+            from = 0;
+        }
+        if(to > width) {
+            to = width;
+        }
+        if(from >= to) {
+            return -1;
+        }
+        final int ind = y*rowWords;
+        int i = from >>> 6;
+        final int last = (to-1) >>> 6;
+        long w = words[ind+i] & (-1L << from);
+        while(w == 0) {
+            if(++i > last) {
+                return -1;
+            }
+            w = words[ind+i];
+        }
+        final int x = (i << 6) + Long.numberOfTrailingZeros(w);
+        return x < to ? x : -1;
+    }
+
+    /**
+     * Adds to counts the number of black pixels around (x, y) for each chessboard distance.
+     * counts[d] is incremented by the number of black pixels at distance max(|dx|, |dy|) == d, for d <= dMax.
+     * Pixels outside the raster are ignored.
+     * The central part of each row is counted word by word, the outer part is scanned only on black pixels.
+     * @param x the column of the centre
+     * @param y the row of the centre
+     * @param dMax the maximum distance
+     * @param counts the array of counts, its size must be at least dMax+1
+     */
+    public void addRingCounts(int x, int y, int dMax, double[] counts) {
+        final int i1 = y-dMax < 0 ? 0 : y-dMax;
+        final int i2 = y+dMax >= height ? height-1 : y+dMax;
+        final int j1 = x-dMax < 0 ? 0 : x-dMax;
+        final int j2 = x+dMax >= width ? width-1 : x+dMax;
+
+        for(int k = i1; k <= i2; k++) {
+            final int dy = Math.abs(k-y);
+            // pixels in [x-dy, x+dy] are all at distance dy
+            final int l1 = Math.max(j1, x-dy);
+            final int l2 = Math.min(j2, x+dy);
+            counts[dy] += countRange(k, l1, l2);
+            // the other ones are at distance |l-x|
+            for(int l = nextSetBit(k, j1, l1); l != -1; l = nextSetBit(k, l+1, l1)) {
+                counts[x-l]++;
+            }
+            for(int l = nextSetBit(k, l2+1, j2+1); l != -1; l = nextSetBit(k, l+1, j2+1)) {
+                counts[l-x]++;
+            }
+        }
+    }
+
+    /**
+     * Computes the rows [y1, y2[ of the OR-reduction of this raster by k x k blocks.
+     * The pixel (x, y) of dest is black if at least one pixel of the block 
+     * [x*k, x*k+k[ x [y*k, y*k+k[ is black in this raster.
+     * The rows of this raster are first merged by word OR, then the merged row is reduced horizontally :
+     * by bit compression for k = 2, by scanning the black pixels and skipping to the next block otherwise.
+     * Disjoint row ranges can be processed in parallel.
+     * @param dest the reduced raster of size ceil(width/k) x ceil(height/k)
+     * @param k the block size in pixel
+     * @param y1 the first row of dest
+     * @param y2 the last row of dest (exclusive)
+     */
+    public void reduce(BinaryRaster dest, int k, int y1, int y2) {
+        final long [] row = new long[rowWords];
+        for(int y = y1; y < y2; y++) {
+            Arrays.fill(row, 0);
+            final int end = Math.min(height, (y+1)*k);
+            for(int i = y*k; i < end; i++) {
+                final int ind = i*rowWords;
+                for(int j = 0; j < rowWords; j++) {
+                    row[j] |= words[ind+j];
+                }
+            }
+            final int dind = y*dest.rowWords;
+            if(k == 2) {
+                for(int j = 0; j < rowWords; j++) {
+                    final long w = row[j];
+                    if(w != 0) {
+                        dest.words[dind + (j >>> 1)] |= compressEvenBits(w | (w >>> 1)) << ((j & 1) << 5);
+                    }
+                }
+            } else {
+                int x = nextSetBit(row, 0);
+                while(x != -1) {
+                    final int bx = x / k;
+                    dest.words[dind + (bx >>> 6)] |= 1L << bx;
+                    x = nextSetBit(row, (bx+1)*k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the OR-reduction of this raster by k x k blocks.
+     * @param k the block size in pixel
+     * @return a new raster of size ceil(width/k) x ceil(height/k)
+     * @see #reduce(BinaryRaster, int, int, int) 
+     */
+    public BinaryRaster reduce(int k) {
+        BinaryRaster dest = new BinaryRaster((width+k-1) / k, (height+k-1) / k);
+        reduce(dest, k, 0, dest.height);
+        return dest;
+    }
+
+    /**
+     * Computes the rows [y1, y2[ of the horizontal part of the sliding window OR of size s.
+     * dest must have the size (width+s-1) x (height+s-1) and be empty.
+     * After this step, the pixel X of the row y of dest is black if one pixel in [X-s+1, X] is black in the row y of this raster.
+     * The window is computed in place by doubling its size, so it costs about log2(s) passes on the rows.
+     * Disjoint row ranges can be processed in parallel.
+     * @param dest the sliding window raster
+     * @param s the window size in pixel
+     * @param y1 the first row
+     * @param y2 the last row (exclusive), must be lower or equal to height
+     * @see #windowOrColumns(int, int, int) 
+     */
+    public void windowOrRows(BinaryRaster dest, int s, int y1, int y2) {
+        for(int y = y1; y < y2; y++) {
+            final int off = y*dest.rowWords;
+            System.arraycopy(words, y*rowWords, dest.words, off, rowWords);
+            int m = 1;
+            for(; 2*m <= s; m *= 2) {
+                orShiftUp(dest.words, off, dest.rowWords, m);
+            }
+            if(s > m) {
+                orShiftUp(dest.words, off, dest.rowWords, s-m);
+            }
+        }
+    }
+
+    /**
+     * Computes the vertical part of the sliding window OR of size s, in place, for the word columns [c1, c2[.
+     * This method must be called on the raster created by {@link #windowOrRows(BinaryRaster, int, int, int) }
+     * once all its rows have been computed.
+     * After this step, the pixel (X, Y) is black if one pixel of the source raster 
+     * in [X-s+1, X] x [Y-s+1, Y] is black.
+     * Disjoint column ranges can be processed in parallel.
+     * @param s the window size in pixel
+     * @param c1 the first word column
+     * @param c2 the last word column (exclusive)
+     */
+    public void windowOrColumns(int s, int c1, int c2) {
+        int m = 1;
+        for(; 2*m <= s; m *= 2) {
+            orRowsUp(m, c1, c2);
+        }
+        if(s > m) {
+            orRowsUp(s-m, c1, c2);
+        }
+    }
+
+    /**
+     * Counts the black pixels of the lattice {(x0 + i*step, y0 + j*step)}
+     * @param x0 the first column
+     * @param y0 the first row
+     * @param step the lattice step
+     * @return the number of black pixels in the lattice
+     */
+    public long countLattice(int x0, int y0, int step) {
+        long nb = 0;
+        for(int y = y0; y < height; y += step) {
+            final int ind = y*rowWords;
+            for(int x = x0; x < width; x += step) {
+                if((words[ind + (x >>> 6)] & (1L << x)) != 0) {
+                    nb++;
+                }
+            }
+        }
+        return nb;
+    }
+
+    /**
+     * row[X] |= row[X-m] for the row starting at off.
+     * The row is processed in descending order, so the source bits are not yet modified.
+     */
+    private static void orShiftUp(long [] w, int off, int n, int m) {
+        final int q = m >>> 6;
+        final int r = m & 63;
+        for(int i = n-1; i >= q; i--) {
+            long v = w[off+i-q] << r;
+            if(r != 0 && i-q-1 >= 0) {
+                v |= w[off+i-q-1] >>> (64-r);
+            }
+            w[off+i] |= v;
+        }
+    }
+
+    /**
+     * row[Y] |= row[Y-m] for the word columns [c1, c2[, in descending row order.
+     */
+    private void orRowsUp(int m, int c1, int c2) {
+        for(int y = height-1; y >= m; y--) {
+            final int ind = y*rowWords;
+            final int src = (y-m)*rowWords;
+            for(int c = c1; c < c2; c++) {
+                words[ind+c] |= words[src+c];
+            }
+        }
+    }
+
+    /**
+     * Packs the even bits of w in the 32 low bits.
+     */
+    private static long compressEvenBits(long w) {
+        w &= 0x5555555555555555L;
+        w = (w | (w >>> 1)) & 0x3333333333333333L;
+        w = (w | (w >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        w = (w | (w >>> 4)) & 0x00FF00FF00FF00FFL;
+        w = (w | (w >>> 8)) & 0x0000FFFF0000FFFFL;
+        return (w | (w >>> 16)) & 0x00000000FFFFFFFFL;
+    }
+
+    private static int nextSetBit(long [] row, int from) {
+        int i = from >>> 6;
+        if(i >= row.length) {
+            return -1;
+        }
+        long w = row[i] & (-1L << from);
+        while(w == 0) {
+            if(++i == row.length) {
+                return -1;
+            }
+            w = row[i];
+        }
+        return (i << 6) + Long.numberOfTrailingZeros(w);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method.raster;
+
+/**
+ * Histogram of the distance to the black pixels of a binary raster,
+ * for the raster extended by max pixels on each side.
+ *
+ * The distance transform is calculated with the separable algorithm of Meijster et al. (2000)
+ * for the chessboard distance or the euclidean distance.
+ * The first pass calculates, for each column, the vertical distance to the nearest black pixel.
+ * The second pass calculates the distance row by row from the first pass.
+ * Distances greater than max are not calculated exactly, so the vertical distances are stored on 16 bits.
+ * The rows of the extended border are deduced from the first and last rows of the raster.
+ *
+ * Usage : {@link #columnPass } for all word columns, then {@link #rowHistogram } for all rows of the extended raster.
+ * Both passes can be parallelized by column ranges and row ranges.
+ *
+ * @author Gilles Vuidel
+ */
+public final class DistanceTransform {
+
+    private final BinaryRaster raster;
+    private final int max;
+    private final boolean euclidean;
+    private final int inf;
+    private final char [] g;
+
+    /**
+     * Creates a distance transform for distances up to max.
+     * @param raster the binary raster
+     * @param max the maximum distance in pixel
+     * @param euclidean euclidean distance or chessboard distance ?
+     * @throws IllegalArgumentException if max is too large or if the raster has more than 2^31 pixels
+     */
+    public DistanceTransform(BinaryRaster raster, int max, boolean euclidean) {
+        if(max >= Character.MAX_VALUE) {
+            throw new IllegalArgumentException("Maximum distance is too large : " + max);
+        }
+        if((long)raster.getWidth()*raster.getHeight() > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Raster is too large for distance transform");
+        }
+        this.raster = raster;
+        this.max = max;
+        this.euclidean = euclidean;
+        this.inf = max+1;
+        this.g = new char[raster.getWidth()*raster.getHeight()];
+    }
+
+    /**
+     * @return the height of the extended raster : height + 2*max
+     */
+    public int getExtHeight() {
+        return raster.getHeight() + 2*max;
+    }
+
+    /**
+     * First pass : calculates the vertical distance for the columns of the word columns [c1, c2[.
+     * @param c1 the first word column
+     * @param c2 the last word column (exclusive)
+     */
+    public void columnPass(int c1, int c2) {
+        final int w = raster.getWidth();
+        final int h = raster.getHeight();
+        final int rw = raster.getRowWords();
+        final long [] words = raster.getWords();
+        final int [] prev = new int[64];
+        for(int c = c1; c < c2; c++) {
+            final int x0 = c << 6;
+            final int nb = Math.min(64, w - x0);
+            for(int b = 0; b < nb; b++) {
+                prev[b] = inf;
+            }
+            for(int y = 0; y < h; y++) {
+                final long word = words[y*rw + c];
+                final int ind = y*w + x0;
+                for(int b = 0; b < nb; b++) {
+                    final int v = (word & (1L << b)) != 0 ? 0 : Math.min(prev[b]+1, inf);
+                    g[ind+b] = (char)v;
+                    prev[b] = v;
+                }
+            }
+            for(int b = 0; b < nb; b++) {
+                prev[b] = inf;
+            }
+            for(int y = h-1; y >= 0; y--) {
+                final int ind = y*w + x0;
+                for(int b = 0; b < nb; b++) {
+                    final int v = Math.min(g[ind+b], prev[b]+1);
+                    g[ind+b] = (char)v;
+                    prev[b] = v;
+                }
+            }
+        }
+    }
+
+    /**
+     * Second pass : adds to hist the number of pixels by distance for the rows [y1, y2[ of the extended raster.
+     * For euclidean distance, the distance is rounded up.
+     * The column pass must be completed before.
+     * @param y1 the first row of the extended raster (row -max of the raster)
+     * @param y2 the last row of the extended raster (exclusive)
+     * @param hist the histogram of size max+1
+     */
+    public void rowHistogram(int y1, int y2, long [] hist) {
+        final int w = raster.getWidth();
+        final int h = raster.getHeight();
+        final int len = w + 2*max;
+        final int [] f = new int[len];
+        final int [] s = new int[len];
+        final int [] t = new int[len];
+        for(int i = 0; i < max; i++) {
+            f[i] = inf;
+            f[len-1-i] = inf;
+        }
+        for(int yy = y1; yy < y2; yy++) {
+            final int y = yy - max;
+            // vertical distance for the row y, outside the raster deduced from the first or last row
+            final int row = y < 0 ? 0 : y >= h ? h-1 : y;
+            final int add = y < 0 ? -y : y >= h ? y-h+1 : 0;
+            final int ind = row*w;
+            int min = inf;
+            for(int x = 0; x < w; x++) {
+                final int v = Math.min(g[ind+x] + add, inf);
+                f[x+max] = v;
+                if(v < min) {
+                    min = v;
+                }
+            }
+            if(min > max) {
+                continue;
+            }
+            if(euclidean) {
+                rowEuclidean(f, s, t, len, hist);
+            } else {
+                rowChessboard(f, s, t, len, hist);
+            }
+        }
+    }
+
+    private void rowChessboard(int [] f, int [] s, int [] t, int len, long [] hist) {
+        int q = 0;
+        s[0] = 0;
+        t[0] = 0;
+        for(int u = 1; u < len; u++) {
+            while(q >= 0 && Math.max(Math.abs(t[q]-s[q]), f[s[q]]) > Math.max(Math.abs(u-t[q]), f[u])) {
+                q--;
+            }
+            if(q < 0) {
+                q = 0;
+                s[0] = u;
+            } else {
+                final int i = s[q];
+                final int sep;
+                if(f[i] <= f[u]) {
+                    sep = Math.max(i + f[u], (i+u) / 2);
+                } else {
+                    sep = Math.min(u - f[i], (i+u) / 2);
+                }
+                final int w = 1 + sep;
+                if(w < len) {
+                    q++;
+                    s[q] = u;
+                    t[q] = w;
+                }
+            }
+        }
+        for(int u = len-1; u >= 0; u--) {
+            final int d = Math.max(Math.abs(u-s[q]), f[s[q]]);
+            if(d <= max) {
+                hist[d]++;
+            }
+            if(u == t[q]) {
+                q--;
+            }
+        }
+    }
+
+    private void rowEuclidean(int [] f, int [] s, int [] t, int len, long [] hist) {
+        final long max2 = (long)max*max;
+        int q = 0;
+        s[0] = 0;
+        t[0] = 0;
+        for(int u = 1; u < len; u++) {
+            while(q >= 0 && dist2(t[q], s[q], f) > dist2(t[q], u, f)) {
+                q--;
+            }
+            if(q < 0) {
+                q = 0;
+                s[0] = u;
+            } else {
+                final int i = s[q];
+                final long num = (long)u*u - (long)i*i + (long)f[u]*f[u] - (long)f[i]*f[i];
+                final long den = 2L*(u-i);
+                // integer division rounded down
+                final long sep = num >= 0 ? num / den : -((-num + den - 1) / den);
+                final long w = 1 + sep;
+                if(w < len) {
+                    q++;
+                    s[q] = u;
+                    t[q] = (int)w;
+                }
+            }
+        }
+        for(int u = len-1; u >= 0; u--) {
+            final long d2 = dist2(u, s[q], f);
+            if(d2 <= max2) {
+                hist[(int)Math.ceil(Math.sqrt(d2))]++;
+            }
+            if(u == t[q]) {
+                q--;
+            }
+        }
+    }
+
+    private static long dist2(int x, int i, int [] f) {
+        return (long)(x-i)*(x-i) + (long)f[i]*f[i];
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method.raster;
+
+import java.io.Serializable;
+
+/**
+ * Radix-2 2D Fast Fourier Transform on flat arrays.
+ * The complex data are stored in two arrays (real and imaginary parts), row after row.
+ * Width and height must be powers of 2.
+ * The twiddle factors are precomputed, so an instance can be reused for several transforms
+ * and shared between threads, the transform methods do not modify the instance.
+ *
+ * @author Gilles Vuidel
+ */
+public final class FFT2D implements Serializable {
+
+    private final int width, height;
+    private final double [] cosX, sinX, cosY, sinY;
+
+    /**
+     * Creates a 2D FFT for the given size
+     * @param width the width, must be a power of 2
+     * @param height the height, must be a power of 2
+     * @throws IllegalArgumentException if width or height is not a power of 2
+     */
+    public FFT2D(int width, int height) {
+        if(Integer.bitCount(width) != 1 || Integer.bitCount(height) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of 2 : " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        cosX = new double[width/2];
+        sinX = new double[width/2];
+        initTwiddles(cosX, sinX, width);
+        if(height == width) {
+            cosY = cosX;
+            sinY = sinX;
+        } else {
+            cosY = new double[height/2];
+            sinY = new double[height/2];
+            initTwiddles(cosY, sinY, height);
+        }
+    }
+
+    /**
+     * @return the width of the transform
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the transform
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Forward transform in place : X(k) = sum x(n) exp(-2i pi k.n / N)
+     * @param re real part, row after row
+     * @param im imaginary part, row after row
+     */
+    public void forward(double [] re, double [] im) {
+        transform(re, im, false);
+    }
+
+    /**
+     * Inverse transform in place, scaled by 1/(width*height)
+     * @param re real part, row after row
+     * @param im imaginary part, row after row
+     */
+    public void inverse(double [] re, double [] im) {
+        transform(re, im, true);
+        final double scale = 1.0 / (width*height);
+        for(int i = 0; i < re.length; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    /**
+     * Transforms the rows [y1, y2[ in place, without scaling.
+     * With {@link #transformColumns }, allows to parallelize the 2D transform.
+     * @param re real part, row after row
+     * @param im imaginary part, row after row
+     * @param inverse inverse transform ?
+     * @param y1 the first row
+     * @param y2 the last row (exclusive)
+     */
+    public void transformRows(double [] re, double [] im, boolean inverse, int y1, int y2) {
+        for(int y = y1; y < y2; y++) {
+            fft(re, im, y*width, 1, width, cosX, sinX, inverse);
+        }
+    }
+
+    /**
+     * Transforms the columns [x1, x2[ in place, without scaling.
+     * The columns are copied in a contiguous buffer before transform.
+     * @param re real part, row after row
+     * @param im imaginary part, row after row
+     * @param inverse inverse transform ?
+     * @param x1 the first column
+     * @param x2 the last column (exclusive)
+     */
+    public void transformColumns(double [] re, double [] im, boolean inverse, int x1, int x2) {
+        final double [] cre = new double[height];
+        final double [] cim = new double[height];
+        for(int x = x1; x < x2; x++) {
+            for(int y = 0, ind = x; y < height; y++, ind += width) {
+                cre[y] = re[ind];
+                cim[y] = im[ind];
+            }
+            fft(cre, cim, 0, 1, height, cosY, sinY, inverse);
+            for(int y = 0, ind = x; y < height; y++, ind += width) {
+                re[ind] = cre[y];
+                im[ind] = cim[y];
+            }
+        }
+    }
+
+    private void transform(double [] re, double [] im, boolean inverse) {
+        transformRows(re, im, inverse, 0, height);
+        transformColumns(re, im, inverse, 0, width);
+    }
+
+    private static void initTwiddles(double [] cos, double [] sin, int n) {
+        for(int i = 0; i < n/2; i++) {
+            cos[i] = Math.cos(2*Math.PI*i / n);
+            sin[i] = Math.sin(2*Math.PI*i / n);
+        }
+    }
+
+    /**
+     * Iterative radix-2 FFT in place of n elements starting at off with the given stride
+     */
+    private static void fft(double [] re, double [] im, int off, int stride, int n,
+            double [] cos, double [] sin, boolean inverse) {
+        // bit reversal permutation
+        for(int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for(; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if(i < j) {
+                final int a = off + i*stride;
+                final int b = off + j*stride;
+                double t = re[a]; re[a] = re[b]; re[b] = t;
+                t = im[a]; im[a] = im[b]; im[b] = t;
+            }
+        }
+        final double sign = inverse ? 1 : -1;
+        for(int len = 2; len <= n; len <<= 1) {
+            final int half = len >> 1;
+            final int step = n / len;
+            for(int i = 0; i < n; i += len) {
+                for(int k = 0; k < half; k++) {
+                    final double wr = cos[k*step];
+                    final double wi = sign * sin[k*step];
+                    final int a = off + (i+k)*stride;
+                    final int b = a + half*stride;
+                    final double xr = re[b]*wr - im[b]*wi;
+                    final double xi = re[b]*wi + im[b]*wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method.raster;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Autocorrelation of a binary raster by FFT, for displacements up to dMax in each direction.
+ *
+ * The raster is cut in square tiles. For each tile, the cross-correlation between the black pixels
+ * of the tile and the black pixels of the tile extended by dMax on each side is calculated with
+ * a zero padded FFT of size N x N, with N >= tile size + 2*dMax, so there is no wrap around.
+ * The two real images are packed in one complex FFT (tile as real part, extended tile as imaginary part).
+ * Only one tile is in memory by thread, so the raster size is not limited by the FFT size.
+ *
+ * The autocorrelation A(dx, dy) is the number of pairs of black pixels (p, p + (dx, dy)).
+ * From A, the engine returns the number of pairs by chessboard distance max(|dx|, |dy|)
+ * (same counts as {@link BinaryRaster#addRingCounts }) and by euclidean distance rounded up ceil(sqrt(dx²+dy²)).
+ *
+ * @author Gilles Vuidel
+ */
+public final class FFTCorrelation implements Serializable {
+
+    private final BinaryRaster raster;
+    private final int dMax;
+    private final int n;
+    private final int tileSize;
+    private final int nbTileX;
+    private final int [] tiles;
+    private final FFT2D fft;
+
+    /**
+     * Prepares the autocorrelation of the raster.
+     * The empty tiles are skipped.
+     * @param raster the binary raster
+     * @param dMax the maximum displacement in pixel
+     */
+    public FFTCorrelation(BinaryRaster raster, int dMax) {
+        this.raster = raster;
+        this.dMax = dMax;
+        this.n = getFFTSize(raster, dMax);
+        this.tileSize = n - 2*dMax;
+        this.fft = new FFT2D(n, n);
+        nbTileX = (raster.getWidth()+tileSize-1) / tileSize;
+        int nbTileY = (raster.getHeight()+tileSize-1) / tileSize;
+        int [] list = new int[nbTileX*nbTileY];
+        int nb = 0;
+        for(int i = 0; i < list.length; i++) {
+            int x1 = (i % nbTileX) * tileSize;
+            int y1 = (i / nbTileX) * tileSize;
+            int x2 = Math.min(raster.getWidth(), x1+tileSize) - 1;
+            int y2 = Math.min(raster.getHeight(), y1+tileSize);
+            for(int y = y1; y < y2; y++) {
+                if(raster.countRange(y, x1, x2) > 0) {
+                    list[nb++] = i;
+                    break;
+                }
+            }
+        }
+        tiles = Arrays.copyOf(list, nb);
+    }
+
+    /**
+     * @return the number of non empty tiles
+     */
+    public int getNbTiles() {
+        return tiles.length;
+    }
+
+    /**
+     * @return the FFT size (width and height)
+     */
+    public int getFFTSize() {
+        return n;
+    }
+
+    /**
+     * Adds the pair counts of the non empty tiles [start, end[.
+     * Different tile ranges can be processed in parallel with different arrays,
+     * the arrays have to be summed at the end.
+     * @param start the first tile
+     * @param end the last tile (exclusive)
+     * @param rings the number of pairs by chessboard distance, size dMax+1, may be null
+     * @param disks the number of pairs by euclidean distance rounded up, size dMax+1, may be null
+     */
+    public void addCounts(int start, int end, long [] rings, long [] disks) {
+        final double [] re = new double[n*n];
+        final double [] im = new double[n*n];
+        for(int t = start; t < end; t++) {
+            final int tx = (tiles[t] % nbTileX) * tileSize;
+            final int ty = (tiles[t] / nbTileX) * tileSize;
+            fill(re, im, tx, ty);
+            fft.forward(re, im);
+            crossSpectrum(re, im);
+            fft.inverse(re, im);
+            accumulate(re, rings, disks);
+        }
+    }
+
+    /**
+     * Fills re with the black pixels of the tile and im with the black pixels of the extended tile.
+     * The buffer pixel (bx, by) corresponds to the raster pixel (tx-dMax+bx, ty-dMax+by)
+     */
+    private void fill(double [] re, double [] im, int tx, int ty) {
+        Arrays.fill(re, 0);
+        Arrays.fill(im, 0);
+        final int x1 = Math.max(0, tx-dMax);
+        final int x2 = Math.min(raster.getWidth(), tx+tileSize+dMax);
+        final int y1 = Math.max(0, ty-dMax);
+        final int y2 = Math.min(raster.getHeight(), ty+tileSize+dMax);
+        final int cx2 = Math.min(raster.getWidth(), tx+tileSize);
+        for(int y = y1; y < y2; y++) {
+            final int ind = (y-ty+dMax)*n - tx + dMax;
+            final boolean core = y >= ty && y < ty+tileSize;
+            for(int x = raster.nextSetBit(y, x1, x2); x != -1; x = raster.nextSetBit(y, x+1, x2)) {
+                im[ind+x] = 1;
+                if(core && x >= tx && x < cx2) {
+                    re[ind+x] = 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the packed spectrum Z = F + iG by conj(F).G,
+     * where F and G are the spectrums of the real and imaginary parts.
+     * F(k) = (Z(k) + conj(Z(-k))) / 2 and G(k) = (Z(k) - conj(Z(-k))) / 2i
+     */
+    private void crossSpectrum(double [] re, double [] im) {
+        for(int ky = 0; ky < n; ky++) {
+            final int my = (n - ky) & (n-1);
+            for(int kx = 0; kx < n; kx++) {
+                final int i = ky*n + kx;
+                final int j = my*n + ((n - kx) & (n-1));
+                if(j < i) {
+                    continue;
+                }
+                final double a = re[i], b = im[i];
+                final double c = re[j], d = im[j];
+                final double pr = ((a+c)*(b+d) + (b-d)*(c-a)) / 4;
+                final double pi = (c*c + d*d - a*a - b*b) / 4;
+                re[i] = pr;
+                im[i] = pi;
+                re[j] = pr;
+                im[j] = -pi;
+            }
+        }
+    }
+
+    /**
+     * Adds the cross-correlation values for displacements in [-dMax, dMax]²
+     */
+    private void accumulate(double [] re, long [] rings, long [] disks) {
+        final long d2Max = (long)dMax*dMax;
+        for(int dy = -dMax; dy <= dMax; dy++) {
+            final int row = ((dy + n) & (n-1)) * n;
+            for(int dx = -dMax; dx <= dMax; dx++) {
+                final long v = Math.round(re[row + ((dx + n) & (n-1))]);
+                if(v == 0) {
+                    continue;
+                }
+                if(rings != null) {
+                    rings[Math.max(Math.abs(dx), Math.abs(dy))] += v;
+                }
+                if(disks != null) {
+                    final long d2 = (long)dx*dx + (long)dy*dy;
+                    if(d2 <= d2Max) {
+                        disks[(int)Math.ceil(Math.sqrt(d2))] += v;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Estimates the cost of the FFT engine against the direct computation with {@link BinaryRaster#addRingCounts }.
+     * The estimates are rough operation counts, only their ratio is meaningful.
+     * @param raster the binary raster
+     * @param dMax the maximum distance in pixel
+     * @return true if the FFT engine should be faster
+     */
+    public static boolean isFaster(BinaryRaster raster, int dMax) {
+        final long nbBlack = raster.count();
+        if(nbBlack == 0) {
+            return false;
+        }
+        final double density = nbBlack / ((double)raster.getWidth()*raster.getHeight());
+        final double w = 2.0*dMax + 1;
+        // by black pixel : one range count by row and one operation by black pixel outside the central part
+        final double direct = nbBlack * w * (4 + w/64 + density*w/2);
+        final int size = getFFTSize(raster, dMax);
+        final int tile = size - 2*dMax;
+        final double nbTiles = Math.ceil(raster.getWidth() / (double)tile) * Math.ceil(raster.getHeight() / (double)tile);
+        // 2 complex FFT of size² log2(size) butterflies
+        final double fftCost = nbTiles * 2 * 6.0 * size*size * Integer.numberOfTrailingZeros(size);
+        return fftCost < direct;
+    }
+
+    /**
+     * The tile size is at least 2*dMax (or the raster size if it is smaller), so that the
+     * padding does not take more than 3/4 of the FFT.
+     */
+    private static int getFFTSize(BinaryRaster raster, int dMax) {
+        int core = Math.min(Math.max(2*dMax, 64), Math.max(raster.getWidth(), raster.getHeight()));
+        int size = 2*dMax + core;
+        return size <= 1 ? 1 : Integer.highestOneBit(size-1) << 1;
+    }
+}
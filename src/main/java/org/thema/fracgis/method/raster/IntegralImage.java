@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method.raster;
+
+/**
+ * Summed-area table of a binary raster.
+ * The number of black pixels in any rectangle is given by 4 lookups.
+ * The table is stored on int : the raster has less than 2^31 pixels, so the count of any rectangle fits in an int.
+ *
+ * Usage : {@link #buildRows } for all rows, then {@link #buildColumns } for all columns.
+ * Both passes can be parallelized by row ranges and column ranges.
+ *
+ * @author Gilles Vuidel
+ */
+public final class IntegralImage {
+
+    private final BinaryRaster raster;
+    private final int width, height;
+    private final int stride;
+    private final int [] sum;
+
+    /**
+     * Creates an empty integral image for the raster.
+     * @param raster the binary raster
+     * @throws IllegalArgumentException if the table has more than 2^31 cells, ie. the raster is too large
+     */
+    public IntegralImage(BinaryRaster raster) {
+        this.raster = raster;
+        this.width = raster.getWidth();
+        this.height = raster.getHeight();
+        this.stride = width+1;
+        long size = (long)stride * (height+1);
+        if(size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Raster is too large for integral image");
+        }
+        sum = new int[(int)size];
+    }
+
+    /**
+     * First pass : cumulates the rows [y1, y2[ of the raster
+     * @param y1 the first row
+     * @param y2 the last row (exclusive)
+     */
+    public void buildRows(int y1, int y2) {
+        final long [] words = raster.getWords();
+        final int rw = raster.getRowWords();
+        for(int y = y1; y < y2; y++) {
+            int ind = (y+1)*stride + 1;
+            int acc = 0;
+            for(int c = 0; c < rw; c++) {
+                final long w = words[y*rw + c];
+                final int nb = Math.min(64, width - (c << 6));
+                for(int b = 0; b < nb; b++) {
+                    acc += (int)(w >>> b) & 1;
+                    sum[ind++] = acc;
+                }
+            }
+        }
+    }
+
+    /**
+     * Second pass : cumulates the columns [x1, x2[.
+     * The first pass must be completed before.
+     * @param x1 the first column
+     * @param x2 the last column (exclusive)
+     */
+    public void buildColumns(int x1, int x2) {
+        for(int y = 2; y <= height; y++) {
+            final int ind = y*stride + 1;
+            for(int x = x1; x < x2; x++) {
+                sum[ind+x] += sum[ind+x-stride];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of black pixels in the rectangle [x1, x2] x [y1, y2].
+     * The rectangle is clipped to the raster.
+     * @param x1 the first column
+     * @param y1 the first row
+     * @param x2 the last column (inclusive)
+     * @param y2 the last row (inclusive)
+     * @return the number of black pixels in the rectangle
+     */
+    public long getSum(int x1, int y1, int x2, int y2) {
+        if(x1 < 0) {
+            x1 = 0;
+        }
+        if(y1 < 0) {
+            y1 = 0;
+        }
+        if(x2 >= width) {
+            x2 = width-1;
+        }
+        if(y2 >= height) {
+            y2 = height-1;
+        }
+        if(x1 > x2 || y1 > y2) {
+            return 0;
+        }
+        final int i1 = y1*stride + x1;
+        final int i2 = (y2+1)*stride + x1;
+        final int w = x2-x1+1;
+        return (long)sum[i2+w] - sum[i1+w] - sum[i2] + sum[i1];
+    }
+
+    /**
+     * Returns the number of black pixels at chessboard distance lower or equal to r from (x, y)
+     * @param x the column of the centre
+     * @param y the row of the centre
+     * @param r the half size of the square
+     * @return the number of black pixels in the square of size 2r+1 centred on (x, y)
+     */
+    public long getSquareSum(int x, int y, int r) {
+        return getSum(x-r, y-r, x+r, y+r);
+    }
+}
@@ -22,6 +22,9 @@ package org.thema.fracgis.method.raster;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.util.AffineTransformation;
 import java.awt.image.RenderedImage;
+import java.util.concurrent.CancellationException;
+import org.thema.common.parallel.ParallelFExecutor;
+import org.thema.common.parallel.SimpleParallelTask;
 import org.thema.fracgis.method.AbstractMethod;
 import org.thema.fracgis.sampling.DefaultSampling;
 
@@ -55,6 +58,23 @@ public abstract class RasterMethod extends AbstractMethod {
         sampling.updateSampling(img, envelope);
     }
         
+    /**
+     * Executes the task in parallel or sequentially
+     * @param task the task to execute
+     * @param parallel use all processors ?
+     * @throws CancellationException if the task has been cancelled
+     */
+    protected static void executeTask(SimpleParallelTask task, boolean parallel) {
+        if(parallel) {
+            new ParallelFExecutor(task).executeAndWait();
+        } else {
+            new ParallelFExecutor(task, 1).executeAndWait();
+        }
+        if(task.isCanceled()) {
+            throw new CancellationException();
+        }
+    }
+    
     public final RenderedImage getImg() {
         return img;
     }
@@ -20,16 +20,15 @@
 package org.thema.fracgis.method.raster.mono;
 
 import com.vividsolutions.jts.geom.Envelope;
-import java.awt.image.DataBuffer;
-import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
-import java.awt.image.WritableRaster;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Locale;
+import java.util.SortedSet;
 import java.util.TreeMap;
-import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
+import java.util.concurrent.CancellationException;
 import org.thema.common.ProgressBar;
+import org.thema.common.parallel.SimpleParallelTask;
+import org.thema.common.param.ReflectObject;
+import org.thema.fracgis.method.raster.BinaryRaster;
 import org.thema.fracgis.sampling.DefaultSampling;
 import org.thema.fracgis.sampling.RasterBoxSampling;
 
@@ -40,6 +39,12 @@ import org.thema.fracgis.sampling.RasterBoxSampling;
  */
 public class BoxCountingRasterMethod extends MonoRasterMethod {
 
+    @ReflectObject.Name("gliding")
+    private int d = 1;
+    
+    @ReflectObject.Name("mean")
+    private boolean mean = false;
+
     /**
      * Default constructor for batch mode
      */
@@ -47,6 +52,17 @@ public class BoxCountingRasterMethod extends MonoRasterMethod {
         setSampling(new RasterBoxSampling());
     }
     
+    /**
+     * For batch mode
+     * @param d gliding grid optimization if d > 1
+     * @param mean with gliding grid, keeps the mean number of boxes instead of the minimum ?
+     */
+    public BoxCountingRasterMethod(int d, boolean mean) {
+        this();
+        this.d = d < 1 ? 1 : d;
+        this.mean = mean;
+    }
+    
     /**
      * Creates a new box counting method for the given data
      * @param inputName input layer name (must be a binary raster layer)
@@ -58,51 +74,135 @@ public class BoxCountingRasterMethod extends MonoRasterMethod {
         super(inputName, sampling, img, env);
     }
 
+    /**
+     * Creates a new box counting method for the given data with gliding grid
+     * @param inputName input layer name (must be a binary raster layer)
+     * @param sampling scale sampling
+     * @param img raster input data
+     * @param env envelope of the raster in world coordinate
+     * @param d gliding grid optimization if d > 1
+     * @param mean with gliding grid, keeps the mean number of boxes instead of the minimum ?
+     */
+    public BoxCountingRasterMethod(String inputName, RasterBoxSampling sampling, RenderedImage img, Envelope env, int d, boolean mean) {
+        super(inputName, sampling, img, env);
+        this.d = d < 1 ? 1 : d;
+        this.mean = mean;
+    }
+
+    /**
+     * The boxes of each size are computed by OR-reduction of the binary raster.
+     * Each level is reduced from the largest already computed level whose size divides it,
+     * so geometric sizes of coef 2 need only one pass over the data.
+     * If d > 1, the grid is moved n x n times for each size, as in the vector {@link org.thema.fracgis.method.vector.mono.BoxCountingMethod}, 
+     * and the minimum (or the mean) number of boxes is kept.
+     */
     @Override
     public void execute(ProgressBar monitor, boolean parallel) {
-        monitor.setMaximum(getImg().getHeight());
-        List<Integer> sizes = new ArrayList<>(getSampling().getDiscreteValues());
-        if(sizes.get(0) == 1) {
-            sizes.remove(0);
-        }
-        List<WritableRaster> rasters = new ArrayList<>();
-        for(int size : sizes) {
-            rasters.add(Raster.createBandedRaster(DataBuffer.TYPE_BYTE,
-                    (int)Math.ceil(getImg().getWidth() / (double)size),
-                    (int)Math.ceil(getImg().getHeight() / (double)size), 1, null));
-        }
-
-        int nb = 0;
-        RandomIter iter = RandomIterFactory.create(getImg(), null);
+        BinaryRaster raster = getBinaryRaster();
+        SortedSet<Integer> sizes = getSampling().getDiscreteValues();
+        monitor.setMaximum(sizes.size()*100);
+        monitor.setProgress(0);
         
-        for(int y = 0; y < getImg().getHeight(); y++) {
-            for(int x = 0; x < getImg().getWidth(); x++) {
-                if(iter.getSample(x, y, 0) == 1) {
-                    for(int i = 0; i < sizes.size(); i++) {
-                        rasters.get(i).setSample(x / sizes.get(i),
-                                y / sizes.get(i), 0, 1);
+        TreeMap<Integer, BinaryRaster> levels = new TreeMap<>();
+        levels.put(1, raster);
+        curve = new TreeMap<>();
+        int i = 0;
+        for(int size : sizes) {
+            int n = d == 1 ? 1 : (int)(d * Math.pow(Math.pow(getSampling().getCoef(), 0.3), i));
+            n = Math.min(n, size);
+            int part = n > 1 ? 25 : 100;
+            BinaryRaster level = levels.get(size);
+            if(level == null) {
+                int src = 1;
+                for(int s : levels.descendingKeySet()) {
+                    if(size % s == 0) {
+                        src = s;
+                        break;
                     }
-                    nb++;
                 }
+                level = reduce(levels.get(src), size / src, parallel, monitor.getSubProgress(part));
+                levels.put(size, level);
+            } else {
+                monitor.incProgress(part);
+            }
+            double nb = level.count();
+            if(n > 1) {
+                nb = glidingCount(raster, size, n, nb, parallel, monitor);
             }
-            monitor.setProgress(y+1);
+            curve.put(getResolution()*size, nb);
+            i++;
         }
+    }
 
-        curve = new TreeMap<>();
-        if(getSampling().getDiscreteValues().first() == 1) {
-            curve.put(getResolution(), (double)nb);
-        }
-        for(int i = 0; i < sizes.size(); i++) {
-            DataBuffer buf = rasters.get(i).getDataBuffer();
-            nb = 0;
-            for(int j = 0; j < buf.getSize(); j++) {
-                if(buf.getElem(j) == 1) {
-                    nb++;
-                }
+    /**
+     * Counts the boxes of size s for n x n translations of the grid.
+     * The sliding window OR of size s is computed once, then each translated grid is a sub lattice of this raster.
+     * @param raster the binary raster
+     * @param s the box size in pixel
+     * @param n the number of translations in each dimension
+     * @param nb0 the number of boxes for the grid without translation
+     * @param parallel use all processors ?
+     * @param monitor the progress monitor, 75 units are consumed
+     * @return the minimum or the mean number of boxes depending on {@link #mean}
+     */
+    private double glidingCount(final BinaryRaster raster, final int s, final int n, double nb0, boolean parallel, ProgressBar monitor) {
+        final BinaryRaster win = new BinaryRaster(raster.getWidth()+s-1, raster.getHeight()+s-1);
+        // around 4096 words by stripe
+        final int stripe = Math.max(1, 4096 / win.getRowWords());
+        executeTask(new SimpleParallelTask.IterParallelTask((raster.getHeight()+stripe-1) / stripe, monitor.getSubProgress(25)) {
+            @Override
+            protected void executeOne(Integer i) {
+                raster.windowOrRows(win, s, i*stripe, Math.min(raster.getHeight(), (i+1)*stripe));
             }
-            curve.put(getResolution()*sizes.get(i), (double)nb);
-
+        }, parallel);
+        final int nbCol = Math.min(win.getRowWords(), 64);
+        executeTask(new SimpleParallelTask.IterParallelTask(nbCol, monitor.getSubProgress(25)) {
+            @Override
+            protected void executeOne(Integer i) {
+                win.windowOrColumns(s, i*win.getRowWords()/nbCol, (i+1)*win.getRowWords()/nbCol);
+            }
+        }, parallel);
+        
+        final long [] counts = new long[n*n];
+        executeTask(new SimpleParallelTask.IterParallelTask(n*n, monitor.getSubProgress(25)) {
+            @Override
+            protected void executeOne(Integer i) {
+                // translation of the grid by (-ox, -oy)
+                int ox = (i % n) * s / n;
+                int oy = (i / n) * s / n;
+                counts[i] = win.countLattice(s-1-ox, s-1-oy, s);
+            }
+        }, parallel);
+        
+        double min = nb0;
+        double sum = 0;
+        for(long nb : counts) {
+            min = Math.min(min, nb);
+            sum += nb;
         }
+        return mean ? sum / counts.length : min;
+    }
+
+    /**
+     * Creates the OR-reduction of the raster by k x k blocks, by stripes of rows in parallel.
+     * @param raster the raster to reduce
+     * @param k the block size in pixel
+     * @param parallel use all processors ?
+     * @param monitor the progress monitor
+     * @return the reduced raster
+     * @throws CancellationException if the task has been cancelled
+     */
+    static BinaryRaster reduce(final BinaryRaster raster, final int k, boolean parallel, ProgressBar monitor) {
+        final BinaryRaster dest = new BinaryRaster((raster.getWidth()+k-1) / k, (raster.getHeight()+k-1) / k);
+        // around 256 rows of the source raster by stripe
+        final int stripe = Math.max(1, 256 / k);
+        executeTask(new SimpleParallelTask.IterParallelTask((dest.getHeight()+stripe-1) / stripe, monitor) {
+            @Override
+            protected void executeOne(Integer i) {
+                raster.reduce(dest, k, i*stripe, Math.min(dest.getHeight(), (i+1)*stripe));
+            }
+        }, parallel);
+        return dest;
     }
 
     @Override
@@ -119,4 +219,12 @@ public class BoxCountingRasterMethod extends MonoRasterMethod {
     public String getName() {
         return "Boxcounting";
     }
+
+    @Override
+    public String getParamString() {
+        if(d == 1) {
+            return super.getParamString();
+        }
+        return super.getParamString() + String.format(Locale.US, "_glid%d", d) + (mean ? "_mean" : "");
+    }
 }
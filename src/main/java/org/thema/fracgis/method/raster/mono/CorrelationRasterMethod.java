@@ -20,9 +20,6 @@
 package org.thema.fracgis.method.raster.mono;
 
 import com.vividsolutions.jts.geom.Envelope;
-import java.awt.image.DataBuffer;
-import java.awt.image.DataBufferByte;
-import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.io.Serializable;
 import java.util.Arrays;
@@ -30,6 +27,9 @@ import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.concurrent.CancellationException;
 import org.thema.common.ProgressBar;
+import org.thema.common.param.ReflectObject;
+import org.thema.fracgis.method.raster.BinaryRaster;
+import org.thema.fracgis.method.raster.FFTCorrelation;
 import org.thema.fracgis.sampling.DefaultSampling;
 import org.thema.parallel.AbstractParallelTask;
 import org.thema.parallel.ExecutorService;
@@ -43,23 +43,39 @@ import org.thema.parallel.ExecutorService;
 public class CorrelationRasterMethod extends MonoRasterMethod {
     /**
      * Parallel task for computing correlation.
+     * The pairs are counted directly around each black pixel (split by rows),
+     * or by FFT autocorrelation (split by tiles).
      * This task can be run in threaded mode or MPI.
      */
     private static class CorrelationTask extends AbstractParallelTask<TreeMap<Double, Double>, double[]>
             implements Serializable {
-        private Raster raster;
+        private BinaryRaster raster;
+        private FFTCorrelation fft;
+        private boolean euclidean;
         private double resolution;
         private int dMax;
         private DefaultSampling sampling;
         private double [] sumY;
         private TreeMap<Double, Double> curve;
 
-        private CorrelationTask(ProgressBar monitor, DefaultSampling sampling, RenderedImage img, double resolution) {
+        /**
+         * Creates a new correlation task
+         * @param monitor the progress monitor
+         * @param sampling the scale sampling
+         * @param raster the binary raster
+         * @param resolution the raster resolution
+         * @param fft the FFT autocorrelation engine or null for direct counting
+         * @param euclidean use euclidean distance instead of chessboard distance, fft must not be null
+         */
+        private CorrelationTask(ProgressBar monitor, DefaultSampling sampling, BinaryRaster raster, double resolution,
+                FFTCorrelation fft, boolean euclidean) {
             super(monitor);
             this.sampling = sampling;
             dMax = sampling.getDiscreteValues().last();
             this.resolution = resolution;
-            raster = img.getData();
+            this.raster = raster;
+            this.fft = fft;
+            this.euclidean = euclidean;
         }
 
         @Override
@@ -71,39 +87,18 @@ public class CorrelationRasterMethod extends MonoRasterMethod {
 
         @Override
         public double[] execute(int start, int end) {
-
-            if(raster.getSampleModel().getDataType() != DataBuffer.TYPE_BYTE || raster.getSampleModel().getSampleSize()[0] != 8) {
-                return slowMethod(raster, start, end);
+            if(fft != null) {
+                return executeFFT(start, end);
             }
-            final byte [] buf = ((DataBufferByte)raster.getDataBuffer()).getData();
-
             final int w = raster.getWidth();
-            final int h = raster.getHeight();
             final double [] fy = new double[dMax+1];
 
             for(int i = start; i < end; i++) {
-                for(int j = 0; j < w; j++) {
-                    if(raster.getSample(j, i, 0) == 1) {
-                        if(isCanceled()) {
-                            return null;
-                        }
-                        final int i1 = i-dMax < 0 ? 0 : i-dMax;
-                        final int i2 = i+dMax >= h ? h-1 : i+dMax;
-
-                        final int j1 = j-dMax < 0 ? 0 : j-dMax;
-                        final int j2 = j+dMax >= w ? w-1 : j+dMax;
-
-                        for(int k = i1; k <= i2; k++) {
-                            int ind = (k) * w + (j1);
-                            for(int l = j1; l <= j2; l++) {
-                                if(buf[ind] == 1) {
-                                    fy[Math.max(Math.abs(k-i), Math.abs(l-j))]++;
-                                }
-                                ind++;
-                            }
-                        }
+                for(int j = raster.nextSetBit(i, 0, w); j != -1; j = raster.nextSetBit(i, j+1, w)) {
+                    if(isCanceled()) {
+                        return null;
                     }
-
+                    raster.addRingCounts(j, i, dMax, fy);
                 }
                 incProgress(1);
             }
@@ -111,50 +106,27 @@ public class CorrelationRasterMethod extends MonoRasterMethod {
             return fy;
         }
 
-        /**
-         * Slower method for raster which pixels are not on 1 byte (8 bits)
-         * @param r
-         * @param start
-         * @param end
-         * @return 
-         */
-        private double[] slowMethod(Raster r, int start, int end) {
-            final int w = r.getWidth();
-            final int h = r.getHeight();
-
+        private double[] executeFFT(int start, int end) {
+            if(isCanceled()) {
+                return null;
+            }
+            final long [] counts = new long[dMax+1];
+            if(euclidean) {
+                fft.addCounts(start, end, null, counts);
+            } else {
+                fft.addCounts(start, end, counts, null);
+            }
+            incProgress(end-start);
             final double [] fy = new double[dMax+1];
-
-            for(int i = start; i < end; i++) {
-                for(int j = 0; j < w; j++) {
-                    if(r.getSample(j, i, 0) == 1) {
-                        if(isCanceled()) {
-                            return null;
-                        }
-                        final int i1 = i-dMax < 0 ? 0 : i-dMax;
-                        final int i2 = i+dMax >= h ? h-1 : i+dMax;
-
-                        final int j1 = j-dMax < 0 ? 0 : j-dMax;
-                        final int j2 = j+dMax >= w ? w-1 : j+dMax;
-
-                        for(int k = i1; k <= i2; k++) {
-                            for(int l = j1; l <= j2; l++) {
-                                if(r.getSample(l, k, 0) == 1) {
-                                    fy[Math.max(Math.abs(k-i), Math.abs(l-j))]++;
-                                }
-                            }
-                        }
-                    }
-                }
-                incProgress(1);
+            for(int i = 0; i <= dMax; i++) {
+                fy[i] = counts[i];
             }
-
             return fy;
         }
 
-
         @Override
         public int getSplitRange() {
-            return raster.getHeight();
+            return fft != null ? fft.getNbTiles() : raster.getHeight();
         }
         
         @Override
@@ -166,14 +138,7 @@ public class CorrelationRasterMethod extends MonoRasterMethod {
         
         @Override
         public void finish() {           
-            int nbTot = 0;
-            for(int i = 0; i < raster.getHeight(); i++) {
-                for(int j = 0; j < raster.getWidth(); j++) {
-                    if(raster.getSample(j, i, 0) == 1) {
-                        nbTot++;
-                    }
-                }
-            }
+            long nbTot = raster.count();
             
             for(int i = 0; i <= dMax; i++) {
                 sumY[i] /= (double)nbTot;		/* on divise fy par le nombre total de points */
@@ -197,6 +162,9 @@ public class CorrelationRasterMethod extends MonoRasterMethod {
 
     }
 
+    @ReflectObject.Name("euclidean")
+    private boolean euclidean = false;
+    
     /**
      * Default constructor for batch mode
      */
@@ -214,9 +182,34 @@ public class CorrelationRasterMethod extends MonoRasterMethod {
         super(inputName, scaling, img, env);
     }
 
+    /**
+     * Creates a new correlation method for the given data
+     * @param inputName input layer name (must be a binary raster layer)
+     * @param sampling scale sampling
+     * @param img raster input data
+     * @param env envelope of the raster in world coordinate
+     * @param euclidean count the pairs in disks (euclidean distance) instead of squares (chessboard distance) ?
+     */
+    public CorrelationRasterMethod(String inputName, DefaultSampling scaling, RenderedImage img, Envelope env, boolean euclidean) {
+        super(inputName, scaling, img, env);
+        this.euclidean = euclidean;
+    }
+
+    /**
+     * Counts the pairs directly around each black pixel or by FFT autocorrelation when it is estimated faster,
+     * ie. for large maximum distance.
+     * The euclidean distance is always calculated by FFT.
+     * Both engines give exactly the same counts.
+     */
     @Override
     public void execute(ProgressBar monitor, boolean parallel) {
-        CorrelationTask task = new CorrelationTask(monitor, getSampling(), getImg(), getResolution());
+        BinaryRaster raster = getBinaryRaster();
+        int dMax = getSampling().getDiscreteValues().last();
+        FFTCorrelation fft = null;
+        if(euclidean || FFTCorrelation.isFaster(raster, dMax)) {
+            fft = new FFTCorrelation(raster, dMax);
+        }
+        CorrelationTask task = new CorrelationTask(monitor, getSampling(), raster, getResolution(), fft, euclidean);
         
         if(parallel) {
             ExecutorService.execute(task);
@@ -239,4 +232,9 @@ public class CorrelationRasterMethod extends MonoRasterMethod {
         return "Correlation";
     }
 
+    @Override
+    public String getParamString() {
+        return super.getParamString() + (euclidean ? "_eucl1" : "");
+    }
+
 }
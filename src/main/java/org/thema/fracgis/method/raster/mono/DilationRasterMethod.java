@@ -20,15 +20,14 @@
 package org.thema.fracgis.method.raster.mono;
 
 import com.vividsolutions.jts.geom.Envelope;
-import java.awt.image.DataBuffer;
-import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
-import java.awt.image.WritableRaster;
 import java.util.SortedSet;
 import java.util.TreeMap;
-import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
 import org.thema.common.ProgressBar;
+import org.thema.common.parallel.SimpleParallelTask;
+import org.thema.common.param.ReflectObject;
+import org.thema.fracgis.method.raster.BinaryRaster;
+import org.thema.fracgis.method.raster.DistanceTransform;
 import org.thema.fracgis.sampling.DefaultSampling;
 
 /**
@@ -38,6 +37,9 @@ import org.thema.fracgis.sampling.DefaultSampling;
  */
 public class DilationRasterMethod extends MonoRasterMethod {
 
+    @ReflectObject.Name("euclidean")
+    private boolean euclidean = false;
+
     /**
      * Default constructor for batch mode
      */
@@ -55,74 +57,66 @@ public class DilationRasterMethod extends MonoRasterMethod {
         super(inputName, sampling, img, env);
     }
 
+    /**
+     * Creates a new dilation method for the given data
+     * @param inputName input layer name (must be a binary raster layer)
+     * @param sampling scale sampling
+     * @param img raster input data
+     * @param env envelope of the raster in world coordinate
+     * @param euclidean dilation by disks (euclidean distance) instead of squares (chessboard distance) ?
+     */
+    public DilationRasterMethod(String inputName, DefaultSampling sampling, RenderedImage img, Envelope env, boolean euclidean) {
+        super(inputName, sampling, img, env);
+        this.euclidean = euclidean;
+    }
+
+    /**
+     * The dilation of size i contains the pixels at distance lower or equal to i from a black pixel.
+     * The distance transform is calculated once, the number of pixels of each dilation is given
+     * by the cumulative histogram of the distances.
+     */
     @Override
     public void execute(ProgressBar monitor, boolean parallel) {
-        curve = new TreeMap<>();
         SortedSet<Integer> samples = getSampling().getDiscreteValues();
-
-        int max = samples.last();
-        RandomIter src = RandomIterFactory.create(getImg(), null);
-        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_USHORT, getImg().getWidth()+2*max, getImg().getHeight() + 2*max, 1, null);
-        int nb = 0;
-        for(int y = 0; y < getImg().getHeight(); y++) {
-            for(int x = 0; x < getImg().getWidth(); x++) {
-                int val = src.getSample(x, y, 0);
-                raster.setSample(x+max, y+max, 0, val);
-                if(val == 1) {
-                    nb++;
-                }
+        final int max = samples.last();
+        final BinaryRaster raster = getBinaryRaster();
+        final DistanceTransform dt = new DistanceTransform(raster, max, euclidean);
+        monitor.setMaximum(100);
+        monitor.setProgress(0);
+        
+        executeTask(new SimpleParallelTask.IterParallelTask(raster.getRowWords(), monitor.getSubProgress(30)) {
+            @Override
+            protected void executeOne(Integer c) {
+                dt.columnPass(c, c+1);
             }
-        }
-        monitor.setMaximum(max*raster.getHeight());
-        double res = getResolution();            
-        curve.put(res, (double)nb);
+        }, parallel);
         
-        for(int i = 1; i <= max; i++) {
-            for(int y = 0; y < raster.getHeight(); y++) {
-                for(int x = 0; x < raster.getWidth(); x++) {
-                    if(raster.getSample(x, y, 0) == i) {
-                        if(raster.getSample(x-1, y-1, 0) == 0) {
-                            raster.setSample(x-1, y-1, 0, i+1);
-                            nb++;
-                        }
-                        if(raster.getSample(x-1, y, 0) == 0) {
-                            raster.setSample(x-1, y, 0, i+1);
-                            nb++;
-                        }
-                        if(raster.getSample(x-1, y+1, 0) == 0) {
-                            raster.setSample(x-1, y+1, 0, i+1);
-                            nb++;
-                        }
-                        if(raster.getSample(x, y-1, 0) == 0) {
-                            raster.setSample(x, y-1, 0, i+1);
-                            nb++;
-                        }
-                        if(raster.getSample(x, y+1, 0) == 0) {
-                            raster.setSample(x, y+1, 0, i+1);
-                            nb++;
-                        }
-                        if(raster.getSample(x+1, y-1, 0) == 0) {
-                            raster.setSample(x+1, y-1, 0, i+1);
-                            nb++;
-                        }
-                        if(raster.getSample(x+1, y, 0) == 0) {
-                            raster.setSample(x+1, y, 0, i+1);
-                            nb++;
-                        }
-                        if(raster.getSample(x+1, y+1, 0) == 0) {
-                            raster.setSample(x+1, y+1, 0, i+1);
-                            nb++;
-                        }
+        final long [] hist = new long[max+1];
+        // around 64 rows by stripe
+        final int stripe = 64;
+        executeTask(new SimpleParallelTask.IterParallelTask((dt.getExtHeight()+stripe-1) / stripe, monitor.getSubProgress(70)) {
+            @Override
+            protected void executeOne(Integer i) {
+                long [] h = new long[max+1];
+                dt.rowHistogram(i*stripe, Math.min(dt.getExtHeight(), (i+1)*stripe), h);
+                synchronized(hist) {
+                    for(int d = 0; d <= max; d++) {
+                        hist[d] += h[d];
                     }
                 }
-                monitor.incProgress(1);
             }
- 
+        }, parallel);
+        
+        curve = new TreeMap<>();
+        double res = getResolution();   
+        long nb = hist[0];
+        curve.put(res, (double)nb);
+        for(int i = 1; i <= max; i++) {
+            nb += hist[i];
             if(samples.contains(i)) {          
                 curve.put(res*(2*i+1), nb / Math.pow(2*i+1, 2));
             }
         }   
-        
     }
     
     @Override
@@ -134,5 +128,10 @@ public class DilationRasterMethod extends MonoRasterMethod {
     public String getName() {
         return "Dilation";
     }
+
+    @Override
+    public String getParamString() {
+        return super.getParamString() + (euclidean ? "_eucl1" : "");
+    }
      
 }
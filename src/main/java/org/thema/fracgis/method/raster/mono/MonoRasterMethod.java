@@ -20,6 +20,7 @@ import com.vividsolutions.jts.geom.Envelope;
 import java.awt.image.RenderedImage;
 import java.util.TreeMap;
 import org.thema.fracgis.method.MonoMethod;
+import org.thema.fracgis.method.raster.BinaryRaster;
 import org.thema.fracgis.method.raster.RasterMethod;
 import org.thema.fracgis.sampling.DefaultSampling;
 
@@ -32,6 +33,8 @@ public abstract class MonoRasterMethod extends RasterMethod implements MonoMetho
 
     protected TreeMap<Double, Double> curve;
     
+    private transient BinaryRaster binRaster;
+    
     /**
      * Default constructor for batch mode
      */
@@ -49,6 +52,33 @@ public abstract class MonoRasterMethod extends RasterMethod implements MonoMetho
         super(inputName, sampling, img, envelope);
     }
     
+    @Override
+    public void setInputData(String inputName, RenderedImage img, Envelope envelope) {
+        super.setInputData(inputName, img, envelope);
+        binRaster = null;
+    }
+
+    /**
+     * Returns the input image as a bit-packed binary raster.
+     * The raster is created at the first call and kept until the input data changes.
+     * @return the binary raster of the input image
+     */
+    public synchronized BinaryRaster getBinaryRaster() {
+        if(binRaster == null) {
+            binRaster = BinaryRaster.create(getImg());
+        }
+        return binRaster;
+    }
+
+    /**
+     * Sets the binary raster of the input image.
+     * Avoids creating the same binary raster when several methods work on the same image.
+     * @param binRaster the binary raster corresponding to the input image
+     */
+    public synchronized void setBinaryRaster(BinaryRaster binRaster) {
+        this.binRaster = binRaster;
+    }
+    
     @Override
     public TreeMap<Double, Double> getCurve() {
         return curve;
@@ -26,11 +26,10 @@ import java.awt.image.RenderedImage;
 import java.util.Locale;
 import java.util.SortedSet;
 import java.util.TreeMap;
-import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
 import org.thema.common.ProgressBar;
 import org.thema.fracgis.estimation.RectangularRangeShape;
 import org.thema.fracgis.method.MethodLayers;
+import org.thema.fracgis.method.raster.IntegralImage;
 import org.thema.fracgis.sampling.RadialSampling;
 
 /**
@@ -39,6 +38,8 @@ import org.thema.fracgis.sampling.RadialSampling;
  * @author Gilles Vuidel
  */
 public class RadialRasterMethod extends MonoRasterMethod {
+    
+    private transient IntegralImage integral;
        
     /**
      * Constructor for data with spatial unit (world envelope)
@@ -51,35 +52,39 @@ public class RadialRasterMethod extends MonoRasterMethod {
         super(inputName, sampling, img, envelope);
     }
     
+    /**
+     * Sets the integral image of the input image.
+     * The number of pixels for each scale is then given by 4 lookups instead of scanning the window.
+     * Useful when the method is executed for many centres on the same image.
+     * @param integral the integral image corresponding to the input image
+     */
+    public void setIntegralImage(IntegralImage integral) {
+        this.integral = integral;
+    }
+    
     @Override
     public void execute(ProgressBar monitor, boolean threaded) {
         Coordinate c = getTransform().transform(getCentre(), new Coordinate());
         SortedSet<Integer> scales = getSampling().getDiscreteValues();
         int x = (int) c.x;
         int y = (int) c.y;
-        int n = scales.last();
-        int[] count = new int[n+1];
-        
-        final int i1 = y-n < 0 ? 0 : y-n;
-        final int i2 = y+n >= getImg().getHeight() ? getImg().getHeight()-1 : y+n;
-        final int j1 = x-n < 0 ? 0 : x-n;
-        final int j2 = x+n >= getImg().getWidth() ? getImg().getWidth()-1 : x+n;
-        monitor.setMaximum(i2-i1+1);
-        RandomIter r = RandomIterFactory.create(getImg(), null);
-        for(int i = i1; i <= i2; i++) {
-            for(int j = j1; j <= j2; j++) {
-                if(r.getSample(j, i, 0) == 1) {
-                    count[Math.max(Math.abs(i-y), Math.abs(j-x))]++;
-                }
+        double res = getResolution();
+        curve = new TreeMap<>();
+        if(integral != null) {
+            for(int i : scales) {
+                curve.put((2*i+1) * res, integral.getSquareSum(x, y, i) * res*res);
             }
-            monitor.incProgress(1);
+            return;
         }
-        r.done();
+        
+        int n = scales.last();
+        double[] count = new double[n+1];
+        monitor.setMaximum(1);
+        getBinaryRaster().addRingCounts(x, y, n, count);
+        monitor.incProgress(1);
         for(int i = 1; i < count.length; i++) {
             count[i] += count[i-1];
         }
-        double res = getResolution();
-        curve = new TreeMap<>();
         for(int i = 0; i < count.length; i++) {
             if(scales.contains(i)) {
                 curve.put((2*i+1) * res, count[i] * res*res);
@@ -18,11 +18,20 @@ package org.thema.fracgis.method.raster.multi;
 
 import java.awt.image.BandedSampleModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferDouble;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import org.thema.fracgis.method.raster.FFT2D;
 
 /**
- *
+ * Continuous wavelet transform with gaussian wavelets, used by {@link WTMMMethod}.
+ * 
+ * The gaussian and its derivatives are separable, so the six convolutions are computed with 1D passes :
+ * 3 passes on rows shared by 6 passes on columns.
+ * For large var, the padded image is transformed once by FFT and the 6 convolutions are obtained
+ * by product with the spectrum of the separable kernels, two real results by inverse transform.
+ * The method with the lowest estimated cost is used.
+ * 
  * @author Gilles Vuidel
  */
 public class CWT {
@@ -31,67 +40,130 @@ public class CWT {
     
     public WritableRaster conv, dx, dy, dxy, dxx, dyy, mod, arg, kapa, chain, goodchain;
     
+    /**
+     * Calculates the wavelet transforms, the modulus, the argument, the curvature and the maxima chains.
+     * The results have the size of the image extended by NVAR*var on each side.
+     * @param img the image
+     * @param var the scale of the wavelet (standard deviation of the gaussian)
+     */
     public void calcCWT(Raster img, int var) {
+        calcCWT(img.getSamples(img.getMinX(), img.getMinY(), img.getWidth(), img.getHeight(), 0, (double[])null), 
+                img.getWidth(), img.getHeight(), var);
+    }
+    
+    /**
+     * Calculates the wavelet transforms, the modulus, the argument, the curvature and the maxima chains.
+     * The results have the size of the image extended by NVAR*var on each side.
+     * @param img the image, row after row, it is not modified and can be shared between threads
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param var the scale of the wavelet (standard deviation of the gaussian)
+     */
+    public void calcCWT(double [] img, int width, int height, int var) {
         int d = NVAR*var;
-        WritableRaster r = img.createCompatibleWritableRaster(img.getWidth()+2*d, img.getHeight()+2*d);
-//                Raster.createWritableRaster(new BandedSampleModel(
-//                DataBuffer.TYPE_FLOAT, img.getWidth()+2*d, img.getHeight()+2*d, 1), null);
-        for(int y = 0; y < img.getHeight(); y++) {
-            for(int x = 0; x < img.getWidth(); x++) {
-                r.setSample(x+d, y+d, 0, img.getSampleDouble(x, y, 0));
-            }
+        calcCWT(img, width, height, var, isFFTFaster(width+2*d, height+2*d, d));
+    }
+    
+    /**
+     * Calculates the wavelet transforms with FFT or with separable convolutions.
+     * @param img the image
+     * @param var the scale of the wavelet
+     * @param useFFT use FFT or separable convolutions ?
+     */
+    void calcCWT(Raster img, int var, boolean useFFT) {
+        calcCWT(img.getSamples(img.getMinX(), img.getMinY(), img.getWidth(), img.getHeight(), 0, (double[])null), 
+                img.getWidth(), img.getHeight(), var, useFFT);
+    }
+    
+    /**
+     * Calculates the wavelet transforms with FFT or with separable convolutions.
+     * @param img the image, row after row
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param var the scale of the wavelet
+     * @param useFFT use FFT or separable convolutions ?
+     */
+    void calcCWT(double [] img, int width, int height, int var, boolean useFFT) {
+        final int d = NVAR*var;
+        final int w = width+2*d;
+        final int h = height+2*d;
+        double [] r = new double[w*h];
+        for(int y = 0; y < height; y++) {
+            System.arraycopy(img, y*width, r, (y+d)*w+d, width);
         }
         
-        conv = convolve2d(r, gauss(var));
-        dx = convolve2d(r, dog1x(var));
-        dy = convolve2d(r, dog1y(var));
-        dxx = convolve2d(r, dog2x(var));
-        dyy = convolve2d(r, dog2y(var));
-        dxy = convolve2d(r, dog2xy(var));
-        
-        mod = dx.createCompatibleWritableRaster();
-        for(int y = 0; y < r.getHeight(); y++) {
-            for(int x = 0; x < r.getWidth(); x++) {
-                double m = Math.hypot(dx.getSampleDouble(x, y, 0), dy.getSampleDouble(x, y, 0));
-                mod.setSample(x, y, 0, m);
-            }
+        // 1D kernels : exp(-t²/2var²), t.exp(-t²/2var²), (t²-var²).exp(-t²/2var²)
+        final double [] e = new double[2*d+1];
+        final double [] t1 = new double[2*d+1];
+        final double [] t2 = new double[2*d+1];
+        final double var2 = var*var;
+        for(int i = 0; i <= 2*d; i++) {
+            int t = i - d;
+            e[i] = Math.exp(-t*t / (2*var2));
+            t1[i] = t * e[i];
+            t2[i] = (t*t - var2) * e[i];
         }
+        final double fGauss = 1 / (var * Math.sqrt(2 * Math.PI));
+        final double fDog1 = -1 / (Math.pow(var, 3) * Math.sqrt(2 * Math.PI));
+        final double fDog2 = 1 / (Math.pow(var, 5) * Math.sqrt(2 * Math.PI));
         
-        arg = dx.createCompatibleWritableRaster();
-        for(int y = 0; y < r.getHeight(); y++) {
-            for(int x = 0; x < r.getWidth(); x++) {
-                double a = Math.atan2(-dy.getSampleDouble(x, y, 0), dx.getSampleDouble(x, y, 0));
-                arg.setSample(x, y, 0, a);
-            }
+        final double [] conv1, dx1, dy1, dxx1, dyy1, dxy1;
+        if(useFFT) {
+            Spectrum spec = new Spectrum(r, w, h, d);
+            double [][] res = spec.convolve(e, e, fGauss, e, t1, fDog1);
+            conv1 = res[0];
+            dx1 = res[1];
+            res = spec.convolve(t1, e, fDog1, e, t2, fDog2);
+            dy1 = res[0];
+            dxx1 = res[1];
+            res = spec.convolve(t2, e, fDog2, t1, t1, fDog2);
+            dyy1 = res[0];
+            dxy1 = res[1];
+        } else {
+            double [] rowE = convolveRows(r, w, h, e);
+            double [] rowT1 = convolveRows(r, w, h, t1);
+            double [] rowT2 = convolveRows(r, w, h, t2);
+            conv1 = convolveColumns(rowE, w, h, e, fGauss);
+            dx1 = convolveColumns(rowT1, w, h, e, fDog1);
+            dy1 = convolveColumns(rowE, w, h, t1, fDog1);
+            dxx1 = convolveColumns(rowT2, w, h, e, fDog2);
+            dyy1 = convolveColumns(rowE, w, h, t2, fDog2);
+            dxy1 = convolveColumns(rowT1, w, h, t1, fDog2);
         }
+        conv = createRaster(conv1, w, h);
+        dx = createRaster(dx1, w, h);
+        dy = createRaster(dy1, w, h);
+        dxx = createRaster(dxx1, w, h);
+        dyy = createRaster(dyy1, w, h);
+        dxy = createRaster(dxy1, w, h);
         
-        kapa = dx.createCompatibleWritableRaster();
-        for(int y = 0; y < r.getHeight(); y++) {
-            for(int x = 0; x < r.getWidth(); x++) {
-                double k = 2*dx.getSampleDouble(x, y, 0)*dx.getSampleDouble(x, y, 0)*dxx.getSampleDouble(x, y, 0)
-                         + 2*dy.getSampleDouble(x, y, 0)*dy.getSampleDouble(x, y, 0)*dyy.getSampleDouble(x, y, 0)
-                         + 4*dx.getSampleDouble(x, y, 0)*dy.getSampleDouble(x, y, 0)*dxy.getSampleDouble(x, y, 0);
-                kapa.setSample(x, y, 0, k);
-            }
+        final double [] mod1 = new double[w*h];
+        final double [] arg1 = new double[w*h];
+        final double [] kapa1 = new double[w*h];
+        for(int i = 0; i < mod1.length; i++) {
+            final double gx = dx1[i];
+            final double gy = dy1[i];
+            mod1[i] = Math.sqrt(gx*gx + gy*gy);
+            arg1[i] = Math.atan2(-gy, gx);
+            kapa1[i] = 2*gx*gx*dxx1[i] + 2*gy*gy*dyy1[i] + 4*gx*gy*dxy1[i];
         }
+        mod = createRaster(mod1, w, h);
+        arg = createRaster(arg1, w, h);
+        kapa = createRaster(kapa1, w, h);
         
         double max = 0;
         int xmax = -1;
         int ymax = -1;
-        chain = dx.createCompatibleWritableRaster();
-        for(int y = 1; y < r.getHeight()-1; y++) {
-            for(int x = 1; x < r.getWidth()-1; x++) {
-                double k = kapa.getSampleDouble(x, y, 0);
-                double kx1 = kapa.getSampleDouble(x-1, y, 0);
-                double ky1 = kapa.getSampleDouble(x, y-1, 0);
-                double kx2 = kapa.getSampleDouble(x+1, y, 0);
-                double ky2 = kapa.getSampleDouble(x, y+1, 0);
-                if(k*kx1 <= 0 || k*ky1 <= 0 || k*kx2 <= 0 || k*ky2 <= 0) {
-                    double m = mod.getSampleDouble(x, y, 0);
-                    double m4 = mod.getSampleDouble(x-1, y, 0) + mod.getSampleDouble(x, y-1, 0)
-                            + mod.getSampleDouble(x+1, y, 0) + mod.getSampleDouble(x, y+1, 0);
+        final double [] chain1 = new double[w*h];
+        for(int y = 1; y < h-1; y++) {
+            for(int x = 1; x < w-1; x++) {
+                final int i = y*w + x;
+                double k = kapa1[i];
+                if(k*kapa1[i-1] <= 0 || k*kapa1[i-w] <= 0 || k*kapa1[i+1] <= 0 || k*kapa1[i+w] <= 0) {
+                    double m = mod1[i];
+                    double m4 = mod1[i-1] + mod1[i-w] + mod1[i+1] + mod1[i+w];
                     if(m4 < 4*m) {
-                        chain.setSample(x, y, 0, m);
+                        chain1[i] = m;
                         if(m > max) {
                             max = m;
                             xmax = x;
@@ -101,12 +173,14 @@ public class CWT {
                 }
             }
         }
+        chain = createRaster(chain1, w, h);
         
         goodchain = dx.createCompatibleWritableRaster();
         int x = xmax;
         int y = ymax;
-        while(true) {
-            if(goodchain.getSampleDouble(x, y, 0) != 0) {
+        while(xmax != -1) {
+            // stops when the chain loops or reaches the border
+            if(x < 1 || y < 1 || x >= w-1 || y >= h-1 || goodchain.getSampleDouble(x, y, 0) != 0) {
                 break;
             }
             double m = mod.getSampleDouble(x, y, 0);
@@ -115,7 +189,7 @@ public class CWT {
                 //throw new RuntimeException();
             }
             
-            goodchain.setSample(x, y, 0, var/img.getWidth());
+            goodchain.setSample(x, y, 0, (double)var/width);
             
             double a = arg.getSampleDouble(x, y, 0);
             
@@ -185,128 +259,162 @@ public class CWT {
         }
     }
     
-    private float[] gauss(int var) {
-        int size = 2*NVAR*var + 1;
-        float[] kernel = new float[size*size];
-        double facteur = 1 / (var * Math.sqrt(2 * Math.PI));
-        double var2 = 2*Math.pow(var, 2);
-        for(int i = 0; i < size; i++) {
-            for(int j = 0; j < size; j++) {
-                int x = j - NVAR*var;
-                int y = i - NVAR*var;
-		kernel[i*size+j] = (float) (facteur * Math.exp(-(Math.pow(x, 2)+Math.pow(y, 2)) / var2));
-            }
+    /**
+     * Estimates the memory used by {@link #calcCWT(double[], int, int, int) } without the input image
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param var the scale of the wavelet
+     * @return the estimated memory size in bytes
+     */
+    static long getMemorySize(int width, int height, int var) {
+        final int d = NVAR*var;
+        final long size = (long)(width+2*d) * (height+2*d);
+        // padded image, 3 row passes or 4 spectrum arrays, 6 transforms and 5 results
+        long mem = 8 * 15 * size;
+        if(isFFTFaster(width+2*d, height+2*d, d)) {
+            mem += 8 * 4 * (long)nextPow2(width+3*d) * nextPow2(height+3*d);
         }
-        return kernel;
+        return mem;
     }
     
-    private float[] dog1x(int var) {
-        int size = 2*NVAR*var + 1;
-        float[] kernel = new float[size*size];
-        double facteur = -1 / (Math.pow(var, 3) * Math.sqrt(2 * Math.PI));
-        double var2 = 2*Math.pow(var, 2);
-        for(int i = 0; i < size; i++) {
-            for(int j = 0; j < size; j++) {
-                int x = j - NVAR*var;
-                int y = i - NVAR*var;
-		kernel[i*size+j] = (float) (facteur * x * Math.exp(-(Math.pow(x, 2)+Math.pow(y, 2)) / var2));
-            }
-        }
-        return kernel;
+    /**
+     * Estimates whether FFT is faster than the separable convolutions
+     * @param w the width of the padded image
+     * @param h the height of the padded image
+     * @param d the half size of the kernels
+     * @return true if FFT is faster
+     */
+    static boolean isFFTFaster(int w, int h, int d) {
+        double n = (double)nextPow2(w+d) * nextPow2(h+d);
+        // 9 passes of 2d+1 multiply-add versus 4 complex FFT and 3 spectrum products
+        double sep = 9.0 * 2 * (2*d+1) * w * h;
+        double fft = 4 * 5 * n * Math.log(n) / Math.log(2) + 3 * 20 * n;
+        return fft < sep;
     }
     
-    private float[] dog1y(int var) {
-        int size = 2*NVAR*var + 1;
-        float[] kernel = new float[size*size];
-        double facteur = -1 / (Math.pow(var, 3) * Math.sqrt(2 * Math.PI));
-        double var2 = 2*Math.pow(var, 2);
-        for(int i = 0; i < size; i++) {
-            for(int j = 0; j < size; j++) {
-                int x = j - NVAR*var;
-                int y = i - NVAR*var;
-		kernel[i*size+j] = (float) (facteur * y * Math.exp(-(Math.pow(x, 2)+Math.pow(y, 2)) / var2));
-            }
-        }
-        return kernel;
+    private static int nextPow2(int n) {
+        return Integer.highestOneBit(n-1) << 1;
     }
     
-    private float[] dog2x(int var) {
-        int size = 2*NVAR*var + 1;
-        float[] kernel = new float[size*size];
-        double facteur = 1 / (Math.pow(var, 5) * Math.sqrt(2 * Math.PI));
-        double var2 = Math.pow(var, 2);
-        for(int i = 0; i < size; i++) {
-            for(int j = 0; j < size; j++) {
-                int x = j - NVAR*var;
-                int y = i - NVAR*var;
-		kernel[i*size+j] = (float) (facteur * (x*x - var2) * Math.exp(-(Math.pow(x, 2)+Math.pow(y, 2)) / (2*var2)));
+    /**
+     * Correlates each row with the kernel, the outside of the image is zero
+     */
+    private static double[] convolveRows(double [] src, int w, int h, double [] kernel) {
+        final int d = kernel.length / 2;
+        final double [] dst = new double[w*h];
+        for(int y = 0; y < h; y++) {
+            final int off = y*w;
+            for(int x = 0; x < w; x++) {
+                final int t1 = Math.max(-d, -x);
+                final int t2 = Math.min(d, w-1-x);
+                double sum = 0;
+                for(int t = t1; t <= t2; t++) {
+                    sum += src[off+x+t] * kernel[t+d];
+                }
+                dst[off+x] = sum;
             }
         }
-        return kernel;
+        return dst;
     }
     
-    private float[] dog2y(int var) {
-        int size = 2*NVAR*var + 1;
-        float[] kernel = new float[size*size];
-        double facteur = 1 / (Math.pow(var, 5) * Math.sqrt(2 * Math.PI));
-        double var2 = Math.pow(var, 2);
-        for(int i = 0; i < size; i++) {
-            for(int j = 0; j < size; j++) {
-                int x = j - NVAR*var;
-                int y = i - NVAR*var;
-		kernel[i*size+j] = (float) (facteur * (y*y - var2) * Math.exp(-(Math.pow(x, 2)+Math.pow(y, 2)) / (2*var2)));
+    /**
+     * Correlates each column with the kernel and multiplies by factor, the outside of the image is zero
+     */
+    private static double[] convolveColumns(double [] src, int w, int h, double [] kernel, double factor) {
+        final int d = kernel.length / 2;
+        final double [] dst = new double[w*h];
+        for(int y = 0; y < h; y++) {
+            final int off = y*w;
+            for(int t = Math.max(-d, -y); t <= Math.min(d, h-1-y); t++) {
+                final double k = kernel[t+d] * factor;
+                final int offSrc = off + t*w;
+                for(int x = 0; x < w; x++) {
+                    dst[off+x] += src[offSrc+x] * k;
+                }
             }
         }
-        return kernel;
+        return dst;
     }
     
-    private float[] dog2xy(int var) {
-        int size = 2*NVAR*var + 1;
-        float[] kernel = new float[size*size];
-        double facteur = 1 / (Math.pow(var, 5) * Math.sqrt(2 * Math.PI));
-        double var2 = Math.pow(var, 2);
-        for(int i = 0; i < size; i++) {
-            for(int j = 0; j < size; j++) {
-                int x = j - NVAR*var;
-                int y = i - NVAR*var;
-		kernel[i*size+j] = (float) (facteur * x*y * Math.exp(-(Math.pow(x, 2)+Math.pow(y, 2)) / (2*var2)));
-            }
-        }
-        return kernel;
+    private static WritableRaster createRaster(double [] data, int w, int h) {
+        return Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_DOUBLE, w, h, 1), 
+                new DataBufferDouble(data, data.length), null);
     }
     
-//    public static WritableRaster convolve2d(Raster r, float[] kernel) {
-//        int size = (int) Math.sqrt(kernel.length);
-//        Kernel kern = new Kernel(size, size, kernel);
-//        ConvolveOp op = new ConvolveOp(kern);
-//        WritableRaster dst = op.createCompatibleDestRaster(r);
-//        op.filter(r, dst);
-//
-//        int d = size / 2;
-//        return dst.createWritableChild(d, d, r.getWidth()-2*d, r.getHeight()-2*d, 0, 0, null);
-//    }
-    
-    public static WritableRaster convolve2d(Raster r, float[] kernel) {
-        int size = (int) Math.sqrt(kernel.length);
-        int d = size / 2;
-        WritableRaster dst = Raster.createWritableRaster(new BandedSampleModel(
-                DataBuffer.TYPE_DOUBLE, r.getWidth(), r.getHeight(), 1), null);
-        for(int y = 0; y < r.getHeight(); y++) {
-            for(int x = 0; x < r.getWidth(); x++) {
-                int i1 = -Math.min(0, y-d);
-                int j1 = -Math.min(0, x-d);
-                int i2 = d+Math.min(d, r.getHeight()-y);
-                int j2 = d+Math.min(d, r.getWidth()-x);
-                double sum = 0;
-                for(int i = i1; i < i2; i++) {
-                    for(int j = j1; j < j2; j++) {
-                        sum += r.getSampleDouble(x+j-d, y+i-d, 0) * kernel[i*size+j];
-                    }
+    /**
+     * Spectrum of the zero padded image, for convolutions with separable kernels.
+     */
+    private static final class Spectrum {
+        private final int w, h, nw, nh;
+        private final FFT2D fft;
+        private final double [] re, im;
+
+        /**
+         * Transforms the image padded with at least d zeros to avoid wrap around
+         */
+        private Spectrum(double [] img, int w, int h, int d) {
+            this.w = w;
+            this.h = h;
+            this.nw = nextPow2(w+d);
+            this.nh = nextPow2(h+d);
+            fft = new FFT2D(nw, nh);
+            re = new double[nw*nh];
+            im = new double[nw*nh];
+            for(int y = 0; y < h; y++) {
+                System.arraycopy(img, y*w, re, y*nw, w);
+            }
+            fft.forward(re, im);
+        }
+        
+        /**
+         * Correlates the image with two separable kernels kx1(x).ky1(y).f1 and kx2(x).ky2(y).f2.
+         * As the results are real, they are calculated with one inverse transform, 
+         * the first as real part and the second as imaginary part.
+         * @return the two results with the size of the image
+         */
+        private double[][] convolve(double [] ky1, double [] kx1, double f1, double [] ky2, double [] kx2, double f2) {
+            double [][] sx1 = spectrum1D(kx1, nw);
+            double [][] sy1 = spectrum1D(ky1, nh);
+            double [][] sx2 = spectrum1D(kx2, nw);
+            double [][] sy2 = spectrum1D(ky2, nh);
+            final double [] pre = new double[nw*nh];
+            final double [] pim = new double[nw*nh];
+            for(int v = 0; v < nh; v++) {
+                for(int u = 0; u < nw; u++) {
+                    final int i = v*nw + u;
+                    // K = f1.K1 + i.f2.K2
+                    final double k1r = f1 * (sx1[0][u]*sy1[0][v] - sx1[1][u]*sy1[1][v]);
+                    final double k1i = f1 * (sx1[0][u]*sy1[1][v] + sx1[1][u]*sy1[0][v]);
+                    final double k2r = f2 * (sx2[0][u]*sy2[0][v] - sx2[1][u]*sy2[1][v]);
+                    final double k2i = f2 * (sx2[0][u]*sy2[1][v] + sx2[1][u]*sy2[0][v]);
+                    final double kr = k1r - k2i;
+                    final double ki = k1i + k2r;
+                    pre[i] = re[i]*kr - im[i]*ki;
+                    pim[i] = re[i]*ki + im[i]*kr;
                 }
-                dst.setSample(x, y, 0, sum);
             }
+            fft.inverse(pre, pim);
+            double [][] res = new double[2][w*h];
+            for(int y = 0; y < h; y++) {
+                System.arraycopy(pre, y*nw, res[0], y*w, w);
+                System.arraycopy(pim, y*nw, res[1], y*w, w);
+            }
+            return res;
         }
         
-        return dst;
+        /**
+         * Spectrum of the 1D kernel for correlation : k(t) is placed at -t modulo n
+         * @return real and imaginary parts
+         */
+        private static double[][] spectrum1D(double [] kernel, int n) {
+            final int d = kernel.length / 2;
+            double [] kre = new double[n];
+            double [] kim = new double[n];
+            for(int t = -d; t <= d; t++) {
+                kre[(n - t) % n] = kernel[t+d];
+            }
+            new FFT2D(n, 1).forward(kre, kim);
+            return new double[][] {kre, kim};
+        }
     }
 }
@@ -16,135 +16,415 @@
  */
 package org.thema.fracgis.method.raster.multi;
 
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 import jwave.transforms.wavelets.Wavelet;
-import org.apache.commons.math3.exception.NoDataException;
-import org.apache.commons.math3.exception.NullArgumentException;
-import org.apache.commons.math3.util.FastMath;
-import org.apache.commons.math3.util.MathUtils;
+import org.thema.common.parallel.ParallelFExecutor;
+import org.thema.common.parallel.SimpleParallelTask;
+import org.thema.common.swing.TaskMonitor;
 
 /**
- *
+ * 2D discrete wavelet transform, in place.
+ * 
+ * The Haar wavelet (default) and the Haar and Daubechies 4 wavelets of jwave are computed with lifting steps
+ * and symmetric extension, so any size is supported. 
+ * The other jwave wavelets use the periodic convolution of jwave, an odd signal is first extended 
+ * symmetrically by one sample. One detail coefficient of the extended signal is not stored, 
+ * the one depending the most on the extension, and the inverse transform retrieves it from the symmetry of the extension.
+ * After one level, a signal of size n contains (n+1)/2 approximation coefficients followed by n/2 detail coefficients.
+ * For Daubechies 4, the detail computed on the odd sample i+1 is stored at i, and the detail of the first odd sample 
+ * is stored last, where jwave puts its periodic detail : the coefficients are the ones of jwave inside the signal.
+ * The longer Daubechies wavelets (Daubechies 20 for instance) have no lifting steps here.
+ * 
+ * The rows are processed in parallel and the columns in parallel by blocks, 
+ * each block being transposed in a buffer to be transformed as rows.
+ * 
  * @author Gilles Vuidel
  */
 public class DWT {
     
-    private double [] haarScaling = new double [] {0.5, 0.5};
-    private double [] haarWavelet = new double [] {0.5, -0.5};
+    /** number of columns processed together in the column pass */
+    private static final int BLOCK = 64;
+    
+    private static final double SQRT3 = Math.sqrt(3);
+    private static final double [] D4 = new double [] {
+        (1+SQRT3) / (4*Math.sqrt(2)), (3+SQRT3) / (4*Math.sqrt(2)), (3-SQRT3) / (4*Math.sqrt(2)), (1-SQRT3) / (4*Math.sqrt(2))
+    };
+    
+    /**
+     * One lifting step : target[i] += sum(coefs[k] * source[i+offset+k])
+     * where the target is the odd samples for a predict step, the even samples otherwise.
+     */
+    private static final class Step {
+        private final boolean predict;
+        private final int offset;
+        private final double [] coefs;
+
+        private Step(boolean predict, int offset, double ... coefs) {
+            this.predict = predict;
+            this.offset = offset;
+            this.coefs = coefs;
+        }
+    }
+    
     private Wavelet wavelet;
+    /** lifting steps, null if the wavelet is not computed by lifting */
+    private Step [] steps;
+    /** scaling of the approximation and detail coefficients after the lifting steps */
+    private double scaleApprox, scaleDetail;
+    /** shift of the detail coefficients relative to the odd samples */
+    private int delay;
 
+    /**
+     * Creates a DWT with the Haar wavelet normalized by 2
+     */
     public DWT() {
+        initHaar(0.5, 0.5);
     }
     
+    /**
+     * Creates a DWT with a jwave wavelet
+     * @param wavelet the wavelet
+     */
     public DWT(Wavelet wavelet) {
         this.wavelet = wavelet;
+        // get the filters of the wavelet from impulse responses
+        final int n = 8;
+        double [] scaling = new double[n];
+        double [] wav = new double[n];
+        for(int k = 0; k < n; k++) {
+            double [] impulse = new double[n];
+            impulse[k] = 1;
+            double [] res = wavelet.forward(impulse, n);
+            scaling[k] = res[0];
+            wav[k] = res[n/2];
+        }
+        if(isFilter(scaling, scaling[0], scaling[0]) && isFilter(wav, wav[0], -wav[0])) {
+            initHaar(scaling[0], wav[0]);
+        } else if(isFilter(scaling, D4[0], D4[1], D4[2], D4[3]) && isFilter(wav, D4[3], -D4[2], D4[1], -D4[0])) {
+            steps = new Step[] {
+                new Step(true, 0, -SQRT3),
+                new Step(false, 0, SQRT3/4, (SQRT3-2)/4),
+                new Step(true, -1, 1)
+            };
+            scaleApprox = (SQRT3+1) / Math.sqrt(2);
+            scaleDetail = -(SQRT3-1) / Math.sqrt(2);
+            delay = 1;
+        }
     }
     
-    public void FWT(double[] data) {
-        if(wavelet != null) {
-            System.arraycopy(wavelet.forward(data, data.length), 0, data, 0, data.length);
-            return;
-        } 
-        double[] temp = new double[data.length];
-
-        int h = data.length >> 1;
-        for (int i = 0; i < h; i++) {
-            int k = (i << 1);
-            temp[i] = data[k] * haarScaling[0] + data[k + 1] * haarScaling[1];
-            temp[i + h] = data[k] * haarWavelet[0] + data[k + 1] * haarWavelet[1];
+    private void initHaar(double scaling, double wav) {
+        steps = new Step[] {
+            new Step(true, 0, -1),
+            new Step(false, 0, 0.5)
+        };
+        scaleApprox = 2*scaling;
+        scaleDetail = -wav;
+    }
+    
+    private static boolean isFilter(double [] filter, double ... coefs) {
+        for(int i = 0; i < filter.length; i++) {
+            if(Math.abs(filter[i] - (i < coefs.length ? coefs[i] : 0)) > 1e-12) {
+                return false;
+            }
         }
-
-        System.arraycopy(temp, 0, data, 0, data.length);
+        return true;
+    }
+    
+    /**
+     * @return true if the wavelet is computed by lifting steps
+     */
+    public boolean isLifting() {
+        return steps != null;
+    }
+    
+    /**
+     * Forward transform in place of one signal
+     * @param data the signal
+     */
+    public void FWT(double[] data) {
+        forward(data, data.length, new double[data.length]);
     }
     
+    /**
+     * Inverse transform in place of one signal
+     * @param data the transformed signal
+     */
     public void IWT(double[] data) {
-        if(wavelet != null) {
-            System.arraycopy(wavelet.reverse(data, data.length), 0, data, 0, data.length);
-            return;
-        } 
-        
-        double[] temp = new double[data.length];
-
-        int h = data.length >> 1;
-        for (int i = 0; i < h; i++) {
-            int k = (i << 1);
-            temp[k] = (data[i] * haarScaling[0] + data[i + h] * haarWavelet[0]) / haarWavelet[0];
-            temp[k + 1] = (data[i] * haarScaling[1] + data[i + h] * haarWavelet[1]) / haarScaling[0];
-        }
-
-        System.arraycopy(temp, 0, data, 0, data.length);
+        inverse(data, data.length, new double[data.length]);
     }
     
+    /**
+     * Forward transform in place for several levels
+     * @param data the image by rows
+     * @param iterations the number of levels
+     */
     public void FWT(double[][] data, int iterations) {
         for (int k = 0; k < iterations; k++) {
-            FWT1(data, 0);
+            FWT1(data, k);
         }
     }
     
+    /**
+     * Forward transform in place of the approximation of level k
+     * @param data the image by rows, transformed until level k-1
+     * @param k the level starting at 0
+     */
     public void FWT1(double[][] data, int k) {
-        int rows = data.length;
-        int cols = data[0].length;
-
-        double[] row;
-        double[] col;
-
-        int lev = 1 << k;
-
-        int levCols = cols / lev;
-        int levRows = rows / lev;
-
-        row = new double[levCols];
-        for (int i = 0; i < levRows; i++) {
-            System.arraycopy(data[i], 0, row, 0, row.length);
-            FWT(row);
-            System.arraycopy(row, 0, data[i], 0, row.length);
-        }
-
-        col = new double[levRows];
-        for (int j = 0; j < levCols; j++) {
-            for (int i = 0; i < col.length; i++) {
-                col[i] = data[i][j];
-            }
-            FWT(col);
-            for (int i = 0; i < col.length; i++) {
-                data[i][j] = col[i];
-            }
-        }
+        int levRows = getLevelSize(data.length, k);
+        int levCols = getLevelSize(data[0].length, k);
+        transformRows(data, levRows, levCols, true);
+        transformCols(data, levRows, levCols, true);
     }
     
+    /**
+     * Inverse transform in place for several levels
+     * @param data the image transformed with iterations levels
+     * @param iterations the number of levels
+     */
     public void IWT(double[][] data, int iterations) {
         for (int k = iterations - 1; k >= 0; k--) {
             IWT1(data, k);
         }
     }
+    
+    /**
+     * Inverse transform in place of level k
+     * @param data the image transformed until level k
+     * @param k the level starting at 0
+     */
     public void IWT1(double[][] data, int k) {
-        int rows = data.length;
-        int cols = data[0].length;
-
-        double[] col;
-        double[] row;
-
-        int lev = 1 << k;
-
-        int levCols = cols / lev;
-        int levRows = rows / lev;
-
-        col = new double[levRows];
-        for (int j = 0; j < levCols; j++) {
-            for (int i = 0; i < col.length; i++) {
-                col[i] = data[i][j];
+        int levRows = getLevelSize(data.length, k);
+        int levCols = getLevelSize(data[0].length, k);
+        transformCols(data, levRows, levCols, false);
+        transformRows(data, levRows, levCols, false);
+    }
+    
+    /**
+     * @param size the size of the signal
+     * @param k the level
+     * @return the size of the approximation transformed at level k
+     */
+    public static int getLevelSize(int size, int k) {
+        for(int i = 0; i < k; i++) {
+            size = (size+1) / 2;
+        }
+        return size;
+    }
+    
+    private void transformRows(final double[][] data, final int rows, final int cols, final boolean forward) {
+        final int stripe = Math.max(1, 16384 / cols);
+        execute(new SimpleParallelTask.IterParallelTask((rows+stripe-1) / stripe, new TaskMonitor.EmptyMonitor()) {
+            @Override
+            protected void executeOne(Integer ind) {
+                double [] tmp = new double[cols];
+                for(int i = ind*stripe; i < Math.min(rows, (ind+1)*stripe); i++) {
+                    if(forward) {
+                        forward(data[i], cols, tmp);
+                    } else {
+                        inverse(data[i], cols, tmp);
+                    }
+                }
             }
-            IWT(col);
-            for (int i = 0; i < col.length; i++) {
-                data[i][j] = col[i];
+        });
+    }
+    
+    private void transformCols(final double[][] data, final int rows, final int cols, final boolean forward) {
+        execute(new SimpleParallelTask.IterParallelTask((cols+BLOCK-1) / BLOCK, new TaskMonitor.EmptyMonitor()) {
+            @Override
+            protected void executeOne(Integer ind) {
+                final int j1 = ind*BLOCK;
+                final int nb = Math.min(cols, j1+BLOCK) - j1;
+                final double [][] lines = new double[nb][rows];
+                final double [] tmp = new double[rows];
+                for(int i = 0; i < rows; i++) {
+                    final double [] row = data[i];
+                    for(int j = 0; j < nb; j++) {
+                        lines[j][i] = row[j1+j];
+                    }
+                }
+                for(int j = 0; j < nb; j++) {
+                    if(forward) {
+                        forward(lines[j], rows, tmp);
+                    } else {
+                        inverse(lines[j], rows, tmp);
+                    }
+                }
+                for(int i = 0; i < rows; i++) {
+                    final double [] row = data[i];
+                    for(int j = 0; j < nb; j++) {
+                        row[j1+j] = lines[j][i];
+                    }
+                }
             }
+        });
+    }
+    
+    /**
+     * Forward transform in place of the n first values of line
+     * @param line the signal
+     * @param n the size of the signal
+     * @param tmp a buffer of size n at least
+     */
+    private void forward(double [] line, int n, double [] tmp) {
+        if(n < 2) {
+            return;
         }
-
-        row = new double[levCols];
-        for (int i = 0; i < levRows; i++) {
-            System.arraycopy(data[i], 0, row, 0, row.length);
-            IWT(row);
-            System.arraycopy(row, 0, data[i], 0, row.length);
+        final int ns = (n+1) / 2;
+        if(steps == null) {
+            final int m = n + n % 2;
+            double [] ext = line;
+            if(m > n) {
+                ext = Arrays.copyOf(line, m);
+                ext[n] = line[n-2];
+            }
+            double [] res = wavelet.forward(ext, m);
+            System.arraycopy(res, 0, tmp, 0, ns);
+            if(m > n) {
+                final int drop = getDroppedDetail(getExtensionConstraint(m));
+                for(int i = m/2, k = ns; i < m; i++) {
+                    if(i != drop) {
+                        tmp[k++] = res[i];
+                    }
+                }
+            } else {
+                System.arraycopy(res, m/2, tmp, ns, n/2);
+            }
+        } else {
+            for(Step step : steps) {
+                lift(line, n, step, 1);
+            }
+            for(int i = 0; i < ns; i++) {
+                tmp[i] = line[2*i] * scaleApprox;
+            }
+            for(int i = 0; i < n/2; i++) {
+                tmp[ns+i] = line[2*((i+delay) % (n/2))+1] * scaleDetail;
+            }
+        }
+        System.arraycopy(tmp, 0, line, 0, n);
+    }
+    
+    /**
+     * Inverse transform in place of the n first values of line
+     * @param line the transformed signal
+     * @param n the size of the signal
+     * @param tmp a buffer of size n at least
+     */
+    private void inverse(double [] line, int n, double [] tmp) {
+        if(n < 2) {
+            return;
+        }
+        final int ns = (n+1) / 2;
+        if(steps == null) {
+            final int m = n + n % 2;
+            double [] coefs = new double[m];
+            System.arraycopy(line, 0, coefs, 0, ns);
+            if(m > n) {
+                final double [] constraint = getExtensionConstraint(m);
+                final int drop = getDroppedDetail(constraint);
+                double sum = 0;
+                for(int i = 0, k = 0; i < m; i++) {
+                    if(i >= m/2 && i != drop) {
+                        coefs[i] = line[ns + k++];
+                    }
+                    sum += constraint[i] * coefs[i];
+                }
+                coefs[drop] = -sum / constraint[drop];
+            } else {
+                System.arraycopy(line, ns, coefs, m/2, n/2);
+            }
+            System.arraycopy(wavelet.reverse(coefs, m), 0, line, 0, n);
+        } else {
+            for(int i = 0; i < ns; i++) {
+                tmp[2*i] = line[i] / scaleApprox;
+            }
+            for(int i = 0; i < n/2; i++) {
+                tmp[2*((i+delay) % (n/2))+1] = line[ns+i] / scaleDetail;
+            }
+            System.arraycopy(tmp, 0, line, 0, n);
+            for(int i = steps.length-1; i >= 0; i--) {
+                lift(line, n, steps[i], -1);
+            }
+        }
+    }
+    
+    /**
+     * The coefficients c of a signal of size m extended symmetrically by one sample 
+     * verify sum(constraint[i] * c[i]) = 0, the wavelet being orthogonal
+     * @param m the size of the extended signal
+     * @return the transform of the difference between the extension sample and its mirror
+     */
+    private double [] getExtensionConstraint(int m) {
+        double [] diff = new double[m];
+        diff[m-1] = 1;
+        diff[m-3] = -1;
+        return wavelet.forward(diff, m);
+    }
+    
+    /**
+     * @param constraint the extension constraint
+     * @return the index of the detail coefficient which is not stored for an odd signal
+     */
+    private static int getDroppedDetail(double [] constraint) {
+        int drop = constraint.length-1;
+        for(int i = constraint.length/2; i < constraint.length; i++) {
+            if(Math.abs(constraint[i]) > Math.abs(constraint[drop])) {
+                drop = i;
+            }
+        }
+        return drop;
+    }
+    
+    /**
+     * Applies a lifting step on the interleaved samples of line, with symmetric extension
+     * @param line the signal, even samples at 2i and odd samples at 2i+1
+     * @param n the size of the signal
+     * @param step the lifting step
+     * @param sign 1 for forward, -1 for inverse
+     */
+    private static void lift(double [] line, int n, Step step, int sign) {
+        final int nTarget = step.predict ? n/2 : (n+1)/2;
+        final int nSource = step.predict ? (n+1)/2 : n/2;
+        final int tOff = step.predict ? 1 : 0;
+        final int sOff = step.predict ? 0 : 1;
+        final double [] coefs = step.coefs;
+        for(int i = 0; i < nTarget; i++) {
+            final int start = i + step.offset;
+            double sum = 0;
+            if(start >= 0 && start + coefs.length <= nSource) {
+                for(int k = 0; k < coefs.length; k++) {
+                    sum += coefs[k] * line[2*(start+k) + sOff];
+                }
+            } else {
+                for(int k = 0; k < coefs.length; k++) {
+                    sum += coefs[k] * line[2*mirror(start+k, nSource, n, !step.predict) + sOff];
+                }
+            }
+            line[2*i + tOff] += sign * sum;
+        }
+    }
+    
+    /**
+     * Symmetric extension (whole sample) of the even or odd samples of a signal
+     * @param j the index in the even or odd samples
+     * @param len the number of even or odd samples
+     * @param n the size of the signal
+     * @param odd odd samples ?
+     * @return the index inside [0, len[
+     */
+    private static int mirror(int j, int len, int n, boolean odd) {
+        if(j < 0) {
+            j = odd ? -j-1 : -j;
+        } else if(j >= len) {
+            j = odd ? n-2-j : n-1-j;
+        }
+        return Math.max(0, Math.min(len-1, j));
+    }
+    
+    private static void execute(SimpleParallelTask task) {
+        new ParallelFExecutor(task).executeAndWait();
+        if(task.isCanceled()) {
+            throw new CancellationException();
         }
-
     }
 }
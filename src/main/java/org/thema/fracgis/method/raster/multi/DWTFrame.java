@@ -28,7 +28,7 @@ import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
-import jwave.transforms.wavelets.daubechies.Daubechies20;
+import jwave.transforms.wavelets.daubechies.Daubechies2;
 import org.thema.common.Config;
 import org.thema.common.Util;
 import org.thema.common.swing.TaskMonitor;
@@ -40,6 +40,10 @@ import org.thema.fracgis.estimation.MultiFracEstimationFrame;
 import org.thema.fracgis.sampling.DefaultSampling;
 
 /**
+ * Frame for testing the discrete wavelet transform level by level on an image.
+ * 
+ * It uses the Daubechies 4 wavelet which is computed by lifting with symmetric extension in {@link DWT}.
+ * The image is centered in an array of power of 2 size when it is loaded.
  *
  * @author gvuidel
  */
@@ -154,7 +158,7 @@ public class DWTFrame extends javax.swing.JFrame {
     }// </editor-fold>//GEN-END:initComponents
 
     private void forwardButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_forwardButtonActionPerformed
-        new DWT(new Daubechies20()).FWT1(img, iter++);
+        new DWT(new Daubechies2()).FWT1(img, iter++);
         WritableRaster r = Raster.createWritableRaster(new BandedSampleModel(
                 DataBuffer.TYPE_DOUBLE, img[0].length, img.length, 1), null);
         for(int i = 0; i < img.length; i++) {
@@ -195,7 +199,7 @@ public class DWTFrame extends javax.swing.JFrame {
     }//GEN-LAST:event_loadButtonActionPerformed
 
     private void inverseButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_inverseButtonActionPerformed
-        new DWT(new Daubechies20()).IWT1(img, --iter);
+        new DWT(new Daubechies2()).IWT1(img, --iter);
         WritableRaster r = Raster.createWritableRaster(new BandedSampleModel(
                 DataBuffer.TYPE_DOUBLE, img[0].length, img.length, 1), null);
         for(int i = 0; i < img.length; i++) {
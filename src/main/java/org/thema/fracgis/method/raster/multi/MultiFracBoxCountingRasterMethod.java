@@ -20,23 +20,22 @@
 package org.thema.fracgis.method.raster.multi;
 
 import org.thema.fracgis.method.QMonoMethod;
-import org.thema.fracgis.method.MultiFracMethod;
+import org.thema.fracgis.method.MultiFracSpectrumMethod;
 import com.vividsolutions.jts.geom.Envelope;
-import java.awt.image.ComponentSampleModel;
-import java.awt.image.DataBuffer;
+import java.awt.Rectangle;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
-import java.awt.image.WritableRaster;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
 import org.thema.common.ProgressBar;
+import org.thema.common.parallel.SimpleParallelTask;
 import org.thema.fracgis.method.MonoMethod;
+import org.thema.fracgis.method.PartitionCurves;
+import org.thema.fracgis.method.PartitionFunction;
 import org.thema.fracgis.method.raster.RasterMethod;
 import org.thema.fracgis.sampling.RasterBoxSampling;
 
@@ -45,13 +44,10 @@ import org.thema.fracgis.sampling.RasterBoxSampling;
  *
  * @author Gilles Vuidel
  */
-public class MultiFracBoxCountingRasterMethod extends RasterMethod implements MultiFracMethod {
+public class MultiFracBoxCountingRasterMethod extends RasterMethod implements MultiFracSpectrumMethod {
     
-    private List<WritableRaster> rasters;
-    private double total;
-    
-    private transient TreeMap<Double, TreeMap<Double, Double>> cacheCurves;
-    private transient List<Integer> sizes;
+    /** the curves of the partition function of the box masses for each size */
+    private PartitionCurves curves;
 
     /**
      * Creates a new multifractal box counting method for the given data
@@ -62,44 +58,185 @@ public class MultiFracBoxCountingRasterMethod extends RasterMethod implements Mu
      */
     public MultiFracBoxCountingRasterMethod(String inputName, RasterBoxSampling sampling, RenderedImage img, Envelope env) {
         super(inputName, sampling, img, env);
-        
-        this.cacheCurves = new TreeMap<>();
     }
 
+    /**
+     * The masses are aggregated in a pyramid : a level is obtained by summing blocks of a finer level whose size divides its size,
+     * the levels which are not a multiple of a smaller level are all built in the only pass over the image.
+     * The size 1 is never stored as a level : the histogram of the pixel values is filled during this pass.
+     * The levels are stored in double precision and reduced to the partition function at the end.
+     */
     @Override
     public void execute(ProgressBar monitor, boolean parallel) {
-        monitor.setMaximum(getImg().getHeight());
-        rasters = new ArrayList<>();
-        sizes = new ArrayList<>(getSampling().getDiscreteValues());
+        monitor.setMaximum(100);
+        List<Integer> sizes = new ArrayList<>(getSampling().getDiscreteValues());
+        boolean unit = sizes.get(0) == 1;
+        if(unit) {
+            sizes.remove(0);
+        }
+        // the levels built from the image
+        List<Integer> direct = new ArrayList<>();
+        for(int i = 0; i < sizes.size(); i++) {
+            if(getSourceSize(sizes.subList(0, i), sizes.get(i)) == 0) {
+                direct.add(sizes.get(i));
+            }
+        }
+        
+        PartitionFunction.Histogram unitMasses = unit ? new PartitionFunction.Histogram() : null;
+        TreeMap<Integer, double[]> pyramid = new TreeMap<>();
+        double total = readImage(direct, unitMasses, pyramid, parallel, monitor.getSubProgress(70));
         for(int size : sizes) {
-            int w = (int)Math.ceil(getImg().getWidth() / (double)size);
-            rasters.add(Raster.createWritableRaster(new ComponentSampleModel(DataBuffer.TYPE_FLOAT,
-                    w, (int)Math.ceil(getImg().getHeight() / (double)size), 1, w, new int[]{0}), null));
+            if(!pyramid.containsKey(size)) {
+                int src = getSourceSize(pyramid.headMap(size).keySet(), size);
+                pyramid.put(size, reduce(pyramid.get(src), src, size, parallel, monitor.getSubProgress(30.0 / sizes.size())));
+            }
         }
-
-        RandomIter iter = RandomIterFactory.create(getImg(), null);
         
-        total = 0;
-        for(int y = 0; y < getImg().getHeight(); y++) {
-            for(int x = 0; x < getImg().getWidth(); x++) {
-                final double val = iter.getSampleDouble(x, y, 0);
-                if(val < 0) {
-                    throw new RuntimeException("Negative value not permitted");
+        // all levels are built, they can be sorted
+        PartitionFunction partition = new PartitionFunction(total);
+        if(unit) {
+            partition.addScale(getResolution(), unitMasses);
+        }
+        for(int size : sizes) {
+            partition.addScale(getResolution()*size, pyramid.get(size));
+        }
+        curves = new PartitionCurves(partition);
+    }
+    
+    /**
+     * @param levels the sizes of the levels already built, in increasing order
+     * @param size the size of the new level
+     * @return the largest level size which divides size, or 0 if none
+     */
+    private static int getSourceSize(Collection<Integer> levels, int size) {
+        int src = 0;
+        for(int s : levels) {
+            if(size % s == 0) {
+                src = s;
+            }
+        }
+        return src;
+    }
+    
+    /**
+     * Reads the image once, in parallel by stripes of rows : fills the histogram of the pixel values
+     * and sums the values by blocks of size x size for each size of direct.
+     * Each stripe sums its own part of the levels, which is added to the levels at the end of the stripe,
+     * because the blocks may overlap 2 stripes.
+     * NaN values are ignored.
+     * @param direct the sizes of the levels to build
+     * @param unitMasses the histogram of the pixel values to fill, may be null
+     * @param pyramid the map filled with the level of each size of direct
+     * @return the sum of the image values
+     * @throws RuntimeException if the image contains negative values
+     */
+    private double readImage(final List<Integer> direct, final PartitionFunction.Histogram unitMasses, 
+            Map<Integer, double[]> pyramid, boolean parallel, ProgressBar monitor) {
+        final int width = getImg().getWidth();
+        final int height = getImg().getHeight();
+        final int nbLevel = direct.size();
+        final int [] sizes = new int[nbLevel];
+        final int [] widths = new int[nbLevel];
+        final double [][] levels = new double[nbLevel][];
+        for(int i = 0; i < nbLevel; i++) {
+            sizes[i] = direct.get(i);
+            widths[i] = getLevelWidth(sizes[i]);
+            levels[i] = new double[widths[i]*getLevelHeight(sizes[i])];
+            pyramid.put(sizes[i], levels[i]);
+        }
+        final double [] total = new double[1];
+        final int stripe = 64;
+        executeTask(new SimpleParallelTask.IterParallelTask((height+stripe-1) / stripe, monitor) {
+            @Override
+            protected void executeOne(Integer ind) {
+                final int y1 = ind*stripe;
+                final int y2 = Math.min(height, y1+stripe);
+                final Raster data = getImg().getData(new Rectangle(0, y1, width, y2-y1));
+                final double [] row = new double[width];
+                final double [][] parts = new double[nbLevel][];
+                for(int i = 0; i < nbLevel; i++) {
+                    parts[i] = new double[((y2-1) / sizes[i] - y1 / sizes[i] + 1) * widths[i]];
+                }
+                final PartitionFunction.Histogram histo = unitMasses != null ? new PartitionFunction.Histogram() : null;
+                double sum = 0;
+                for(int y = y1; y < y2; y++) {
+                    data.getSamples(0, y, width, 1, 0, row);
+                    for(int x = 0; x < width; x++) {
+                        final double val = row[x];
+                        if(val < 0) {
+                            throw new RuntimeException("Negative value not permitted");
+                        }
+                        if(Double.isNaN(val)) {
+                            continue;
+                        }
+                        sum += val;
+                        if(histo != null) {
+                            histo.add(val);
+                        }
+                        for(int i = 0; i < nbLevel; i++) {
+                            parts[i][(y / sizes[i] - y1 / sizes[i]) * widths[i] + x / sizes[i]] += val;
+                        }
+                    }
                 }
-                if(Double.isNaN(val)) {
-                    continue;
-                }     
-                for(int i = 0; i < sizes.size(); i++) {
-                    final double size = sizes.get(i);
-                    final int xi = (int)(x / size);
-                    final int yi = (int)(y / size);
-                    rasters.get(i).setSample(xi, yi, 0, 
-                            rasters.get(i).getSampleFloat(xi, yi, 0) + val);
+                synchronized(levels) {
+                    total[0] += sum;
+                    if(histo != null) {
+                        unitMasses.addAll(histo);
+                    }
+                    for(int i = 0; i < nbLevel; i++) {
+                        final int off = y1 / sizes[i] * widths[i];
+                        for(int j = 0; j < parts[i].length; j++) {
+                            levels[i][off+j] += parts[i][j];
+                        }
+                    }
                 }
-                total += val;
             }
-            monitor.incProgress(1);
-        }
+        }, parallel);
+        return total[0];
+    }
+    
+    /**
+     * Sums the blocks of a finer level, in parallel by stripes of rows
+     * @param src the finer level
+     * @param srcSize the size of the finer level, must divide size
+     * @param size the size of the new level
+     * @return the new level
+     */
+    private double[] reduce(final double [] src, int srcSize, int size, boolean parallel, ProgressBar monitor) {
+        final int k = size / srcSize;
+        final int sw = getLevelWidth(srcSize);
+        final int sh = getLevelHeight(srcSize);
+        final int w = getLevelWidth(size);
+        final int h = getLevelHeight(size);
+        final double [] dest = new double[w*h];
+        final int stripe = Math.max(1, 256 / k);
+        executeTask(new SimpleParallelTask.IterParallelTask((h+stripe-1) / stripe, monitor) {
+            @Override
+            protected void executeOne(Integer ind) {
+                for(int y = ind*stripe; y < Math.min(h, (ind+1)*stripe); y++) {
+                    for(int sy = y*k; sy < Math.min(sh, (y+1)*k); sy++) {
+                        final int off = sy*sw;
+                        for(int x = 0; x < w; x++) {
+                            final int end = Math.min(sw, (x+1)*k);
+                            double sum = 0;
+                            for(int sx = x*k; sx < end; sx++) {
+                                sum += src[off+sx];
+                            }
+                            dest[y*w+x] += sum;
+                        }
+                    }
+                }
+            }
+        }, parallel);
+        return dest;
+    }
+    
+    private int getLevelWidth(int size) {
+        return (getImg().getWidth() + size - 1) / size;
+    }
+    
+    private int getLevelHeight(int size) {
+        return (getImg().getHeight() + size - 1) / size;
     }
     
     @Override
@@ -108,56 +245,23 @@ public class MultiFracBoxCountingRasterMethod extends RasterMethod implements Mu
     }
     
     @Override
-    public synchronized TreeMap<Double, Double> getCurve(double q) {
-        if(!cacheCurves.containsKey(q)) {
-            calcCurves(Collections.singleton(q));
-        }
-        return cacheCurves.get(q);
+    public TreeMap<Double, Double> getCurve(double q) {
+        return curves.getCurve(q);
     }
     
     @Override
     public TreeMap<Double, TreeMap<Double, Double>> getCurves(TreeSet<Double> qs) {
-        calcCurves(qs);
-        TreeMap<Double, TreeMap<Double, Double>> curves = new TreeMap<>();
-        for(Double q : qs) {
-            curves.put(q, cacheCurves.get(q));
-        }
-        return curves;
+        return curves.getCurves(qs);
     }
     
-    private void calcCurves(Set<Double> qSet) {
-        List<Double> qList = new ArrayList<>();
-        for(Double q : qSet) {
-            if(!cacheCurves.containsKey(q)) {
-                qList.add(q);
-                cacheCurves.put(q, new TreeMap<Double, Double>());
-            }
-        }
-        for(int i = 0; i < rasters.size(); i++) {
-            DataBuffer buf = rasters.get(i).getDataBuffer();
-            double [] sum = new double[qList.size()];
-            for(int j = 0; j < buf.getSize(); j++)  {
-                float val = buf.getElemFloat(j);
-                if(val > 0) {
-                    for(int k = 0; k < sum.length; k++) {
-                        double q = qList.get(k);
-                        if(q == 1) { // information dimension D1
-                            sum[k] += val / total * Math.log(val / total);
-                        } else {
-                            sum[k] += Math.pow(val / total, q);
-                        }
-                    }
-                }
-            }
-            for(int k = 0; k < sum.length; k++) {
-                double q = qList.get(k);
-                if(q == 1) { // information dimension D1
-                    cacheCurves.get(q).put(getResolution()*sizes.get(i), Math.exp(sum[k]));
-                } else {
-                    cacheCurves.get(q).put(getResolution()*sizes.get(i), sum[k]);
-                }
-            }
-        }  
+    @Override
+    public TreeMap<Double, TreeMap<Double, Double>> getAlphaCurves(TreeSet<Double> qs) {
+        return curves.getAlphaCurves(qs);
+    }
+    
+    @Override
+    public TreeMap<Double, TreeMap<Double, Double>> getFCurves(TreeSet<Double> qs) {
+        return curves.getFCurves(qs);
     }
 
     @Override
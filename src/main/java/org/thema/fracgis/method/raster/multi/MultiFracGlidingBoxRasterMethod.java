@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method.raster.multi;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.thema.common.ProgressBar;
+import org.thema.common.parallel.SimpleParallelTask;
+import org.thema.fracgis.method.MonoMethod;
+import org.thema.fracgis.method.MultiFracSpectrumMethod;
+import org.thema.fracgis.method.PartitionCurves;
+import org.thema.fracgis.method.PartitionFunction;
+import org.thema.fracgis.method.QMonoMethod;
+import org.thema.fracgis.method.raster.RasterMethod;
+import org.thema.fracgis.sampling.RasterBoxSampling;
+
+/**
+ * Multifractal analysis with gliding boxes and raster data.
+ *
+ * For each size s, the box is moved over all positions of the image (or every stride pixels)
+ * and the mass of each box is given by 4 lookups in a summed-area table.
+ * The sum of mu^q over the boxes is rescaled by the number of non overlapping boxes (W*H/s^2)
+ * divided by the number of gliding boxes, to be comparable with the fixed grid box counting.
+ * The sizes larger than the width or the height of the image are ignored (with a warning) :
+ * no box of these sizes fits in the image.
+ *
+ * @author Gilles Vuidel
+ */
+public class MultiFracGlidingBoxRasterMethod extends RasterMethod implements MultiFracSpectrumMethod {
+
+    private int stride = 1;
+
+    /** the curves of the partition function of the box masses for each size */
+    private PartitionCurves curves;
+
+    /**
+     * Creates a new multifractal gliding box method for the given data
+     * @param inputName input layer name (must be a raster layer)
+     * @param sampling scale sampling
+     * @param img raster input data
+     * @param env envelope of the raster in world coordinate
+     */
+    public MultiFracGlidingBoxRasterMethod(String inputName, RasterBoxSampling sampling, RenderedImage img, Envelope env) {
+        this(inputName, sampling, img, env, 1);
+    }
+
+    /**
+     * Creates a new multifractal gliding box method for the given data
+     * @param inputName input layer name (must be a raster layer)
+     * @param sampling scale sampling
+     * @param img raster input data
+     * @param env envelope of the raster in world coordinate
+     * @param stride the box is moved by stride pixels, 1 for all positions
+     */
+    public MultiFracGlidingBoxRasterMethod(String inputName, RasterBoxSampling sampling, RenderedImage img, Envelope env, int stride) {
+        super(inputName, sampling, img, env);
+        this.stride = stride < 1 ? 1 : stride;
+    }
+
+    /**
+     * The summed-area tables of the values and of the number of non zero pixels are built in parallel,
+     * then the box masses of each size are computed in parallel by rows of boxes 
+     * and added to the histogram of the distinct masses, without storing the mass of each box.
+     * A box without non zero pixel has a null mass, whatever the rounding errors of the summed-area table.
+     * @throws RuntimeException if the image contains negative values
+     */
+    @Override
+    public void execute(ProgressBar monitor, boolean parallel) {
+        final int width = getImg().getWidth();
+        final int height = getImg().getHeight();
+        final int w = width+1;
+        if((long)w*(height+1) > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Raster is too large for gliding box");
+        }
+        monitor.setMaximum(100);
+        final double [] sum = new double[w*(height+1)];
+        final int [] count = new int[w*(height+1)];
+
+        // first pass : cumulates the rows
+        final int stripe = 64;
+        executeTask(new SimpleParallelTask.IterParallelTask((height+stripe-1) / stripe, monitor.getSubProgress(20)) {
+            @Override
+            protected void executeOne(Integer ind) {
+                final int y1 = ind*stripe;
+                final int y2 = Math.min(height, y1+stripe);
+                final Raster data = getImg().getData(new Rectangle(0, y1, width, y2-y1));
+                final double [] row = new double[width];
+                for(int y = y1; y < y2; y++) {
+                    data.getSamples(0, y, width, 1, 0, row);
+                    int ind1 = (y+1)*w + 1;
+                    double acc = 0;
+                    int nb = 0;
+                    for(int x = 0; x < width; x++) {
+                        final double val = row[x];
+                        if(val < 0) {
+                            throw new RuntimeException("Negative value not permitted");
+                        }
+                        if(val > 0) {
+                            acc += val;
+                            nb++;
+                        }
+                        sum[ind1] = acc;
+                        count[ind1] = nb;
+                        ind1++;
+                    }
+                }
+            }
+        }, parallel);
+        // second pass : cumulates the columns
+        final int nbCol = Math.min(width, 64);
+        executeTask(new SimpleParallelTask.IterParallelTask(nbCol, monitor.getSubProgress(10)) {
+            @Override
+            protected void executeOne(Integer i) {
+                final int x1 = 1 + i*width/nbCol;
+                final int x2 = 1 + (i+1)*width/nbCol;
+                for(int y = 2; y <= height; y++) {
+                    final int off = y*w;
+                    for(int x = x1; x < x2; x++) {
+                        sum[off+x] += sum[off+x-w];
+                        count[off+x] += count[off+x-w];
+                    }
+                }
+            }
+        }, parallel);
+
+        final double total = sum[w*(height+1) - 1];
+        PartitionFunction partition = new PartitionFunction(total);
+        List<Integer> sizes = new ArrayList<>();
+        for(int s : getSampling().getDiscreteValues()) {
+            if(s > width || s > height) {
+                Logger.getLogger(MultiFracGlidingBoxRasterMethod.class.getName()).log(Level.WARNING, 
+                        "Box size {0} is larger than the image, it is ignored", s);
+            } else {
+                sizes.add(s);
+            }
+        }
+        for(final int s : sizes) {
+            final int nx = (width-s) / stride + 1;
+            final int ny = (height-s) / stride + 1;
+            final PartitionFunction.Histogram masses = new PartitionFunction.Histogram();
+            executeTask(new SimpleParallelTask.IterParallelTask(ny, monitor.getSubProgress(70.0 / sizes.size())) {
+                @Override
+                protected void executeOne(Integer j) {
+                    final int i1 = j*stride*w;
+                    final int i2 = i1 + s*w;
+                    final PartitionFunction.Histogram rowMasses = new PartitionFunction.Histogram();
+                    for(int i = 0; i < nx; i++) {
+                        final int x = i*stride;
+                        if(count[i2+x+s] - count[i1+x+s] - count[i2+x] + count[i1+x] > 0) {
+                            rowMasses.add(sum[i2+x+s] - sum[i1+x+s] - sum[i2+x] + sum[i1+x]);
+                        }
+                    }
+                    synchronized(masses) {
+                        masses.addAll(rowMasses);
+                    }
+                }
+            }, parallel);
+            partition.addScale(getResolution()*s, masses, (double)width*height / ((double)s*s) / ((double)nx*ny));
+        }
+        curves = new PartitionCurves(partition);
+    }
+
+    @Override
+    public MonoMethod getSimpleMethod(final double q) {
+        return new QMonoMethod(this, q);
+    }
+
+    @Override
+    public TreeMap<Double, Double> getCurve(double q) {
+        return curves.getCurve(q);
+    }
+    
+    @Override
+    public TreeMap<Double, TreeMap<Double, Double>> getCurves(TreeSet<Double> qs) {
+        return curves.getCurves(qs);
+    }
+    
+    @Override
+    public TreeMap<Double, TreeMap<Double, Double>> getAlphaCurves(TreeSet<Double> qs) {
+        return curves.getAlphaCurves(qs);
+    }
+    
+    @Override
+    public TreeMap<Double, TreeMap<Double, Double>> getFCurves(TreeSet<Double> qs) {
+        return curves.getFCurves(qs);
+    }
+
+    @Override
+    public int getDimSign() {
+        return -1;
+    }
+
+    @Override
+    public String getName() {
+        return "MultiFractal gliding box";
+    }
+
+    @Override
+    public String getParamString() {
+        if(stride == 1) {
+            return super.getParamString();
+        }
+        return super.getParamString() + String.format(Locale.US, "_stride%d", stride);
+    }
+}
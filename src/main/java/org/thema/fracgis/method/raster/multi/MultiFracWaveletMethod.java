@@ -20,6 +20,8 @@
 package org.thema.fracgis.method.raster.multi;
 
 import com.vividsolutions.jts.geom.Envelope;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -27,14 +29,13 @@ import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartFrame;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.data.xy.XYSeries;
 import org.jfree.data.xy.XYSeriesCollection;
 import org.thema.common.ProgressBar;
+import org.thema.common.swing.TaskMonitor;
 import org.thema.fracgis.method.MonoMethod;
 import org.thema.fracgis.method.MultiFracMethod;
 import org.thema.fracgis.method.QMonoMethod;
@@ -49,6 +50,13 @@ import org.thema.fracgis.sampling.DefaultSampling;
  */
 public class MultiFracWaveletMethod extends RasterMethod implements MultiFracMethod {
 
+    /** default size of the tiles when the image does not fit in memory */
+    public static final int DEFAULT_TILE_SIZE = 1024;
+    
+    /** size of the tiles, 0 for automatic */
+    private int tileSize = 0;
+    
+    /** leaders of the whole image, null if the leaders are calculated by tiles */
     private transient List<WLBMF.Struct> leaders;
     private transient TreeMap<Double, TreeMap<Double, Double>> cacheCurves;
     
@@ -64,16 +72,57 @@ public class MultiFracWaveletMethod extends RasterMethod implements MultiFracMet
         this.cacheCurves = new TreeMap<>();
     }
 
+    /**
+     * Forces the calculation of the leaders by tiles
+     * @param tileSize the size of the tiles, 0 for automatic
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+    
+    /**
+     * @return true if the leaders are calculated by tiles, because tileSize is set 
+     * or because the image does not fit in memory
+     */
+    public boolean isTiled() {
+        if(tileSize > 0) {
+            return true;
+        }
+        Runtime rt = Runtime.getRuntime();
+        long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        // the image, the scratch buffers, the coefficients and the leaders of the first scale
+        return 5L * 8 * getImg().getWidth() * getImg().getHeight() > available * 8 / 10;
+    }
+    
+    /**
+     * If the image does not fit in memory, the image is processed by tiles and the curves 
+     * are calculated for the q of the default range [-5, 5] by step 0.5. 
+     * The image will be processed again for other q.
+     */
     @Override
     public void execute(ProgressBar monitor, boolean threaded) {
-        double [][] data = new double[getImg().getHeight()][getImg().getWidth()];
-        RandomIter iter = RandomIterFactory.create(getImg(), null);
-        for(int i = 0; i < data.length; i++) {
-            for(int j = 0; j < data[0].length; j++) {
-                data[i][j] = iter.getSampleDouble(j, i, 0);
+        cacheCurves = new TreeMap<>();
+        if(isTiled()) {
+            leaders = null;
+            Set<Double> qs = new TreeSet<>();
+            for(int q = -10; q <= 10; q++) {
+                qs.add(q / 2.0);
             }
+            calcCurves(qs, monitor);
+            return;
+        }
+        final int width = getImg().getWidth();
+        final int height = getImg().getHeight();
+        double [] data = new double[width*height];
+        // read by stripes to avoid a copy of the whole image
+        final int stripe = Math.max(1, 65536 / width);
+        for(int y = 0; y < height; y += stripe) {
+            int h = Math.min(stripe, height-y);
+            Raster r = getImg().getData(new Rectangle(getImg().getMinX(), getImg().getMinY()+y, width, h));
+            double [] buf = r.getSamples(r.getMinX(), r.getMinY(), width, h, 0, (double[])null);
+            System.arraycopy(buf, 0, data, y*width, buf.length);
         }
-        leaders = new WLBMF().DxLx2d(data, 3, 0.7);
+        leaders = new WLBMF(threaded).DxLx2d(data, width, height, 3, 0.7);
     }
 
     @Override
@@ -84,14 +133,14 @@ public class MultiFracWaveletMethod extends RasterMethod implements MultiFracMet
     @Override
     public synchronized TreeMap<Double, Double> getCurve(double q) {
         if(!cacheCurves.containsKey(q)) {
-            calcCurves(Collections.singleton(q));
+            calcCurves(Collections.singleton(q), new TaskMonitor.EmptyMonitor());
         }
         return cacheCurves.get(q);
     }
     
     @Override
-    public TreeMap<Double, TreeMap<Double, Double>> getCurves(TreeSet<Double> qs) {
-        calcCurves(qs);
+    public synchronized TreeMap<Double, TreeMap<Double, Double>> getCurves(TreeSet<Double> qs) {
+        calcCurves(qs, new TaskMonitor.EmptyMonitor());
         TreeMap<Double, TreeMap<Double, Double>> curves = new TreeMap<>();
         for(Double q : qs) {
             curves.put(q, cacheCurves.get(q));
@@ -99,7 +148,7 @@ public class MultiFracWaveletMethod extends RasterMethod implements MultiFracMet
         return curves;
     }
     
-    private void calcCurves(Set<Double> qSet) {
+    private void calcCurves(Set<Double> qSet, ProgressBar monitor) {
         List<Double> qList = new ArrayList<>();
         for(Double q : qSet) {
             if(!cacheCurves.containsKey(q)) {
@@ -107,38 +156,37 @@ public class MultiFracWaveletMethod extends RasterMethod implements MultiFracMet
                 cacheCurves.put(q, new TreeMap<Double, Double>());
             }
         }
-        XYSeriesCollection series = new XYSeriesCollection();
-        for(int i = 0; i < leaders.size(); i++) {
-            double [] v = leaders.get(i).getVectorMax();
-            double [] sum = new double[qList.size()];
-            for(int j = 0; j < v.length; j++)  {
-                double val = v[j];
-                if(val > 1e-15) {
-                    for(int k = 0; k < sum.length; k++) {
-                        sum[k] += Math.pow(val, qList.get(k));
-                    }
-                }
-            }
-            double [] Dq = new double[qList.size()];
-            double [] hq = new double[qList.size()];
-            for(int j = 0; j < v.length; j++)  {
-                double val = v[j];
-                if(val > 1e-15) {
-                    for(int k = 0; k < sum.length; k++) {
-                        double vq = Math.pow(val, qList.get(k));
-                        Dq[k] += vq * Math.log(vq / sum[k]) / Math.log(2);
-                        hq[k] += vq * Math.log(val) / Math.log(2);
-                    }
-                }
-            }
-            
-            for(int k = 0; k < sum.length; k++) {
-                cacheCurves.get(qList.get(k)).put(getResolution()*Math.pow(2, i+1), sum[k] / v.length);
+        if(qList.isEmpty()) {
+            return;
+        }
+        double [] qs = new double[qList.size()];
+        for(int k = 0; k < qs.length; k++) {
+            qs[k] = qList.get(k);
+        }
+        List<WLBMF.Stats> stats;
+        if(leaders != null) {
+            stats = new ArrayList<>();
+            for(WLBMF.Struct s : leaders) {
+                WLBMF.Stats st = new WLBMF.Stats(qs);
+                st.add(s);
+                stats.add(st);
             }
+        } else {
+            stats = new WLBMF().getStats(getImg(), tileSize > 0 ? tileSize : DEFAULT_TILE_SIZE, 3, 0.7, qs, monitor);
+        }
+        
+        XYSeriesCollection series = new XYSeriesCollection();
+        for(int i = 0; i < stats.size(); i++) {
+            WLBMF.Stats st = stats.get(i);
+            final int n = st.getNb();
             XYSeries serie = new XYSeries("j" + (i+1));
-            for(int k = 0; k < sum.length; k++) {
-                serie.add(hq[k] / sum[k], Dq[k] / sum[k] + Math.log(v.length) / Math.log(2));
-                //serie.add((double)qList.get(k), Dq[k] / sum[k] + Math.log(v.length) / Math.log(2));
+            for(int k = 0; k < qs.length; k++) {
+                double sum = st.getSum(k);
+                cacheCurves.get(qList.get(k)).put(getResolution()*Math.pow(2, i+1), sum / n);
+                // sum(L^q * log(L^q / sum)) and sum(L^q * log(L)) in base 2
+                double Dq = (qs[k] * st.getLogSum(k) - sum * Math.log(sum)) / Math.log(2);
+                double hq = st.getLogSum(k) / Math.log(2);
+                serie.add(hq / sum, Dq / sum + Math.log(n) / Math.log(2));
             }
             series.addSeries(serie);
         }  
@@ -19,76 +19,226 @@
 
 package org.thema.fracgis.method.raster.multi;
 
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import org.apache.commons.math3.linear.DefaultRealMatrixChangingVisitor;
+import java.util.concurrent.CancellationException;
 import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.util.MathArrays;
+import org.thema.common.ProgressBar;
+import org.thema.common.parallel.ParallelFExecutor;
+import org.thema.common.parallel.SimpleParallelTask;
+import org.thema.common.swing.TaskMonitor;
 
 /**
  * Wavelet Leader and Bootstrap based MultiFractal analysis.
  * Code is based on Matlab WLBMF toolbox written by Herwig Wendt
+ * 
+ * The coefficients are stored in flat row-major arrays.
+ * For each scale, the row pass (in parallel by rows) computes only the subsampled columns 
+ * in two scratch buffers allocated once, and the column pass (in parallel by blocks of columns) 
+ * computes only the subsampled rows. The leaders are then calculated in place.
  *
  * @author Gilles Vuidel
  */
 public class WLBMF {
     
+    /** number of columns processed together in the column pass */
+    private static final int BLOCK = 256;
+    /** number of scales calculated by tiles in {@link #getStats } */
+    private static final int TILE_SCALES = 5;
+    
     public static class Struct {
-        RealMatrix allx, ally, allxy;
+        /** row-major arrays of nRow x nCol coefficients */
+        final double [] allx, ally, allxy;
+        final int nRow, nCol;
         private int i1, j1, i2, j2;
         int W;
 
         public Struct(RealMatrix allx, RealMatrix ally, RealMatrix allxy) {
+            this(toArray(allx), toArray(ally), toArray(allxy), allx.getRowDimension(), allx.getColumnDimension());
+        }
+        
+        Struct(double [] allx, double [] ally, double [] allxy, int nRow, int nCol) {
             this.allx = allx;
             this.ally = ally;
             this.allxy = allxy;
+            this.nRow = nRow;
+            this.nCol = nCol;
             
-            i1 = Collections.min(Arrays.asList(getMinRowNaN(allx), getMinRowNaN(ally), getMinRowNaN(allxy)));
-            j1 = Collections.min(Arrays.asList(getMinColNaN(allx), getMinColNaN(ally), getMinColNaN(allxy)));
-            i2 = Collections.max(Arrays.asList(getMaxRowNaN(allx), getMaxRowNaN(ally), getMaxRowNaN(allxy)));
-            j2 = Collections.max(Arrays.asList(getMaxColNaN(allx), getMaxColNaN(ally), getMaxColNaN(allxy)));
+            // bounding box of the non NaN values
+            i1 = nRow; j1 = nCol; i2 = -1; j2 = -1;
+            for(int i = 0; i < nRow; i++) {
+                for(int j = 0; j < nCol; j++) {
+                    final int ind = i*nCol + j;
+                    if(!Double.isNaN(allx[ind]) || !Double.isNaN(ally[ind]) || !Double.isNaN(allxy[ind])) {
+                        i1 = Math.min(i1, i);
+                        i2 = i;
+                        j1 = Math.min(j1, j);
+                        j2 = Math.max(j2, j);
+                    }
+                }
+            }
             W = 3 * (i2-i1+1) * (j2-j1+1);
-            
         }
         
         public RealMatrix getX() {
-            return allx.getSubMatrix(i1, i2, j1, j2);
+            return getSubMatrix(allx);
         }
         public RealMatrix getY() {
-            return ally.getSubMatrix(i1, i2, j1, j2);
+            return getSubMatrix(ally);
         }
         public RealMatrix getXY() {
-            return allxy.getSubMatrix(i1, i2, j1, j2);
+            return getSubMatrix(allxy);
         }
         
         public double[] getVectorMax() {
-            RealMatrix x = getX();
-            RealMatrix y = getY();
-            RealMatrix xy = getXY();
-            double [] max = new double[x.getRowDimension()*x.getColumnDimension()];
+            double [] max = new double[(i2-i1+1)*(j2-j1+1)];
             int ind = 0;
-            for(int i = 0; i < x.getRowDimension(); i++) {
-                for(int j = 0; j < x.getColumnDimension(); j++) {
-                    max[ind++] = Math.max(x.getEntry(i, j), Math.max(y.getEntry(i, j), xy.getEntry(i, j)));
+            for(int i = i1; i <= i2; i++) {
+                for(int j = j1; j <= j2; j++) {
+                    final int k = i*nCol + j;
+                    max[ind++] = Math.max(allx[k], Math.max(ally[k], allxy[k]));
                 }
             }
             return max;
         }
 
         public boolean isEmpty() {
-            return i1 == -1 || j1 == -1 || i2 == -1 || j2 == -1;
+            return i2 == -1 || j2 == -1;
+        }
+        
+        private double[] getArray(int i) {
+            return i == 0 ? allx : i == 1 ? ally : allxy;
+        }
+        
+        private RealMatrix getSubMatrix(double [] a) {
+            double [][] m = new double[i2-i1+1][j2-j1+1];
+            for(int i = i1; i <= i2; i++) {
+                System.arraycopy(a, i*nCol+j1, m[i-i1], 0, j2-j1+1);
+            }
+            return MatrixUtils.createRealMatrix(m);
+        }
+        
+        private static double[] toArray(RealMatrix m) {
+            final int nCol = m.getColumnDimension();
+            double [] a = new double[m.getRowDimension()*nCol];
+            for(int i = 0; i < m.getRowDimension(); i++) {
+                System.arraycopy(m.getRow(i), 0, a, i*nCol, nCol);
+            }
+            return a;
         }
     }
     
+    /**
+     * Statistics of the leaders of one scale for a set of q : the sums of L^q and L^q*log(L) 
+     * where L is the max of the 3 leaders of a position and L > 1e-15,
+     * and the number of positions in the bounding box of the non NaN leaders.
+     */
+    public static class Stats {
+        private final double [] qs;
+        private final double [] sums, logSums;
+        private int i1, j1, i2, j2;
+
+        /**
+         * Creates empty statistics
+         * @param qs the q moments
+         */
+        public Stats(double [] qs) {
+            this.qs = qs;
+            sums = new double[qs.length];
+            logSums = new double[qs.length];
+            i1 = j1 = Integer.MAX_VALUE;
+            i2 = j2 = -1;
+        }
+        
+        /**
+         * Adds all the leaders of s
+         * @param s the leaders of the scale
+         */
+        public void add(Struct s) {
+            add(s, 0, s.nRow, 0, s.nCol, 0, 0);
+        }
+        
+        /**
+         * Adds the leaders of s in rows [r1, r2[ and columns [c1, c2[
+         * @param rowOff the row of s in the whole image
+         * @param colOff the column of s in the whole image
+         */
+        private void add(Struct s, int r1, int r2, int c1, int c2, int rowOff, int colOff) {
+            for(int i = r1; i < r2; i++) {
+                for(int j = c1; j < c2; j++) {
+                    final int k = i*s.nCol + j;
+                    final double x = s.allx[k], y = s.ally[k], xy = s.allxy[k];
+                    if(!Double.isNaN(x) || !Double.isNaN(y) || !Double.isNaN(xy)) {
+                        i1 = Math.min(i1, i+rowOff);
+                        i2 = Math.max(i2, i+rowOff);
+                        j1 = Math.min(j1, j+colOff);
+                        j2 = Math.max(j2, j+colOff);
+                    }
+                    final double val = Math.max(x, Math.max(y, xy));
+                    if(val > 1e-15) {
+                        final double log = Math.log(val);
+                        for(int q = 0; q < qs.length; q++) {
+                            final double vq = Math.pow(val, qs[q]);
+                            sums[q] += vq;
+                            logSums[q] += vq * log;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return true if all leaders are NaN
+         */
+        public boolean isEmpty() {
+            return i2 == -1;
+        }
+        
+        /**
+         * @return the number of positions in the bounding box of the non NaN leaders
+         */
+        public int getNb() {
+            return isEmpty() ? 0 : (i2-i1+1) * (j2-j1+1);
+        }
+        
+        /**
+         * @param k the index of q
+         * @return the sum of L^q
+         */
+        public double getSum(int k) {
+            return sums[k];
+        }
+        
+        /**
+         * @param k the index of q
+         * @return the sum of L^q*log(L)
+         */
+        public double getLogSum(int k) {
+            return logSums[k];
+        }
+    }
     
-    int njtemp1, njtemp2;
-    int fp; // index of first good value
-    int lp1, lp2; // index of last good value
+    private final boolean parallel;
+
+    /**
+     * Creates a new WLBMF using all processors
+     */
+    public WLBMF() {
+        this(true);
+    }
     
+    /**
+     * Creates a new WLBMF
+     * @param parallel use all processors ?
+     */
+    public WLBMF(boolean parallel) {
+        this.parallel = parallel;
+    }
     
     private double [] rlistcoefdaub(int nwt) {
         if(nwt == 3) {
@@ -105,341 +255,422 @@ public class WLBMF {
     }
     
     public List<Struct> DxLx2d(double [][] data, int nwt , double gamint) {
-        double Norm = 1;
-        int symm = 0;
-        int n = data.length;
-
-        double [] h = rlistcoefdaub(nwt) ;   // filter
-        int nl = h.length;           // length of filter, store to manage edge effect later
-        double [] gg1 = new double[h.length];// wavelet filter
-        double [] hh1 = new double[h.length];// scaling filter
-        for(int i = 0; i < h.length; i++) {
-            gg1[i] = -1 * Math.pow(-1, i+1) * h[i];
-            hh1[h.length-1-i] = h[i];
+        final int width = data[0].length;
+        double [] flat = new double[data.length*width];
+        for(int i = 0; i < data.length; i++) {
+            System.arraycopy(data[i], 0, flat, i*width, width);
         }
-
-        // parameter for the centering of the wavelet
-        int x0 = 2; 
-        int x0Appro = 2*nwt; 
-        
+        return DxLx2d(flat, width, data.length, nwt, gamint);
+    }
+    
+    /**
+     * Calculates the wavelet leaders for each scale.
+     * @param data the image in row-major order, it is not modified
+     * @param width the image width
+     * @param height the image height
+     * @param nwt the number of vanishing moments of the Daubechies wavelet
+     * @param gamint the fractional integration order
+     * @return the non empty leaders for each scale
+     * @throws CancellationException if the calculation has been cancelled
+     */
+    public List<Struct> DxLx2d(double [] data, int width, int height, int nwt , double gamint) {
         //--- Predict the max # of octaves available given Nwt, and take the min with
-        int nbvoies = (int)Math.floor(Math.log(data.length) / Math.log(2));
-//        nbvoies = (int) Math.min(Math.floor(Math.log(n/(nl+3.0)) / Math.log(2)), nbvoies); //   safer, casadestime having problems
-        
-        double [][] LL = data;
-        int sidata1 = data.length;
-        int sidata2 = data[0].length;
+        int nbvoies = (int)Math.floor(Math.log(height) / Math.log(2));
         
-        List<Struct> coefs = new ArrayList<>();
+        Transform transform = new Transform(nwt, gamint, data, width, height);
         List<Struct> leaders = new ArrayList<>();
-        List<Struct> leaders_sans_voisin = new ArrayList<>();
-        
         for(int l = 1; l <= nbvoies; l++) {         // Loop Scales
-            njtemp1 = LL.length;
-            njtemp2 = LL[0].length;
-            //-- border effect
-            fp = nl; // index of first good value
-            lp1 = njtemp1; // index of last good value
-            lp2 = njtemp2; // index of last good value
-            
-            //-- OH convolution and subsampling
-            double [][] OH = conv2(LL, gg1); 
-            OH = subSampleH(OH, x0);
-            //-- HH convolution and subsampling
-            double [][] HH = conv2Trans(OH, gg1);
-            HH = subSampleV(HH, x0);
-            //-- LH convolution and subsampling
-            double [][] LH = conv2Trans(OH, hh1);
-            LH = subSampleV(LH, x0Appro);
-            OH = null;
-            //-- OL convolution and subsampling
-            double [][] OL=conv2(LL, hh1);
-            OL = subSampleH(OL, x0Appro);
-            //-- HL convolution and subsampling
-            double [][] HL = conv2Trans(OL, gg1);
-            HL = subSampleV(HL, x0);
-            //-- LL convolution and subsampling
-            LL = conv2Trans(OL, hh1);
-            LL = subSampleV(LL, x0Appro);
-            OL = null;
-
-            //-- passage Norme L1
-            final double coef = Math.pow(2, l/Norm);
-            DefaultRealMatrixChangingVisitor normL1 = new DefaultRealMatrixChangingVisitor() {
-                @Override
-                public double visit(int row, int column, double value) {
-                    value = Math.abs(value) / coef;
-                    return Double.isInfinite(value) ? Double.NaN : value;
-                }
-            };
-            RealMatrix ALH = MatrixUtils.createRealMatrix(LH);
-            ALH.walkInOptimizedOrder(normL1);
-            RealMatrix AHL = MatrixUtils.createRealMatrix(HL);
-            AHL.walkInOptimizedOrder(normL1);
-            RealMatrix AHH = MatrixUtils.createRealMatrix(HH);
-            AHH.walkInOptimizedOrder(normL1);
-            
-            //-- max before fractional integration    
-//            double supcoefnointx = max(ALH);
-//            double supcoefnointy = max(AHL);
-//            double supcoefnointxy = max(AHH);
-//            double supcoefnoint = Collections.max(Arrays.asList(supcoefnointx, supcoefnointy, supcoefnointxy));
-
-            //-- fractional integration by gamma
-            double gamma = Math.pow(2, gamint*l);
-            ALH = ALH.scalarMultiply(gamma);
-            AHL = AHL.scalarMultiply(gamma);
-            AHH = AHH.scalarMultiply(gamma);
-
-//            double supcoefx = max(ALH);
-//            double supcoefy = max(AHL);
-//            double supcoefxy = max(AHH);
-//            double supcoef = Collections.max(Arrays.asList(supcoefx, supcoefy, supcoefxy));
-
-            coefs.add(new Struct(ALH, AHL, AHH));
-            
-
-            //-- get position of coefs
-//            lesx=1:2^j:sidata(2);
-//            lesy=1:2^j:sidata(1);
-
-//            coef(j).xpos=lesx(jj1:jj2);
-//            coef(j).ypos=lesy(ii1:ii2);
-
-            
-            if(l == 1) {
-                //-- compute and store leaders sans voisin
-                leaders_sans_voisin.add(new Struct(ALH, AHL, AHH));
-            } else {
-                int nc1 = (int) Math.floor(leaders_sans_voisin.get(l-2).allx.getRowDimension() / 2);
-                int nc2 = (int) Math.floor(leaders_sans_voisin.get(l-2).allx.getColumnDimension() / 2);
-                //-- get max at smaller scales
-                leaders_sans_voisin.add(new Struct(
-                    max(ALH.getSubMatrix(0, nc1-1, 0, nc2-1), leaders_sans_voisin.get(l-2).allx),
-                    max(AHL.getSubMatrix(0, nc1-1, 0, nc2-1), leaders_sans_voisin.get(l-2).ally),
-                    max(AHH.getSubMatrix(0, nc1-1, 0, nc2-1), leaders_sans_voisin.get(l-2).allxy)
-                ));
-            }
-
-
-            //-- on prend le max sur les 8 voisins i.e. 9 coeffs
-            
-            int six1 = leaders_sans_voisin.get(l-1).allx.getRowDimension();
-            int six2 = leaders_sans_voisin.get(l-1).allx.getColumnDimension();
-            leaders.add(new Struct(
-                    maxVoisin(leaders_sans_voisin.get(l-1).allx),
-                    maxVoisin(leaders_sans_voisin.get(l-1).ally),
-                    maxVoisin(leaders_sans_voisin.get(l-1).allxy)
-            ));
-            
-//
-//
-//            tempx=reshape(leaders(j).value.x,1,[]);
-//            tempy=reshape(leaders(j).value.y,1,[]);
-//            tempxy=reshape(leaders(j).value.xy,1,[]);
-//            leaders(j).vector.x =tempx;
-//            leaders(j).vector.y =tempy;
-//            leaders(j).vector.xy=tempxy;
-//            leaders(j).vector.all =  [tempx tempy tempxy] ;
-//            leaders(j).vector.max = max(max(tempx, tempy), tempxy) ;   // maximum of x,y,xy at each point
-//
-//            leaders(j).gamma=gamint;
-//
-//
-//          //// MINCOEF
-//            leaders(j).supcoef=coef(j).supcoef;
-//            leaders(j).supcoefnoint=coef(j).supcoefnoint;
-//            leaders(j).mincoef=min(leaders(j).vector.max);
-//            leaders(j).mincoef_x=min(leaders(j).vector.x);
-//            leaders(j).mincoef_y=min(leaders(j).vector.y);
-//            leaders(j).mincoef_xy=min(leaders(j).vector.xy);
-//            leaders(j).supcoefL=max(leaders(j).vector.max);
-//            leaders(j).supcoefL_x=max(leaders(j).vector.x); leaders(j).supcoefL_y=max(leaders(j).vector.y); leaders(j).supcoefL_xy=max(leaders(j).vector.xy);
-//            coef(j).mincoef=leaders(j).mincoef; coef(j).mincoef_x=leaders(j).mincoef_x;  coef(j).mincoef_y=leaders(j).mincoef_y;  coef(j).mincoef_xy=leaders(j).mincoef_xy;
-//            coef(j).supcoefL=leaders(j).supcoefL; coef(j).supcoefL_x=leaders(j).supcoefL_x;  coef(j).supcoefL_y=leaders(j).supcoefL_y;  coef(j).supcoefL_xy=leaders(j).supcoefL_xy;
-//
-//
-//            nj.L(j) = prod(size(leaders(j).value.x));
-//
-//            ////
-//            coef(j).vector.x=reshape(coef(j).x,1,[]);
-//            coef(j).vector.y=reshape(coef(j).y,1,[]);
-//            coef(j).vector.xy=reshape(coef(j).xy,1,[]);
-//            coef(j).vector.all=[coef(j).vector.x coef(j).vector.y coef(j).vector.xy];
-
-        }
-
-//        //in case of last scale empty
-//        if isempty(leaders(end).value.x)
-//            coef=coef(1:end-1);
-//            leaders=leaders(1:end-1);
-//            nj.W=nj.W(1:end-1);
-//            nj.L=nj.L(1:end-1);
-//        end
-        
-        for(Iterator<Struct> it = leaders.iterator(); it.hasNext(); ) {
-            Struct s = it.next();
-            if(s.isEmpty()) {
-                it.remove();
+            Struct s = transform.next();
+            if(!s.isEmpty()) {
+                leaders.add(s);
             }
         }
         
         return leaders;
     }
     
-    private static int getMinRowNaN(RealMatrix m) {
-        int min = Integer.MAX_VALUE;
-        for(int i = 0; i < m.getColumnDimension(); i++) {
-            min = Math.min(min, getMinNaN(m.getColumn(i)));
+    /**
+     * Calculates the statistics of the leaders for each scale by tiles, for images which do not fit in memory.
+     * The finest scales (up to TILE_SCALES) are calculated on each tile extended by a halo 
+     * which covers the support of the leaders of the tile, so that the leaders are the same as for the whole image.
+     * The statistics are accumulated over the tiles and the approximation and the leaders without neighbours 
+     * of the last tiled scale are gathered to calculate the coarser scales in memory.
+     * The results are the same as {@link #DxLx2d(double[], int, int, int, double) } with {@link Stats#add(Struct) },
+     * up to the summation order.
+     * @param img the image, only the first band is used
+     * @param tileSize the size of the tiles without halo, rounded to a multiple of 2^TILE_SCALES
+     * @param nwt the number of vanishing moments of the Daubechies wavelet
+     * @param gamint the fractional integration order
+     * @param qs the q moments
+     * @param monitor the progress monitor
+     * @return the statistics of the non empty scales
+     * @throws CancellationException if the calculation has been cancelled
+     */
+    public List<Stats> getStats(RenderedImage img, int tileSize, int nwt, double gamint, double [] qs, ProgressBar monitor) {
+        final int width = img.getWidth();
+        final int height = img.getHeight();
+        int nbvoies = (int)Math.floor(Math.log(height) / Math.log(2));
+        List<Stats> stats = new ArrayList<>();
+        for(int l = 0; l < nbvoies; l++) {
+            stats.add(new Stats(qs));
         }
-        return min;
-    }
-    
-    private static int getMaxRowNaN(RealMatrix m) {
-        int max = Integer.MIN_VALUE;
-        for(int i = 0; i < m.getColumnDimension(); i++) {
-            max = Math.max(max, getMaxNaN(m.getColumn(i)));
+        if(nbvoies == 0) {
+            return stats;
         }
-        return max;
-    }
-    
-    private static int getMinColNaN(RealMatrix m) {
-        int min = Integer.MAX_VALUE;
-        for(int i = 0; i < m.getRowDimension(); i++) {
-            min = Math.min(min, getMinNaN(m.getRow(i)));
+        final int nbTiled = Math.min(nbvoies, TILE_SCALES);
+        final int step = 1 << nbTiled;
+        // the support of a coefficient of scale l covers [2^l*m - (nl-x0)*(2^l-1), 2^l*m + (x0Appro-1)*(2^l-1)] 
+        // plus 2^l for the neighbours of the leaders
+        final int nl = rlistcoefdaub(nwt).length;
+        final int haloLeft = (step + (nl-2)*(step-1) + step-1) / step * step;
+        final int haloRight = step + (2*nwt-1)*(step-1);
+        final int size = Math.max(1, tileSize / step) * step;
+        
+        // approximation and leaders without neighbours of the last tiled scale for the whole image
+        final int wApprox = DWT.getLevelSize(width, nbTiled);
+        final int hApprox = DWT.getLevelSize(height, nbTiled);
+        final double [] approx = new double[wApprox*hApprox];
+        int wLsv = (width+1) / 2;
+        int hLsv = (height+1) / 2;
+        for(int l = 1; l < nbTiled; l++) {
+            wLsv /= 2;
+            hLsv /= 2;
         }
-        return min;
+        final Struct lsv = new Struct(new double[wLsv*hLsv], new double[wLsv*hLsv], new double[wLsv*hLsv], hLsv, wLsv);
+        
+        final int maxTile = Math.min(width, size+haloLeft+haloRight) * Math.min(height, size+haloLeft+haloRight);
+        double [] buf = new double[maxTile];
+        double [] OH = new double[maxTile/2+Math.min(height, size+haloLeft+haloRight)];
+        double [] OL = new double[OH.length];
+        monitor.setMaximum(((width+size-1) / size) * ((height+size-1) / size));
+        for(int ty = 0; ty < height; ty += size) {
+            final int y1 = Math.max(0, ty - haloLeft);
+            final int y2 = Math.min(height, ty + size + haloRight);
+            for(int tx = 0; tx < width; tx += size) {
+                if(monitor.isCanceled()) {
+                    throw new CancellationException();
+                }
+                final int x1 = Math.max(0, tx - haloLeft);
+                final int x2 = Math.min(width, tx + size + haloRight);
+                img.getData(new Rectangle(img.getMinX()+x1, img.getMinY()+y1, x2-x1, y2-y1))
+                        .getSamples(img.getMinX()+x1, img.getMinY()+y1, x2-x1, y2-y1, 0, buf);
+                Transform transform = new Transform(nwt, gamint, buf, x2-x1, y2-y1, OH, OL);
+                for(int l = 1; l <= nbTiled; l++) {
+                    Struct leaders = transform.next();
+                    final int s = 1 << l;
+                    final int r1 = (ty-y1) / s;
+                    final int r2 = ty+size >= height ? leaders.nRow : Math.min(leaders.nRow, (ty+size-y1) / s);
+                    final int c1 = (tx-x1) / s;
+                    final int c2 = tx+size >= width ? leaders.nCol : Math.min(leaders.nCol, (tx+size-x1) / s);
+                    stats.get(l-1).add(leaders, r1, r2, c1, c2, y1 / s, x1 / s);
+                }
+                // copy the core of the tile at the last tiled scale
+                final int rowOff = y1 / step;
+                final int colOff = x1 / step;
+                copyCore(transform.LL, transform.w, transform.h, approx, wApprox, ty/step - rowOff, (ty+size)/step - rowOff, 
+                        tx/step - colOff, (tx+size)/step - colOff, rowOff, colOff, ty+size >= height, tx+size >= width);
+                for(int i = 0; i < 3; i++) {
+                    copyCore(transform.lsv.getArray(i), transform.lsv.nCol, transform.lsv.nRow, lsv.getArray(i), wLsv, 
+                            ty/step - rowOff, (ty+size)/step - rowOff, tx/step - colOff, (tx+size)/step - colOff, 
+                            rowOff, colOff, ty+size >= height, tx+size >= width);
+                }
+                monitor.incProgress(1);
+            }
+        }
+        
+        // coarser scales in memory
+        Transform transform = new Transform(nwt, gamint, approx, wApprox, hApprox);
+        transform.l = nbTiled;
+        transform.lsv = new Struct(lsv.allx, lsv.ally, lsv.allxy, hLsv, wLsv);
+        for(int l = nbTiled+1; l <= nbvoies; l++) {
+            stats.get(l-1).add(transform.next());
+        }
+        
+        for(Iterator<Stats> it = stats.iterator(); it.hasNext(); ) {
+            if(it.next().isEmpty()) {
+                it.remove();
+            }
+        }
+        return stats;
     }
     
-    private static int getMaxColNaN(RealMatrix m) {
-        int max = Integer.MIN_VALUE;
-        for(int i = 0; i < m.getRowDimension(); i++) {
-            max = Math.max(max, getMaxNaN(m.getRow(i)));
+    /**
+     * Copies the rows [r1, r2[ and the columns [c1, c2[ of src in dest shifted by rowOff and colOff.
+     * If lastRow (lastCol) is true, r2 (c2) is replaced by the number of rows (columns) of src.
+     */
+    private static void copyCore(double [] src, int w, int h, double [] dest, int wDest, int r1, int r2, int c1, int c2, 
+            int rowOff, int colOff, boolean lastRow, boolean lastCol) {
+        r2 = lastRow ? h : Math.min(h, r2);
+        c2 = lastCol ? w : Math.min(w, c2);
+        for(int i = r1; i < r2; i++) {
+            System.arraycopy(src, i*w + c1, dest, (i+rowOff)*wDest + c1+colOff, c2-c1);
         }
-        return max;
     }
     
-    private static int getMinNaN(double [] v) {
-        for(int i = 0; i < v.length; i++) {
-            if(!Double.isNaN(v[i])) {
-                return i;
+    /**
+     * Wavelet leaders transform, scale by scale.
+     */
+    private final class Transform {
+        private final double [] gg1, hh1;
+        private final int x0, x0Appro;
+        private final double gamint;
+        private final double [] OH, OL;
+        /** approximation of the last scale */
+        private double [] LL;
+        private int w, h;
+        /** last scale calculated */
+        private int l;
+        /** leaders sans voisin of the last scale */
+        private Struct lsv;
+        
+        private Transform(int nwt, double gamint, double [] data, int width, int height) {
+            // scratch buffers of the row pass, reused for all scales
+            this(nwt, gamint, data, width, height, new double[height * ((width+1) / 2)], new double[height * ((width+1) / 2)]);
+        }
+        
+        private Transform(int nwt, double gamint, double [] data, int width, int height, double [] OH, double [] OL) {
+            double [] h = rlistcoefdaub(nwt) ;   // filter
+            gg1 = new double[h.length];// wavelet filter
+            hh1 = new double[h.length];// scaling filter
+            for(int i = 0; i < h.length; i++) {
+                gg1[i] = -1 * Math.pow(-1, i+1) * h[i];
+                hh1[h.length-1-i] = h[i];
             }
+            // parameter for the centering of the wavelet
+            x0 = 2; 
+            x0Appro = 2*nwt; 
+            this.gamint = gamint;
+            this.OH = OH;
+            this.OL = OL;
+            this.LL = data;
+            this.w = width;
+            this.h = height;
         }
-        return v.length;
-    }
-    
-    private static int getMaxNaN(double [] v) {
-        for(int i = v.length-1; i >= 0; i--) {
-            if(!Double.isNaN(v[i])) {
-                return i;
+        
+        /**
+         * Calculates the next scale
+         * @return the leaders of the scale
+         */
+        private Struct next() {
+            double Norm = 1;
+            l++;
+            final int w2 = (w+1) / 2;
+            final int h2 = (h+1) / 2;
+
+            //-- OH and OL convolution and subsampling
+            convRows(LL, w, h, gg1, x0, OH, hh1, x0Appro, OL);
+            //-- HH and LH convolution and subsampling
+            double [] HH = new double[h2*w2];
+            double [] LH = new double[h2*w2];
+            convCols(OH, w2, h, gg1, x0, HH, hh1, x0Appro, LH);
+            //-- HL and LL convolution and subsampling
+            double [] HL = new double[h2*w2];
+            LL = new double[h2*w2];
+            convCols(OL, w2, h, gg1, x0, HL, hh1, x0Appro, LL);
+            w = w2;
+            h = h2;
+
+            //-- passage Norme L1 and fractional integration by gamma
+            final double coef = Math.pow(2, l/Norm);
+            final double gamma = Math.pow(2, gamint*l);
+            normalize(LH, coef, gamma);
+            normalize(HL, coef, gamma);
+            normalize(HH, coef, gamma);
+
+            if(l == 1) {
+                //-- compute and store leaders sans voisin
+                lsv = new Struct(LH, HL, HH, h, w);
+            } else {
+                //-- get max at smaller scales
+                int nc1 = lsv.nRow / 2;
+                int nc2 = lsv.nCol / 2;
+                maxChild(LH, w, lsv.allx, lsv.nCol, nc1, nc2);
+                maxChild(HL, w, lsv.ally, lsv.nCol, nc1, nc2);
+                maxChild(HH, w, lsv.allxy, lsv.nCol, nc1, nc2);
+                lsv = new Struct(LH, HL, HH, nc1, nc2);
             }
+
+            //-- on prend le max sur les 8 voisins i.e. 9 coeffs
+            int nRow = lsv.nRow;
+            int nCol = lsv.nCol;
+            return new Struct(
+                    maxVoisin(lsv.allx, nRow, nCol),
+                    maxVoisin(lsv.ally, nRow, nCol),
+                    maxVoisin(lsv.allxy, nRow, nCol), nRow, nCol);
         }
-        return -1;
     }
     
-    private RealMatrix maxVoisin(RealMatrix m) {
-        final RealMatrix m2 = MatrixUtils.createRealMatrix(m.getRowDimension()+2, m.getColumnDimension()+2);
-        m2.setSubMatrix(m.getData(), 1, 1);
-        RealMatrix max = MatrixUtils.createRealMatrix(m.getData());
-        max.walkInOptimizedOrder(new DefaultRealMatrixChangingVisitor() {
+    /**
+     * Convolves each row of src by 2 filters and keeps only one column over 2.
+     * The output column m is the column 2m+x0-1 of the full convolution, 
+     * it is set to infinity when the filter overlaps the border or the result is NaN.
+     * @param src the source array
+     * @param w the source width
+     * @param h the source height
+     * @param f1 the first filter
+     * @param x01 the centering of the first filter
+     * @param dest1 the result for the first filter, with (w+1)/2 columns
+     * @param f2 the second filter
+     * @param x02 the centering of the second filter
+     * @param dest2 the result for the second filter, with (w+1)/2 columns
+     */
+    private void convRows(final double [] src, final int w, final int h, final double [] f1, final int x01, final double [] dest1,
+            final double [] f2, final int x02, final double [] dest2) {
+        final int w2 = (w+1) / 2;
+        final int stripe = Math.max(1, 65536 / w);
+        execute(new SimpleParallelTask.IterParallelTask((h+stripe-1) / stripe, new TaskMonitor.EmptyMonitor()) {
             @Override
-            public double visit(int row, int column, double value) {
-                row++;
-                column++;
-                return Collections.max(Arrays.asList(
-                        m2.getEntry(row, column),
-                        m2.getEntry(row+1, column),
-                        m2.getEntry(row, column+1),
-                        m2.getEntry(row+1, column+1),
-                        m2.getEntry(row-1, column),
-                        m2.getEntry(row, column-1),
-                        m2.getEntry(row-1, column-1),
-                        m2.getEntry(row+1, column-1),
-                        m2.getEntry(row-1, column+1)
-                        ));
+            protected void executeOne(Integer ind) {
+                for(int i = ind*stripe; i < Math.min(h, (ind+1)*stripe); i++) {
+                    for(int m = 0; m < w2; m++) {
+                        dest1[i*w2+m] = convAt(src, i*w, 1, w, f1, 2*m+x01-1);
+                        dest2[i*w2+m] = convAt(src, i*w, 1, w, f2, 2*m+x02-1);
+                    }
+                }
             }
-            
         });
-        return max;
     }
     
-    private RealMatrix max(RealMatrix l2, final RealMatrix l1) {
-        RealMatrix max = MatrixUtils.createRealMatrix(l2.getData());
-        max.walkInOptimizedOrder(new DefaultRealMatrixChangingVisitor() {
+    /**
+     * @return the value at index c of the full convolution of the vector src[off + i*step] for i in [0, len[ by f,
+     * or infinity when the filter overlaps the border or the result is NaN
+     */
+    private static double convAt(double [] src, int off, int step, int len, double [] f, int c) {
+        if(c < f.length-1 || c >= len) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double sum = 0;
+        int ind = off + c*step;
+        for(int k = 0; k < f.length; k++) {
+            sum += src[ind] * f[k];
+            ind -= step;
+        }
+        return Double.isNaN(sum) ? Double.POSITIVE_INFINITY : sum;
+    }
+    
+    /**
+     * Convolves each column of src by 2 filters and keeps only one row over 2.
+     * The columns are processed by blocks to read the rows sequentially.
+     * The output row m is the row 2m+x0-1 of the full convolution, 
+     * it is set to infinity when the filter overlaps the border or the result is NaN.
+     * @param src the source array
+     * @param w the source width
+     * @param h the source height
+     * @param f1 the first filter
+     * @param x01 the centering of the first filter
+     * @param dest1 the result for the first filter, with (h+1)/2 rows
+     * @param f2 the second filter
+     * @param x02 the centering of the second filter
+     * @param dest2 the result for the second filter, with (h+1)/2 rows
+     */
+    private void convCols(final double [] src, final int w, final int h, final double [] f1, final int x01, final double [] dest1,
+            final double [] f2, final int x02, final double [] dest2) {
+        final int h2 = (h+1) / 2;
+        execute(new SimpleParallelTask.IterParallelTask((w+BLOCK-1) / BLOCK, new TaskMonitor.EmptyMonitor()) {
             @Override
-            public double visit(int row, int column, double value) {
-                return Collections.max(Arrays.asList(
-                        l1.getEntry(row*2, column*2),
-                        l1.getEntry(row*2+1, column*2),
-                        l1.getEntry(row*2, column*2+1),
-                        l1.getEntry(row*2+1, column*2+1),
-                        value
-                    ));
+            protected void executeOne(Integer ind) {
+                final int j1 = ind*BLOCK;
+                final int j2 = Math.min(w, j1+BLOCK);
+                for(int m = 0; m < h2; m++) {
+                    convRowAt(src, w, h, f1, 2*m+x01-1, dest1, m*w, j1, j2);
+                    convRowAt(src, w, h, f2, 2*m+x02-1, dest2, m*w, j1, j2);
+                }
             }
-            
         });
-        return max;
     }
     
-    private double max(RealMatrix m) {
-        double max = Double.NEGATIVE_INFINITY;
-        for(int i = 0; i < m.getRowDimension(); i++) {
-            for(int j = 0; j < m.getColumnDimension(); j++) {
-                double val = m.getEntry(i, j);
-                if(!Double.isNaN(val) && val > max) {
-                    max = val;
-                }
+    /**
+     * Calculates the row r of the full convolution of the columns [j1, j2[ of src by f
+     */
+    private static void convRowAt(double [] src, int w, int h, double [] f, int r, double [] dest, int off, int j1, int j2) {
+        if(r < f.length-1 || r >= h) {
+            for(int j = j1; j < j2; j++) {
+                dest[off+j] = Double.POSITIVE_INFINITY;
             }
+            return;
         }
-        return max;
-    }
-
-    private double[][] subSampleH(double[][] mat, int x0) {
-        for(int i = 0; i < mat.length; i++) {
-            for(int j = 0; j < mat[0].length; j++) {
-                if(Double.isNaN(mat[i][j])) {
-                    mat[i][j] = Double.POSITIVE_INFINITY;
-                }
-                if(j < fp-1 || j >= lp2) {
-                    mat[i][j] = Double.POSITIVE_INFINITY;
-                }
+        for(int j = j1; j < j2; j++) {
+            dest[off+j] = 0;
+        }
+        for(int k = 0; k < f.length; k++) {
+            final int row = (r-k)*w;
+            final double fk = f[k];
+            for(int j = j1; j < j2; j++) {
+                dest[off+j] += src[row+j] * fk;
             }
         }
-        int nCol = (int) Math.ceil(njtemp2 / 2.0);
-        double [][] mat2 = new double[mat.length][nCol];
-        for(int i = 0; i < mat.length; i++) {
-            int ind = 0;
-            for(int j = 1; j <= njtemp2; j+=2) {
-                int k = j + x0 - 1;
-                mat2[i][ind++] = mat[i][k-1];
+        for(int j = j1; j < j2; j++) {
+            if(Double.isNaN(dest[off+j])) {
+                dest[off+j] = Double.POSITIVE_INFINITY;
             }
         }
-        return mat2;
     }
     
-    private double[][] subSampleV(double[][] mat, int x0) {
-        for(int i = 0; i < mat.length; i++) {
-            for(int j = 0; j < mat[0].length; j++) {
-                if(Double.isNaN(mat[i][j])) {
-                    mat[i][j] = Double.POSITIVE_INFINITY;
-                }
-                if(i < fp-1 || i >= lp1) {
-                    mat[i][j] = Double.POSITIVE_INFINITY;
-                }
+    /**
+     * Normalizes the coefficients in place : abs(val) / coef * gamma, infinite values are set to NaN
+     */
+    private static void normalize(double [] a, double coef, double gamma) {
+        for(int i = 0; i < a.length; i++) {
+            double val = Math.abs(a[i]) / coef;
+            a[i] = (Double.isInfinite(val) ? Double.NaN : val) * gamma;
+        }
+    }
+    
+    /**
+     * Sets in place the nc1 x nc2 first coefficients of a to the max of themselves and their 4 children in the finer scale.
+     * The result is stored in row-major order with nc2 columns.
+     * @param a the coefficients of the current scale with w columns
+     * @param w the number of columns of a
+     * @param prev the leaders without neighbours of the finer scale
+     * @param pw the number of columns of prev
+     * @param nc1 the number of rows of the result
+     * @param nc2 the number of columns of the result
+     */
+    private static void maxChild(double [] a, int w, double [] prev, int pw, int nc1, int nc2) {
+        // the index written is never greater than the index read
+        for(int i = 0; i < nc1; i++) {
+            for(int j = 0; j < nc2; j++) {
+                final int p = 2*i*pw + 2*j;
+                a[i*nc2+j] = Math.max(Math.max(Math.max(prev[p], prev[p+pw]), Math.max(prev[p+1], prev[p+pw+1])), a[i*w+j]);
             }
         }
-        int nRow = (int) Math.ceil(njtemp1 / 2.0);
-        double [][] mat2 = new double[nRow][mat[0].length];
-        int ind = 0;
-        for(int i = 1; i <= njtemp1; i+=2) {
-            int k = i + x0 - 1;
-            for(int j = 0; j < mat[0].length; j++) {
-                mat2[ind][j] = mat[k-1][j];
+    }
+    
+    /**
+     * @return the max over the 8 neighbours and the coefficient itself
+     */
+    private double[] maxVoisin(final double [] m, final int nRow, final int nCol) {
+        final double [] max = new double[nRow*nCol];
+        final int stripe = Math.max(1, 65536 / Math.max(1, nCol));
+        execute(new SimpleParallelTask.IterParallelTask((nRow+stripe-1) / stripe, new TaskMonitor.EmptyMonitor()) {
+            @Override
+            protected void executeOne(Integer ind) {
+                for(int i = ind*stripe; i < Math.min(nRow, (ind+1)*stripe); i++) {
+                    for(int j = 0; j < nCol; j++) {
+                        // outside values are zero
+                        double val = 0;
+                        for(int y = Math.max(0, i-1); y <= Math.min(nRow-1, i+1); y++) {
+                            for(int x = Math.max(0, j-1); x <= Math.min(nCol-1, j+1); x++) {
+                                val = Math.max(val, m[y*nCol+x]);
+                            }
+                        }
+                        max[i*nCol+j] = val;
+                    }
+                }
             }
-            ind++;
+        });
+        return max;
+    }
+    
+    private void execute(SimpleParallelTask task) {
+        if(parallel) {
+            new ParallelFExecutor(task).executeAndWait();
+        } else {
+            new ParallelFExecutor(task, 1).executeAndWait();
+        }
+        if(task.isCanceled()) {
+            throw new CancellationException();
         }
-
-        return mat2;
     }
     
     public double[][] conv2(double[][] mat, double[] v) {
@@ -451,11 +682,16 @@ public class WLBMF {
     }
 
     public double[][] conv2Trans(double[][] mat, double[] v) {
-        RealMatrix m = MatrixUtils.createRealMatrix(mat);
-        RealMatrix conv = MatrixUtils.createRealMatrix(m.getRowDimension() + v.length - 1, m.getColumnDimension());
-        for(int i = 0; i < m.getColumnDimension(); i++) {
-            conv.setColumn(i, MathArrays.convolve(m.getColumn(i), v));
+        final int nCol = mat[0].length;
+        double [][] conv = new double[mat.length + v.length - 1][nCol];
+        for(int i = 0; i < conv.length; i++) {
+            for(int k = Math.max(0, i+1-mat.length); k < Math.min(v.length, i+1); k++) {
+                final double [] row = mat[i-k];
+                for(int j = 0; j < nCol; j++) {
+                    conv[i][j] += row[j] * v[k];
+                }
+            }
         }
-        return conv.getData();
+        return conv;
     }
 }
@@ -23,12 +23,16 @@ import com.vividsolutions.jts.geom.Envelope;
 import java.awt.image.DataBufferDouble;
 import java.awt.image.RenderedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
 import org.thema.common.ProgressBar;
+import org.thema.common.parallel.ParallelFExecutor;
+import org.thema.common.parallel.SimpleParallelTask;
 import org.thema.fracgis.method.MonoMethod;
 import org.thema.fracgis.method.MultiFracMethod;
 import org.thema.fracgis.method.QMonoMethod;
@@ -38,11 +42,17 @@ import org.thema.fracgis.sampling.DefaultSampling;
 /**
  * Multifractal analysis based on WTMM method with CWT
  *
+ * The scales are processed in parallel, with a number of threads limited by the available memory.
+ * The modulus maxima of each scale are chained to the nearest maximum of the previous scale,
+ * building the maxima lines, and the partition function uses the supremum of the modulus 
+ * along each line up to the scale.
+ *
  * @author Gilles Vuidel
  */
 public class WTMMMethod extends RasterMethod implements MultiFracMethod {
 
-    private TreeMap<Double, List<Double>> modes;
+    /** for each scale, the supremum of the modulus along the maxima lines */
+    private TreeMap<Double, double[]> modes;
     private transient TreeMap<Double, TreeMap<Double, Double>> cacheCurves;
     
     /**
@@ -59,22 +69,48 @@ public class WTMMMethod extends RasterMethod implements MultiFracMethod {
 
     @Override
     public void execute(ProgressBar monitor, boolean threaded) {
-        modes = new TreeMap<>();
-        for(double var : getSampling().getValues()) {
-            CWT cwt = new CWT();
-            cwt.calcCWT(getImg().getData(), (int)var);
-            
-            List<Double> m = new ArrayList<>();
-            double[] data = ((DataBufferDouble)cwt.chain.getDataBuffer()).getData();
-            for(double val : data) {
-                if(val != 0) {
-                    m.add(val);
-                }
+        final int width = getImg().getWidth();
+        final int height = getImg().getHeight();
+        // the image is copied once and shared by all scales
+        final double [] img = getImg().getData().getSamples(getImg().getMinX(), getImg().getMinY(), width, height, 0, (double[])null);
+        final List<Double> vars = new ArrayList<>(getSampling().getValues());
+        final Maxima [] maxima = new Maxima[vars.size()];
+        monitor.setMaximum(vars.size());
+        SimpleParallelTask task = new SimpleParallelTask.IterParallelTask(vars.size(), monitor) {
+            @Override
+            protected void executeOne(Integer i) {
+                int var = vars.get(i).intValue();
+                CWT cwt = new CWT();
+                cwt.calcCWT(img, width, height, var);
+                maxima[i] = new Maxima(((DataBufferDouble)cwt.chain.getDataBuffer()).getData(), width+2*CWT.NVAR*var, CWT.NVAR*var);
             }
-            modes.put(var/getImg().getWidth(), m);
+        };
+        new ParallelFExecutor(task, threaded ? getNbThreads(width, height, vars) : 1).executeAndWait();
+        if(task.isCanceled()) {
+            throw new CancellationException();
+        }
+        
+        modes = new TreeMap<>();
+        double [] sup = null;
+        for(int i = 0; i < maxima.length; i++) {
+            sup = maxima[i].chain(i == 0 ? null : maxima[i-1], sup, Math.max(1, vars.get(i).intValue()));
+            modes.put(vars.get(i)/width, sup);
         }
     }
 
+    /**
+     * @return the number of scales which can be processed in parallel with the available memory
+     */
+    private static int getNbThreads(int width, int height, List<Double> vars) {
+        long mem = 0;
+        for(double var : vars) {
+            mem = Math.max(mem, CWT.getMemorySize(width, height, (int)var));
+        }
+        Runtime rt = Runtime.getRuntime();
+        long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        return (int) Math.max(1, Math.min(rt.availableProcessors(), available * 8 / 10 / mem));
+    }
+    
     @Override
     public MonoMethod getSimpleMethod(final double q) {
         return new QMonoMethod(this, q);
@@ -107,11 +143,12 @@ public class WTMMMethod extends RasterMethod implements MultiFracMethod {
             }
         }
         for(Double x : modes.keySet()) {
-            List<Double> m = modes.get(x);
+            double [] m = modes.get(x);
             double [] sum = new double[qList.size()];
-            for(double val : m)  {
-                for(int k = 0; k < sum.length; k++) {
-                    sum[k] += Math.pow(val, qList.get(k));
+            for(int k = 0; k < sum.length; k++) {
+                final double q = qList.get(k);
+                for(double val : m)  {
+                    sum[k] += Math.pow(val, q);
                 }
             }
             for(int k = 0; k < sum.length; k++) {
@@ -120,6 +157,104 @@ public class WTMMMethod extends RasterMethod implements MultiFracMethod {
         }
     }
     
+    /**
+     * Modulus maxima of one scale, stored in primitive arrays
+     */
+    static final class Maxima {
+        /** position in the image coordinates, may be outside the image */
+        private final int [] xs, ys;
+        private final double [] values;
+        
+        /**
+         * Extracts the non zero values of the chain raster
+         * @param chain the chain raster data
+         * @param w the width of the chain raster
+         * @param d the border size of the chain raster
+         */
+        Maxima(double [] chain, int w, int d) {
+            int nb = 0;
+            for(double val : chain) {
+                if(val != 0) {
+                    nb++;
+                }
+            }
+            xs = new int[nb];
+            ys = new int[nb];
+            values = new double[nb];
+            int k = 0;
+            for(int i = 0; i < chain.length; i++) {
+                if(chain[i] != 0) {
+                    xs[k] = i % w - d;
+                    ys[k] = i / w - d;
+                    values[k] = chain[i];
+                    k++;
+                }
+            }
+        }
+        
+        /**
+         * Chains each maximum to the nearest maximum of the previous scale at a distance lower or equal to radius
+         * and calculates the supremum of the modulus along the line.
+         * @param prev the maxima of the previous scale, may be null
+         * @param prevSup the supremum for the maxima of the previous scale
+         * @param radius the search radius
+         * @return the supremum along the line for each maximum
+         */
+        double[] chain(Maxima prev, double [] prevSup, int radius) {
+            double [] sup = Arrays.copyOf(values, values.length);
+            if(prev == null || prev.values.length == 0) {
+                return sup;
+            }
+            // index the previous maxima in a grid of cells of size radius
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+            for(int i = 0; i < prev.xs.length; i++) {
+                minX = Math.min(minX, prev.xs[i]);
+                minY = Math.min(minY, prev.ys[i]);
+                maxX = Math.max(maxX, prev.xs[i]);
+                maxY = Math.max(maxY, prev.ys[i]);
+            }
+            final int nx = (maxX-minX) / radius + 1;
+            final int ny = (maxY-minY) / radius + 1;
+            final int [] start = new int[nx*ny+1];
+            for(int i = 0; i < prev.xs.length; i++) {
+                start[((prev.ys[i]-minY) / radius) * nx + (prev.xs[i]-minX) / radius + 1]++;
+            }
+            for(int c = 0; c < nx*ny; c++) {
+                start[c+1] += start[c];
+            }
+            final int [] pos = Arrays.copyOf(start, nx*ny);
+            final int [] items = new int[prev.xs.length];
+            for(int i = 0; i < prev.xs.length; i++) {
+                items[pos[((prev.ys[i]-minY) / radius) * nx + (prev.xs[i]-minX) / radius]++] = i;
+            }
+            
+            final long r2 = (long)radius*radius;
+            for(int k = 0; k < values.length; k++) {
+                final int cx = (int)Math.floor((double)(xs[k]-minX) / radius);
+                final int cy = (int)Math.floor((double)(ys[k]-minY) / radius);
+                long best = r2+1;
+                int parent = -1;
+                for(int y = Math.max(0, cy-1); y <= Math.min(ny-1, cy+1); y++) {
+                    for(int x = Math.max(0, cx-1); x <= Math.min(nx-1, cx+1); x++) {
+                        for(int j = start[y*nx+x]; j < start[y*nx+x+1]; j++) {
+                            final int i = items[j];
+                            final long ddx = xs[k]-prev.xs[i];
+                            final long ddy = ys[k]-prev.ys[i];
+                            final long dist = ddx*ddx + ddy*ddy;
+                            if(dist < best) {
+                                best = dist;
+                                parent = i;
+                            }
+                        }
+                    }
+                }
+                if(parent != -1) {
+                    sup[k] = Math.max(sup[k], prevSup[parent]);
+                }
+            }
+            return sup;
+        }
+    }
     
     @Override
     public int getDimSign() {
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method.vector;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compressed set of cell indices, without boxing.
+ *
+ * The indices are split in chunks of 2^16 consecutive values (like roaring bitmaps).
+ * A chunk with few indices stores them in a sorted char array,
+ * it is converted to a bitset of 1024 longs when it contains more than 4096 indices.
+ * Two sets are merged with {@link #or(CellBitmap) }.
+ * The last chunk accessed is kept, so that consecutive indices of the same chunk do not box the chunk key.
+ * This class is not thread safe.
+ *
+ * @author Gilles Vuidel
+ */
+public final class CellBitmap implements Serializable {
+
+    private static final int SHIFT = 16;
+    private static final int MASK = (1 << SHIFT) - 1;
+    /** maximum number of indices in an array container */
+    private static final int ARRAY_MAX = 4096;
+
+    private final Map<Long, Container> containers;
+    private long cardinality;
+    /** last container accessed and its key, to avoid boxing the key for consecutive indices */
+    private transient Container lastContainer;
+    private transient long lastKey;
+
+    /**
+     * Creates an empty set
+     */
+    public CellBitmap() {
+        containers = new HashMap<>();
+        cardinality = 0;
+    }
+
+    /**
+     * Adds an index
+     * @param id the cell index, must be positive
+     * @return true if the index was not already in the set
+     */
+    public boolean add(long id) {
+        final long key = id >>> SHIFT;
+        Container c = lastContainer;
+        if(c == null || key != lastKey) {
+            c = containers.get(key);
+            if(c == null) {
+                c = new Container();
+                containers.put(key, c);
+            }
+            lastContainer = c;
+            lastKey = key;
+        }
+        if(c.add((char)(id & MASK))) {
+            cardinality++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param id the cell index
+     * @return true if the set contains the index
+     */
+    public boolean contains(long id) {
+        final long key = id >>> SHIFT;
+        Container c = lastContainer;
+        if(c == null || key != lastKey) {
+            c = containers.get(key);
+            if(c == null) {
+                return false;
+            }
+            lastContainer = c;
+            lastKey = key;
+        }
+        return c.contains((char)(id & MASK));
+    }
+
+    /**
+     * @return the number of indices in the set
+     */
+    public long getCardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return true if the set is empty
+     */
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * Adds all the indices of the other set (bitwise OR).
+     * The other set is not modified.
+     * @param other the set to merge in this set
+     */
+    public void or(CellBitmap other) {
+        for(Map.Entry<Long, Container> entry : other.containers.entrySet()) {
+            Container c = containers.get(entry.getKey());
+            if(c == null) {
+                c = new Container();
+                containers.put(entry.getKey(), c);
+            }
+            cardinality += c.or(entry.getValue());
+        }
+    }
+
+    /**
+     * @return all the indices of the set, in increasing order
+     */
+    public long[] toArray() {
+        Long [] keys = containers.keySet().toArray(new Long[containers.size()]);
+        Arrays.sort(keys);
+        long [] ids = new long[(int)cardinality];
+        int i = 0;
+        for(Long key : keys) {
+            i = containers.get(key).copyTo(ids, i, key << SHIFT);
+        }
+        return ids;
+    }
+
+    /**
+     * Set of 2^16 values stored in a sorted array or in a bitset
+     */
+    private static final class Container implements Serializable {
+        private char [] array;
+        private long [] bits;
+        private int size;
+
+        private Container() {
+            array = new char[4];
+            size = 0;
+        }
+
+        private boolean add(char val) {
+            if(bits != null) {
+                final long mask = 1L << val;
+                final int i = val >>> 6;
+                if((bits[i] & mask) != 0) {
+                    return false;
+                }
+                bits[i] |= mask;
+                size++;
+                return true;
+            }
+            int ind = Arrays.binarySearch(array, 0, size, val);
+            if(ind >= 0) {
+                return false;
+            }
+            if(size == ARRAY_MAX) {
+                toBitset();
+                return add(val);
+            }
+            ind = -ind - 1;
+            if(size == array.length) {
+                array = Arrays.copyOf(array, Math.min(ARRAY_MAX, 2*size));
+            }
+            System.arraycopy(array, ind, array, ind+1, size-ind);
+            array[ind] = val;
+            size++;
+            return true;
+        }
+
+        private boolean contains(char val) {
+            if(bits != null) {
+                return (bits[val >>> 6] & (1L << val)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, size, val) >= 0;
+        }
+
+        /**
+         * @return the number of values added
+         */
+        private int or(Container other) {
+            final int oldSize = size;
+            if(bits == null && other.bits == null && size + other.size <= ARRAY_MAX) {
+                // merge the 2 sorted arrays
+                char [] merge = new char[Math.max(4, size + other.size)];
+                int i = 0, j = 0, k = 0;
+                while(i < size && j < other.size) {
+                    if(array[i] < other.array[j]) {
+                        merge[k++] = array[i++];
+                    } else if(array[i] > other.array[j]) {
+                        merge[k++] = other.array[j++];
+                    } else {
+                        merge[k++] = array[i++];
+                        j++;
+                    }
+                }
+                while(i < size) {
+                    merge[k++] = array[i++];
+                }
+                while(j < other.size) {
+                    merge[k++] = other.array[j++];
+                }
+                array = merge;
+                size = k;
+                return size - oldSize;
+            }
+            if(bits == null) {
+                toBitset();
+            }
+            if(other.bits != null) {
+                size = 0;
+                for(int i = 0; i < bits.length; i++) {
+                    bits[i] |= other.bits[i];
+                    size += Long.bitCount(bits[i]);
+                }
+            } else {
+                for(int i = 0; i < other.size; i++) {
+                    add(other.array[i]);
+                }
+            }
+            return size - oldSize;
+        }
+
+        private void toBitset() {
+            bits = new long[(MASK+1) / 64];
+            for(int i = 0; i < size; i++) {
+                bits[array[i] >>> 6] |= 1L << array[i];
+            }
+            array = null;
+        }
+
+        /**
+         * Copies the values plus offset in ids from index start
+         * @return the index after the last value copied
+         */
+        private int copyTo(long [] ids, int start, long offset) {
+            int k = start;
+            if(bits != null) {
+                for(int i = 0; i < bits.length; i++) {
+                    long word = bits[i];
+                    while(word != 0) {
+                        ids[k++] = offset + i*64 + Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                for(int i = 0; i < size; i++) {
+                    ids[k++] = offset + array[i];
+                }
+            }
+            return k;
+        }
+    }
+}
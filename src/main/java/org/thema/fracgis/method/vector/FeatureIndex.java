@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method.vector;
+
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
+import com.vividsolutions.jts.algorithm.locate.PointOnGeometryLocator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Lineal;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.Polygonal;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.ItemVisitor;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import java.util.Arrays;
+import java.util.List;
+import org.thema.data.feature.Feature;
+
+/**
+ * Spatial index of features for testing the intersection with the cells of a {@link VirtualGrid}.
+ *
+ * The index is built once and can be shared by all the scales and grid positions.
+ * The prepared geometry of each feature is created at the first exact test and kept for the next ones.
+ * The index can be queried by several threads, each one using its own {@link CellQuery}.
+ *
+ * @author Gilles Vuidel
+ */
+public final class FeatureIndex {
+
+    private final STRtree tree;
+    private final Item [] items;
+    private final boolean lineal;
+    private final boolean polygonal;
+
+    /**
+     * Creates the index of the features. The empty geometries are ignored.
+     * @param features the features
+     */
+    public FeatureIndex(List<? extends Feature> features) {
+        tree = new STRtree();
+        items = new Item[features.size()];
+        boolean allLineal = true;
+        boolean allPolygonal = true;
+        for(int i = 0; i < items.length; i++) {
+            Geometry geom = features.get(i).getGeometry();
+            items[i] = new Item(i, geom);
+            allLineal &= geom instanceof Lineal;
+            allPolygonal &= geom instanceof Polygonal;
+            if(!geom.isEmpty()) {
+                tree.insert(items[i].env, items[i]);
+            }
+        }
+        if(items.length > 0) {
+            tree.build();
+        }
+        lineal = allLineal;
+        polygonal = allPolygonal;
+    }
+
+    /**
+     * @return true if all the geometries are LineString or MultiLineString
+     */
+    public boolean isLineal() {
+        return lineal;
+    }
+
+    /**
+     * @return true if all the geometries are Polygon or MultiPolygon
+     */
+    public boolean isPolygonal() {
+        return polygonal;
+    }
+
+    /**
+     * @param i the index of the feature
+     * @return the geometry of the feature i
+     */
+    public Geometry getGeometry(int i) {
+        return items[i].geom;
+    }
+
+    /**
+     * @return the number of features
+     */
+    public int size() {
+        return items.length;
+    }
+
+    /**
+     * @param i the index of the feature
+     * @return the envelope of the geometry of the feature i
+     */
+    public Envelope getEnvelope(int i) {
+        return items[i].env;
+    }
+
+    /**
+     * Creates a new query object, which must be used by one thread only.
+     * @return a new query
+     */
+    public CellQuery createQuery() {
+        return new CellQuery();
+    }
+
+    /**
+     * Reusable query for one thread.
+     * It tests if at least one feature intersects a cell, without allocation in most cases.
+     */
+    public final class CellQuery implements ItemVisitor {
+        private final Envelope cell = new Envelope();
+        private final Coordinate center = new Coordinate();
+        private VirtualGrid grid;
+        private int col, row;
+        private Geometry cellGeom;
+        private boolean found;
+        private boolean collect;
+        private int [] foundIds = new int[16];
+        private int nbFound;
+
+        private CellQuery() {
+        }
+
+        /**
+         * @param grid the grid
+         * @param col the column of the cell
+         * @param row the row of the cell
+         * @return true if at least one feature intersects the cell (col, row) of the grid
+         */
+        public boolean intersectsAny(VirtualGrid grid, int col, int row) {
+            setCell(grid, col, row);
+            found = false;
+            tree.query(cell, this);
+            return found;
+        }
+
+        /**
+         * @param grid the grid
+         * @param col the column of the cell
+         * @param row the row of the cell
+         * @return the indices of the features intersecting the cell (col, row) of the grid
+         */
+        public int[] getIntersecting(VirtualGrid grid, int col, int row) {
+            setCell(grid, col, row);
+            collect = true;
+            nbFound = 0;
+            tree.query(cell, this);
+            collect = false;
+            return Arrays.copyOf(foundIds, nbFound);
+        }
+
+        /**
+         * Sets the current cell for {@link #intersects(int) }
+         * @param grid the grid
+         * @param col the column of the cell
+         * @param row the row of the cell
+         */
+        public void setCell(VirtualGrid grid, int col, int row) {
+            this.grid = grid;
+            this.col = col;
+            this.row = row;
+            grid.getCellEnvelope(col, row, cell);
+            center.x = (cell.getMinX() + cell.getMaxX()) / 2;
+            center.y = (cell.getMinY() + cell.getMaxY()) / 2;
+            cellGeom = null;
+        }
+
+        /**
+         * @param i the index of the feature
+         * @return true if the geometry of the feature i intersects the current cell
+         */
+        public boolean intersects(int i) {
+            return intersects(items[i]);
+        }
+
+        @Override
+        public void visitItem(Object o) {
+            if(collect) {
+                Item item = (Item)o;
+                if(intersects(item)) {
+                    if(nbFound == foundIds.length) {
+                        foundIds = Arrays.copyOf(foundIds, 2*nbFound);
+                    }
+                    foundIds[nbFound++] = item.id;
+                }
+            } else if(!found && intersects((Item)o)) {
+                found = true;
+            }
+        }
+
+        private boolean intersects(Item item) {
+            if(!item.env.intersects(cell)) {
+                return false;
+            }
+            // the feature lies in the cell
+            if(cell.contains(item.env)) {
+                return true;
+            }
+            // the center of the cell lies in the polygon
+            if(item.polygonal && item.env.contains(center) && item.getLocator().locate(center) != Location.EXTERIOR) {
+                return true;
+            }
+            if(cellGeom == null) {
+                cellGeom = grid.getCellGeom(col, row);
+            }
+            return item.getPrepared().intersects(cellGeom);
+        }
+    }
+
+    /**
+     * A feature geometry with its cached envelope, prepared geometry and point locator
+     */
+    private static final class Item {
+        private final int id;
+        private final Geometry geom;
+        private final Envelope env;
+        private final boolean polygonal;
+        private volatile PreparedGeometry prepared;
+        private volatile PointOnGeometryLocator locator;
+
+        private Item(int id, Geometry geom) {
+            this.id = id;
+            this.geom = geom;
+            this.env = geom.getEnvelopeInternal();
+            this.polygonal = geom instanceof Polygonal;
+        }
+
+        private PreparedGeometry getPrepared() {
+            PreparedGeometry prep = prepared;
+            if(prep == null) {
+                synchronized(this) {
+                    if(prepared == null) {
+                        prepared = PreparedGeometryFactory.prepare(geom);
+                    }
+                    prep = prepared;
+                }
+            }
+            return prep;
+        }
+
+        private PointOnGeometryLocator getLocator() {
+            PointOnGeometryLocator loc = locator;
+            if(loc == null) {
+                synchronized(this) {
+                    if(locator == null) {
+                        locator = new IndexedPointInAreaLocator(geom);
+                    }
+                    loc = locator;
+                }
+            }
+            return loc;
+        }
+    }
+}
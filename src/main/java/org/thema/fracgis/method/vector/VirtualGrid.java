@@ -0,0 +1,514 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.thema.fracgis.method.vector;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Lineal;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.Polygonal;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.thema.common.JTS;
+
+/**
+ * Square grid which is never materialised.
+ * The grid is defined by its origin (lower left corner), its cell size and its dimension.
+ * A cell is identified by its column and row or by its index row*width+col,
+ * which are calculated arithmetically from coordinates.
+ * The cell geometries are created only on demand.
+ * The cells are closed : a geometry touching the border of a cell intersects it, as for JTS predicates.
+ *
+ * @author Gilles Vuidel
+ */
+public class VirtualGrid implements Serializable {
+
+    private final double x0, y0;
+    private final double size;
+    private final int width, height;
+
+    /**
+     * Creates a grid covering the envelope.
+     * The origin of the grid is the lower left corner of the envelope.
+     * @param env the envelope to cover
+     * @param size the cell size
+     * @throws IllegalArgumentException if the grid has too many rows or columns
+     */
+    public VirtualGrid(Envelope env, double size) {
+        this(env.getMinX(), env.getMinY(), size,
+                (int)Math.min(Integer.MAX_VALUE, Math.max(1, Math.ceil(env.getWidth() / size))),
+                (int)Math.min(Integer.MAX_VALUE, Math.max(1, Math.ceil(env.getHeight() / size))));
+        if(width == Integer.MAX_VALUE || height == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many cells for size " + size);
+        }
+    }
+
+    /**
+     * Creates a grid
+     * @param x0 the x coordinate of the origin
+     * @param y0 the y coordinate of the origin
+     * @param size the cell size
+     * @param width the number of columns
+     * @param height the number of rows
+     */
+    public VirtualGrid(double x0, double y0, double size, int width, int height) {
+        this.x0 = x0;
+        this.y0 = y0;
+        this.size = size;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Creates a new grid with the same size and dimension, with the origin translated by (dx, dy)
+     * @param dx the translation in x
+     * @param dy the translation in y
+     * @return the new grid
+     */
+    public VirtualGrid createTranslatedGrid(double dx, double dy) {
+        return new VirtualGrid(x0+dx, y0+dy, size, width, height);
+    }
+
+    /**
+     * @return the cell size
+     */
+    public double getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of columns
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the number of cells
+     */
+    public long getNbCells() {
+        return (long)width * height;
+    }
+
+    /**
+     * The column may be outside the grid.
+     * @param x the x coordinate
+     * @return the column containing x
+     */
+    public int getCol(double x) {
+        return (int)Math.floor((x - x0) / size);
+    }
+
+    /**
+     * The row may be outside the grid.
+     * @param y the y coordinate
+     * @return the row containing y
+     */
+    public int getRow(double y) {
+        return (int)Math.floor((y - y0) / size);
+    }
+
+    /**
+     * @param col the column
+     * @param row the row
+     * @return the index of the cell
+     */
+    public long getIndex(int col, int row) {
+        return (long)row * width + col;
+    }
+
+    /**
+     * Returns the index of one cell containing the point, limited to the grid as {@link #getCellRange}.
+     * A point on the max border of the grid belongs to the last column (or row).
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the index of the cell
+     */
+    public long getPointIndex(double x, double y) {
+        return getIndex(Math.max(0, Math.min(width-1, getCol(x))), Math.max(0, Math.min(height-1, getRow(y))));
+    }
+
+    /**
+     * @param id the index of the cell
+     * @return the column of the cell
+     */
+    public int getIndexCol(long id) {
+        return (int)(id % width);
+    }
+
+    /**
+     * @param id the index of the cell
+     * @return the row of the cell
+     */
+    public int getIndexRow(long id) {
+        return (int)(id / width);
+    }
+
+    /**
+     * @param col the column
+     * @param row the row
+     * @return the envelope of the cell
+     */
+    public Envelope getCellEnvelope(int col, int row) {
+        return getCellEnvelope(col, row, new Envelope());
+    }
+
+    /**
+     * Sets env to the envelope of the cell, without allocation
+     * @param col the column
+     * @param row the row
+     * @param env the envelope to initialize
+     * @return env
+     */
+    public Envelope getCellEnvelope(int col, int row, Envelope env) {
+        env.init(x0 + col*size, x0 + (col+1)*size, y0 + row*size, y0 + (row+1)*size);
+        return env;
+    }
+
+    /**
+     * Creates the geometry of the cell
+     * @param col the column
+     * @param row the row
+     * @return the square polygon of the cell
+     */
+    public Polygon getCellGeom(int col, int row) {
+        return (Polygon) JTS.toGeometry(getCellEnvelope(col, row));
+    }
+
+    /**
+     * Creates the geometry of the cell
+     * @param id the index of the cell
+     * @return the square polygon of the cell
+     */
+    public Polygon getCellGeom(long id) {
+        return getCellGeom(getIndexCol(id), getIndexRow(id));
+    }
+
+    /**
+     * Returns the range of cells intersecting the envelope, limited to the grid.
+     * The range is empty (col1 > col2 or row1 > row2) if the envelope is outside the grid.
+     * @param env the envelope
+     * @return the range {col1, row1, col2, row2} inclusive
+     */
+    public int[] getCellRange(Envelope env) {
+        return new int[] {
+            Math.max(0, getCol(env.getMinX())),
+            Math.max(0, getRow(env.getMinY())),
+            Math.min(width-1, getCol(env.getMaxX())),
+            Math.min(height-1, getRow(env.getMaxY()))
+        };
+    }
+
+    /**
+     * Adds to the set the index of all the cells intersecting the lineal geometry.
+     * Each segment is walked across the grid (Amanatides and Woo, 1987) without any JTS predicate.
+     * @param geom a LineString or a MultiLineString
+     * @param cells the set of cell indices to fill
+     */
+    public void addCells(Lineal geom, CellBitmap cells) {
+        addCells(geom, getRange(), cells);
+    }
+
+    /**
+     * Adds to the set the index of the cells of the range intersecting the lineal geometry.
+     * Only the part of the segments inside the range is walked.
+     * @param geom a LineString or a MultiLineString
+     * @param range the range of cells {col1, row1, col2, row2} inclusive, inside the grid
+     * @param cells the set of cell indices to fill
+     * @see #getCellRange(com.vividsolutions.jts.geom.Envelope) 
+     */
+    public void addCells(Lineal geom, int [] range, CellBitmap cells) {
+        Geometry g = (Geometry) geom;
+        for(int i = 0; i < g.getNumGeometries(); i++) {
+            CoordinateSequence seq = ((LineString)g.getGeometryN(i)).getCoordinateSequence();
+            if(seq.size() == 1) {
+                addUnitPointCells((seq.getX(0) - x0) / size, (seq.getY(0) - y0) / size, range, cells);
+            }
+            for(int j = 1; j < seq.size(); j++) {
+                addSegmentCells(seq.getX(j-1), seq.getY(j-1), seq.getX(j), seq.getY(j), range, cells);
+            }
+        }
+    }
+
+    /**
+     * Adds to the set the index of all the cells intersecting the polygonal geometry.
+     * The cells crossed by the boundary are found by walking the segments of the rings,
+     * the other cells intersecting the polygon have their center inside it, 
+     * they are filled by scanline at the center of each row with the even-odd rule, 
+     * which handles holes and multipolygons.
+     * @param geom a Polygon or a MultiPolygon
+     * @param cells the set of cell indices to fill
+     */
+    public void addCells(Polygonal geom, CellBitmap cells) {
+        Geometry g = (Geometry) geom;
+        List<CoordinateSequence> rings = new ArrayList<>();
+        for(int i = 0; i < g.getNumGeometries(); i++) {
+            Polygon p = (Polygon)g.getGeometryN(i);
+            if(p.isEmpty()) {
+                continue;
+            }
+            rings.add(p.getExteriorRing().getCoordinateSequence());
+            for(int j = 0; j < p.getNumInteriorRing(); j++) {
+                rings.add(p.getInteriorRingN(j).getCoordinateSequence());
+            }
+        }
+        addRingCells(rings.toArray(new CoordinateSequence[rings.size()]), cells);
+    }
+
+    /**
+     * Adds to the set the index of all the cells intersecting the area delimited by the closed rings
+     * with the even-odd rule.
+     * @param rings the closed rings
+     * @param cells the set of cell indices to fill
+     */
+    void addRingCells(CoordinateSequence [] rings, CellBitmap cells) {
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        // boundary
+        for(CoordinateSequence seq : rings) {
+            for(int j = 0; j < seq.size(); j++) {
+                minY = Math.min(minY, seq.getY(j));
+                maxY = Math.max(maxY, seq.getY(j));
+                if(j > 0) {
+                    addSegmentCells(seq.getX(j-1), seq.getY(j-1), seq.getX(j), seq.getY(j), cells);
+                }
+            }
+        }
+        final int row1 = Math.max(0, getRow(minY));
+        final int row2 = Math.min(height-1, getRow(maxY));
+        if(row1 > row2) {
+            return;
+        }
+        final int [] range = getRange();
+        // crossings of the edges with the horizontal line at the center of each row
+        final double [][] xs = new double[row2-row1+1][];
+        final int [] nb = new int[xs.length];
+        for(CoordinateSequence seq : rings) {
+            for(int j = 1; j < seq.size(); j++) {
+                final double xa = seq.getX(j-1), ya = seq.getY(j-1);
+                final double xb = seq.getX(j), yb = seq.getY(j);
+                if(ya == yb) {
+                    continue;
+                }
+                final double ymin = Math.min(ya, yb), ymax = Math.max(ya, yb);
+                final int r1 = Math.max(row1, (int)Math.ceil((ymin - y0) / size - 0.5) - 1);
+                final int r2 = Math.min(row2, (int)Math.ceil((ymax - y0) / size - 0.5));
+                for(int r = r1; r <= r2; r++) {
+                    final double yc = y0 + (r+0.5)*size;
+                    // half open rule, for counting a vertex once
+                    if(yc >= ymin && yc < ymax) {
+                        final int i = r - row1;
+                        if(xs[i] == null) {
+                            xs[i] = new double[4];
+                        } else if(nb[i] == xs[i].length) {
+                            xs[i] = Arrays.copyOf(xs[i], 2*nb[i]);
+                        }
+                        xs[i][nb[i]++] = xa + (yc - ya) * (xb - xa) / (yb - ya);
+                    }
+                }
+            }
+        }
+        // fills the cells whose center lies between 2 crossings
+        for(int i = 0; i < xs.length; i++) {
+            if(nb[i] < 2) {
+                continue;
+            }
+            Arrays.sort(xs[i], 0, nb[i]);
+            for(int k = 0; k+1 < nb[i]; k += 2) {
+                final int c1 = (int)Math.ceil((xs[i][k] - x0) / size - 0.5);
+                final int c2 = (int)Math.floor((xs[i][k+1] - x0) / size - 0.5);
+                addRange(c1, row1+i, c2, row1+i, range, cells);
+            }
+        }
+    }
+
+    /**
+     * Adds to the set the index of all the cells intersecting the segment (xa, ya) - (xb, yb).
+     * @param xa x coordinate of the first point
+     * @param ya y coordinate of the first point
+     * @param xb x coordinate of the second point
+     * @param yb y coordinate of the second point
+     * @param cells the set of cell indices to fill
+     */
+    public void addSegmentCells(double xa, double ya, double xb, double yb, CellBitmap cells) {
+        addSegmentCells(xa, ya, xb, yb, getRange(), cells);
+    }
+
+    /**
+     * Adds to the set the index of the cells of the range intersecting the segment (xa, ya) - (xb, yb).
+     * The segment is clipped by the range (Liang and Barsky) and the walk starts in the cell where it enters the range,
+     * so the cost depends on the number of cells of the range crossed only.
+     * The cells found are the same as for the whole segment restricted to the range.
+     * @param xa x coordinate of the first point
+     * @param ya y coordinate of the first point
+     * @param xb x coordinate of the second point
+     * @param yb y coordinate of the second point
+     * @param range the range of cells {col1, row1, col2, row2} inclusive, inside the grid
+     * @param cells the set of cell indices to fill
+     */
+    public void addSegmentCells(double xa, double ya, double xb, double yb, int [] range, CellBitmap cells) {
+        // coordinates in cell unit
+        final double ax = (xa - x0) / size, ay = (ya - y0) / size;
+        final double bx = (xb - x0) / size, by = (yb - y0) / size;
+        if(ax == bx || ay == by) {
+            // the segment is parallel to an axis, it may lie on the border of the cells
+            addRange(getLowCell(Math.min(ax, bx)), getLowCell(Math.min(ay, by)), 
+                    (int)Math.floor(Math.max(ax, bx)), (int)Math.floor(Math.max(ay, by)), range, cells);
+            return;
+        }
+        final int stepX = bx > ax ? 1 : -1;
+        final int stepY = by > ay ? 1 : -1;
+        // clips the segment by the closed rectangle of the range
+        final int enterX = stepX > 0 ? range[0] : range[2]+1, exitX = stepX > 0 ? range[2]+1 : range[0];
+        final int enterY = stepY > 0 ? range[1] : range[3]+1, exitY = stepY > 0 ? range[3]+1 : range[1];
+        final double tx = (enterX - ax) / (bx - ax), ty = (enterY - ay) / (by - ay);
+        final double t0 = Math.max(0, Math.max(tx, ty));
+        final double t1 = Math.min(1, Math.min((exitX - ax) / (bx - ax), (exitY - ay) / (by - ay)));
+        if(t0 > t1) {
+            return;
+        }
+        // the end points may touch the neighbour cells
+        addUnitPointCells(ax, ay, range, cells);
+        addUnitPointCells(bx, by, range, cells);
+        
+        int col, row;
+        if(t0 == 0) {
+            col = (int)Math.floor(ax);
+            row = (int)Math.floor(ay);
+        } else {
+            // the entry point lies exactly on the border of the range, 
+            // it may be the corner of cells touching the segment
+            final double ex = t0 == tx ? enterX : ax + t0*(bx - ax);
+            final double ey = t0 == ty ? enterY : ay + t0*(by - ay);
+            addUnitPointCells(ex, ey, range, cells);
+            if(t0 == t1) {
+                return;
+            }
+            // the cell crossed by the segment after the entry point
+            col = stepX > 0 ? (int)Math.floor(ex) : (int)Math.ceil(ex) - 1;
+            row = stepY > 0 ? (int)Math.floor(ey) : (int)Math.ceil(ey) - 1;
+            addCell(col, row, range, cells);
+        }
+        final int endCol = (int)Math.floor(bx), endRow = (int)Math.floor(by);
+        final int lastCol = stepX > 0 ? range[2] : range[0];
+        final int lastRow = stepY > 0 ? range[3] : range[1];
+        final double dx = xb - xa, dy = yb - ya;
+        int nbX = Math.max(0, (endCol - col) * stepX);
+        int nbY = Math.max(0, (endRow - row) * stepY);
+        while(nbX > 0 || nbY > 0) {
+            // the walk is monotonous, it never comes back in the range
+            if((col - lastCol) * stepX > 0 || (row - lastRow) * stepY > 0) {
+                return;
+            }
+            // the side of the next corner of the cell gives the side crossed by the segment,
+            // instead of comparing the parameters of the crossings (Amanatides and Woo), for detecting exactly the corners
+            final double cx = x0 + (stepX > 0 ? col+1 : col)*size;
+            final double cy = y0 + (stepY > 0 ? row+1 : row)*size;
+            final double side = (dx * (cy - ya) - dy * (cx - xa)) * stepX * stepY;
+            if(nbY == 0 || nbX > 0 && side > 0) {
+                col += stepX;
+                nbX--;
+            } else if(nbX == 0 || side < 0) {
+                row += stepY;
+                nbY--;
+            } else {
+                // the segment crosses a corner, the 4 cells touch it
+                addCell(col+stepX, row, range, cells);
+                addCell(col, row+stepY, range, cells);
+                col += stepX;
+                row += stepY;
+                nbX--;
+                nbY--;
+            }
+            addCell(col, row, range, cells);
+        }
+    }
+
+    /**
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return true if the point lies on the border of a cell, it belongs to several cells
+     */
+    public boolean isOnBorder(double x, double y) {
+        final double tx = (x - x0) / size, ty = (y - y0) / size;
+        return tx == Math.floor(tx) || ty == Math.floor(ty);
+    }
+
+    /**
+     * Adds to the set the index of the cells containing the point, 
+     * several cells if the point lies on their border.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param cells the set of cell indices to fill
+     */
+    public void addPointCells(double x, double y, CellBitmap cells) {
+        addUnitPointCells((x - x0) / size, (y - y0) / size, getRange(), cells);
+    }
+
+    /**
+     * Adds the cells of the range containing the point given in cell unit
+     */
+    private void addUnitPointCells(double x, double y, int [] range, CellBitmap cells) {
+        addRange(getLowCell(x), getLowCell(y), (int)Math.floor(x), (int)Math.floor(y), range, cells);
+    }
+
+    /**
+     * @param v coordinate in cell unit
+     * @return the lowest column (or row) whose closed cell contains v
+     */
+    private static int getLowCell(double v) {
+        final double f = Math.floor(v);
+        return (int)(f == v ? f - 1 : f);
+    }
+
+    /**
+     * @return the range of all the cells of the grid
+     */
+    private int[] getRange() {
+        return new int[] {0, 0, width-1, height-1};
+    }
+
+    /**
+     * Adds the cells of [col1-col2]x[row1-row2] which are in the range
+     */
+    private void addRange(int col1, int row1, int col2, int row2, int [] range, CellBitmap cells) {
+        for(int y = Math.max(range[1], row1); y <= Math.min(range[3], row2); y++) {
+            for(int x = Math.max(range[0], col1); x <= Math.min(range[2], col2); x++) {
+                cells.add(getIndex(x, y));
+            }
+        }
+    }
+
+    private void addCell(int col, int row, int [] range, CellBitmap cells) {
+        if(col >= range[0] && col <= range[2] && row >= range[1] && row <= range[3]) {
+            cells.add(getIndex(col, row));
+        }
+    }
+}
@@ -22,7 +22,6 @@ package org.thema.fracgis.method.vector.mono;
 import com.vividsolutions.jts.geom.*;
 import java.awt.Color;
 import java.util.*;
-import org.thema.common.JTS;
 import org.thema.parallel.AbstractParallelTask;
 import org.thema.parallel.ExecutorService;
 import org.thema.common.ProgressBar;
@@ -31,10 +30,10 @@ import org.thema.data.feature.Feature;
 import org.thema.data.feature.FeatureCoverage;
 import org.thema.drawshape.layer.GeometryLayer;
 import org.thema.drawshape.style.SimpleStyle;
+import org.thema.fracgis.method.vector.CellBitmap;
+import org.thema.fracgis.method.vector.FeatureIndex;
+import org.thema.fracgis.method.vector.VirtualGrid;
 import org.thema.fracgis.sampling.DefaultSampling;
-import org.thema.msca.Cell;
-import org.thema.msca.MSCell;
-import org.thema.msca.SquareGrid;
 
 
 /**
@@ -52,38 +51,35 @@ import org.thema.msca.SquareGrid;
  */
 class BoxCountingTask extends AbstractParallelTask<Integer, Integer> {
     private int total = 0;
-    private SquareGrid grid;
-    private FeatureCoverage<Feature> coverage;
+    private VirtualGrid grid;
+    private FeatureIndex index;
     private boolean keepBoxes;
     private List<Geometry> boxes = Collections.synchronizedList(new ArrayList<Geometry>());
 
     /**
      * Creates a new task.
      * @param grid grid containing cells (ie. box)
-     * @param coverage the vector data
+     * @param index the index of the vector data
      * @param keepBoxes keep boxes for displaying ?
      * @param monitor progression monitor
      */
-    BoxCountingTask(SquareGrid grid, FeatureCoverage coverage, boolean keepBoxes, ProgressBar monitor) {
+    BoxCountingTask(VirtualGrid grid, FeatureIndex index, boolean keepBoxes, ProgressBar monitor) {
         super(monitor);
         this.grid = grid;
-        this.coverage = coverage;
+        this.index = index;
         this.keepBoxes = keepBoxes;
     }
     
     @Override
     public Integer execute(int start, int end) {
+        FeatureIndex.CellQuery query = index.createQuery();
         int nb = 0;
         for(int y = start; y < end; y++) {
             for(int x = 0; x < grid.getWidth(); x++) {
-                Polygon cellGeom = grid.getCellGeom(x, y);
-                for(Feature f : coverage.getFeatures(cellGeom.getEnvelopeInternal())) {
-                    if(f.getGeometry().intersects(cellGeom)) {
-                        nb++;
-                        if(keepBoxes) {
-                            boxes.add(cellGeom);
-                        }
-                        break;
+                if(query.intersectsAny(grid, x, y)) {
+                    nb++;
+                    if(keepBoxes) {
+                        boxes.add(grid.getCellGeom(x, y));
                     }
                 }
             }
@@ -121,31 +117,34 @@ class BoxCountingTask extends AbstractParallelTask<Integer, Integer> {
  * This task can be used in threaded mode or MPI.
  * if keepBoxes option is activated, MPI cannot be used.
  * 
- * Faster than previous algorithm in most cases but uses more memory
+ * Faster than previous algorithm in most cases but uses more memory.
+ * The non empty boxes are stored in compressed bitmaps which are merged with a bitwise OR.
+ * The cells crossed by lineal geometries are found by walking each segment across the grid, 
+ * and the cells of polygonal geometries are filled by scanline, without intersection test.
  */
-class BoxCountingTask2 extends AbstractParallelTask<Integer, Collection<Integer>> {
+class BoxCountingTask2 extends AbstractParallelTask<Integer, CellBitmap> {
 // Beaucoup plus rapide que la version précédente pour les petites résolutions (qui sont les plus lentes)
 // La méthode est un peu plus lente que la version précédente pour les résolutions importantes (peu de cellules)
 // mais comme ça reste très rapide dans les 2 cas on peut utiliser cette version dans tous les cas.
 // Le seul problème de la méthode c'est qu'elle peut demander beaucoup de mémoire alors que la précédente ne demande rien 
 // de plus que le coverage
-    private SquareGrid grid;
-    private FeatureCoverage<Feature> coverage;
-    private Set<Integer> allIds = new HashSet<>();
+    private VirtualGrid grid;
+    private FeatureIndex index;
+    private CellBitmap allIds = new CellBitmap();
     private boolean keepBoxes;
     private List<Geometry> boxes;
     
     /**
      * Creates a new task.
      * @param grid grid containing cells (ie. box)
-     * @param coverage the vector data
+     * @param index the index of the vector data
      * @param keepBoxes keep boxes for displaying ?
      * @param monitor progression monitor
      */
-    BoxCountingTask2(SquareGrid grid, FeatureCoverage coverage, boolean keepBoxes, ProgressBar monitor) {
+    BoxCountingTask2(VirtualGrid grid, FeatureIndex index, boolean keepBoxes, ProgressBar monitor) {
         super(monitor);
         this.grid = grid;
-        this.coverage = coverage;
+        this.index = index;
         this.keepBoxes = keepBoxes;
         if(keepBoxes) {
             boxes = Collections.synchronizedList(new ArrayList<Geometry>());
@@ -153,14 +152,36 @@ class BoxCountingTask2 extends AbstractParallelTask<Integer, Collection<Integer>
     }
     
     @Override
-    public Collection<Integer> execute(int start, int end) {
-        Set<Integer> ids = new HashSet<>();
+    public CellBitmap execute(int start, int end) {
+        CellBitmap ids = new CellBitmap();
+        FeatureIndex.CellQuery query = index.createQuery();
         int i = 0;
-        for(Feature f : coverage.getFeatures().subList(start, end)) {
-            List<MSCell> cellsIn = grid.getCellIn(JTS.envToRect(f.getGeometry().getEnvelopeInternal()));
-            for(Cell cell : cellsIn) {
-                if(f.getGeometry().intersects(cell.getGeometry())) {
-                    ids.add(cell.getId());
+        for(int f = start; f < end; f++) {
+            Envelope env = index.getEnvelope(f);
+            if(env.isNull()) {
+                continue;
+            }
+            int [] range = grid.getCellRange(env);
+            if(range[0] == range[2] && range[1] == range[3]) {
+                // the feature lies in one cell, no need to test the intersection
+                ids.add(grid.getIndex(range[0], range[1]));
+            } else if(index.getGeometry(f) instanceof Lineal) {
+                // walks the segments across the grid
+                grid.addCells((Lineal)index.getGeometry(f), ids);
+            } else if(index.getGeometry(f) instanceof Polygonal) {
+                // walks the rings and fills the interior by scanline
+                grid.addCells((Polygonal)index.getGeometry(f), ids);
+            } else {
+                for(int y = range[1]; y <= range[3]; y++) {
+                    for(int x = range[0]; x <= range[2]; x++) {
+                        long id = grid.getIndex(x, y);
+                        if(!ids.contains(id)) {
+                            query.setCell(grid, x, y);
+                            if(query.intersects(f)) {
+                                ids.add(id);
+                            }
+                        }
+                    }
                 }
             }
 
@@ -176,13 +197,13 @@ class BoxCountingTask2 extends AbstractParallelTask<Integer, Collection<Integer>
 
     @Override
     public int getSplitRange() {
-        return coverage.getFeatures().size();
+        return index.size();
     }
 
     @Override
     public void finish() {
         if(keepBoxes) {
-            for(Integer id : allIds) {
+            for(long id : allIds.toArray()) {
                 boxes.add(grid.getCellGeom(id));
             }
         }
@@ -190,12 +211,12 @@ class BoxCountingTask2 extends AbstractParallelTask<Integer, Collection<Integer>
     
     @Override
     public Integer getResult() {
-        return allIds.size();
+        return (int)allIds.getCardinality();
     }
 
     @Override
-    public void gather(Collection<Integer> results) {
-        allIds.addAll(results);
+    public void gather(CellBitmap results) {
+        allIds.or(results);
     }
     
     public List<Geometry> getBoxes() {
@@ -203,10 +224,413 @@ class BoxCountingTask2 extends AbstractParallelTask<Integer, Collection<Integer>
     }
 }
 
+/**
+ * Parallel task for computing box counting on vector data for all scales in one descent.
+ * The sizes must be in decreasing order and each size must be a multiple of the next one,
+ * the grids having the same origin.
+ * 
+ * The cells of the largest size are tested with the spatial index, 
+ * then only the children of the occupied cells are tested, 
+ * against the features intersecting their parent only.
+ * The cost depends on the number of occupied cells, not on the grid area.
+ * For lineal features, the children are found by walking the segments inside the occupied cell only, 
+ * without any JTS predicate.
+ * 
+ * The largest grid has often only a few cells, so when it has less than {@link #MIN_CELLS_BY_PROC} cells by processor,
+ * the occupied cells are expanded level by level before the parallel execution, 
+ * until a level has enough occupied cells to be split between the processors.
+ * 
+ * if keepBoxes option is activated, MPI cannot be used.
+ */
+class HierarchicalBoxCountingTask extends AbstractParallelTask<long[], long[]> {
+    /** minimum number of cells by processor for splitting the descent */
+    static final int MIN_CELLS_BY_PROC = 64;
+    
+    /**
+     * Occupied cells of a level with the features intersecting each of them
+     */
+    private static final class Cells {
+        private long [] ids = new long[16];
+        private final List<int[]> features = new ArrayList<>();
+        
+        private void add(long id, int [] cellFeatures) {
+            if(features.size() == ids.length) {
+                ids = Arrays.copyOf(ids, 2*ids.length);
+            }
+            ids[features.size()] = id;
+            features.add(cellFeatures);
+        }
+        
+        private int size() {
+            return features.size();
+        }
+    }
+    
+    private VirtualGrid [] grids;
+    private int [] ratios;
+    private FeatureIndex index;
+    private boolean keepBoxes;
+    private long [] counts;
+    private List<List<Geometry>> boxes;
+    /** the level of the cells executed in parallel */
+    private int startLevel;
+    /** the occupied cells of startLevel or null if startLevel is the largest grid, which is then tested entirely */
+    private Cells startCells;
+
+    /**
+     * Creates a new task.
+     * The occupied cells of the first levels are counted here, if the largest grid is too small for splitting the work.
+     * @param grids the grids from the largest to the smallest size
+     * @param ratios ratios[i] is the size of grids[i] divided by the size of grids[i+1]
+     * @param index the index of the vector data
+     * @param keepBoxes keep boxes for displaying ?
+     * @param monitor progression monitor
+     */
+    HierarchicalBoxCountingTask(VirtualGrid [] grids, int [] ratios, FeatureIndex index, boolean keepBoxes, ProgressBar monitor) {
+        super(monitor);
+        this.grids = grids;
+        this.ratios = ratios;
+        this.index = index;
+        this.keepBoxes = keepBoxes;
+        counts = new long[grids.length];
+        if(keepBoxes) {
+            boxes = new ArrayList<>();
+            for(int i = 0; i < grids.length; i++) {
+                boxes.add(Collections.synchronizedList(new ArrayList<Geometry>()));
+            }
+        }
+        final int minCells = MIN_CELLS_BY_PROC * Runtime.getRuntime().availableProcessors();
+        startLevel = 0;
+        if(grids[0].getNbCells() < minCells) {
+            FeatureIndex.CellQuery query = index.createQuery();
+            VirtualGrid top = grids[0];
+            startCells = new Cells();
+            for(int row = 0; row < top.getHeight(); row++) {
+                for(int col = 0; col < top.getWidth(); col++) {
+                    int [] features = query.getIntersecting(top, col, row);
+                    if(features.length > 0) {
+                        addBox(counts, 0, col, row);
+                        startCells.add(top.getIndex(col, row), features);
+                    }
+                }
+            }
+            while(startLevel < grids.length-1 && startCells.size() < minCells) {
+                Cells children = new Cells();
+                for(int i = 0; i < startCells.size(); i++) {
+                    addChildren(query, counts, startLevel, startCells.ids[i], startCells.features.get(i), children);
+                }
+                startCells = children;
+                startLevel++;
+            }
+        }
+    }
+
+    @Override
+    public long[] execute(int start, int end) {
+        FeatureIndex.CellQuery query = index.createQuery();
+        long [] nb = new long[grids.length];
+        VirtualGrid top = grids[0];
+        for(int i = start; i < end; i++) {
+            if(startCells != null) {
+                descend(query, nb, startLevel, startCells.ids[i], startCells.features.get(i));
+            } else {
+                int col = i % top.getWidth();
+                int row = i / top.getWidth();
+                int [] features = query.getIntersecting(top, col, row);
+                if(features.length > 0) {
+                    addBox(nb, 0, col, row);
+                    descend(query, nb, 0, top.getIndex(col, row), features);
+                }
+            }
+            incProgress(1);
+        }
+        return nb;
+    }
+
+    /**
+     * Counts the occupied cells under the cell id of the level
+     * @param features the features intersecting the cell
+     */
+    private void descend(FeatureIndex.CellQuery query, long [] nb, int level, long id, int [] features) {
+        if(level == grids.length-1) {
+            return;
+        }
+        Cells children = new Cells();
+        addChildren(query, nb, level, id, features, children);
+        for(int i = 0; i < children.size(); i++) {
+            descend(query, nb, level+1, children.ids[i], children.features.get(i));
+        }
+    }
+    
+    /**
+     * Counts the occupied children of the cell id of the level and adds them to children.
+     * The children crossed by a lineal feature are found by walking its segments inside the cell only,
+     * the other features are tested on each child.
+     * @param features the features intersecting the cell
+     */
+    private void addChildren(FeatureIndex.CellQuery query, long [] nb, int level, long id, int [] features, Cells children) {
+        final int col = grids[level].getIndexCol(id);
+        final int row = grids[level].getIndexRow(id);
+        final VirtualGrid grid = grids[level+1];
+        final int k = ratios[level];
+        final int [] range = {col*k, row*k, Math.min(grid.getWidth(), (col+1)*k) - 1, Math.min(grid.getHeight(), (row+1)*k) - 1};
+        // pairs (child, feature) with the child index in the parent cell in the high bits
+        long [] pairs = new long[4*features.length];
+        int nbPairs = 0;
+        int [] others = new int[features.length];
+        int nbOthers = 0;
+        for(int f : features) {
+            Geometry geom = index.getGeometry(f);
+            if(geom instanceof Lineal) {
+                CellBitmap cells = new CellBitmap();
+                grid.addCells((Lineal)geom, range, cells);
+                for(long cell : cells.toArray()) {
+                    if(nbPairs == pairs.length) {
+                        pairs = Arrays.copyOf(pairs, 2*nbPairs);
+                    }
+                    pairs[nbPairs++] = getPair(grid.getIndexCol(cell)-range[0], grid.getIndexRow(cell)-range[1], k, f);
+                }
+            } else {
+                others[nbOthers++] = f;
+            }
+        }
+        if(nbOthers > 0) {
+            for(int y = range[1]; y <= range[3]; y++) {
+                for(int x = range[0]; x <= range[2]; x++) {
+                    query.setCell(grid, x, y);
+                    for(int i = 0; i < nbOthers; i++) {
+                        if(query.intersects(others[i])) {
+                            if(nbPairs == pairs.length) {
+                                pairs = Arrays.copyOf(pairs, 2*nbPairs);
+                            }
+                            pairs[nbPairs++] = getPair(x-range[0], y-range[1], k, others[i]);
+                        }
+                    }
+                }
+            }
+        }
+        // groups the features by child
+        Arrays.sort(pairs, 0, nbPairs);
+        int [] childFeatures = new int[features.length];
+        int i = 0;
+        while(i < nbPairs) {
+            final int child = (int)(pairs[i] >>> 32);
+            int n = 0;
+            while(i < nbPairs && (int)(pairs[i] >>> 32) == child) {
+                childFeatures[n++] = (int)pairs[i++];
+            }
+            final int x = range[0] + child % k;
+            final int y = range[1] + child / k;
+            addBox(nb, level+1, x, y);
+            children.add(grid.getIndex(x, y), Arrays.copyOf(childFeatures, n));
+        }
+    }
+    
+    /**
+     * @return the child (x, y) of a parent cell with the feature f packed in a long
+     */
+    private static long getPair(int x, int y, int k, int f) {
+        return ((long)(y*k + x) << 32) | f;
+    }
+
+    private void addBox(long [] nb, int level, int col, int row) {
+        nb[level]++;
+        if(keepBoxes) {
+            boxes.get(level).add(grids[level].getCellGeom(col, row));
+        }
+    }
+
+    @Override
+    public int getSplitRange() {
+        return startCells != null ? startCells.size() : (int)grids[0].getNbCells();
+    }
+
+    @Override
+    public long[] getResult() {
+        return counts;
+    }
+
+    @Override
+    public void gather(long[] results) {
+        for(int i = 0; i < counts.length; i++) {
+            counts[i] += results[i];
+        }
+    }
+
+    /**
+     * @param level the level of the grid
+     * @return the occupied boxes of the level
+     */
+    public List<Geometry> getBoxes(int level) {
+        return boxes.get(level);
+    }
+}
+
+/**
+ * Parallel task for computing box counting on point data for only one scale and grid position.
+ * The cell index of each point is stored in an array shared by all sizes, 
+ * each block of points is sorted and its distinct indices are counted by merging the sorted blocks.
+ * A point lying on the border of cells belongs to all these cells, as for the intersection test.
+ * 
+ * if keepBoxes option is activated, MPI cannot be used.
+ */
+class PointBoxCountingTask extends AbstractParallelTask<Long, PointBoxCountingTask.Block> {
+    
+    /**
+     * Sorted distinct cell indices of a block of points and the cells of the points lying on a border
+     */
+    static final class Block {
+        private final int start, end;
+        private final CellBitmap border;
+
+        private Block(int start, int end, CellBitmap border) {
+            this.start = start;
+            this.end = end;
+            this.border = border;
+        }
+    }
+    
+    private VirtualGrid grid;
+    private double [] xs, ys;
+    private long [] keys;
+    private boolean keepBoxes;
+    private List<Block> blocks = new ArrayList<>();
+    private long total;
+    private List<Geometry> boxes;
+
+    /**
+     * Creates a new task.
+     * @param grid the grid
+     * @param xs the x coordinates of the points
+     * @param ys the y coordinates of the points
+     * @param keys an array of the same length, used as working space
+     * @param keepBoxes keep boxes for displaying ?
+     * @param monitor progression monitor
+     */
+    PointBoxCountingTask(VirtualGrid grid, double [] xs, double [] ys, long [] keys, boolean keepBoxes, ProgressBar monitor) {
+        super(monitor);
+        this.grid = grid;
+        this.xs = xs;
+        this.ys = ys;
+        this.keys = keys;
+        this.keepBoxes = keepBoxes;
+        if(keepBoxes) {
+            boxes = new ArrayList<>();
+        }
+    }
+
+    @Override
+    public Block execute(int start, int end) {
+        CellBitmap border = new CellBitmap();
+        for(int i = start; i < end; i++) {
+            keys[i] = grid.getPointIndex(xs[i], ys[i]);
+            if(grid.isOnBorder(xs[i], ys[i])) {
+                grid.addPointCells(xs[i], ys[i], border);
+            }
+        }
+        Arrays.sort(keys, start, end);
+        int n = start;
+        for(int i = start; i < end; i++) {
+            if(i == start || keys[i] != keys[i-1]) {
+                keys[n++] = keys[i];
+            }
+        }
+        incProgress(end-start);
+        return new Block(start, n, border);
+    }
+
+    @Override
+    public int getSplitRange() {
+        return xs.length;
+    }
+
+    @Override
+    public void gather(Block block) {
+        blocks.add(block);
+    }
+
+    /**
+     * Counts the distinct indices by merging the sorted blocks
+     */
+    @Override
+    public void finish() {
+        CellBitmap cells = keepBoxes ? new CellBitmap() : null;
+        final int k = blocks.size();
+        final int [] pos = new int[k];
+        for(int j = 0; j < k; j++) {
+            pos[j] = blocks.get(j).start;
+        }
+        long nb = 0;
+        while(true) {
+            long min = Long.MAX_VALUE;
+            for(int j = 0; j < k; j++) {
+                if(pos[j] < blocks.get(j).end && keys[pos[j]] < min) {
+                    min = keys[pos[j]];
+                }
+            }
+            if(min == Long.MAX_VALUE) {
+                break;
+            }
+            nb++;
+            if(keepBoxes) {
+                cells.add(min);
+            }
+            for(int j = 0; j < k; j++) {
+                if(pos[j] < blocks.get(j).end && keys[pos[j]] == min) {
+                    pos[j]++;
+                }
+            }
+        }
+        // adds the other cells of the points lying on a border
+        CellBitmap border = new CellBitmap();
+        for(Block block : blocks) {
+            border.or(block.border);
+        }
+        for(long id : border.toArray()) {
+            if(!contains(id)) {
+                nb++;
+                if(keepBoxes) {
+                    cells.add(id);
+                }
+            }
+        }
+        total = nb;
+        if(keepBoxes) {
+            for(long id : cells.toArray()) {
+                boxes.add(grid.getCellGeom(id));
+            }
+        }
+    }
+    
+    private boolean contains(long id) {
+        for(Block block : blocks) {
+            if(Arrays.binarySearch(keys, block.start, block.end, id) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Long getResult() {
+        return total;
+    }
+
+    public List<Geometry> getBoxes() {
+        return boxes;
+    }
+}
+
 /**
  * Box counting method for vector data.
  * Box counting algorithm calculates the Minkowski–Bouligand dimension.
  * It can be optimized by gliding grid.
+ * Without gliding grid, if each size is a multiple of the previous one (geometric sequence with integer coefficient),
+ * all the sizes are counted in one top-down descent, except for polygonal data.
+ * For lineal data, the cells are found by walking the segments, inside the occupied cells of the previous size in the descent,
+ * or across the grid of each size and position otherwise.
+ * For polygonal data, the cells are found by walking the segments of the rings, the interior being filled by scanline.
+ * For point data, the coordinates are read once and the distinct cells are counted by sorting the cell indices.
  * 
  * @author Gilles Vuidel
  */
@@ -252,94 +676,85 @@ public class BoxCountingMethod extends MonoVectorMethod {
         this.keepBoxes = keepBoxes;
     }
 
+    /**
+     * The grids are virtual : the cells are calculated from the coordinates
+     * and their geometries are created only when needed.
+     * The features are indexed once with their prepared geometries for all sizes and grid positions.
+     */
     @Override
     public void execute(ProgressBar monitor, boolean parallel) {
-        HashMap<Double, List<SquareGrid>> grids = new HashMap<>();
         SortedSet<Double> sizes = getSampling().getValues();
         curve = new TreeMap<>();
         
         Envelope env = new Envelope(getDataEnvelope());
         env.init(env.getMinX()-sizes.last()*1.001, env.getMaxX(), env.getMinY()-sizes.last()*1.001, env.getMaxY());
-        for(double size : sizes) {
-            List<SquareGrid> gridSize = new ArrayList<>();
-            int nx = (int)Math.ceil(Math.ceil(env.getWidth() / (double)size) / 40000.0);
-            int ny = (int)Math.ceil(Math.ceil(env.getHeight() / (double)size) / 40000.0);
-            int w = (int)Math.ceil((env.getWidth() / (double)nx) / size);
-            int h = (int)Math.ceil((env.getHeight() / (double)ny) / size);
-            Coordinate start = new Coordinate(env.getMinX(), env.getMinY());
-            for(int x = 0; x < nx; x++) {
-                start.y = env.getMinY();
-                SquareGrid grid = null;
-                for(int y = 0; y < ny; y++) {
-                    grid = new SquareGrid(start, size, w, h);
-                    start.y = grid.getEnvelope().getMaxY();
-                    gridSize.add(grid);
-                }
-                start.x = grid.getEnvelope().getMaxX();
-            }
-            grids.put(size, gridSize);
-        }
-        FeatureCoverage<Feature> coverage = getCoverage();
         monitor.setMaximum(sizes.size()*100);
         monitor.setProgress(0);
+        
+        // point data does not need the index
+        double [][] points = getPoints();
+        long [] keys = points != null ? new long[points[0].length] : null;
+        // the index and the prepared geometries are shared by all sizes and grid positions
+        FeatureIndex index = points == null ? new FeatureIndex(getCoverage().getFeatures()) : null;
+        
+        int [] ratios = getRatios(sizes);
+        // lineal and polygonal data are rasterized directly over each grid when they are not counted in one descent
+        final boolean rasterize = points == null && (index.isLineal() || index.isPolygonal());
+        // polygonal data are always filled by scanline, the descent would test the intersection of each cell of the interior
+        if(d == 1 && ratios != null && points == null && !index.isPolygonal() && new VirtualGrid(env, sizes.last()).getNbCells() <= Integer.MAX_VALUE) {
+            executeHierarchical(env, index, ratios, monitor, parallel);
+            return;
+        }
+        
         int i = 0;
         for(double size : sizes) {
             int n = d == 1 ? 1 : (int)(d * Math.pow(Math.pow(getSampling().getCoef(), 0.3), i));
             double delta = size / n;
             monitor.setNote("Resolution : " + size);
+            VirtualGrid sizeGrid = new VirtualGrid(env, size);
             // if d > 1 : move the grid in the 2d space
             for(double dx = 0; dx < size; dx += delta) {
                 for(double dy = 0; dy < size; dy += delta) {
-                    List<Geometry> cells = new ArrayList<>();
-                    long sum = 0;
-                    for(SquareGrid grid : grids.get(size)) {
-                        grid = grid.createTranslatedGrid(dx, dy);
+                    VirtualGrid grid = sizeGrid.createTranslatedGrid(dx, dy);
+                    List<Geometry> cells;
+                    long sum;
+                    if(points != null) {
+                        PointBoxCountingTask task = new PointBoxCountingTask(grid, points[0], points[1], keys, keepBoxes,
+                                monitor.getSubProgress(100.0/(n*n)));
+                        if(parallel) {
+                            ExecutorService.execute(task);
+                        } else {
+                            ExecutorService.executeSequential(task);
+                        }
+                        sum = task.getResult();
+                        cells = task.getBoxes();
+                    } else if(!rasterize && grid.getNbCells() < index.size()) {
                         // if there are more vector elements than cells grid -> use algo 1 else use algo 2
-                        if(grid.getWidth()*grid.getHeight() < coverage.getFeatures().size()) {
-//                            long t1 = System.currentTimeMillis();
-                            BoxCountingTask task = new BoxCountingTask(grid, coverage,  keepBoxes,
-                                    monitor.getSubProgress(100.0/(grids.get(size).size()*n*n)));
-                            if(parallel) {
-                                ExecutorService.execute(task);
-                            } else {
-                                ExecutorService.executeSequential(task);
-                            }
-//                            long t2 = System.currentTimeMillis();
-//                            System.out.println("" + size + " - " + (t2-t1));
-                            sum += task.getResult();
-                            if(keepBoxes) {
-                                cells.addAll(task.getBoxes());
-                            }
-            
+                        BoxCountingTask task = new BoxCountingTask(grid, index, keepBoxes,
+                                monitor.getSubProgress(100.0/(n*n)));
+                        if(parallel) {
+                            ExecutorService.execute(task);
                         } else {
-//                            long t1 = System.currentTimeMillis();
-                            BoxCountingTask2 task = new BoxCountingTask2(grid, coverage, keepBoxes, 
-                                    monitor.getSubProgress(100.0/(grids.get(size).size()*n*n)));
-                            if(parallel) {
-                                ExecutorService.execute(task);
-                            } else {
-                                ExecutorService.executeSequential(task);
-                            }
-//                            long t2 = System.currentTimeMillis();
-//                            System.out.println("" + size + " - " + (t2-t1));
-                            sum += task.getResult();
-                            if(keepBoxes) {
-                                cells.addAll(task.getBoxes());
-                            }
+                            ExecutorService.executeSequential(task);
                         }
-
+                        sum = task.getResult();
+                        cells = task.getBoxes();
+                    } else {
+                        BoxCountingTask2 task = new BoxCountingTask2(grid, index, keepBoxes, 
+                                monitor.getSubProgress(100.0/(n*n)));
+                        if(parallel) {
+                            ExecutorService.execute(task);
+                        } else {
+                            ExecutorService.executeSequential(task);
+                        }
+                        sum = task.getResult();
+                        cells = task.getBoxes();
                     }
                     // add the result to the curve if it does not exist or update if is better (ie. smaller)
                     if(!curve.containsKey(size) || sum < curve.get(size)) {
                         curve.put(size, (double)sum);
                         if(keepBoxes) {
-                            String name = String.format("%g", size);
-                            if(getGroupLayer().getLayer(name) != null) { // si il existe déjà on l'enlève
-                                getGroupLayer().removeLayer(getGroupLayer().getLayer(name));
-                            }
-                            GeometryLayer l = new GeometryLayer(name, new GeometryFactory().buildGeometry(cells), new SimpleStyle(Color.BLACK));
-                            l.setVisible(false);
-                            getGroupLayer().addLayerFirst(l);
+                            addBoxLayer(size, cells);
                         }
                     }
                 }
@@ -348,6 +763,94 @@ public class BoxCountingMethod extends MonoVectorMethod {
         }
 
     }
+    
+    /**
+     * @return the x and y coordinates of all the points, or null if the data are not only points
+     */
+    private double[][] getPoints() {
+        List<Feature> features = getCoverage().getFeatures();
+        int n = 0;
+        for(Feature f : features) {
+            if(!(f.getGeometry() instanceof Puntal)) {
+                return null;
+            }
+            n += f.getGeometry().getNumPoints();
+        }
+        double [] xs = new double[n];
+        double [] ys = new double[n];
+        int i = 0;
+        for(Feature f : features) {
+            Geometry g = f.getGeometry();
+            for(int j = 0; j < g.getNumGeometries(); j++) {
+                Point p = (Point) g.getGeometryN(j);
+                if(!p.isEmpty()) {
+                    xs[i] = p.getX();
+                    ys[i] = p.getY();
+                    i++;
+                }
+            }
+        }
+        return new double[][] {xs, ys};
+    }
+    
+    /**
+     * Counts the boxes of all sizes in one descent from the largest size
+     */
+    private void executeHierarchical(Envelope env, FeatureIndex index, int [] ratios, ProgressBar monitor, boolean parallel) {
+        List<Double> sizes = new ArrayList<>(getSampling().getValues());
+        Collections.reverse(sizes);
+        VirtualGrid [] grids = new VirtualGrid[sizes.size()];
+        for(int i = 0; i < grids.length; i++) {
+            grids[i] = new VirtualGrid(env, sizes.get(i));
+        }
+        monitor.setNote("Resolution : " + sizes.get(0) + " - " + sizes.get(sizes.size()-1));
+        HierarchicalBoxCountingTask task = new HierarchicalBoxCountingTask(grids, ratios, index, keepBoxes,
+                monitor.getSubProgress(sizes.size()*100));
+        if(parallel) {
+            ExecutorService.execute(task);
+        } else {
+            ExecutorService.executeSequential(task);
+        }
+        long [] counts = task.getResult();
+        for(int i = 0; i < grids.length; i++) {
+            curve.put(sizes.get(i), (double)counts[i]);
+            if(keepBoxes) {
+                addBoxLayer(sizes.get(i), task.getBoxes(i));
+            }
+        }
+    }
+    
+    /**
+     * Adds or replaces the layer of the boxes of this size
+     */
+    private void addBoxLayer(double size, List<Geometry> cells) {
+        String name = String.format("%g", size);
+        if(getGroupLayer().getLayer(name) != null) { // si il existe déjà on l'enlève
+            getGroupLayer().removeLayer(getGroupLayer().getLayer(name));
+        }
+        GeometryLayer l = new GeometryLayer(name, new GeometryFactory().buildGeometry(cells), new SimpleStyle(Color.BLACK));
+        l.setVisible(false);
+        getGroupLayer().addLayerFirst(l);
+    }
+    
+    /**
+     * @param sizes the sizes in increasing order
+     * @return the integer ratios between consecutive sizes from the largest one, 
+     *          or null if a size is not a multiple of the previous one
+     */
+    private static int[] getRatios(SortedSet<Double> sizes) {
+        List<Double> list = new ArrayList<>(sizes);
+        int [] ratios = new int[list.size()-1];
+        for(int i = 0; i < ratios.length; i++) {
+            double r = list.get(list.size()-1-i) / list.get(list.size()-2-i);
+            long k = Math.round(r);
+            if(k < 2 || k > 1024 || Math.abs(r - k) > 1e-9 * k) {
+                return null;
+            }
+            ratios[i] = (int)k;
+        }
+        return ratios;
+    }
 
     @Override
     public int getDimSign() {
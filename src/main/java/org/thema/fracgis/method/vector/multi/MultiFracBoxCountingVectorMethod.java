@@ -20,18 +20,15 @@
 package org.thema.fracgis.method.vector.multi;
 
 import org.thema.fracgis.method.QMonoMethod;
-import org.thema.fracgis.method.MultiFracMethod;
+import org.thema.fracgis.method.MultiFracSpectrumMethod;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Lineal;
 import com.vividsolutions.jts.geom.Puntal;
-import java.awt.image.DataBuffer;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -39,23 +36,133 @@ import org.thema.common.ProgressBar;
 import org.thema.data.feature.Feature;
 import org.thema.data.feature.FeatureCoverage;
 import org.thema.fracgis.method.MonoMethod;
+import org.thema.fracgis.method.PartitionCurves;
+import org.thema.fracgis.method.PartitionFunction;
 import org.thema.fracgis.method.vector.VectorMethod;
+import org.thema.fracgis.method.vector.VirtualGrid;
 import org.thema.fracgis.sampling.DefaultSampling;
-import org.thema.msca.SquareGrid;
-import org.thema.msca.operation.SimpleCoverageOperation;
+import org.thema.parallel.AbstractParallelTask;
+import org.thema.parallel.ExecutorService;
+
+/**
+ * Parallel task for computing the mass of each box of a grid on vector data.
+ * The mass is the number of points, the length of lines or the area of polygons contained in the box.
+ * Only the non empty boxes are stored, by their index in the grid.
+ */
+class MassTask extends AbstractParallelTask<Map<Long, double[]>, Map<Long, double[]>> {
+    private VirtualGrid grid;
+    private List<Feature> features;
+    private int geomType;
+    private Map<Long, double[]> masses = new HashMap<>();
+
+    /**
+     * Creates a new task.
+     * @param grid the virtual grid
+     * @param features the vector data
+     * @param geomType 1 for points, 2 for lines, 3 for polygons
+     * @param monitor progression monitor
+     */
+    MassTask(VirtualGrid grid, List<Feature> features, int geomType, ProgressBar monitor) {
+        super(monitor);
+        this.grid = grid;
+        this.features = features;
+        this.geomType = geomType;
+    }
+
+    @Override
+    public Map<Long, double[]> execute(int start, int end) {
+        Map<Long, double[]> result = new HashMap<>();
+        int i = 0;
+        for(Feature f : features.subList(start, end)) {
+            Geometry geom = f.getGeometry();
+            if(geomType == 1) {
+                // each point belongs to one cell only
+                for(Coordinate c : geom.getCoordinates()) {
+                    add(result, grid.getPointIndex(c.x, c.y), 1);
+                }
+            } else {
+                int [] range = grid.getCellRange(geom.getEnvelopeInternal());
+                if(range[0] == range[2] && range[1] == range[3]) {
+                    add(result, grid.getIndex(range[0], range[1]), getMass(geom));
+                } else {
+                    for(int y = range[1]; y <= range[3]; y++) {
+                        for(int x = range[0]; x <= range[2]; x++) {
+                            Geometry cell = grid.getCellGeom(x, y);
+                            if(geom.intersects(cell)) {
+                                add(result, grid.getIndex(x, y), getMass(geom.intersection(cell)));
+                            }
+                        }
+                    }
+                }
+            }
+            i++;
+            if((i % 50) == 0) {
+                incProgress(50);
+            }
+        }
+        incProgress(i%50);
+        
+        return result;
+    }
+
+    private double getMass(Geometry geom) {
+        return geomType == 2 ? geom.getLength() : geom.getArea();
+    }
+    
+    private static void add(Map<Long, double[]> masses, long id, double mass) {
+        if(mass <= 0) {
+            return;
+        }
+        double [] m = masses.get(id);
+        if(m == null) {
+            masses.put(id, new double[] {mass});
+        } else {
+            m[0] += mass;
+        }
+    }
+    
+    @Override
+    public int getSplitRange() {
+        return features.size();
+    }
+
+    @Override
+    public Map<Long, double[]> getResult() {
+        return masses;
+    }
+
+    @Override
+    public void gather(Map<Long, double[]> results) {
+        for(Map.Entry<Long, double[]> entry : results.entrySet()) {
+            add(masses, entry.getKey(), entry.getValue()[0]);
+        }
+    }
+    
+    /**
+     * @return the mass of the non empty boxes
+     */
+    public double[] getMasses() {
+        double [] array = new double[masses.size()];
+        int i = 0;
+        for(double [] m : masses.values()) {
+            array[i++] = m[0];
+        }
+        return array;
+    }
+}
 
 /**
  * Multifractal analysis with boxcounting and vector data.
  * 
+ * The grids are virtual, only the masses of the non empty boxes are stored.
+ * 
  * @author Gilles Vuidel
  */
-public class MultiFracBoxCountingVectorMethod extends VectorMethod implements MultiFracMethod {
+public class MultiFracBoxCountingVectorMethod extends VectorMethod implements MultiFracSpectrumMethod {
     
-    private HashMap<Double, List<SquareGrid>> grids;
     private double total;
     private int geomType; 
-    
-    private transient TreeMap<Double, TreeMap<Double, Double>> cacheCurves;
+    private PartitionCurves curves;
     
     /**
      * Creates a new multifractal box counting method for vector data.
@@ -65,7 +172,6 @@ public class MultiFracBoxCountingVectorMethod extends VectorMethod implements Mu
      */
     public MultiFracBoxCountingVectorMethod(String inputName, DefaultSampling sampling, FeatureCoverage cover) {
         super(inputName, sampling, cover);
-        this.cacheCurves = new TreeMap<>();
     }
 
     @Override
@@ -92,57 +198,23 @@ public class MultiFracBoxCountingVectorMethod extends VectorMethod implements Mu
             }
         }
         SortedSet<Double> sizes = getSampling().getValues();
-        grids = new HashMap<>();
         Envelope env = new Envelope(getDataEnvelope());
         env.init(env.getMinX()-sizes.last()*1.001, env.getMaxX(), env.getMinY()-sizes.last()*1.001, env.getMaxY());
-        for(double size : sizes) {
-            List<SquareGrid> gridSize = new ArrayList<>();
-            int nx = (int)Math.ceil(Math.ceil(env.getWidth() / (double)size) / 40000.0);
-            int ny = (int)Math.ceil(Math.ceil(env.getHeight() / (double)size) / 40000.0);
-            int w = (int)Math.ceil((env.getWidth() / (double)nx) / size);
-            int h = (int)Math.ceil((env.getHeight() / (double)ny) / size);
-            Coordinate start = new Coordinate(env.getMinX(), env.getMinY());
-            for(int x = 0; x < nx; x++) {
-                start.y = env.getMinY();
-                SquareGrid grid = null;
-                for(int y = 0; y < ny; y++) {
-                    grid = new SquareGrid(start, size, w, h);
-                    grid.addLayer("sum", DataBuffer.TYPE_FLOAT, 0.0);
-                    start.y = grid.getEnvelope().getMaxY();
-                    gridSize.add(grid);
-                }
-                start.x = grid.getEnvelope().getMaxX();
-            }
-            grids.put(size, gridSize);
-        }
 
         monitor.setMaximum(sizes.size()*100);
         monitor.setProgress(0);
+        PartitionFunction partition = new PartitionFunction(total);
         for(double size : sizes) {
             monitor.setNote("Resolution : " + size);
-            for(SquareGrid grid : grids.get(size)) {     
-                SimpleCoverageOperation op;
-                switch(geomType) {
-                    case 1:
-                        op = new SimpleCoverageOperation(SimpleCoverageOperation.NBFEATURE, "sum", getCoverage());
-                        break;
-                    case 2:
-                        op = new SimpleCoverageOperation(SimpleCoverageOperation.LENGTH, "sum", getCoverage());
-                        break;
-                    default:
-                        op = new SimpleCoverageOperation(SimpleCoverageOperation.AREA, "sum", getCoverage());
-                }
-                
-                op.setMonitor(monitor.getSubProgress(100.0/(grids.get(size).size())));
-                if(parallel) {
-                    grid.executeThreaded(op);
-                } else {
-                    grid.execute(op);
-                }
+            MassTask task = new MassTask(new VirtualGrid(env, size), getCoverage().getFeatures(), geomType, monitor.getSubProgress(100));
+            if(parallel) {
+                ExecutorService.execute(task);
+            } else {
+                ExecutorService.executeSequential(task);
             }
-
+            partition.addScale(size, task.getMasses());
         }
-
+        curves = new PartitionCurves(partition);
     }
 
     @Override
@@ -161,58 +233,23 @@ public class MultiFracBoxCountingVectorMethod extends VectorMethod implements Mu
     }
     
     @Override
-    public synchronized TreeMap<Double, Double> getCurve(double q) {
-        if(!cacheCurves.containsKey(q)) {
-            calcCurves(Collections.singleton(q));
-        }
-        return cacheCurves.get(q);
+    public TreeMap<Double, Double> getCurve(double q) {
+        return curves.getCurve(q);
     }
     
     @Override
     public TreeMap<Double, TreeMap<Double, Double>> getCurves(TreeSet<Double> qs) {
-        calcCurves(qs);
-        TreeMap<Double, TreeMap<Double, Double>> curves = new TreeMap<>();
-        for(Double q : qs) {
-            curves.put(q, cacheCurves.get(q));
-        }
-        return curves;
+        return curves.getCurves(qs);
     }
     
-    private void calcCurves(Set<Double> qSet) {
-        List<Double> qList = new ArrayList<>();
-        for(Double q : qSet) {
-            if(!cacheCurves.containsKey(q)) {
-                qList.add(q);
-                cacheCurves.put(q, new TreeMap<Double, Double>());
-            }
-        }
-        for(Double size : grids.keySet()) {
-            double [] sum = new double[qList.size()];
-            for(SquareGrid grid : grids.get(size)) {
-                DataBuffer buf = grid.getRaster("sum").getDataBuffer();
-                for(int j = 0; j < buf.getSize(); j++) {
-                    float val = buf.getElemFloat(j);
-                    if(val > 0) {
-                        for(int k = 0; k < sum.length; k++) {
-                            double q = qList.get(k);
-                            if(q == 1) { // information dimension D1
-                                sum[k] += val / total * Math.log(val / total);
-                            } else {
-                                sum[k] += Math.pow(val / total, q);
-                            }
-                        }
-                    }
-                }
-            }
-            for(int k = 0; k < sum.length; k++) {
-                double q = qList.get(k);
-                if(q == 1) { // information dimension D1
-                    cacheCurves.get(q).put(size, Math.exp(sum[k]));
-                } else {
-                    cacheCurves.get(q).put(size, sum[k]);
-                }
-            }
-        }  
+    @Override
+    public TreeMap<Double, TreeMap<Double, Double>> getAlphaCurves(TreeSet<Double> qs) {
+        return curves.getAlphaCurves(qs);
+    }
+    
+    @Override
+    public TreeMap<Double, TreeMap<Double, Double>> getFCurves(TreeSet<Double> qs) {
+        return curves.getFCurves(qs);
     }
     
 }
@@ -32,6 +32,7 @@ import org.thema.data.feature.DefaultFeature;
 import org.thema.data.feature.DefaultFeatureCoverage;
 import org.thema.data.feature.FeatureCoverage;
 import org.thema.fracgis.method.MonoMethod;
+import org.thema.fracgis.method.PartitionFunction;
 import org.thema.fracgis.method.vector.VectorMethod;
 import org.thema.fracgis.method.vector.mono.CorrelationMethod;
 import org.thema.fracgis.sampling.DefaultSampling;
@@ -47,7 +48,7 @@ public class MultiFracCorrelationVectorMethod extends VectorMethod implements Mu
     
     private int nbPoints;
     private double maxSize;
-    private transient List<int[]> count;
+    private transient PartitionFunction partition;
     private transient TreeMap<Double, TreeMap<Double, Double>> cacheCurves;
     
     /**
@@ -66,7 +67,7 @@ public class MultiFracCorrelationVectorMethod extends VectorMethod implements Mu
         final DefaultFeatureCoverage<DefaultFeature> pointCov = CorrelationMethod.flattenPoints(getCoverage().getFeatures());
         nbPoints = pointCov.getFeatures().size();
         maxSize = Math.sqrt(Math.pow(getCoverage().getEnvelope().getWidth(), 2) + Math.pow(getCoverage().getEnvelope().getHeight(), 2));
-        count = new ArrayList<>();
+        final List<int[]> count = new ArrayList<>();
         
         SimpleParallelTask<DefaultFeature, int[]> task = new SimpleParallelTask<DefaultFeature, int[]>(pointCov.getFeatures(), monitor) {
             @Override
@@ -90,6 +91,17 @@ public class MultiFracCorrelationVectorMethod extends VectorMethod implements Mu
             ExecutorService.executeSequential(task);
         }
         
+        // the measure of each point is its cumulated count for each size
+        partition = new PartitionFunction(nbPoints);
+        int i = 0;
+        for(double size : getSampling().getValues()) {
+            double [] nb = new double[count.size()];
+            for(int j = 0; j < nb.length; j++) {
+                nb[j] = count.get(j)[i];
+            }
+            partition.addScale(size / maxSize, nb);
+            i++;
+        }
     }
 
     @Override
@@ -116,7 +128,7 @@ public class MultiFracCorrelationVectorMethod extends VectorMethod implements Mu
     }
     
     @Override
-    public TreeMap<Double, TreeMap<Double, Double>> getCurves(TreeSet<Double> qs) {
+    public synchronized TreeMap<Double, TreeMap<Double, Double>> getCurves(TreeSet<Double> qs) {
         calcCurves(qs);
         TreeMap<Double, TreeMap<Double, Double>> curves = new TreeMap<>();
         for(Double q : qs) {
@@ -125,40 +137,34 @@ public class MultiFracCorrelationVectorMethod extends VectorMethod implements Mu
         return curves;
     }
     
+    /**
+     * The correlation curve is sum(mu^(q-1)) / nbPoints over the points, with mu the proportion of points
+     * in the neighbourhood of the point, and exp(sum(mu*log(mu))) for q = 1.
+     */
     private void calcCurves(Set<Double> qSet) {
         List<Double> qList = new ArrayList<>();
         for(Double q : qSet) {
             if(!cacheCurves.containsKey(q)) {
                 qList.add(q);
-                cacheCurves.put(q, new TreeMap<Double, Double>());
             }
         }
-        int i = 0;
-        for(double size : getSampling().getValues()) {
-            double [] sum = new double[qList.size()];
-            for(int [] nb : count) {
-                double val = nb[i];
-                
-                for(int k = 0; k < sum.length; k++) {
-                    double q = qList.get(k);
-                    if(q == 1) { // information dimension D1
-                        sum[k] += val / nbPoints * Math.log(val / nbPoints);
-                    } else {
-                        sum[k] += Math.pow(val / nbPoints, q-1);
-                    }
-                }
-
-
-                for(int k = 0; k < sum.length; k++) {
-                    double q = qList.get(k);
-                    if(q == 1) { // information dimension D1
-                        cacheCurves.get(q).put(size / maxSize, Math.exp(sum[k]));
-                    } else {
-                        cacheCurves.get(q).put(size / maxSize, sum[k] / nbPoints);
-                    }
+        double [] exps = new double[qList.size()];
+        for(int k = 0; k < exps.length; k++) {
+            exps[k] = qList.get(k) == 1 ? 0 : qList.get(k) - 1;
+        }
+        double [][] sums = partition.getSums(exps);
+        double [] infoSums = qList.contains(1.0) ? partition.getInfoSums() : null;
+        for(int k = 0; k < exps.length; k++) {
+            double q = qList.get(k);
+            TreeMap<Double, Double> curve = new TreeMap<>();
+            for(int i = 0; i < partition.getNbScales(); i++) {
+                if(q == 1) { // information dimension D1
+                    curve.put(partition.getScale(i), Math.exp(infoSums[i]));
+                } else {
+                    curve.put(partition.getScale(i), sums[k][i] / nbPoints);
                 }
-            }  
-            i++;
+            }
+            cacheCurves.put(q, curve);
         }
     }
     
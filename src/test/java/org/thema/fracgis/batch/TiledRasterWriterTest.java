@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.batch;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.awt.Point;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.thema.data.IOImage;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class TiledRasterWriterTest {
+
+    /**
+     * Test of writeBlock and writeGeoTiffs methods, of class TiledRasterWriter.
+     * The writer is closed after the first block and resumed.
+     */
+    @Test
+    public void testResume() throws IOException {
+        System.out.println("resume");
+        File dir = Files.createTempDirectory("tiledwriter").toFile();
+        String [] bands = new String[] {"a", "b"};
+        int width = 300, height = 70, blockHeight = 32;
+        TiledRasterWriter writer = new TiledRasterWriter(dir, bands, width, height, blockHeight, "test");
+        assertEquals(3, writer.getNbBlocks());
+        writer.writeBlock(0, createBlock(0, width, blockHeight));
+        writer.close();
+
+        // other parameters : starts again
+        writer = new TiledRasterWriter(dir, bands, width, height, blockHeight, "test2");
+        assertEquals(0, writer.getNbDone());
+        writer.writeBlock(0, createBlock(0, width, blockHeight));
+        writer.close();
+
+        writer = new TiledRasterWriter(dir, bands, width, height, blockHeight, "test2");
+        assertEquals(1, writer.getNbDone());
+        assertTrue(writer.isDone(0));
+        assertFalse(writer.isDone(1));
+        writer.writeBlock(1, createBlock(1, width, blockHeight));
+        writer.writeBlock(2, createBlock(2, width, height - 2*blockHeight));
+        writer.writeGeoTiffs(new Envelope(0, width, 0, height), null);
+
+        for(int i = 0; i < bands.length; i++) {
+            GridCoverage2D cov = IOImage.loadTiff(new File(dir, bands[i] + ".tif"));
+            RenderedImage img = cov.getRenderedImage();
+            assertEquals(width, img.getWidth());
+            assertEquals(height, img.getHeight());
+            Raster data = img.getData();
+            for(int y = 0; y < height; y++) {
+                for(int x = 0; x < width; x++) {
+                    assertEquals(getValue(i, x, y), data.getSampleFloat(x, y, 0), 0.0f);
+                }
+            }
+        }
+        assertFalse(new File(dir, "a.raw").exists());
+        assertFalse(new File(dir, "checkpoint.txt").exists());
+    }
+
+    private static Raster [] createBlock(int block, int width, int height) {
+        Raster [] rasters = new Raster[2];
+        for(int i = 0; i < rasters.length; i++) {
+            WritableRaster r = Raster.createWritableRaster(new ComponentSampleModel(DataBuffer.TYPE_FLOAT, width, height, 1, width, new int[1]),
+                    new Point(0, block*32));
+            for(int y = r.getMinY(); y < r.getMinY()+height; y++) {
+                for(int x = 0; x < width; x++) {
+                    r.setSample(x, y, 0, getValue(i, x, y));
+                }
+            }
+            rasters[i] = r;
+        }
+        return rasters;
+    }
+
+    private static float getValue(int band, int x, int y) {
+        return (x*7 + y*13 + band) % 11 == 0 ? Float.NaN : (band+1) * x / (y+1.0f);
+    }
+}
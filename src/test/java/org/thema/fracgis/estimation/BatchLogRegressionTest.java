@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.estimation;
+
+import java.util.Random;
+import org.apache.commons.math3.stat.regression.SimpleRegression;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class BatchLogRegressionTest {
+
+    /**
+     * Test of estimate method, of class BatchLogRegression.
+     * The results must be identical to SimpleRegression on log values.
+     */
+    @Test
+    public void testEstimate() {
+        System.out.println("estimate");
+        double [] x = new double[20];
+        for(int i = 0; i < x.length; i++) {
+            x[i] = 2*(int)Math.pow(1.1, i*2) + 1;
+        }
+        BatchLogRegression instance = new BatchLogRegression(x);
+        assertEquals(x.length, instance.getSize());
+        Random rand = new Random(1);
+        double [] y = new double[x.length];
+        double [] result = new double[BatchLogRegression.RESULT_SIZE];
+        for(int k = 0; k < 100; k++) {
+            for(int i = 0; i < y.length; i++) {
+                y[i] = Math.pow(x[i], 1 + rand.nextDouble()) * (k % 10 == 0 ? 1 : 1 + rand.nextDouble());
+                // some points are ignored
+                if(k % 3 == 0 && rand.nextDouble() < 0.2) {
+                    y[i] = 0;
+                }
+            }
+            int start = k % 4 == 0 ? rand.nextInt(3) : 0;
+            int end = start + rand.nextInt(y.length - start + 1);
+            instance.estimate(y, start, end, result);
+
+            SimpleRegression reg = new SimpleRegression();
+            for(int i = start; i < end; i++) {
+                if(y[i] > 0) {
+                    reg.addData(Math.log(x[i]), Math.log(y[i]));
+                }
+            }
+            assertEquals(reg.getSlope(), result[BatchLogRegression.SLOPE], 0.0);
+            assertEquals(reg.getIntercept(), result[BatchLogRegression.INTERCEPT], 0.0);
+            assertEquals(reg.getRSquare(), result[BatchLogRegression.R2], 0.0);
+            assertEquals(reg.getN() < 3 ? Double.NaN : reg.getSlopeConfidenceInterval(),
+                    result[BatchLogRegression.CONF_INTERVAL], 0.0);
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.estimation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.math3.analysis.differentiation.DerivativeStructure;
+import org.apache.commons.math3.analysis.function.Gaussian;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class InflexPointDetectorTest {
+
+    /**
+     * Test of getInflexPoints method, of class InflexPointDetector.
+     * Compares with the direct convolution for each bandwidth.
+     */
+    @Test
+    public void testGetInflexPoints() {
+        System.out.println("getInflexPoints");
+        double [] x = new double[25];
+        for(int i = 0; i < x.length; i++) {
+            x[i] = 1 + i*i*0.7;
+        }
+        double [] bandwidths = new double[] {0.05, 0.1, 0.2, 0.5, 1};
+        InflexPointDetector log = new InflexPointDetector(x, bandwidths, true);
+        InflexPointDetector lin = new InflexPointDetector(x, bandwidths, false);
+        assertEquals(bandwidths.length, log.getNbBandwidths());
+        assertEquals(0.2, log.getBandwidth(2), 0.0);
+
+        Random rand = new Random(3);
+        double [] y = new double[x.length];
+        int [] indices = new int[x.length];
+        for(int k = 0; k < 20; k++) {
+            for(int i = 0; i < y.length; i++) {
+                y[i] = Math.sin(i / (1.0 + k)) + rand.nextDouble()*0.1;
+            }
+            int minInd = k % 5;
+            for(int b = 0; b < bandwidths.length; b++) {
+                List<Integer> exp = getPointInflex(x, y, bandwidths[b], minInd, true);
+                assertEquals(exp, log.getInflexPoints(y, b, minInd));
+                int nb = log.getInflexPoints(y, b, minInd, indices);
+                assertEquals(exp.size(), nb);
+                for(int i = 0; i < nb; i++) {
+                    assertEquals((int)exp.get(i), indices[i]);
+                }
+                assertEquals(getPointInflex(x, y, bandwidths[b], minInd, false), lin.getInflexPoints(y, b, minInd));
+            }
+        }
+    }
+
+    /**
+     * Direct computation of the inflexion points
+     */
+    private static List<Integer> getPointInflex(double [] x, double [] y, double bandwidth, int minInd, boolean log) {
+        int n = x.length;
+        double sigma = log ? (Math.log(x[n-1])-Math.log(x[0])) * bandwidth : (x[n-1]-x[0]) * bandwidth;
+        Gaussian gaussian = new Gaussian(0, sigma);
+        double [] smooth = new double[n];
+        for(int i = 0; i < n; i++) {
+            double sum = 0, sumCoef = 0;
+            for(int j = 0; j < n; j++) {
+                double xc = log ? (Math.log(x[j]) - Math.log(x[i])) : (x[j] - x[i]);
+                double coef = gaussian.value(new DerivativeStructure(1, 2, 0, xc)).getPartialDerivative(2);
+                sum += coef * y[j];
+                sumCoef += coef;
+            }
+            smooth[i] = sum / sumCoef;
+        }
+        List<Integer> ptInflex = new ArrayList<>();
+        for(int i = minInd; i < n-1; i++) {
+            if(smooth[i]*smooth[i+1] <= 0 && (smooth[i] != 0 || smooth[i+1] != 0)) {
+                ptInflex.add(i);
+            }
+        }
+        return ptInflex;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.method;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class PartitionFunctionTest {
+
+    /**
+     * Test of getSums, getInfoSums and getCurves methods, of class PartitionFunction.
+     * Compares with the direct sums over the cells, zero and NaN masses are ignored.
+     */
+    @Test
+    public void testGetSums() {
+        System.out.println("getSums");
+        Random rand = new Random(7);
+        double [][] cells = new double[3][];
+        double total = 0;
+        for(int i = 0; i < cells.length; i++) {
+            cells[i] = new double[50 + i*30];
+            for(int j = 0; j < cells[i].length; j++) {
+                int r = rand.nextInt(10);
+                cells[i][j] = r == 0 ? 0 : r == 1 ? Double.NaN : r < 5 ? r : rand.nextDouble()*10;
+                if(i == 0 && !Double.isNaN(cells[i][j])) {
+                    total += cells[i][j];
+                }
+            }
+        }
+        PartitionFunction partition = new PartitionFunction(total);
+        for(int i = 0; i < cells.length; i++) {
+            partition.addScale(i+1, Arrays.copyOf(cells[i], cells[i].length));
+        }
+        assertEquals(3, partition.getNbScales());
+        assertEquals(2.0, partition.getScale(1), 0.0);
+
+        double [] qs = new double[] {-2.5, -1, 0, 0.5, 1, 2, 3.7};
+        double [][] sums = partition.getSums(qs);
+        double [] infoSums = partition.getInfoSums();
+        TreeMap<Double, TreeMap<Double, Double>> curves = partition.getCurves(Arrays.asList(-1.0, 0.0, 1.0, 2.5));
+        for(int i = 0; i < cells.length; i++) {
+            double info = 0;
+            for(int k = 0; k < qs.length; k++) {
+                double sum = 0;
+                for(double val : cells[i]) {
+                    if(val > 0) {
+                        sum += Math.pow(val / total, qs[k]);
+                    }
+                }
+                assertEquals(sum, sums[k][i], Math.abs(sum) * 1e-12);
+            }
+            for(double val : cells[i]) {
+                if(val > 0) {
+                    info += val / total * Math.log(val / total);
+                }
+            }
+            assertEquals(info, infoSums[i], Math.abs(info) * 1e-12);
+            assertEquals(Math.exp(info), curves.get(1.0).get(i+1.0), Math.exp(info) * 1e-12);
+            assertEquals(sums[2][i], curves.get(0.0).get(i+1.0), 0.0);
+            assertEquals(sums[1][i], curves.get(-1.0).get(i+1.0), 0.0);
+        }
+    }
+
+    /**
+     * Test of addScale method with a histogram, of class PartitionFunction.
+     * The histogram filled by several parts gives the same sums as the array of the masses.
+     */
+    @Test
+    public void testAddScaleHistogram() {
+        System.out.println("addScale histogram");
+        Random rand = new Random(3);
+        double [] cells = new double[1000];
+        double total = 0;
+        PartitionFunction.Histogram histo = new PartitionFunction.Histogram();
+        PartitionFunction.Histogram part = new PartitionFunction.Histogram();
+        for(int i = 0; i < cells.length; i++) {
+            int r = rand.nextInt(10);
+            cells[i] = r == 0 ? 0 : r == 1 ? Double.NaN : r < 5 ? r : rand.nextInt(500) / 7.0;
+            if(!Double.isNaN(cells[i])) {
+                total += cells[i];
+            }
+            if(i < 600) {
+                histo.add(cells[i]);
+            } else {
+                part.add(cells[i]);
+            }
+        }
+        histo.addAll(part);
+        PartitionFunction partition = new PartitionFunction(total);
+        partition.addScale(1, Arrays.copyOf(cells, cells.length), 0.5);
+        partition.addScale(2, histo, 0.5);
+        double [] qs = new double[] {-2.5, 0, 1, 2, 3.7};
+        double [][] sums = partition.getSums(qs);
+        for(int k = 0; k < qs.length; k++) {
+            assertEquals(sums[k][0], sums[k][1], 0.0);
+        }
+        assertEquals(partition.getInfoSums()[0], partition.getInfoSums()[1], 0.0);
+    }
+
+    /**
+     * Test of getSums method, of class PartitionFunction.
+     * Integer moments of exact masses stay exact.
+     */
+    @Test
+    public void testExactMoments() {
+        System.out.println("exactMoments");
+        PartitionFunction partition = new PartitionFunction(4);
+        partition.addScale(1, new double[] {1, 1, 0, 1, 1});
+        partition.addScale(2, new double[] {2, 2});
+        double [][] sums = partition.getSums(new double[] {-1, 0, 2});
+        assertEquals(16.0, sums[0][0], 0.0);
+        assertEquals(4.0, sums[0][1], 0.0);
+        assertEquals(4.0, sums[1][0], 0.0);
+        assertEquals(2.0, sums[1][1], 0.0);
+        assertEquals(0.25, sums[2][0], 0.0);
+        assertEquals(0.5, sums[2][1], 0.0);
+        assertEquals(0.5, partition.getCurves(Arrays.asList(1.0)).get(1.0).get(2.0), 0.0);
+    }
+
+    /**
+     * Test of getCurves method with Chhabra-Jensen curves, of class PartitionFunction.
+     * For a binomial cascade, alpha(q) and f(alpha(q)) are known exactly.
+     */
+    @Test
+    public void testSpectrum() {
+        System.out.println("spectrum");
+        final double p = 0.3;
+        PartitionFunction partition = new PartitionFunction(1);
+        for(int n = 1; n <= 8; n++) {
+            double [] masses = new double[1 << n];
+            for(int i = 0; i < masses.length; i++) {
+                int k = Integer.bitCount(i);
+                masses[i] = Math.pow(p, k) * Math.pow(1-p, n-k);
+            }
+            partition.addScale(Math.pow(2, -n), masses);
+        }
+        TreeMap<Double, TreeMap<Double, Double>> alphaCurves = new TreeMap<>();
+        TreeMap<Double, TreeMap<Double, Double>> fCurves = new TreeMap<>();
+        TreeMap<Double, TreeMap<Double, Double>> curves = partition.getCurves(Arrays.asList(-2.0, -0.5, 0.0, 1.0, 1.5, 3.0), alphaCurves, fCurves);
+        assertEquals(partition.getCurves(Arrays.asList(1.0)).get(1.0).get(0.5), curves.get(1.0).get(0.5), 1e-12);
+        for(double q : curves.keySet()) {
+            double sum = Math.pow(p, q) + Math.pow(1-p, q);
+            double alpha = -(Math.pow(p, q)*Math.log(p) + Math.pow(1-p, q)*Math.log(1-p)) / sum / Math.log(2);
+            double f = q*alpha + Math.log(sum) / Math.log(2);
+            double x1 = Math.log(Math.pow(2, -2)), x2 = Math.log(Math.pow(2, -7));
+            assertEquals(alpha, (alphaCurves.get(q).get(Math.pow(2, -7)) - alphaCurves.get(q).get(Math.pow(2, -2))) / (x2-x1), 1e-10);
+            assertEquals(f, (fCurves.get(q).get(Math.pow(2, -7)) - fCurves.get(q).get(Math.pow(2, -2))) / (x2-x1), 1e-10);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.method.raster;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.thema.fracgis.Data;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class BinaryRasterTest {
+
+    private static BufferedImage imgRand;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        Data.loadRaster();
+
+        // width greater than 2 words
+        imgRand = new BufferedImage(150, 70, BufferedImage.TYPE_BYTE_BINARY);
+        Random rand = new Random(1);
+        for(int y = 0; y < imgRand.getHeight(); y++) {
+            for(int x = 0; x < imgRand.getWidth(); x++) {
+                if(rand.nextDouble() < 0.3) {
+                    imgRand.getRaster().setSample(x, y, 0, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of create method, of class BinaryRaster.
+     */
+    @Test
+    public void testCreate() {
+        System.out.println("create");
+        for(BufferedImage img : new BufferedImage[] {Data.imgPoint, Data.imgLine, Data.imgSquare, Data.imgFrac, imgRand}) {
+            BinaryRaster raster = BinaryRaster.create(img);
+            Raster r = img.getData();
+            long nb = 0;
+            for(int y = 0; y < img.getHeight(); y++) {
+                int nbRow = 0;
+                for(int x = 0; x < img.getWidth(); x++) {
+                    assertEquals(r.getSample(x, y, 0) == 1, raster.get(x, y));
+                    if(r.getSample(x, y, 0) == 1) {
+                        nbRow++;
+                    }
+                }
+                assertEquals(nbRow, raster.countRow(y));
+                nb += nbRow;
+            }
+            assertEquals(nb, raster.count());
+        }
+    }
+
+    /**
+     * Test of countRange and nextSetBit methods, of class BinaryRaster.
+     */
+    @Test
+    public void testScan() {
+        System.out.println("scan");
+        BinaryRaster raster = BinaryRaster.create(imgRand);
+        int w = raster.getWidth();
+        for(int y = 0; y < raster.getHeight(); y++) {
+            for(int x1 = 0; x1 < w; x1 += 7) {
+                for(int x2 = x1; x2 < w; x2 += 5) {
+                    int nb = 0;
+                    int first = -1;
+                    for(int x = x1; x <= x2; x++) {
+                        if(raster.get(x, y)) {
+                            nb++;
+                            if(first == -1) {
+                                first = x;
+                            }
+                        }
+                    }
+                    assertEquals(nb, raster.countRange(y, x1, x2));
+                    assertEquals(first, raster.nextSetBit(y, x1, x2+1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of addRingCounts method, of class BinaryRaster.
+     */
+    @Test
+    public void testAddRingCounts() {
+        System.out.println("addRingCounts");
+        BinaryRaster raster = BinaryRaster.create(imgRand);
+        int dMax = 40;
+        for(int y = 0; y < raster.getHeight(); y += 3) {
+            for(int x = 0; x < raster.getWidth(); x += 11) {
+                double [] counts = new double[dMax+1];
+                raster.addRingCounts(x, y, dMax, counts);
+                double [] exp = new double[dMax+1];
+                for(int k = Math.max(0, y-dMax); k <= Math.min(raster.getHeight()-1, y+dMax); k++) {
+                    for(int l = Math.max(0, x-dMax); l <= Math.min(raster.getWidth()-1, x+dMax); l++) {
+                        if(raster.get(l, k)) {
+                            exp[Math.max(Math.abs(k-y), Math.abs(l-x))]++;
+                        }
+                    }
+                }
+                assertArrayEquals(exp, counts, 0);
+            }
+        }
+    }
+
+    /**
+     * Test of reduce method, of class BinaryRaster.
+     */
+    @Test
+    public void testReduce() {
+        System.out.println("reduce");
+        BinaryRaster raster = BinaryRaster.create(imgRand);
+        for(int k : new int[] {2, 3, 4, 5, 7, 64, 100, 200}) {
+            BinaryRaster red = raster.reduce(k);
+            assertEquals((raster.getWidth()+k-1)/k, red.getWidth());
+            assertEquals((raster.getHeight()+k-1)/k, red.getHeight());
+            for(int y = 0; y < red.getHeight(); y++) {
+                for(int x = 0; x < red.getWidth(); x++) {
+                    boolean black = false;
+                    for(int i = y*k; i < Math.min(raster.getHeight(), (y+1)*k); i++) {
+                        for(int j = x*k; j < Math.min(raster.getWidth(), (x+1)*k); j++) {
+                            black |= raster.get(j, i);
+                        }
+                    }
+                    assertEquals(black, red.get(x, y));
+                }
+            }
+        }
+        // sparse raster
+        raster = BinaryRaster.create(Data.imgLine);
+        assertEquals(8, raster.reduce(2).count());
+        assertEquals(6, raster.reduce(3).count());
+    }
+
+    /**
+     * Test of windowOrRows, windowOrColumns and countLattice methods, of class BinaryRaster.
+     */
+    @Test
+    public void testWindowOr() {
+        System.out.println("windowOr");
+        BinaryRaster raster = BinaryRaster.create(imgRand);
+        int w = raster.getWidth(), h = raster.getHeight();
+        for(int s : new int[] {1, 2, 3, 5, 8, 13, 64, 70}) {
+            BinaryRaster win = new BinaryRaster(w+s-1, h+s-1);
+            raster.windowOrRows(win, s, 0, h);
+            win.windowOrColumns(s, 0, win.getRowWords());
+            for(int y = 0; y < win.getHeight(); y++) {
+                for(int x = 0; x < win.getWidth(); x++) {
+                    boolean black = false;
+                    for(int i = Math.max(0, y-s+1); i <= Math.min(h-1, y); i++) {
+                        for(int j = Math.max(0, x-s+1); j <= Math.min(w-1, x); j++) {
+                            black |= raster.get(j, i);
+                        }
+                    }
+                    assertEquals(black, win.get(x, y));
+                }
+            }
+            // boxes of the grid translated by (-ox, -oy)
+            for(int ox = 0; ox < s; ox += 1 + s/4) {
+                for(int oy = 0; oy < s; oy += 1 + s/3) {
+                    BinaryRaster boxes = new BinaryRaster((w+ox+s-1) / s, (h+oy+s-1) / s);
+                    for(int y = 0; y < h; y++) {
+                        for(int x = 0; x < w; x++) {
+                            if(raster.get(x, y)) {
+                                boxes.set((x+ox) / s, (y+oy) / s);
+                            }
+                        }
+                    }
+                    assertEquals(boxes.count(), win.countLattice(s-1-ox, s-1-oy, s));
+                }
+            }
+        }
+    }
+
+}
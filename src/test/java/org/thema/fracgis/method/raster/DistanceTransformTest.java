@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.method.raster;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.thema.fracgis.Data;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class DistanceTransformTest {
+
+    private static BufferedImage imgRand;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        Data.loadRaster();
+
+        // sparse random points
+        imgRand = new BufferedImage(90, 70, BufferedImage.TYPE_BYTE_BINARY);
+        Random rand = new Random(3);
+        for(int y = 0; y < imgRand.getHeight(); y++) {
+            for(int x = 0; x < imgRand.getWidth(); x++) {
+                if(rand.nextDouble() < 0.01) {
+                    imgRand.getRaster().setSample(x, y, 0, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of rowHistogram method, of class DistanceTransform.
+     * Compares with the brute force distance on the extended raster.
+     */
+    @Test
+    public void testHistogram() {
+        System.out.println("histogram");
+        for(BufferedImage img : new BufferedImage[] {Data.imgPoint, Data.imgLine, Data.imgSquare, imgRand}) {
+            BinaryRaster raster = BinaryRaster.create(img);
+            for(int max : new int[] {1, 4, 13}) {
+                for(boolean euclidean : new boolean[] {false, true}) {
+                    DistanceTransform dt = new DistanceTransform(raster, max, euclidean);
+                    dt.columnPass(0, raster.getRowWords());
+                    long [] hist = new long[max+1];
+                    dt.rowHistogram(0, 5, hist);
+                    dt.rowHistogram(5, dt.getExtHeight(), hist);
+
+                    long [] exp = new long[max+1];
+                    for(int y = -max; y < raster.getHeight()+max; y++) {
+                        for(int x = -max; x < raster.getWidth()+max; x++) {
+                            double min = Double.MAX_VALUE;
+                            for(int k = 0; k < raster.getHeight(); k++) {
+                                for(int l = 0; l < raster.getWidth(); l++) {
+                                    if(raster.get(l, k)) {
+                                        double d = euclidean ? Math.ceil(Math.sqrt((k-y)*(k-y) + (l-x)*(l-x)))
+                                                : Math.max(Math.abs(k-y), Math.abs(l-x));
+                                        min = Math.min(min, d);
+                                    }
+                                }
+                            }
+                            if(min <= max) {
+                                exp[(int)min]++;
+                            }
+                        }
+                    }
+                    assertArrayEquals(exp, hist);
+                }
+            }
+        }
+    }
+
+}
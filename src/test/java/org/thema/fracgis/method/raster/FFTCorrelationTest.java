@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.method.raster;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.thema.fracgis.Data;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class FFTCorrelationTest {
+
+    private static BufferedImage imgRand;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        Data.loadRaster();
+
+        imgRand = new BufferedImage(300, 170, BufferedImage.TYPE_BYTE_BINARY);
+        Random rand = new Random(2);
+        for(int y = 0; y < imgRand.getHeight(); y++) {
+            for(int x = 0; x < imgRand.getWidth(); x++) {
+                if(rand.nextDouble() < 0.2) {
+                    imgRand.getRaster().setSample(x, y, 0, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of addCounts method, of class FFTCorrelation.
+     * Compares the chessboard and euclidean counts with the direct computation.
+     */
+    @Test
+    public void testAddCounts() {
+        System.out.println("addCounts");
+        for(BufferedImage img : new BufferedImage[] {Data.imgPoint, Data.imgLine, Data.imgSquare, imgRand}) {
+            BinaryRaster raster = BinaryRaster.create(img);
+            for(int dMax : new int[] {0, 1, 7, 20, 45}) {
+                FFTCorrelation corr = new FFTCorrelation(raster, dMax);
+                long [] rings = new long[dMax+1];
+                long [] disks = new long[dMax+1];
+                // in 2 parts to check the merge
+                corr.addCounts(0, corr.getNbTiles()/2, rings, disks);
+                corr.addCounts(corr.getNbTiles()/2, corr.getNbTiles(), rings, disks);
+
+                long [] expRings = new long[dMax+1];
+                long [] expDisks = new long[dMax+1];
+                for(int y = 0; y < raster.getHeight(); y++) {
+                    for(int x = 0; x < raster.getWidth(); x++) {
+                        if(!raster.get(x, y)) {
+                            continue;
+                        }
+                        for(int k = Math.max(0, y-dMax); k <= Math.min(raster.getHeight()-1, y+dMax); k++) {
+                            for(int l = Math.max(0, x-dMax); l <= Math.min(raster.getWidth()-1, x+dMax); l++) {
+                                if(raster.get(l, k)) {
+                                    expRings[Math.max(Math.abs(k-y), Math.abs(l-x))]++;
+                                    int d = (int)Math.ceil(Math.sqrt((k-y)*(k-y) + (l-x)*(l-x)));
+                                    if(d <= dMax) {
+                                        expDisks[d]++;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+                assertArrayEquals(expRings, rings);
+                assertArrayEquals(expDisks, disks);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.method.raster;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class IntegralImageTest {
+
+    private static BufferedImage imgRand;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        imgRand = new BufferedImage(140, 60, BufferedImage.TYPE_BYTE_BINARY);
+        Random rand = new Random(4);
+        for(int y = 0; y < imgRand.getHeight(); y++) {
+            for(int x = 0; x < imgRand.getWidth(); x++) {
+                if(rand.nextDouble() < 0.4) {
+                    imgRand.getRaster().setSample(x, y, 0, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of getSquareSum method, of class IntegralImage.
+     */
+    @Test
+    public void testGetSquareSum() {
+        System.out.println("getSquareSum");
+        BinaryRaster raster = BinaryRaster.create(imgRand);
+        IntegralImage integral = new IntegralImage(raster);
+        // in 2 parts to check the ranges
+        integral.buildRows(0, 20);
+        integral.buildRows(20, raster.getHeight());
+        integral.buildColumns(0, 70);
+        integral.buildColumns(70, raster.getWidth());
+        for(int y = -5; y < raster.getHeight()+5; y += 3) {
+            for(int x = -5; x < raster.getWidth()+5; x += 4) {
+                for(int r : new int[] {0, 1, 2, 7, 30, 200}) {
+                    double [] counts = new double[r+1];
+                    raster.addRingCounts(x, y, r, counts);
+                    long nb = 0;
+                    for(double c : counts) {
+                        nb += c;
+                    }
+                    assertEquals(nb, integral.getSquareSum(x, y, r));
+                }
+            }
+        }
+    }
+
+}
@@ -71,5 +71,29 @@ public class BoxCountingRasterMethodTest {
         
     }
 
+    /**
+     * Test of execute method with gliding grid, of class BoxCountingRasterMethod.
+     */
+    @Test
+    public void testExecuteGliding() {
+        System.out.println("execute gliding");
+        RasterBoxSampling sampling = new RasterBoxSampling(new DefaultSampling(1, 16, 2));
+        BoxCountingRasterMethod instance = new BoxCountingRasterMethod("testPoint", sampling, Data.imgPoint, Data.env16, 2, false);
+        instance.execute(new TaskMonitor.EmptyMonitor(), true);
+        assertEquals(Arrays.asList(1.0, 1.0, 1.0, 1.0, 1.0), new ArrayList<>(instance.getCurve().values()));
+        
+        instance = new BoxCountingRasterMethod("testLine", sampling, Data.imgLine, Data.env16, 2, false);
+        instance.execute(new TaskMonitor.EmptyMonitor(), true);
+        assertEquals(Arrays.asList(16.0, 8.0, 4.0, 2.0, 1.0), new ArrayList<>(instance.getCurve().values()));
+        
+        // grid translated by 0, 1/2, 1/3, 1/4 of the box size depending on the size
+        instance = new BoxCountingRasterMethod("testLine", sampling, Data.imgLine, Data.env16, 2, true);
+        instance.execute(new TaskMonitor.EmptyMonitor(), false);
+        assertEquals(Arrays.asList(16.0, 8.5, 14/3.0, 8/3.0, 1.75), new ArrayList<>(instance.getCurve().values()));
+        
+        instance = new BoxCountingRasterMethod("testSquare", sampling, Data.imgSquare, Data.env16, 2, false);
+        instance.execute(new TaskMonitor.EmptyMonitor(), true);
+        assertEquals(Arrays.asList(256.0, 64.0, 16.0, 4.0, 1.0), new ArrayList<>(instance.getCurve().values()));
+    }
 
 }
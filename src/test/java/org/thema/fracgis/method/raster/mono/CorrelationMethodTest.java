@@ -64,5 +64,22 @@ public class CorrelationMethodTest {
         assertEquals(Arrays.asList(1.0, 9.0-47/64.0, 25.0-231/64.0, 49.0-636/64.0, 81.0-1340/64.0), new ArrayList<>(instance.getCurve().values()));
         
     }
-    
+
+    /**
+     * Test of execute method with euclidean distance, of class CorrelationRasterMethod.
+     */
+    @Test
+    public void testExecuteEuclidean() {
+        System.out.println("execute euclidean");
+        DefaultSampling sampling = new DefaultSampling(1, 9, 1, Sampling.Sequence.ARITH);
+        CorrelationRasterMethod instance = new CorrelationRasterMethod("testPoint", sampling, Data.imgPoint, Data.env16, true);
+        instance.execute(new TaskMonitor.EmptyMonitor(), true);
+        assertEquals(Arrays.asList(1.0, 1.0, 1.0, 1.0, 1.0), new ArrayList<>(instance.getCurve().values()));
+        
+        // same as chessboard distance for horizontal line
+        instance = new CorrelationRasterMethod("testLine", sampling, Data.imgLine, Data.env16, true);
+        instance.execute(new TaskMonitor.EmptyMonitor(), true);
+        assertEquals(Arrays.asList(1.0, 3.0-1/8.0, 5.0-(1+2)/8.0, 7.0-(1+2+3)/8.0, 9.0-(1+2+3+4)/8.0), new ArrayList<>(instance.getCurve().values()));
+    }
+
 }
@@ -66,5 +66,22 @@ public class DilationRasterMethodTest {
         assertEquals(Arrays.asList(256.0, 36.0, 16.0, 22*22/49.0, 24*24/81.0), new ArrayList<>(instance.getCurve().values()));
         
     }
-    
+
+    /**
+     * Test of execute method with euclidean distance, of class DilationRasterMethod.
+     */
+    @Test
+    public void testExecuteEuclidean() {
+        System.out.println("execute euclidean");
+        DefaultSampling sampling = new DefaultSampling(1, 9, 1, Sampling.Sequence.ARITH);
+        DilationRasterMethod instance = new DilationRasterMethod("testPoint", sampling, Data.imgPoint, Data.env16, true);
+        instance.execute(new TaskMonitor.EmptyMonitor(), true);
+        // number of pixels in the disk of radius i
+        assertEquals(Arrays.asList(1.0, 5/9.0, 13/25.0, 29/49.0, 49/81.0), new ArrayList<>(instance.getCurve().values()));
+        
+        instance = new DilationRasterMethod("testLine", sampling, Data.imgLine, Data.env16, true);
+        instance.execute(new TaskMonitor.EmptyMonitor(), true);
+        assertEquals(Arrays.asList(16.0, (16*3+2)/9.0, (16*5+2*4)/25.0, (16*7+2*11)/49.0, (16*9+2*20)/81.0), new ArrayList<>(instance.getCurve().values()));
+    }
+
 }
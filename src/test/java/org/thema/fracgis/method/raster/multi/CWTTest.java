@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.method.raster.multi;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class CWTTest {
+
+    /**
+     * Test of calcCWT method, of class CWT.
+     * The separable and the FFT convolutions are compared with the direct 2D convolution.
+     */
+    @Test
+    public void testCalcCWT() {
+        System.out.println("calcCWT");
+        BufferedImage img = new BufferedImage(23, 17, BufferedImage.TYPE_BYTE_GRAY);
+        Random rand = new Random(13);
+        for(int y = 0; y < img.getHeight(); y++) {
+            for(int x = 0; x < img.getWidth(); x++) {
+                img.getRaster().setSample(x, y, 0, rand.nextInt(256));
+            }
+        }
+        for(int var = 1; var <= 3; var++) {
+            CWT sep = new CWT();
+            sep.calcCWT(img.getData(), var, false);
+            CWT fft = new CWT();
+            fft.calcCWT(img.getData(), var, true);
+            int d = CWT.NVAR*var;
+            assertEquals(img.getWidth()+2*d, sep.dx.getWidth());
+            assertEquals(img.getHeight()+2*d, fft.dx.getHeight());
+            for(int k = 0; k < 6; k++) {
+                double [][] exp = convolve(img.getData(), var, k);
+                Raster [] res = new Raster[] {getResult(sep, k), getResult(fft, k)};
+                for(Raster r : res) {
+                    for(int y = 0; y < exp.length; y++) {
+                        for(int x = 0; x < exp[y].length; x++) {
+                            assertEquals(exp[y][x], r.getSampleDouble(x, y, 0), 1e-9);
+                        }
+                    }
+                }
+            }
+            for(int y = 0; y < sep.mod.getHeight(); y++) {
+                for(int x = 0; x < sep.mod.getWidth(); x++) {
+                    assertEquals(Math.hypot(sep.dx.getSampleDouble(x, y, 0), sep.dy.getSampleDouble(x, y, 0)), 
+                            sep.mod.getSampleDouble(x, y, 0), 1e-9);
+                }
+            }
+        }
+    }
+
+    private static Raster getResult(CWT cwt, int k) {
+        switch(k) {
+            case 0: return cwt.conv;
+            case 1: return cwt.dx;
+            case 2: return cwt.dy;
+            case 3: return cwt.dxx;
+            case 4: return cwt.dyy;
+            default: return cwt.dxy;
+        }
+    }
+
+    /**
+     * Direct 2D correlation of the image padded by NVAR*var with the kernel k
+     */
+    private static double[][] convolve(Raster img, int var, int k) {
+        int d = CWT.NVAR*var;
+        int w = img.getWidth()+2*d, h = img.getHeight()+2*d;
+        double v2 = var*var;
+        double [] f = new double[] {1 / (var * Math.sqrt(2 * Math.PI)), -1 / (Math.pow(var, 3) * Math.sqrt(2 * Math.PI)), 
+            1 / (Math.pow(var, 5) * Math.sqrt(2 * Math.PI))};
+        double [][] res = new double[h][w];
+        for(int y = 0; y < h; y++) {
+            for(int x = 0; x < w; x++) {
+                double sum = 0;
+                for(int j = -d; j <= d; j++) {
+                    for(int i = -d; i <= d; i++) {
+                        int ix = x+i-d, iy = y+j-d;
+                        if(ix < 0 || iy < 0 || ix >= img.getWidth() || iy >= img.getHeight()) {
+                            continue;
+                        }
+                        double g = Math.exp(-(i*i + j*j) / (2*v2));
+                        double [] kernels = new double[] {f[0]*g, f[1]*i*g, f[1]*j*g, f[2]*(i*i-v2)*g, f[2]*(j*j-v2)*g, f[2]*i*j*g};
+                        sum += img.getSampleDouble(ix, iy, 0) * kernels[k];
+                    }
+                }
+                res[y][x] = sum;
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.method.raster.multi;
+
+import java.util.Arrays;
+import java.util.Random;
+import jwave.transforms.wavelets.daubechies.Daubechies2;
+import jwave.transforms.wavelets.daubechies.Daubechies20;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class DWTTest {
+
+    /**
+     * Test of FWT method for one signal, of class DWT.
+     */
+    @Test
+    public void testFWT() {
+        System.out.println("FWT");
+        double [] data = new double[] {1, 3, 2, 6, 5, 5, 0, 4};
+        new DWT().FWT(data);
+        assertArrayEquals(new double[] {2, 4, 5, 2, -1, -2, 0, -2}, data, 1e-12);
+
+        // odd size
+        data = new double[] {1, 3, 2};
+        new DWT().FWT(data);
+        assertArrayEquals(new double[] {2, 3, -1}, data, 1e-12);
+        new DWT().IWT(data);
+        assertArrayEquals(new double[] {1, 3, 2}, data, 1e-12);
+
+        assertFalse(new DWT(new Daubechies20()).isLifting());
+    }
+
+    /**
+     * Test of FWT method for an odd signal without lifting, of class DWT.
+     */
+    @Test
+    public void testOddConvolution() {
+        System.out.println("odd convolution");
+        Daubechies20 d20 = new Daubechies20();
+        double [] data = createSignal(31, new Random(2));
+        double [] ext = Arrays.copyOf(data, 32);
+        ext[31] = data[29];
+        double [] res = d20.forward(ext, ext.length);
+        new DWT(d20).FWT(data);
+        for(int i = 0; i < 16; i++) {
+            assertEquals(res[i], data[i], 1e-10);
+        }
+        // the details of jwave without one
+        int drop = 0;
+        while(drop < 15 && Math.abs(res[16+drop] - data[16+drop]) < 1e-10) {
+            drop++;
+        }
+        for(int i = drop; i < 15; i++) {
+            assertEquals(res[16+i+1], data[16+i], 1e-10);
+        }
+    }
+
+    /**
+     * Test of FWT method with Daubechies 4 lifting compared to jwave, of class DWT.
+     */
+    @Test
+    public void testD4Lifting() {
+        System.out.println("D4 lifting");
+        Daubechies2 d4 = new Daubechies2();
+        DWT dwt = new DWT(d4);
+        assertTrue(dwt.isLifting());
+        double [] data = createSignal(32, new Random(1));
+        double [] res = d4.forward(data, data.length);
+        dwt.FWT(data);
+        // the last approximation and detail depend on the extension, periodic for jwave
+        for(int i = 0; i < 15; i++) {
+            assertEquals(res[i], data[i], 1e-10);
+            assertEquals(res[16+i], data[16+i], 1e-10);
+        }
+    }
+
+    /**
+     * Test of FWT and IWT methods on images with sizes which are not power of 2, of class DWT.
+     */
+    @Test
+    public void testReconstruct() {
+        System.out.println("FWT IWT");
+        Random rand = new Random(3);
+        for(DWT dwt : new DWT[] {new DWT(), new DWT(new Daubechies2()), new DWT(new Daubechies20())}) {
+            double [][] img = new double[37][];
+            for(int i = 0; i < img.length; i++) {
+                img[i] = createSignal(150, rand);
+            }
+            double [][] res = new double[img.length][];
+            for(int i = 0; i < img.length; i++) {
+                res[i] = img[i].clone();
+            }
+            dwt.FWT(res, 4);
+            assertEquals(3, DWT.getLevelSize(img.length, 4));
+            dwt.IWT(res, 4);
+            for(int i = 0; i < img.length; i++) {
+                assertArrayEquals(img[i], res[i], 1e-8);
+            }
+        }
+    }
+
+    private static double[] createSignal(int n, Random rand) {
+        double [] data = new double[n];
+        for(int i = 0; i < n; i++) {
+            data[i] = rand.nextInt(100);
+        }
+        return data;
+    }
+}
@@ -17,9 +17,12 @@
  */
 package org.thema.fracgis.method.raster.multi;
 
+import com.vividsolutions.jts.geom.Envelope;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
 import org.apache.commons.lang3.ArrayUtils;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -29,6 +32,7 @@ import org.thema.common.swing.TaskMonitor;
 import org.thema.fracgis.Data;
 import org.thema.fracgis.sampling.DefaultSampling;
 import org.thema.fracgis.sampling.RasterBoxSampling;
+import org.thema.fracgis.sampling.Sampling.Sequence;
 import org.thema.parallel.ParallelExecutor;
 
 /**
@@ -87,4 +91,88 @@ public class MultiFracBoxCountingRasterMethodTest {
     }
 
 
+    /**
+     * Test of execute method with sizes which do not divide each other, of class MultiFracBoxCountingRasterMethod.
+     * Compares with the direct computation.
+     */
+    @Test
+    public void testExecutePyramid() {
+        System.out.println("execute pyramid");
+        BufferedImage img = createRandomImage();
+        RasterBoxSampling sampling = new RasterBoxSampling(new DefaultSampling(3, 15, 2, Sequence.ARITH));
+        MultiFracBoxCountingRasterMethod instance = new MultiFracBoxCountingRasterMethod("testRand", sampling, img, 
+                new Envelope(0, img.getWidth(), 0, img.getHeight()));
+        instance.execute(new TaskMonitor.EmptyMonitor(), true);
+        assertEquals(Arrays.asList(3.0, 5.0, 7.0, 9.0, 11.0, 13.0, 15.0), new ArrayList<>(instance.getCurve(0).keySet()));
+        checkCurves(img, instance);
+    }
+
+    /**
+     * Test of execute method with the size 1, which is read directly from the image, of class MultiFracBoxCountingRasterMethod.
+     * Compares with the direct computation.
+     */
+    @Test
+    public void testExecuteUnitSize() {
+        System.out.println("execute unit size");
+        BufferedImage img = createRandomImage();
+        RasterBoxSampling sampling = new RasterBoxSampling(new DefaultSampling(1, 9, 2, Sequence.ARITH));
+        MultiFracBoxCountingRasterMethod instance = new MultiFracBoxCountingRasterMethod("testRand", sampling, img, 
+                new Envelope(0, img.getWidth(), 0, img.getHeight()));
+        instance.execute(new TaskMonitor.EmptyMonitor(), true);
+        assertEquals(Arrays.asList(1.0, 3.0, 5.0, 7.0, 9.0), new ArrayList<>(instance.getCurve(0).keySet()));
+        checkCurves(img, instance);
+        
+        sampling = new RasterBoxSampling(new DefaultSampling(1, 1, 2, Sequence.ARITH));
+        instance = new MultiFracBoxCountingRasterMethod("testRand", sampling, img, 
+                new Envelope(0, img.getWidth(), 0, img.getHeight()));
+        instance.execute(new TaskMonitor.EmptyMonitor(), false);
+        assertEquals(Arrays.asList(1.0), new ArrayList<>(instance.getCurve(0).keySet()));
+        checkCurves(img, instance);
+    }
+
+    private static BufferedImage createRandomImage() {
+        BufferedImage img = new BufferedImage(100, 70, BufferedImage.TYPE_USHORT_GRAY);
+        Random rand = new Random(5);
+        for(int y = 0; y < img.getHeight(); y++) {
+            for(int x = 0; x < img.getWidth(); x++) {
+                if(rand.nextDouble() < 0.3) {
+                    img.getRaster().setSample(x, y, 0, rand.nextInt(1000));
+                }
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Checks the curves for q = 0 and q = 2 of each size against the direct computation
+     */
+    private static void checkCurves(BufferedImage img, MultiFracBoxCountingRasterMethod instance) {
+        double total = 0;
+        for(int y = 0; y < img.getHeight(); y++) {
+            for(int x = 0; x < img.getWidth(); x++) {
+                total += img.getRaster().getSample(x, y, 0);
+            }
+        }
+        for(double s : instance.getCurve(0).keySet()) {
+            int size = (int) s;
+            double count = 0, sum2 = 0;
+            for(int by = 0; by < img.getHeight(); by += size) {
+                for(int bx = 0; bx < img.getWidth(); bx += size) {
+                    double mass = 0;
+                    for(int y = by; y < Math.min(img.getHeight(), by+size); y++) {
+                        for(int x = bx; x < Math.min(img.getWidth(), bx+size); x++) {
+                            mass += img.getRaster().getSample(x, y, 0);
+                        }
+                    }
+                    if(mass > 0) {
+                        count++;
+                        sum2 += Math.pow(mass / total, 2);
+                    }
+                }
+            }
+            assertEquals(count, instance.getCurve(0).get(s), 0.0);
+            assertEquals(sum2, instance.getCurve(2).get(s), 1e-12);
+        }
+    }
+
 }
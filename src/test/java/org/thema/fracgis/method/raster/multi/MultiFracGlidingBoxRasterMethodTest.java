@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.method.raster.multi;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.lang3.ArrayUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.thema.common.parallel.ParallelFExecutor;
+import org.thema.common.swing.TaskMonitor;
+import org.thema.fracgis.Data;
+import org.thema.fracgis.sampling.DefaultSampling;
+import org.thema.fracgis.sampling.RasterBoxSampling;
+import org.thema.fracgis.sampling.Sampling.Sequence;
+import org.thema.parallel.ParallelExecutor;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class MultiFracGlidingBoxRasterMethodTest {
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        ParallelExecutor.setNbProc(4);
+        ParallelFExecutor.setNbProc(4);
+
+        Data.loadRaster();
+    }
+
+    /**
+     * Test of execute method, of class MultiFracGlidingBoxRasterMethod.
+     * For a full square, the gliding boxes give the same moments as the fixed grid.
+     */
+    @Test
+    public void testExecute() {
+        System.out.println("execute");
+        RasterBoxSampling sampling = new RasterBoxSampling(new DefaultSampling(1, 16, 2));
+        MultiFracGlidingBoxRasterMethod instance = new MultiFracGlidingBoxRasterMethod("testSquare", sampling, Data.imgSquare, Data.env16);
+        instance.execute(new TaskMonitor.EmptyMonitor(), false);
+        assertEquals(Arrays.asList(1.0, 2.0, 4.0, 8.0, 16.0), new ArrayList<>(instance.getCurve(0).keySet()));
+        assertArrayEquals(new double [] {65536.0, 4096.0, 256.0, 16.0, 1.0}, 
+                ArrayUtils.toPrimitive(instance.getCurve(-1).values().toArray(new Double[0])), 1e-8);
+        assertArrayEquals(new double [] {256.0, 64.0, 16.0, 4.0, 1.0}, 
+                ArrayUtils.toPrimitive(instance.getCurve(0).values().toArray(new Double[0])), 1e-10);
+        assertArrayEquals(new double [] {1/256.0, 1/64.0, 1/16.0, 1/4.0, 1/1.0}, 
+                ArrayUtils.toPrimitive(instance.getCurve(1).values().toArray(new Double[0])), 1e-10);
+        assertArrayEquals(new double [] {1/256.0, 1/64.0, 1/16.0, 1/4.0, 1/1.0}, 
+                ArrayUtils.toPrimitive(instance.getCurve(2).values().toArray(new Double[0])), 1e-10);
+    }
+
+    /**
+     * Test of execute method with a stride, of class MultiFracGlidingBoxRasterMethod.
+     * Compares with the direct computation.
+     */
+    @Test
+    public void testExecuteStride() {
+        System.out.println("execute stride");
+        BufferedImage img = new BufferedImage(60, 45, BufferedImage.TYPE_USHORT_GRAY);
+        Random rand = new Random(11);
+        for(int y = 0; y < img.getHeight(); y++) {
+            for(int x = 0; x < img.getWidth(); x++) {
+                if(rand.nextDouble() < 0.2) {
+                    img.getRaster().setSample(x, y, 0, rand.nextInt(1000));
+                }
+            }
+        }
+        double total = 0;
+        for(int y = 0; y < img.getHeight(); y++) {
+            for(int x = 0; x < img.getWidth(); x++) {
+                total += img.getRaster().getSample(x, y, 0);
+            }
+        }
+        RasterBoxSampling sampling = new RasterBoxSampling(new DefaultSampling(2, 12, 3, Sequence.ARITH));
+        for(int stride : new int[] {1, 3}) {
+            MultiFracGlidingBoxRasterMethod instance = new MultiFracGlidingBoxRasterMethod("testRand", sampling, img, 
+                    new Envelope(0, img.getWidth(), 0, img.getHeight()), stride);
+            instance.execute(new TaskMonitor.EmptyMonitor(), true);
+            assertEquals(Arrays.asList(2.0, 5.0, 8.0, 11.0), new ArrayList<>(instance.getCurve(0).keySet()));
+            for(int size = 2; size <= 12; size += 3) {
+                double nb = 0, count = 0, sumNeg = 0, sum2 = 0;
+                for(int by = 0; by+size <= img.getHeight(); by += stride) {
+                    for(int bx = 0; bx+size <= img.getWidth(); bx += stride) {
+                        double mass = 0;
+                        for(int y = by; y < by+size; y++) {
+                            for(int x = bx; x < bx+size; x++) {
+                                mass += img.getRaster().getSample(x, y, 0);
+                            }
+                        }
+                        nb++;
+                        if(mass > 0) {
+                            count++;
+                            sumNeg += Math.pow(mass / total, -1.5);
+                            sum2 += Math.pow(mass / total, 2);
+                        }
+                    }
+                }
+                double factor = img.getWidth()*img.getHeight() / (double)(size*size) / nb;
+                assertEquals(count*factor, instance.getCurve(0).get((double)size), 1e-10);
+                assertEquals(sumNeg*factor, instance.getCurve(-1.5).get((double)size), sumNeg*factor*1e-12);
+                assertEquals(sum2*factor, instance.getCurve(2).get((double)size), 1e-12);
+            }
+        }
+    }
+
+    /**
+     * Test of execute method with sizes larger than the image, of class MultiFracGlidingBoxRasterMethod.
+     * These sizes are ignored.
+     */
+    @Test
+    public void testExecuteLargeSizes() {
+        System.out.println("execute large sizes");
+        BufferedImage img = new BufferedImage(20, 10, BufferedImage.TYPE_BYTE_GRAY);
+        for(int y = 0; y < img.getHeight(); y++) {
+            for(int x = 0; x < img.getWidth(); x++) {
+                img.getRaster().setSample(x, y, 0, 1);
+            }
+        }
+        RasterBoxSampling sampling = new RasterBoxSampling(new DefaultSampling(1, 16, 2));
+        MultiFracGlidingBoxRasterMethod instance = new MultiFracGlidingBoxRasterMethod("testRect", sampling, img, 
+                new Envelope(0, img.getWidth(), 0, img.getHeight()));
+        instance.execute(new TaskMonitor.EmptyMonitor(), false);
+        assertEquals(Arrays.asList(1.0, 2.0, 4.0, 8.0), new ArrayList<>(instance.getCurve(0).keySet()));
+        assertArrayEquals(new double [] {200.0, 50.0, 12.5, 200/64.0}, 
+                ArrayUtils.toPrimitive(instance.getCurve(0).values().toArray(new Double[0])), 1e-10);
+    }
+}
@@ -20,6 +20,10 @@
 package org.thema.fracgis.method.raster.multi;
 
 import org.thema.fracgis.method.raster.multi.WLBMF;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.junit.After;
@@ -28,6 +32,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import org.thema.common.swing.TaskMonitor;
 
 /**
  *
@@ -69,6 +74,98 @@ public class WLBMFTest {
         
     }
     
+    /**
+     * Test of DxLx2d method with flat array, of class WLBMF.
+     * Compares the 2D array version, sequential, and the flat version, parallel, with the leaders 
+     * of the original implementation (conv2 and conv2Trans with subsampling on RealMatrix) for the same data.
+     */
+    @Test
+    public void testDxLx2dFlat() {
+        System.out.println("DxLx2d flat");
+        int width = 91, height = 37;
+        double [][] data = new double[height][width];
+        double [] flat = new double[width*height];
+        Random rand = new Random(3);
+        for(int i = 0; i < height; i++) {
+            for(int j = 0; j < width; j++) {
+                data[i][j] = rand.nextInt(100);
+                flat[i*width+j] = data[i][j];
+            }
+        }
+        List<WLBMF.Struct> leaders = new WLBMF(false).DxLx2d(data, 3, 0.7);
+        List<WLBMF.Struct> leadersFlat = new WLBMF(true).DxLx2d(flat, width, height, 3, 0.7);
+        for(List<WLBMF.Struct> l : Arrays.asList(leaders, leadersFlat)) {
+            assertEquals(2, l.size());
+            // W, size of the vector, number of non NaN values, first non NaN index, its value, middle value, sum and max
+            checkLeaders(l.get(0), 2244, 748, 468, 135, 62.06393700331774, 37.77275505067533, 24384.324953600284, 77.40848129683859);
+            checkLeaders(l.get(1), 420, 140, 30, 63, 68.25540743065368, 52.89239447803264, 1789.2770437005602, 73.6720157142836);
+        }
+        // the input is not modified
+        assertEquals(data[5][7], flat[5*width+7], 0.0);
+    }
+    
+    private static void checkLeaders(WLBMF.Struct s, int w, int n, int nb, int first, double firstVal, double midVal, double sum, double max) {
+        assertEquals(w, s.W);
+        double [] v = s.getVectorMax();
+        assertEquals(n, v.length);
+        int count = 0, ind = -1;
+        double sumVal = 0, maxVal = 0;
+        for(int i = 0; i < v.length; i++) {
+            if(!Double.isNaN(v[i])) {
+                if(ind == -1) {
+                    ind = i;
+                }
+                count++;
+                sumVal += v[i];
+                maxVal = Math.max(maxVal, v[i]);
+            }
+        }
+        assertEquals(nb, count);
+        assertEquals(first, ind);
+        assertEquals(firstVal, v[first], firstVal*1e-12);
+        assertEquals(midVal, v[n/2], midVal*1e-12);
+        assertEquals(sum, sumVal, sum*1e-12);
+        assertEquals(max, maxVal, max*1e-12);
+    }
+    
+    /**
+     * Test of getStats method, of class WLBMF.
+     * Compares the tiled calculation with the leaders of the whole image.
+     */
+    @Test
+    public void testGetStats() {
+        System.out.println("getStats");
+        double [] qs = new double[] {-2, -0.5, 0, 1, 2.5};
+        Random rand = new Random(7);
+        for(int [] size : new int[][] {{300, 200}, {100, 20}, {33, 130}}) {
+            int width = size[0], height = size[1];
+            BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+            double [] data = new double[width*height];
+            for(int i = 0; i < height; i++) {
+                for(int j = 0; j < width; j++) {
+                    int val = rand.nextDouble() < 0.5 ? 0 : rand.nextInt(1000);
+                    img.getRaster().setSample(j, i, 0, val);
+                    data[i*width+j] = val;
+                }
+            }
+            List<WLBMF.Struct> leaders = new WLBMF().DxLx2d(data, width, height, 3, 0.7);
+            for(int tileSize : new int[] {32, 64, 1000}) {
+                List<WLBMF.Stats> stats = new WLBMF().getStats(img, tileSize, 3, 0.7, qs, new TaskMonitor.EmptyMonitor());
+                assertEquals(leaders.size(), stats.size());
+                for(int i = 0; i < leaders.size(); i++) {
+                    WLBMF.Stats expected = new WLBMF.Stats(qs);
+                    expected.add(leaders.get(i));
+                    assertEquals(leaders.get(i).getVectorMax().length, stats.get(i).getNb());
+                    assertEquals(expected.getNb(), stats.get(i).getNb());
+                    for(int k = 0; k < qs.length; k++) {
+                        assertEquals(expected.getSum(k), stats.get(i).getSum(k), Math.abs(expected.getSum(k))*1e-10);
+                        assertEquals(expected.getLogSum(k), stats.get(i).getLogSum(k), Math.abs(expected.getLogSum(k))*1e-10);
+                    }
+                }
+            }
+        }
+    }
+    
     @Test
     public void testConv2() {
         System.out.println("conv2");
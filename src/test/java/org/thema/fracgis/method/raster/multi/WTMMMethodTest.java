@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.method.raster.multi;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class WTMMMethodTest {
+
+    private static final int W = 12;
+    private static final int D = 2;
+
+    /**
+     * Test of chain method, of class WTMMMethod.Maxima.
+     * Each maximum takes the supremum of its nearest parent within the radius, if any.
+     */
+    @Test
+    public void testChain() {
+        System.out.println("chain");
+        WTMMMethod.Maxima prev = createMaxima(new int[][] {{0, 0}, {6, 0}, {0, 6}}, new double[] {5, 1, 2});
+        double [] prevSup = prev.chain(null, null, 3);
+        assertArrayEquals(new double[] {5, 1, 2}, prevSup, 0);
+        // propagated supremum of the previous scale
+        prevSup[2] = 9;
+
+        // the maxima are sorted by row then by column
+        WTMMMethod.Maxima maxima = createMaxima(new int[][] {{-2, -2}, {1, 1}, {5, 1}, {3, 3}, {2, 4}, {0, 5}},
+                new double[] {1, 3, 4, 2, 1, 1});
+        double [] sup = maxima.chain(prev, prevSup, 3);
+        // (-2,-2) outside the image -> (0,0), (1,1) -> (0,0), (5,1) -> (6,0) lower than itself,
+        // (3,3) no parent within the radius, (2,4) -> (0,6) nearer than (0,0), (0,5) -> (0,6)
+        assertArrayEquals(new double[] {5, 5, 4, 2, 9, 9}, sup, 0);
+
+        // with a radius of 1, only (0,5) has a parent
+        sup = maxima.chain(prev, prevSup, 1);
+        assertArrayEquals(new double[] {1, 3, 4, 2, 1, 9}, sup, 0);
+    }
+
+    /**
+     * Creates the maxima from a chain raster of width W and border D
+     */
+    private static WTMMMethod.Maxima createMaxima(int [][] points, double [] values) {
+        double [] chain = new double[W*W];
+        for(int i = 0; i < points.length; i++) {
+            chain[(points[i][1]+D)*W + points[i][0]+D] = values[i];
+        }
+        return new WTMMMethod.Maxima(chain, W, D);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.method.vector;
+
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class CellBitmapTest {
+
+    /**
+     * Test of add and contains methods, of class CellBitmap.
+     */
+    @Test
+    public void testAdd() {
+        System.out.println("add");
+        CellBitmap bitmap = new CellBitmap();
+        assertTrue(bitmap.isEmpty());
+        assertTrue(bitmap.add(5));
+        assertFalse(bitmap.add(5));
+        assertTrue(bitmap.add(1L << 40));
+        assertTrue(bitmap.contains(5));
+        assertTrue(bitmap.contains(1L << 40));
+        assertFalse(bitmap.contains(6));
+        assertFalse(bitmap.contains(5 + (1 << 16)));
+        assertEquals(2, bitmap.getCardinality());
+        assertArrayEquals(new long[] {5, 1L << 40}, bitmap.toArray());
+        
+        // dense chunk converted to bitset
+        TreeSet<Long> set = new TreeSet<>();
+        Random rand = new Random(1);
+        bitmap = new CellBitmap();
+        for(int i = 0; i < 20000; i++) {
+            long id = rand.nextInt(1 << 17);
+            assertEquals(set.add(id), bitmap.add(id));
+        }
+        assertEquals(set.size(), bitmap.getCardinality());
+        for(long id = 0; id < 1 << 17; id++) {
+            assertEquals(set.contains(id), bitmap.contains(id));
+        }
+        checkArray(set, bitmap);
+    }
+
+    /**
+     * Test of or method, of class CellBitmap.
+     */
+    @Test
+    public void testOr() {
+        System.out.println("or");
+        Random rand = new Random(2);
+        for(int n : new int[] {100, 3000, 10000}) {
+            TreeSet<Long> set = new TreeSet<>();
+            CellBitmap b1 = new CellBitmap();
+            CellBitmap b2 = new CellBitmap();
+            for(int i = 0; i < n; i++) {
+                long id = rand.nextInt(1 << 16);
+                set.add(id);
+                b1.add(id);
+                id = rand.nextInt(1 << 18);
+                set.add(id);
+                b2.add(id);
+            }
+            b1.or(b2);
+            assertEquals(set.size(), b1.getCardinality());
+            checkArray(set, b1);
+            b1.or(b2);
+            assertEquals(set.size(), b1.getCardinality());
+        }
+    }
+    
+    private static void checkArray(TreeSet<Long> set, CellBitmap bitmap) {
+        long [] ids = bitmap.toArray();
+        assertEquals(set.size(), ids.length);
+        int i = 0;
+        for(Long id : set) {
+            assertEquals((long)id, ids[i++]);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.fracgis.method.vector;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygonal;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class VirtualGridTest {
+
+    /**
+     * Test of getIndex, getIndexCol and getIndexRow methods, of class VirtualGrid.
+     */
+    @Test
+    public void testGetIndex() {
+        System.out.println("getIndex");
+        VirtualGrid grid = new VirtualGrid(-10, 5, 2, 100, 50);
+        assertEquals(2, grid.getCol(-5.5));
+        assertEquals(-1, grid.getCol(-10.5));
+        assertEquals(3, grid.getRow(11));
+        long id = grid.getIndex(7, 13);
+        assertEquals(1307, id);
+        assertEquals(7, grid.getIndexCol(id));
+        assertEquals(13, grid.getIndexRow(id));
+        assertEquals(5000, grid.getNbCells());
+    }
+
+    /**
+     * Test of getPointIndex method, of class VirtualGrid.
+     */
+    @Test
+    public void testGetPointIndex() {
+        System.out.println("getPointIndex");
+        VirtualGrid grid = new VirtualGrid(-10, 5, 2, 100, 50);
+        assertEquals(grid.getIndex(2, 3), grid.getPointIndex(-5.5, 11));
+        // on the max border of the grid
+        assertEquals(grid.getIndex(99, 3), grid.getPointIndex(190, 11));
+        assertEquals(grid.getIndex(2, 49), grid.getPointIndex(-5.5, 105));
+        assertEquals(grid.getIndex(99, 49), grid.getPointIndex(190, 105));
+        // on the min border of the grid
+        assertEquals(grid.getIndex(0, 0), grid.getPointIndex(-10, 5));
+    }
+
+    /**
+     * Test of addSegmentCells method, of class VirtualGrid.
+     */
+    @Test
+    public void testAddSegmentCells() {
+        System.out.println("addSegmentCells");
+        VirtualGrid grid = new VirtualGrid(0, 0, 1, 10, 10);
+        // diagonal through the corners
+        checkSegment(grid, 0.5, 0.5, 2.5, 2.5);
+        checkSegment(grid, 2.5, 0.5, 0.5, 2.5);
+        // on the border of the cells
+        checkSegment(grid, 2, 1.5, 2, 6.5);
+        checkSegment(grid, 1, 3, 4, 3);
+        // end points on the border
+        checkSegment(grid, 1, 1.5, 3.5, 2);
+        checkSegment(grid, 4, 4, 8.25, 5.75);
+        // outside the grid
+        checkSegment(grid, -3.5, -2.2, 12.1, 11.3);
+        checkSegment(grid, 4.5, 4.5, 4.5, 4.5);
+        
+        Random rand = new Random(1);
+        grid = new VirtualGrid(-1.3, 2.1, 0.7, 40, 30);
+        for(int i = 0; i < 500; i++) {
+            checkSegment(grid, rand.nextDouble()*30-2, rand.nextDouble()*24+1, rand.nextDouble()*30-2, rand.nextDouble()*24+1);
+        }
+    }
+    
+    /**
+     * Test of addSegmentCells method restricted to a range of cells, of class VirtualGrid.
+     */
+    @Test
+    public void testAddSegmentCellsRange() {
+        System.out.println("addSegmentCells range");
+        VirtualGrid grid = new VirtualGrid(0, 0, 1, 10, 10);
+        int [] range = {2, 2, 5, 5};
+        // through the corners of the range
+        checkSegment(grid, range, 0, 0, 10, 10);
+        checkSegment(grid, range, 0, 8, 8, 0);
+        // touching a corner of the range only
+        checkSegment(grid, range, 0, 4, 4, 0);
+        // entering the range at the corner of 2 cells
+        checkSegment(grid, range, 0, 7, 7, 0);
+        checkSegment(grid, range, 7, 0, 0, 7);
+        // on the border of the range
+        checkSegment(grid, range, 2, 0, 2, 9);
+        checkSegment(grid, range, 0, 6, 9, 6);
+        // inside and outside the range
+        checkSegment(grid, range, 3.5, 3.2, 4.5, 4.7);
+        checkSegment(grid, range, 6.5, 0.5, 9.5, 9.5);
+        
+        Random rand = new Random(1);
+        grid = new VirtualGrid(-1.3, 2.1, 0.7, 40, 30);
+        int [][] ranges = {{0, 0, 39, 29}, {10, 5, 19, 14}, {0, 0, 3, 3}, {36, 26, 39, 29}, {20, 10, 20, 10}};
+        for(int i = 0; i < 500; i++) {
+            double xa = rand.nextDouble()*30-2, ya = rand.nextDouble()*24+1;
+            double xb = rand.nextDouble()*30-2, yb = rand.nextDouble()*24+1;
+            for(int [] r : ranges) {
+                checkSegment(grid, r, xa, ya, xb, yb);
+            }
+        }
+    }
+    
+    /**
+     * Test of addCells method for polygons, of class VirtualGrid.
+     * @throws ParseException 
+     */
+    @Test
+    public void testAddPolygonCells() throws ParseException {
+        System.out.println("addCells polygon");
+        VirtualGrid grid = new VirtualGrid(0, 0, 1, 20, 20);
+        WKTReader reader = new WKTReader();
+        for(String wkt : new String[] {
+                "POLYGON ((0.5 0.5, 10.5 0.5, 10.5 10.5, 0.5 10.5, 0.5 0.5))",
+                "POLYGON ((0.5 0.5, 15.5 0.5, 15.5 15.5, 0.5 15.5, 0.5 0.5), (3.2 3.2, 3.2 12.7, 12.7 12.7, 12.7 3.2, 3.2 3.2))",
+                "MULTIPOLYGON (((2 2.5, 8 5.5, 2 9.5, 5 5.5, 2 2.5)), ((12 12, 18 12, 18 18, 12 18, 12 12)))",
+                "POLYGON ((-3 -3, 25 4, 10 25, -3 -3))"}) {
+            Geometry geom = reader.read(wkt);
+            CellBitmap cells = new CellBitmap();
+            grid.addCells((Polygonal)geom, cells);
+            for(int y = 0; y < grid.getHeight(); y++) {
+                for(int x = 0; x < grid.getWidth(); x++) {
+                    assertEquals(wkt + " cell " + x + "," + y, geom.intersects(grid.getCellGeom(x, y)), 
+                            cells.contains(grid.getIndex(x, y)));
+                }
+            }
+        }
+    }
+    
+    private static void checkSegment(VirtualGrid grid, double xa, double ya, double xb, double yb) {
+        CellBitmap cells = new CellBitmap();
+        grid.addSegmentCells(xa, ya, xb, yb, cells);
+        for(int y = 0; y < grid.getHeight(); y++) {
+            for(int x = 0; x < grid.getWidth(); x++) {
+                Envelope env = grid.getCellEnvelope(x, y);
+                boolean inter = intersects(xa, ya, xb, yb, env.getMinX(), env.getMaxX(), env.getMinY(), env.getMaxY());
+                assertEquals("Cell " + x + "," + y, inter, cells.contains(grid.getIndex(x, y)));
+            }
+        }
+    }
+    
+    /**
+     * Checks that the cells of the range are the cells of the whole segment inside the range
+     */
+    private static void checkSegment(VirtualGrid grid, int [] range, double xa, double ya, double xb, double yb) {
+        CellBitmap all = new CellBitmap();
+        grid.addSegmentCells(xa, ya, xb, yb, all);
+        CellBitmap cells = new CellBitmap();
+        grid.addSegmentCells(xa, ya, xb, yb, range, cells);
+        for(int y = 0; y < grid.getHeight(); y++) {
+            for(int x = 0; x < grid.getWidth(); x++) {
+                boolean inRange = x >= range[0] && x <= range[2] && y >= range[1] && y <= range[3];
+                long id = grid.getIndex(x, y);
+                assertEquals("Cell " + x + "," + y, inRange && all.contains(id), cells.contains(id));
+            }
+        }
+    }
+    
+    /**
+     * Liang-Barsky clipping of the segment by the closed rectangle
+     */
+    private static boolean intersects(double xa, double ya, double xb, double yb, double x1, double x2, double y1, double y2) {
+        double t0 = 0, t1 = 1;
+        double [] p = {xa-xb, xb-xa, ya-yb, yb-ya};
+        double [] q = {xa-x1, x2-xa, ya-y1, y2-ya};
+        for(int i = 0; i < 4; i++) {
+            if(p[i] == 0) {
+                if(q[i] < 0) {
+                    return false;
+                }
+            } else {
+                double t = q[i] / p[i];
+                if(p[i] < 0) {
+                    t0 = Math.max(t0, t);
+                } else {
+                    t1 = Math.min(t1, t);
+                }
+            }
+        }
+        return t0 <= t1;
+    }
+}
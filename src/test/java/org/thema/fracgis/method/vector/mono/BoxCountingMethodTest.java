@@ -16,17 +16,26 @@
  */
 package org.thema.fracgis.method.vector.mono;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import org.geotools.geometry.jts.JTS;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import org.thema.common.parallel.ParallelFExecutor;
 import org.thema.common.swing.TaskMonitor;
+import org.thema.data.feature.DefaultFeature;
+import org.thema.data.feature.DefaultFeatureCoverage;
 import org.thema.fracgis.Data;
+import org.thema.fracgis.method.vector.VirtualGrid;
 import org.thema.fracgis.sampling.DefaultSampling;
 import org.thema.fracgis.sampling.Sampling;
+import org.thema.parallel.ExecutorService;
 import org.thema.parallel.ParallelExecutor;
 
 /**
@@ -69,4 +78,88 @@ public class BoxCountingMethodTest {
         instance.execute(new TaskMonitor.EmptyMonitor(), true);
         assertEquals(Arrays.asList(3125.0, 625.0, 125.0, 25.0, 5.0, 1.0), new ArrayList<>(instance.getCurve().values()));
     }
+    
+    /**
+     * Test of execute method with sizes which are not multiple, of class BoxCountingMethod.
+     */
+    @Test
+    public void testExecuteArith() {
+        System.out.println("execute arith");
+        DefaultSampling sampling = new DefaultSampling(8, 64, 8, Sampling.Sequence.ARITH);
+        BoxCountingMethod instance = new BoxCountingMethod("testSquare", sampling, Data.covSquare, 1, false);
+        instance.execute(new TaskMonitor.EmptyMonitor(), true);
+        assertEquals(Arrays.asList(64.0, 16.0, 16.0, 4.0, 9.0, 4.0, 4.0, 1.0), new ArrayList<>(instance.getCurve().values()));
+    }
+    
+    /**
+     * Test of PointBoxCountingTask with translated grids and points on the border of the cells.
+     */
+    @Test
+    public void testPointBoxCounting() {
+        System.out.println("point box counting");
+        // points on the border of the cells and on the max border of the grid
+        double [] xs = {0, 10, 2.5, 10, 7.25, 4, 0, 10};
+        double [] ys = {0, 10, 10, 3.75, 5, 4, 7.5, 6.2};
+        // the grid covers the points from one cell size to the left and the bottom, as in BoxCountingMethod
+        VirtualGrid sizeGrid = new VirtualGrid(-2.5, -2.5, 2.5, 5, 5);
+        for(double dx = 0; dx < 2.5; dx += 0.625) {
+            for(double dy = 0; dy < 2.5; dy += 0.625) {
+                VirtualGrid grid = sizeGrid.createTranslatedGrid(dx, dy);
+                long nb = 0;
+                for(int y = 0; y < grid.getHeight(); y++) {
+                    for(int x = 0; x < grid.getWidth(); x++) {
+                        Envelope cell = grid.getCellEnvelope(x, y);
+                        for(int i = 0; i < xs.length; i++) {
+                            if(cell.intersects(xs[i], ys[i])) {
+                                nb++;
+                                break;
+                            }
+                        }
+                    }
+                }
+                PointBoxCountingTask task = new PointBoxCountingTask(grid, xs, ys, new long[xs.length], false, 
+                        new TaskMonitor.EmptyMonitor());
+                ExecutorService.executeSequential(task);
+                assertEquals("Offset " + dx + "," + dy, nb, (long)task.getResult());
+                task = new PointBoxCountingTask(grid, xs, ys, new long[xs.length], false, new TaskMonitor.EmptyMonitor());
+                ExecutorService.execute(task);
+                assertEquals("Offset " + dx + "," + dy, nb, (long)task.getResult());
+            }
+        }
+    }
+    
+    /**
+     * Test of execute method for lineal and mixed data counted in one descent, of class BoxCountingMethod.
+     * The result must be the same as counting each size separately.
+     */
+    @Test
+    public void testExecuteDescent() {
+        System.out.println("execute descent");
+        GeometryFactory factory = new GeometryFactory();
+        List<DefaultFeature> features = new ArrayList<>(Arrays.asList(
+            new DefaultFeature(1, factory.createLineString(new Coordinate[] {new Coordinate(0, 0), new Coordinate(100, 37.5)})),
+            new DefaultFeature(2, factory.createLineString(new Coordinate[] {new Coordinate(3.3, 90), new Coordinate(40, 60.2), 
+                new Coordinate(81.7, 95), new Coordinate(20, 5.5)})),
+            new DefaultFeature(3, factory.createLineString(new Coordinate[] {new Coordinate(50, 0), new Coordinate(50, 64)}))));
+        checkDescent(new DefaultFeatureCoverage(features));
+        
+        features.add(new DefaultFeature(4, factory.createPoint(new Coordinate(70.5, 10.5))));
+        features.add(new DefaultFeature(5, JTS.toGeometry(new Envelope(60, 75.2, 40.1, 52))));
+        checkDescent(new DefaultFeatureCoverage(features));
+    }
+    
+    /**
+     * Compares the sizes 1 to 32 counted in one descent with the same sizes counted separately
+     */
+    private static void checkDescent(DefaultFeatureCoverage cov) {
+        BoxCountingMethod instance = new BoxCountingMethod("descent", new DefaultSampling(1, 32, 2, Sampling.Sequence.GEOM), cov, 1, false);
+        instance.execute(new TaskMonitor.EmptyMonitor(), true);
+        // the sizes are not multiple of the previous one, each size is counted on its own grid
+        BoxCountingMethod ref = new BoxCountingMethod("grid", new DefaultSampling(1, 32, 1, Sampling.Sequence.ARITH), cov, 1, false);
+        ref.execute(new TaskMonitor.EmptyMonitor(), true);
+        assertEquals(6, instance.getCurve().size());
+        for(Double size : instance.getCurve().keySet()) {
+            assertEquals("Size " + size, ref.getCurve().get(size), instance.getCurve().get(size));
+        }
+    }
 }